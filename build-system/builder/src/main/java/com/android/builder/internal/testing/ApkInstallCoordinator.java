@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.testing;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.builder.testing.api.DeviceConnector;
+import com.android.builder.testing.api.DeviceException;
+import com.android.ddmlib.CollectingOutputReceiver;
+import com.android.utils.ILogger;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Installs the apks of a test run on the devices.
+ * <p/>The installs run on the devices at the same time, up to a maximum number, as they compete
+ * for the disk of the host and the bandwidth to the devices. The content hash of each apk is
+ * computed once, for all the devices.
+ * <p/>When reusing the installed apks, the hash of the apks of a package is written on the device
+ * after installing them, along with the paths of the package reported by {@code pm path}. An
+ * install is skipped when both still match, and the data of the package is cleared instead,
+ * so that the tests start from the same state as after a fresh install. The apks are then left
+ * installed after the tests, for the next run.
+ */
+public class ApkInstallCoordinator {
+
+    private static final String MARKER_DIR = "/data/local/tmp/";
+    private static final String MARKER_SUFFIX = ".apkhash";
+    private static final String PACKAGE_PREFIX = "package:";
+
+    private final boolean mReuseInstalledApks;
+    @NonNull
+    private final Semaphore mInstallPermits;
+    @NonNull
+    private final Map<File, HashCode> mHashes = Maps.newHashMap();
+
+    /**
+     * Creates the coordinator.
+     * @param reuseInstalledApks whether unchanged apks are left installed, and not reinstalled.
+     * @param maxConcurrentInstalls the maximum number of installs running at the same time.
+     */
+    public ApkInstallCoordinator(boolean reuseInstalledApks, int maxConcurrentInstalls) {
+        mReuseInstalledApks = reuseInstalledApks;
+        mInstallPermits = new Semaphore(maxConcurrentInstalls, true /*fair*/);
+    }
+
+    /**
+     * Returns whether the apks are left installed after the tests, for the next run.
+     */
+    public boolean isReusingInstalledApks() {
+        return mReuseInstalledApks;
+    }
+
+    /**
+     * Installs the apks of a package on a device, unless the same apks are already installed.
+     * @param packageName the package of the apks, or null if unknown, in which case they are
+     *                    always installed.
+     * @return true if the apks were installed, false if the install was skipped.
+     */
+    public boolean install(
+            @NonNull DeviceConnector device,
+            @Nullable String packageName,
+            @NonNull List<File> apks,
+            int timeoutInMs,
+            @NonNull ILogger logger) throws DeviceException, InterruptedException {
+        String deviceName = device.getName();
+        boolean reuse = mReuseInstalledApks && packageName != null;
+
+        String hash = null;
+        if (reuse) {
+            hash = getHash(apks).toString();
+            List<String> state = getInstallState(device, packageName);
+            String installedPaths = getInstalledPaths(state);
+            if (!installedPaths.isEmpty()
+                    && state.contains(getMarkerContent(hash, installedPaths))) {
+                logger.verbose("DeviceConnector '%s': %s is up to date, not installing %s",
+                        deviceName, packageName, Joiner.on(',').join(apks));
+                clearData(device, packageName);
+                return false;
+            }
+        }
+
+        logger.verbose("DeviceConnector '%s': installing %s", deviceName,
+                Joiner.on(',').join(apks));
+        mInstallPermits.acquire();
+        try {
+            if (device.getApiLevel() >= 21) {
+                device.installPackages(apks,
+                        ImmutableList.<String>of() /* installOptions */, timeoutInMs, logger);
+            } else {
+                device.installPackage(apks.get(0),
+                        ImmutableList.<String>of() /* installOptions */, timeoutInMs, logger);
+            }
+        } finally {
+            mInstallPermits.release();
+        }
+
+        if (reuse) {
+            String installedPaths = getInstalledPaths(getInstallState(device, packageName));
+            executeShellCommand(device, "echo '" + getMarkerContent(hash, installedPaths)
+                    + "' > " + getMarkerPath(packageName));
+            // a reinstall keeps the data of the previous install.
+            clearData(device, packageName);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the hash of the content of apks, computing the hash of each apk only once.
+     */
+    @NonNull
+    synchronized HashCode getHash(@NonNull List<File> apks) throws DeviceException {
+        List<HashCode> hashes = Lists.newArrayListWithCapacity(apks.size());
+        for (File apk : apks) {
+            HashCode hash = mHashes.get(apk);
+            if (hash == null) {
+                try {
+                    hash = Files.hash(apk, Hashing.sha1());
+                } catch (IOException e) {
+                    throw new DeviceException(e);
+                }
+                mHashes.put(apk, hash);
+            }
+            hashes.add(hash);
+        }
+        return hashes.size() == 1 ? hashes.get(0) : Hashing.combineOrdered(hashes);
+    }
+
+    /**
+     * Returns the lines printed by {@code pm path} for a package, followed by the content of its
+     * marker, if any.
+     */
+    @NonNull
+    private static List<String> getInstallState(
+            @NonNull DeviceConnector device,
+            @NonNull String packageName) throws DeviceException {
+        String output = executeShellCommand(device, "pm path " + packageName + "; cat "
+                + getMarkerPath(packageName) + " 2>/dev/null");
+        List<String> lines = Lists.newArrayList();
+        for (String line : output.split("\n")) {
+            line = line.trim();
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Returns the installed paths of a package in the output of {@link #getInstallState}, in a
+     * stable order, or an empty string if it is not installed.
+     */
+    @NonNull
+    static String getInstalledPaths(@NonNull List<String> state) {
+        List<String> paths = Lists.newArrayList();
+        for (String line : state) {
+            if (line.startsWith(PACKAGE_PREFIX)) {
+                paths.add(line.substring(PACKAGE_PREFIX.length()));
+            }
+        }
+        Collections.sort(paths);
+        return Joiner.on(',').join(paths);
+    }
+
+    @NonNull
+    static String getMarkerContent(@NonNull String hash, @NonNull String installedPaths) {
+        return hash + ' ' + installedPaths;
+    }
+
+    @NonNull
+    private static String getMarkerPath(@NonNull String packageName) {
+        return MARKER_DIR + packageName + MARKER_SUFFIX;
+    }
+
+    private static void clearData(@NonNull DeviceConnector device, @NonNull String packageName)
+            throws DeviceException {
+        executeShellCommand(device, "pm clear " + packageName);
+    }
+
+    @NonNull
+    private static String executeShellCommand(@NonNull DeviceConnector device,
+            @NonNull String command) throws DeviceException {
+        CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+        try {
+            device.executeShellCommand(command, receiver, 30, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            throw new DeviceException(e);
+        }
+        return receiver.getOutput();
+    }
+}
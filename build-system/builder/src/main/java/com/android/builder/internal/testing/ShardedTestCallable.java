@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.testing;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.builder.testing.TestData;
+import com.android.builder.testing.api.DeviceConnector;
+import com.android.builder.testing.api.DeviceException;
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.RemoteAndroidTestRunner;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.utils.ILogger;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Callable running the shards of a sharded run on a given {@link DeviceConnector}, until the
+ * {@link TestShardQueue} is empty.
+ *
+ * The tests are reported to the {@link ShardedTestRunListener} shared by all the devices. The
+ * boolean return value is true if the device ran all the shards it took, whatever their results.
+ * If the device fails, the failure is reported as a failed test and rethrown, and the tests of the
+ * shard it was running which didn't start are given back to the queue to be run by another device.
+ * The same goes for a shard whose instrumentation fails without the device failing, reported by
+ * {@link ITestRunListener#testRunFailed(String)}. The tests which can't be given back, because
+ * they were given back before or because all the other devices are done, are reported as failed.
+ */
+public class ShardedTestCallable implements Callable<Boolean> {
+
+    @NonNull
+    private final DeviceConnector device;
+    private final int deviceIndex;
+    @NonNull
+    private final TestShardQueue queue;
+    @NonNull
+    private final ShardedTestRunListener runListener;
+    @NonNull
+    private final TestData testData;
+    @NonNull
+    private final File testApk;
+    @NonNull
+    private final List<File> testedApks;
+    @NonNull
+    private final ApkInstallCoordinator installer;
+
+    private final int timeoutInMs;
+    @NonNull
+    private final ILogger logger;
+
+    public ShardedTestCallable(
+            @NonNull DeviceConnector device,
+                     int deviceIndex,
+            @NonNull TestShardQueue queue,
+            @NonNull ShardedTestRunListener runListener,
+            @NonNull File testApk,
+            @NonNull List<File> testedApks,
+            @NonNull TestData testData,
+            @NonNull ApkInstallCoordinator installer,
+                     int timeoutInMs,
+            @NonNull ILogger logger) {
+        this.device = device;
+        this.deviceIndex = deviceIndex;
+        this.queue = queue;
+        this.runListener = runListener;
+        this.testApk = testApk;
+        this.testedApks = testedApks;
+        this.testData = testData;
+        this.installer = installer;
+        this.timeoutInMs = timeoutInMs;
+        this.logger = logger;
+    }
+
+    @Override
+    public Boolean call() throws Exception {
+        String deviceName = device.getName();
+        boolean isInstalled = false;
+        TestShardQueue.Shard shard = null;
+        ShardListener shardListener = null;
+
+        try {
+            device.connect(timeoutInMs, logger);
+
+            SimpleTestCallable.installApks(device, testedApks, testApk, testData, installer,
+                    timeoutInMs, logger);
+            isInstalled = true;
+
+            if (queue.awaitTests()) {
+                collectTests(deviceName);
+            }
+
+            RemoteAndroidTestRunner runner = createRunner(deviceName);
+            runner.setMaxtimeToOutputResponse(timeoutInMs);
+
+            while ((shard = queue.take(deviceIndex)) != null) {
+                logger.verbose("DeviceConnector '%s': running %d tests of %s", deviceName,
+                        shard.getTestCount(), shard);
+                List<String> classNames = shard.getClassNames();
+                runner.setClassNames(classNames.toArray(new String[classNames.size()]));
+                shardListener = new ShardListener(runListener);
+                runner.run(shardListener);
+
+                if (shardListener.runFailure != null) {
+                    TestShardQueue.Shard remaining =
+                            shard.getRemainingTests(shardListener.startedTests);
+                    if (remaining != null) {
+                        giveBack(deviceName, remaining, shardListener.runFailure);
+                    }
+                }
+            }
+
+            return true;
+        } catch (Exception e) {
+            Map<String, String> emptyMetrics = Collections.emptyMap();
+
+            // create a fake test output
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            PrintWriter pw = new PrintWriter(baos, true);
+            e.printStackTrace(pw);
+
+            // the device must be done before giving back its shard, so that it doesn't get it.
+            List<TestShardQueue.Shard> notRun = Lists.newArrayList(
+                    queue.deviceFailed(deviceIndex));
+            if (shard != null) {
+                TestShardQueue.Shard remaining = shardListener != null
+                        ? shard.getRemainingTests(shardListener.startedTests) : shard;
+                if (remaining != null) {
+                    giveBack(deviceName, remaining, baos.toString());
+                }
+            }
+            for (TestShardQueue.Shard notRunShard : notRun) {
+                reportNotRun(notRunShard, baos.toString());
+            }
+
+            TestIdentifier fakeTest = new TestIdentifier(device.getClass().getName(),
+                    shard != null ? "runTests[" + deviceName + ", " + shard + "]"
+                            : "runTests[" + deviceName + "]");
+            runListener.testStarted(fakeTest);
+            runListener.testFailed(fakeTest, baos.toString());
+            runListener.testEnded(fakeTest, emptyMetrics);
+
+            // and throw
+            throw e;
+        } finally {
+            if (isInstalled && !installer.isReusingInstalledApks()) {
+                SimpleTestCallable.uninstallApks(device, testApk, testedApks, testData,
+                        timeoutInMs, logger);
+            }
+
+            device.disconnect(timeoutInMs, logger);
+        }
+    }
+
+    /**
+     * Gives back the tests of a shard which couldn't run to the queue, or reports them as failed
+     * if they can't be given back.
+     */
+    private void giveBack(@NonNull String deviceName, @NonNull TestShardQueue.Shard shard,
+            @NonNull String trace) {
+        if (queue.requeue(shard)) {
+            logger.warning("DeviceConnector '%s': tests of %s given back to the other devices",
+                    deviceName, shard);
+        } else {
+            reportNotRun(shard, trace);
+        }
+    }
+
+    /**
+     * Reports the tests of a shard which will not be run as failed.
+     */
+    private void reportNotRun(@NonNull TestShardQueue.Shard shard, @NonNull String trace) {
+        Map<String, String> emptyMetrics = Collections.emptyMap();
+        for (TestIdentifier test : shard.getTests()) {
+            runListener.testStarted(test);
+            runListener.testFailed(test, "Test not run:\n" + trace);
+            runListener.testEnded(test, emptyMetrics);
+        }
+    }
+
+    /**
+     * Collects the tests on the device, and gives them to the queue.
+     */
+    private void collectTests(@NonNull String deviceName) throws Exception {
+        TestCollector collector = new TestCollector();
+        try {
+            // a separate runner is used, as the test collection changes the time out.
+            RemoteAndroidTestRunner runner = createRunner(deviceName);
+            runner.setTestCollection(true);
+            runner.run(collector);
+        } catch (Exception e) {
+            queue.collectionFailed();
+            throw e;
+        }
+
+        if (collector.runFailure != null) {
+            queue.collectionFailed();
+            throw new DeviceException("Unable to collect the tests on " + deviceName + ": "
+                    + collector.runFailure);
+        }
+
+        logger.info("Starting %1$d tests on %2$s", collector.tests.size(), deviceName);
+        queue.setTests(collector.tests);
+    }
+
+    @NonNull
+    private RemoteAndroidTestRunner createRunner(@NonNull String deviceName) {
+        RemoteAndroidTestRunner runner = new RemoteAndroidTestRunner(
+                testData.getApplicationId(),
+                testData.getInstrumentationRunner(),
+                device);
+        runner.setRunName(deviceName);
+        return runner;
+    }
+
+    /**
+     * {@link ITestRunListener} forwarding the run of a shard to the listener of the sharded run,
+     * and recording the started tests and the failure of the run.
+     */
+    private static final class ShardListener implements ITestRunListener {
+        @NonNull
+        final ITestRunListener delegate;
+        final Set<TestIdentifier> startedTests = Sets.newHashSet();
+        @Nullable
+        String runFailure;
+
+        ShardListener(@NonNull ITestRunListener delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void testRunStarted(String runName, int testCount) {
+            delegate.testRunStarted(runName, testCount);
+        }
+
+        @Override
+        public void testStarted(TestIdentifier test) {
+            startedTests.add(test);
+            delegate.testStarted(test);
+        }
+
+        @Override
+        public void testFailed(TestIdentifier test, String trace) {
+            delegate.testFailed(test, trace);
+        }
+
+        @Override
+        public void testAssumptionFailure(TestIdentifier test, String trace) {
+            delegate.testAssumptionFailure(test, trace);
+        }
+
+        @Override
+        public void testIgnored(TestIdentifier test) {
+            delegate.testIgnored(test);
+        }
+
+        @Override
+        public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+            delegate.testEnded(test, testMetrics);
+        }
+
+        @Override
+        public void testRunFailed(String errorMessage) {
+            runFailure = errorMessage;
+            delegate.testRunFailed(errorMessage);
+        }
+
+        @Override
+        public void testRunStopped(long elapsedTime) {
+            delegate.testRunStopped(elapsedTime);
+        }
+
+        @Override
+        public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+            delegate.testRunEnded(elapsedTime, runMetrics);
+        }
+    }
+
+    /**
+     * {@link ITestRunListener} recording the tests reported by a test collection run.
+     */
+    private static final class TestCollector implements ITestRunListener {
+        final Set<TestIdentifier> tests = Sets.newLinkedHashSet();
+        @Nullable
+        String runFailure;
+
+        @Override
+        public void testRunStarted(String runName, int testCount) {
+        }
+
+        @Override
+        public void testStarted(TestIdentifier test) {
+            tests.add(test);
+        }
+
+        @Override
+        public void testFailed(TestIdentifier test, String trace) {
+        }
+
+        @Override
+        public void testAssumptionFailure(TestIdentifier test, String trace) {
+        }
+
+        @Override
+        public void testIgnored(TestIdentifier test) {
+        }
+
+        @Override
+        public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+        }
+
+        @Override
+        public void testRunFailed(String errorMessage) {
+            runFailure = errorMessage;
+        }
+
+        @Override
+        public void testRunStopped(long elapsedTime) {
+        }
+
+        @Override
+        public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.testing;
+
+import com.android.annotations.NonNull;
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.ddmlib.testrunner.TestRunResult;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * {@link ITestRunListener} merging the instrumentation runs of the shards of a sharded run,
+ * on all the devices, into a single {@link CustomTestRunListener} report.
+ * <p/>The runs of the shards are not reported: the merged run starts with the listener, to keep
+ * the failures of the devices reported before the tests are collected, and is ended by
+ * {@link #end()} once all the devices are done, which writes the report.
+ */
+public class ShardedTestRunListener implements ITestRunListener {
+
+    @NonNull
+    private final CustomTestRunListener mListener;
+    private final long mStartTime = System.currentTimeMillis();
+
+    public ShardedTestRunListener(@NonNull CustomTestRunListener listener,
+            @NonNull String runName) {
+        mListener = listener;
+        // starts the results directly, as starting the listener would reset them.
+        mListener.getRunResult().testRunStarted(runName, 0);
+    }
+
+    /**
+     * Ends the merged run, and writes the report.
+     */
+    public synchronized void end() {
+        Map<String, String> emptyMetrics = Collections.emptyMap();
+        mListener.testRunEnded(System.currentTimeMillis() - mStartTime, emptyMetrics);
+    }
+
+    /**
+     * Returns the results of the merged run.
+     */
+    @NonNull
+    public synchronized TestRunResult getRunResult() {
+        return mListener.getRunResult();
+    }
+
+    @Override
+    public void testRunStarted(String runName, int testCount) {
+        // ignored, as the merged run is started once.
+    }
+
+    @Override
+    public synchronized void testStarted(TestIdentifier test) {
+        mListener.testStarted(test);
+    }
+
+    @Override
+    public synchronized void testFailed(TestIdentifier test, String trace) {
+        mListener.testFailed(test, trace);
+    }
+
+    @Override
+    public synchronized void testAssumptionFailure(TestIdentifier test, String trace) {
+        mListener.testAssumptionFailure(test, trace);
+    }
+
+    @Override
+    public synchronized void testIgnored(TestIdentifier test) {
+        mListener.testIgnored(test);
+    }
+
+    @Override
+    public synchronized void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+        mListener.testEnded(test, testMetrics);
+    }
+
+    @Override
+    public synchronized void testRunFailed(String errorMessage) {
+        mListener.testRunFailed(errorMessage);
+    }
+
+    @Override
+    public void testRunStopped(long elapsedTime) {
+        // ignored, as the merged run is ended once.
+    }
+
+    @Override
+    public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+        // ignored, as the merged run is ended once.
+    }
+}
@@ -27,7 +27,6 @@ import com.android.ddmlib.testrunner.RemoteAndroidTestRunner;
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.ddmlib.testrunner.TestRunResult;
 import com.android.utils.ILogger;
-import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 
 import java.io.ByteArrayOutputStream;
@@ -70,6 +69,8 @@ public class SimpleTestCallable implements Callable<Boolean> {
     private final File adbExec;
     @NonNull
     private final Collection<String> installOptions;
+    @NonNull
+    private final ApkInstallCoordinator installer;
 
     private final int timeoutInMs;
     @NonNull
@@ -87,6 +88,7 @@ public class SimpleTestCallable implements Callable<Boolean> {
             @NonNull  File coverageDir,
                       int timeoutInMs,
             @NonNull Collection<String> installOptions,
+            @NonNull ApkInstallCoordinator installer,
             @NonNull  ILogger logger) {
         this.projectName = projectName;
         this.device = device;
@@ -99,6 +101,7 @@ public class SimpleTestCallable implements Callable<Boolean> {
         this.adbExec = adbExec;
         this.timeoutInMs = timeoutInMs;
         this.installOptions = installOptions;
+        this.installer = installer;
         this.logger = logger;
     }
 
@@ -119,30 +122,7 @@ public class SimpleTestCallable implements Callable<Boolean> {
         try {
             device.connect(timeoutInMs, logger);
 
-            if (!testedApks.isEmpty()) {
-                logger.verbose("DeviceConnector '%s': installing %s", deviceName,
-                        Joiner.on(',').join(testedApks));
-                if (testedApks.size() > 1 && device.getApiLevel() < 21) {
-                    throw new InstallException("Internal error, file a bug, multi-apk applications"
-                            + " require a device with API level 21+");
-                }
-                if (device.getApiLevel() >= 21) {
-                    device.installPackages(testedApks,
-                            ImmutableList.<String>of() /* installOptions */, timeoutInMs, logger);
-                } else {
-                    device.installPackage(testedApks.get(0),
-                            ImmutableList.<String>of() /* installOptions */, timeoutInMs, logger);
-                }
-            }
-
-            logger.verbose("DeviceConnector '%s': installing %s", deviceName, testApk);
-            if (device.getApiLevel() >= 21) {
-                device.installPackages(ImmutableList.of(testApk),
-                        ImmutableList.<String>of() /* installOptions */,timeoutInMs, logger);
-            } else {
-                device.installPackage(testApk,
-                        ImmutableList.<String>of() /* installOptions */, timeoutInMs, logger);
-            }
+            installApks(device, testedApks, testApk, testData, installer, timeoutInMs, logger);
             isInstalled = true;
 
             RemoteAndroidTestRunner runner = new RemoteAndroidTestRunner(
@@ -240,15 +220,8 @@ public class SimpleTestCallable implements Callable<Boolean> {
                             30, TimeUnit.SECONDS);
                 }
 
-                // uninstall the apps
-                // This should really not be null, because if it was the build
-                // would have broken before.
-                uninstall(testApk, testData.getApplicationId(), deviceName);
-
-                if (!testedApks.isEmpty()) {
-                    for (File testedApk : testedApks) {
-                        uninstall(testedApk, testData.getTestedApplicationId(), deviceName);
-                    }
+                if (!installer.isReusingInstalledApks()) {
+                    uninstallApks(device, testApk, testedApks, testData, timeoutInMs, logger);
                 }
             }
 
@@ -256,8 +229,55 @@ public class SimpleTestCallable implements Callable<Boolean> {
         }
     }
 
-    private void uninstall(@NonNull File apkFile, @Nullable String packageName,
-                           @NonNull String deviceName)
+    /**
+     * Installs the tested apks, if any, and the test apk on a device.
+     */
+    static void installApks(
+            @NonNull DeviceConnector device,
+            @NonNull List<File> testedApks,
+            @NonNull File testApk,
+            @NonNull TestData testData,
+            @NonNull ApkInstallCoordinator installer,
+            int timeoutInMs,
+            @NonNull ILogger logger)
+            throws DeviceException, InstallException, InterruptedException {
+        if (!testedApks.isEmpty()) {
+            if (testedApks.size() > 1 && device.getApiLevel() < 21) {
+                throw new InstallException("Internal error, file a bug, multi-apk applications"
+                        + " require a device with API level 21+");
+            }
+            installer.install(device, testData.getTestedApplicationId(), testedApks, timeoutInMs,
+                    logger);
+        }
+
+        installer.install(device, testData.getApplicationId(), ImmutableList.of(testApk),
+                timeoutInMs, logger);
+    }
+
+    /**
+     * Uninstalls the test apk and the tested apks from a device.
+     */
+    static void uninstallApks(
+            @NonNull DeviceConnector device,
+            @NonNull File testApk,
+            @NonNull List<File> testedApks,
+            @NonNull TestData testData,
+            int timeoutInMs,
+            @NonNull ILogger logger) throws DeviceException {
+        String deviceName = device.getName();
+        // This should really not be null, because if it was the build
+        // would have broken before.
+        uninstall(device, testApk, testData.getApplicationId(), deviceName, timeoutInMs, logger);
+
+        for (File testedApk : testedApks) {
+            uninstall(device, testedApk, testData.getTestedApplicationId(), deviceName,
+                    timeoutInMs, logger);
+        }
+    }
+
+    private static void uninstall(@NonNull DeviceConnector device, @NonNull File apkFile,
+                                  @Nullable String packageName, @NonNull String deviceName,
+                                  int timeoutInMs, @NonNull ILogger logger)
             throws DeviceException {
         if (packageName != null) {
             logger.verbose("DeviceConnector '%s': uninstalling %s", deviceName, packageName);
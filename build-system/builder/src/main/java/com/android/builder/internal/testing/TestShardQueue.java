@@ -0,0 +1,478 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.testing;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.ddmlib.testrunner.TestResult;
+import com.android.ddmlib.testrunner.TestRunResult;
+import com.android.utils.ILogger;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * The tests of a sharded run, shared by the devices running them.
+ * <p/>The tests are collected once, by the first device ready to run them, and grouped by class
+ * into shards. The shards are assigned to the devices longest first, each one to the device with
+ * the least work, using the durations of the tests in the previous runs. A device which ran all
+ * its shards then steals the shortest shard of the device with the most work left, so that a
+ * slow device, or one which failed, doesn't delay the end of the run. A device is done once it
+ * gets no shard from {@link #take(int)}, or once it failed, as recorded by
+ * {@link #deviceFailed(int)}. The tests a device didn't run because it, or their
+ * instrumentation, failed are given back with {@link #requeue(Shard)}, to be run by a device which
+ * is not done.
+ */
+public class TestShardQueue {
+
+    /** Estimated duration of a test, when no test ever ran. */
+    static final long DEFAULT_TEST_DURATION_MS = 1000;
+
+    /** Separator of the class and method names, in the instrumentation class argument. */
+    private static final char METHOD_SEPARATOR = '#';
+
+    private final int mDeviceCount;
+    @NonNull
+    private final Map<String, Long> mDurations;
+    @NonNull
+    private final List<Deque<Shard>> mQueues;
+    @NonNull
+    private final long[] mRemainingDurations;
+    @NonNull
+    private final boolean[] mDone;
+
+    private boolean mCollecting = false;
+    private boolean mCollected = false;
+    private int mTestCount = 0;
+
+    /**
+     * Tests run by a single instrumentation run.
+     */
+    public static final class Shard {
+        @NonNull
+        private final List<String> mClassNames;
+        @NonNull
+        private final List<TestIdentifier> mTests;
+        private final long mEstimatedDuration;
+        private boolean mRequeued = false;
+
+        Shard(@NonNull List<String> classNames, @NonNull List<TestIdentifier> tests,
+                long estimatedDuration) {
+            mClassNames = classNames;
+            mTests = tests;
+            mEstimatedDuration = estimatedDuration;
+        }
+
+        /**
+         * Returns the classes, or the methods as {@code class#method}, to run.
+         */
+        @NonNull
+        public List<String> getClassNames() {
+            return mClassNames;
+        }
+
+        /**
+         * Returns the tests run by the shard.
+         */
+        @NonNull
+        public List<TestIdentifier> getTests() {
+            return mTests;
+        }
+
+        public int getTestCount() {
+            return mTests.size();
+        }
+
+        public long getEstimatedDuration() {
+            return mEstimatedDuration;
+        }
+
+        /**
+         * Returns a shard running the tests of this shard which are not in {@code startedTests},
+         * method by method, or null if all of them were started. The returned shard is given back
+         * at most once along with this one.
+         */
+        @Nullable
+        public Shard getRemainingTests(@NonNull Set<TestIdentifier> startedTests) {
+            List<TestIdentifier> tests = Lists.newArrayList();
+            for (TestIdentifier test : mTests) {
+                if (!startedTests.contains(test)) {
+                    tests.add(test);
+                }
+            }
+            if (tests.isEmpty()) {
+                return null;
+            }
+            if (tests.size() == mTests.size()) {
+                return this;
+            }
+
+            List<String> classNames = Lists.newArrayListWithCapacity(tests.size());
+            for (TestIdentifier test : tests) {
+                classNames.add(test.getClassName() + METHOD_SEPARATOR + test.getTestName());
+            }
+            Shard shard = new Shard(classNames, tests,
+                    mEstimatedDuration * tests.size() / mTests.size());
+            shard.mRequeued = mRequeued;
+            return shard;
+        }
+
+        @Override
+        public String toString() {
+            return mClassNames.toString();
+        }
+    }
+
+    /**
+     * Creates the queue.
+     * @param deviceCount the number of devices running the tests.
+     * @param durations the durations of the tests in the previous runs, in milliseconds, by
+     *                  {@link #getKey(TestIdentifier)}.
+     */
+    public TestShardQueue(int deviceCount, @NonNull Map<String, Long> durations) {
+        mDeviceCount = deviceCount;
+        mDurations = durations;
+        mQueues = Lists.newArrayListWithCapacity(deviceCount);
+        for (int i = 0; i < deviceCount; i++) {
+            mQueues.add(new ArrayDeque<Shard>());
+        }
+        mRemainingDurations = new long[deviceCount];
+        mDone = new boolean[deviceCount];
+    }
+
+    /**
+     * Waits for the tests to be collected by another device, unless no other device is
+     * collecting them.
+     * @return true if the caller must collect the tests, and then call either
+     *     {@link #setTests(Collection)} or {@link #collectionFailed()}.
+     */
+    public synchronized boolean awaitTests() throws InterruptedException {
+        while (!mCollected) {
+            if (!mCollecting) {
+                mCollecting = true;
+                return true;
+            }
+            wait();
+        }
+        return false;
+    }
+
+    /**
+     * Records that the tests could not be collected, to let another device collect them.
+     */
+    public synchronized void collectionFailed() {
+        mCollecting = false;
+        notifyAll();
+    }
+
+    /**
+     * Sets the collected tests, and distributes them to the devices.
+     */
+    public synchronized void setTests(@NonNull Collection<TestIdentifier> tests) {
+        Set<TestIdentifier> uniqueTests = Sets.newLinkedHashSet(tests);
+
+        // group the tests by class, in the order they were collected.
+        Map<String, List<TestIdentifier>> classes = Maps.newLinkedHashMap();
+        for (TestIdentifier test : uniqueTests) {
+            List<TestIdentifier> methods = classes.get(test.getClassName());
+            if (methods == null) {
+                methods = Lists.newArrayList();
+                classes.put(test.getClassName(), methods);
+            }
+            methods.add(test);
+        }
+
+        long defaultDuration = getDefaultDuration(uniqueTests);
+        long totalDuration = 0;
+        for (TestIdentifier test : uniqueTests) {
+            totalDuration += getDuration(test, defaultDuration);
+        }
+
+        // a class taking a large part of the work of a device is split by method, so that it can
+        // be balanced too. Smaller classes are run at once, to save the start of instrumentations.
+        long splitDuration = totalDuration / (mDeviceCount * 2);
+
+        List<Shard> shards = Lists.newArrayList();
+        for (Map.Entry<String, List<TestIdentifier>> entry : classes.entrySet()) {
+            List<TestIdentifier> methods = entry.getValue();
+            long classDuration = 0;
+            for (TestIdentifier test : methods) {
+                classDuration += getDuration(test, defaultDuration);
+            }
+
+            if (mDeviceCount > 1 && methods.size() > 1 && classDuration > splitDuration) {
+                for (TestIdentifier test : methods) {
+                    shards.add(new Shard(
+                            ImmutableList.of(
+                                    test.getClassName() + METHOD_SEPARATOR + test.getTestName()),
+                            ImmutableList.of(test),
+                            getDuration(test, defaultDuration)));
+                }
+            } else {
+                shards.add(new Shard(ImmutableList.of(entry.getKey()),
+                        ImmutableList.copyOf(methods), classDuration));
+            }
+        }
+
+        Collections.sort(shards, new Comparator<Shard>() {
+            @Override
+            public int compare(Shard shard1, Shard shard2) {
+                long duration1 = shard1.getEstimatedDuration();
+                long duration2 = shard2.getEstimatedDuration();
+                return duration1 > duration2 ? -1 : (duration1 == duration2 ? 0 : 1);
+            }
+        });
+
+        // the device setting the tests is not done, so there is always a device to assign to.
+        for (Shard shard : shards) {
+            int device = getLeastBusyDevice();
+            mQueues.get(device).addLast(shard);
+            mRemainingDurations[device] += shard.getEstimatedDuration();
+        }
+
+        mTestCount = uniqueTests.size();
+        mCollected = true;
+        mCollecting = false;
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of collected tests.
+     */
+    public synchronized int getTestCount() {
+        return mTestCount;
+    }
+
+    /**
+     * Returns the next shard to run on a device, its own or one stolen from another device, or
+     * null if all the shards were run, or if the tests were not collected. The device is done
+     * once it got null, and is not given back any shard.
+     * @param device the index of the device, lower than the number of devices.
+     */
+    @Nullable
+    public synchronized Shard take(int device) {
+        Shard shard = mQueues.get(device).pollFirst();
+        if (shard != null) {
+            mRemainingDurations[device] -= shard.getEstimatedDuration();
+            return shard;
+        }
+
+        int victim = -1;
+        for (int i = 0; i < mDeviceCount; i++) {
+            if (!mQueues.get(i).isEmpty()
+                    && (victim == -1 || mRemainingDurations[i] > mRemainingDurations[victim])) {
+                victim = i;
+            }
+        }
+        if (victim == -1) {
+            mDone[device] = true;
+            return null;
+        }
+
+        // the shortest shard, at the end of the queue, is taken, as the device it is stolen from
+        // is running a longer one.
+        shard = mQueues.get(victim).pollLast();
+        mRemainingDurations[victim] -= shard.getEstimatedDuration();
+        return shard;
+    }
+
+    /**
+     * Records that a device failed, and is not given any more shard. Its shards are stolen by the
+     * other devices, unless all of them are done.
+     * @return the shards which will not be run because all the devices are done, removed from
+     *     the queue.
+     */
+    @NonNull
+    public synchronized List<Shard> deviceFailed(int device) {
+        mDone[device] = true;
+        if (getLeastBusyDevice() != -1) {
+            return Collections.emptyList();
+        }
+
+        List<Shard> shards = Lists.newArrayList();
+        for (int i = 0; i < mDeviceCount; i++) {
+            shards.addAll(mQueues.get(i));
+            mQueues.get(i).clear();
+            mRemainingDurations[i] = 0;
+        }
+        return shards;
+    }
+
+    /**
+     * Gives back a shard which could not be run, to the device with the least work left which
+     * is not done. It is run next by that device, or stolen by another one. A shard is only given
+     * back once, so that tests which break the devices don't fail all of them. A device failing
+     * while running the shard must first be recorded with {@link #deviceFailed(int)}.
+     * @return true if the shard was given back, false if it was given back before, or if all
+     *     the devices are done.
+     */
+    public synchronized boolean requeue(@NonNull Shard shard) {
+        if (shard.mRequeued) {
+            return false;
+        }
+        int device = getLeastBusyDevice();
+        if (device == -1) {
+            return false;
+        }
+        shard.mRequeued = true;
+
+        mQueues.get(device).addFirst(shard);
+        mRemainingDurations[device] += shard.getEstimatedDuration();
+        return true;
+    }
+
+    /**
+     * Returns the device with the least work left which is not done, or -1 if all of them are.
+     */
+    private int getLeastBusyDevice() {
+        int device = -1;
+        for (int i = 0; i < mDeviceCount; i++) {
+            if (!mDone[i]
+                    && (device == -1 || mRemainingDurations[i] < mRemainingDurations[device])) {
+                device = i;
+            }
+        }
+        return device;
+    }
+
+    private long getDefaultDuration(@NonNull Collection<TestIdentifier> tests) {
+        long total = 0;
+        int count = 0;
+        for (TestIdentifier test : tests) {
+            Long duration = mDurations.get(getKey(test));
+            if (duration != null) {
+                total += duration;
+                count++;
+            }
+        }
+        return count == 0 ? DEFAULT_TEST_DURATION_MS : total / count;
+    }
+
+    private long getDuration(@NonNull TestIdentifier test, long defaultDuration) {
+        Long duration = mDurations.get(getKey(test));
+        return duration != null ? duration : defaultDuration;
+    }
+
+    /**
+     * Returns the key of a test in the durations.
+     */
+    @NonNull
+    public static String getKey(@NonNull TestIdentifier test) {
+        return test.getClassName() + METHOD_SEPARATOR + test.getTestName();
+    }
+
+    /**
+     * Reads the durations of the tests written by {@link #writeDurations}.
+     * @return the durations in milliseconds, or an empty map if the file doesn't exist or can't
+     *     be read.
+     */
+    @NonNull
+    public static Map<String, Long> readDurations(@NonNull File file, @NonNull ILogger logger) {
+        Map<String, Long> durations = Maps.newHashMap();
+        if (!file.isFile()) {
+            return durations;
+        }
+
+        Properties properties = new Properties();
+        InputStream stream = null;
+        try {
+            stream = new FileInputStream(file);
+            properties.load(stream);
+        } catch (IOException e) {
+            logger.warning("Unable to read the test durations from %1$s: %2$s", file,
+                    e.getMessage());
+            return durations;
+        } finally {
+            try {
+                Closeables.close(stream, true /* swallowIOException */);
+            } catch (IOException e) {
+                // cannot happen
+            }
+        }
+
+        for (String key : properties.stringPropertyNames()) {
+            try {
+                durations.put(key, Long.parseLong(properties.getProperty(key)));
+            } catch (NumberFormatException e) {
+                // ignore the test, it will be given the default duration.
+            }
+        }
+        return durations;
+    }
+
+    /**
+     * Writes the durations of the tests of a run, along with the durations of the previous runs
+     * of the tests which didn't run.
+     */
+    public static void writeDurations(
+            @NonNull File file,
+            @NonNull Map<String, Long> previousDurations,
+            @NonNull TestRunResult runResult,
+            @NonNull ILogger logger) {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Long> entry : previousDurations.entrySet()) {
+            properties.setProperty(entry.getKey(), Long.toString(entry.getValue()));
+        }
+        for (Map.Entry<TestIdentifier, TestResult> entry :
+                runResult.getTestResults().entrySet()) {
+            TestResult result = entry.getValue();
+            if (result.getStatus() != TestResult.TestStatus.INCOMPLETE
+                    && result.getEndTime() >= result.getStartTime()) {
+                properties.setProperty(getKey(entry.getKey()),
+                        Long.toString(result.getEndTime() - result.getStartTime()));
+            }
+        }
+
+        OutputStream stream = null;
+        try {
+            File parent = file.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Unable to create " + parent);
+            }
+            stream = new FileOutputStream(file);
+            properties.store(stream, null);
+        } catch (IOException e) {
+            logger.warning("Unable to write the test durations to %1$s: %2$s", file,
+                    e.getMessage());
+        } finally {
+            try {
+                Closeables.close(stream, true /* swallowIOException */);
+            } catch (IOException e) {
+                // cannot happen
+            }
+        }
+    }
+}
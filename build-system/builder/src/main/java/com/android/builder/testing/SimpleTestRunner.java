@@ -19,8 +19,12 @@ package com.android.builder.testing;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.builder.internal.InstallUtils;
+import com.android.builder.internal.testing.ApkInstallCoordinator;
 import com.android.builder.internal.testing.CustomTestRunListener;
+import com.android.builder.internal.testing.ShardedTestCallable;
+import com.android.builder.internal.testing.ShardedTestRunListener;
 import com.android.builder.internal.testing.SimpleTestCallable;
+import com.android.builder.internal.testing.TestShardQueue;
 import com.android.builder.testing.api.DeviceConfig;
 import com.android.builder.testing.api.DeviceConfigProviderImpl;
 import com.android.builder.testing.api.DeviceConnector;
@@ -28,12 +32,14 @@ import com.android.builder.testing.api.DeviceException;
 import com.android.builder.testing.api.TestException;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.ddmlib.testrunner.TestRunResult;
 import com.android.builder.testing.api.DeviceConfigProvider;
 import com.android.ide.common.internal.WaitableExecutor;
 import com.android.ide.common.process.ProcessException;
 import com.android.ide.common.process.ProcessExecutor;
 import com.android.utils.ILogger;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
 
 import java.io.File;
 import java.util.Collection;
@@ -43,22 +49,56 @@ import java.util.Map;
 
 /**
  * Basic {@link TestRunner} running tests on all devices.
+ * <p/>By default, each device runs all the tests. In sharded mode, the tests are instead
+ * collected once and distributed to the devices, each test running on a single device, and the
+ * results are merged into a single report. See {@link TestShardQueue}.
  */
 public class SimpleTestRunner implements TestRunner {
 
+    /** Name of the device in the report of a sharded run. */
+    private static final String SHARDED_DEVICE_NAME = "sharded";
+
+    /** Maximum number of apk installs running at the same time. */
+    private static final int MAX_CONCURRENT_INSTALLS = 4;
+
     @NonNull
     private final File mAdbExec;
     @Nullable
     private final File mSplitSelectExec;
     @NonNull
     private final ProcessExecutor mProcessExecutor;
+    private final boolean mShardTests;
+    @Nullable
+    private final File mTestDurationsFile;
+    private final boolean mReuseInstalledApks;
 
     public SimpleTestRunner(@NonNull File adbExec,
             @Nullable File splitSelectExec,
             @NonNull ProcessExecutor processExecutor) {
+        this(adbExec, splitSelectExec, processExecutor, false, null, false);
+    }
+
+    /**
+     * Creates a test runner.
+     * @param shardTests whether the tests are sharded across the devices, rather than all run on
+     *                   each device.
+     * @param testDurationsFile the file keeping the durations of the tests between the sharded
+     *                          runs, to balance the shards, or null to estimate them all equal.
+     * @param reuseInstalledApks whether the apks are left installed after the tests, and only
+     *                           reinstalled when they changed. See {@link ApkInstallCoordinator}.
+     */
+    public SimpleTestRunner(@NonNull File adbExec,
+            @Nullable File splitSelectExec,
+            @NonNull ProcessExecutor processExecutor,
+            boolean shardTests,
+            @Nullable File testDurationsFile,
+            boolean reuseInstalledApks) {
         mAdbExec = adbExec;
         mSplitSelectExec = splitSelectExec;
         mProcessExecutor = processExecutor;
+        mShardTests = shardTests;
+        mTestDurationsFile = testDurationsFile;
+        mReuseInstalledApks = reuseInstalledApks;
     }
 
     @Override
@@ -76,11 +116,21 @@ public class SimpleTestRunner implements TestRunner {
             @NonNull ILogger logger) throws TestException, NoAuthorizedDeviceFoundException, InterruptedException {
 
         WaitableExecutor<Boolean> executor = new WaitableExecutor<Boolean>(maxThreads);
+        ApkInstallCoordinator installer = new ApkInstallCoordinator(mReuseInstalledApks,
+                MAX_CONCURRENT_INSTALLS);
 
         int totalDevices = deviceList.size();
         int unauthorizedDevices = 0;
         int compatibleDevices = 0;
 
+        // the coverage of each instrumentation run would overwrite the previous one.
+        boolean shardTests = mShardTests && !testData.isTestCoverageEnabled();
+        if (mShardTests && !shardTests) {
+            logger.info("Test coverage is enabled for '%1$s:%2$s': not sharding the tests",
+                    projectName, variantName);
+        }
+        Map<DeviceConnector, List<File>> shardedDevices = Maps.newLinkedHashMap();
+
         for (final DeviceConnector device : deviceList) {
             if (device.getState() != IDevice.DeviceState.UNAUTHORIZED) {
                 if (InstallUtils.checkDeviceApiLevel(
@@ -114,9 +164,15 @@ public class SimpleTestRunner implements TestRunner {
                     }
 
                     compatibleDevices++;
+                    if (shardTests) {
+                        // the devices are started once they are all known.
+                        shardedDevices.put(device, testedApks);
+                        continue;
+                    }
                     executor.execute(new SimpleTestCallable(device, projectName, variantName,
                             testApk, testedApks, mAdbExec, testData,
-                            resultsDir, coverageDir, timeoutInMs, installOptions, logger));
+                            resultsDir, coverageDir, timeoutInMs, installOptions, installer,
+                            logger));
                 }
             } else {
                 unauthorizedDevices++;
@@ -160,10 +216,16 @@ public class SimpleTestRunner implements TestRunner {
                 fakeRunListener.testRunEnded(0, emptyMetrics);
             }
 
-            List<WaitableExecutor.TaskResult<Boolean>> results = executor.waitForAllTasks();
-
             boolean success = unauthorizedDevices == 0;
 
+            if (shardTests) {
+                success &= runShardedTests(projectName, variantName, testApk, testData,
+                        shardedDevices, executor, installer, timeoutInMs, resultsDir, logger);
+                return success;
+            }
+
+            List<WaitableExecutor.TaskResult<Boolean>> results = executor.waitForAllTasks();
+
             // check if one test failed or if there was an exception.
             for (WaitableExecutor.TaskResult<Boolean> result : results) {
                 if (result.value != null) {
@@ -176,4 +238,72 @@ public class SimpleTestRunner implements TestRunner {
             return success;
         }
     }
+
+    /**
+     * Runs the tests sharded across the devices, and writes a single report.
+     * @return true if all the tests ran and succeeded.
+     */
+    private boolean runShardedTests(
+            @NonNull String projectName,
+            @NonNull String variantName,
+            @NonNull File testApk,
+            @NonNull TestData testData,
+            @NonNull Map<DeviceConnector, List<File>> devices,
+            @NonNull WaitableExecutor<Boolean> executor,
+            @NonNull ApkInstallCoordinator installer,
+                     int timeoutInMs,
+            @NonNull File resultsDir,
+            @NonNull ILogger logger) throws InterruptedException {
+        Map<String, Long> durations = mTestDurationsFile != null
+                ? TestShardQueue.readDurations(mTestDurationsFile, logger)
+                : Collections.<String, Long>emptyMap();
+        TestShardQueue queue = new TestShardQueue(devices.size(), durations);
+
+        CustomTestRunListener runListener = new CustomTestRunListener(
+                SHARDED_DEVICE_NAME, projectName, variantName, logger);
+        runListener.setReportDir(resultsDir);
+        ShardedTestRunListener shardedListener = new ShardedTestRunListener(
+                runListener, SHARDED_DEVICE_NAME);
+
+        int deviceIndex = 0;
+        for (Map.Entry<DeviceConnector, List<File>> entry : devices.entrySet()) {
+            executor.execute(new ShardedTestCallable(entry.getKey(), deviceIndex++, queue,
+                    shardedListener, testApk, entry.getValue(), testData, installer, timeoutInMs,
+                    logger));
+        }
+
+        List<WaitableExecutor.TaskResult<Boolean>> results = executor.waitForAllTasks();
+
+        boolean success = true;
+        for (WaitableExecutor.TaskResult<Boolean> result : results) {
+            if (result.value == null) {
+                success = false;
+                logger.error(result.exception, null);
+            }
+        }
+
+        // for now fail if no tests, as each device does when not sharding.
+        if (success && queue.getTestCount() == 0) {
+            Map<String, String> emptyMetrics = Collections.emptyMap();
+            TestIdentifier fakeTest = new TestIdentifier(variantName, ": No tests found.");
+            shardedListener.testStarted(fakeTest);
+            shardedListener.testFailed(
+                    fakeTest,
+                    "No tests found. This usually means that your test classes are"
+                            + " not in the form that your test runner expects (e.g. don't"
+                            + " inherit from TestCase or lack @Test annotations).");
+            shardedListener.testEnded(fakeTest, emptyMetrics);
+            success = false;
+        }
+
+        // end the run to generate the XML file.
+        shardedListener.end();
+
+        TestRunResult runResult = shardedListener.getRunResult();
+        if (mTestDurationsFile != null) {
+            TestShardQueue.writeDurations(mTestDurationsFile, durations, runResult, logger);
+        }
+
+        return success && !runResult.hasFailedTests() && !runResult.isRunFailure();
+    }
 }
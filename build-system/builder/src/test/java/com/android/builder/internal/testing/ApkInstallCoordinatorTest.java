@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.testing;
+
+import com.android.annotations.NonNull;
+import com.android.builder.testing.api.DeviceConfig;
+import com.android.builder.testing.api.DeviceConnector;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.utils.ILogger;
+import com.android.utils.StdLogger;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Futures;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class ApkInstallCoordinatorTest extends TestCase {
+
+    private static final String PACKAGE = "com.example.app";
+
+    /**
+     * A device answering the shell commands of the coordinator, and recording the installs.
+     */
+    private static class FakeDevice extends DeviceConnector {
+        private static final Pattern MARKER_WRITE = Pattern.compile("echo '(.*)' > (.*)");
+
+        String mInstalledPath;
+        String mMarker;
+        int mInstallCount;
+        final List<String> mCommands = Lists.newArrayList();
+
+        @Override
+        public void executeShellCommand(String command, IShellOutputReceiver receiver,
+                long maxTimeToOutputResponse, TimeUnit maxTimeUnits) {
+            mCommands.add(command);
+            StringBuilder output = new StringBuilder();
+            Matcher matcher = MARKER_WRITE.matcher(command);
+            if (matcher.matches()) {
+                mMarker = matcher.group(1);
+            } else if (command.startsWith("pm path ")) {
+                if (mInstalledPath != null) {
+                    output.append("package:").append(mInstalledPath).append('\n');
+                }
+                if (mMarker != null) {
+                    output.append(mMarker).append('\n');
+                }
+            }
+            byte[] data = output.toString().getBytes(Charsets.UTF_8);
+            receiver.addOutput(data, 0, data.length);
+            receiver.flush();
+        }
+
+        @Override
+        public void installPackage(@NonNull File apkFile, @NonNull Collection<String> options,
+                int timeout, ILogger logger) {
+            mInstallCount++;
+            // each install moves the package, as the package manager does.
+            mInstalledPath = "/data/app/" + PACKAGE + "-" + mInstallCount + ".apk";
+        }
+
+        @Override
+        public void installPackages(@NonNull List<File> apkFiles,
+                @NonNull Collection<String> options, int timeoutInMs, ILogger logger) {
+            installPackage(apkFiles.get(0), options, timeoutInMs, logger);
+        }
+
+        @Override
+        public int getApiLevel() {
+            return 21;
+        }
+
+        @NonNull
+        @Override
+        public String getName() {
+            return "fake";
+        }
+
+        @Override
+        public void connect(int timeOut, ILogger logger) {
+        }
+
+        @Override
+        public void disconnect(int timeOut, ILogger logger) {
+        }
+
+        @Override
+        public void uninstallPackage(@NonNull String packageName, int timeout, ILogger logger) {
+            mInstalledPath = null;
+        }
+
+        @Override
+        public void pullFile(String remote, String local) {
+        }
+
+        @NonNull
+        @Override
+        public String getSerialNumber() {
+            return "fake-1";
+        }
+
+        @Override
+        public String getApiCodeName() {
+            return null;
+        }
+
+        @Override
+        public IDevice.DeviceState getState() {
+            return IDevice.DeviceState.ONLINE;
+        }
+
+        @NonNull
+        @Override
+        public List<String> getAbis() {
+            return ImmutableList.of();
+        }
+
+        @Override
+        public int getDensity() {
+            return 0;
+        }
+
+        @Override
+        public int getHeight() {
+            return 0;
+        }
+
+        @Override
+        public int getWidth() {
+            return 0;
+        }
+
+        @Override
+        public String getLanguage() {
+            return null;
+        }
+
+        @Override
+        public String getRegion() {
+            return null;
+        }
+
+        @NonNull
+        @Override
+        public String getProperty(@NonNull String propertyName) {
+            return "";
+        }
+
+        @NonNull
+        @Override
+        public DeviceConfig getDeviceConfig() {
+            throw new UnsupportedOperationException();
+        }
+
+        @NonNull
+        @Override
+        public Future<String> getSystemProperty(@NonNull String name) {
+            return Futures.immediateFuture("");
+        }
+    }
+
+    private final ILogger mLogger = new StdLogger(StdLogger.Level.WARNING);
+
+    public void testUnchangedApkNotReinstalled() throws Exception {
+        File apk = createApk("content");
+        FakeDevice device = new FakeDevice();
+        ApkInstallCoordinator installer = new ApkInstallCoordinator(true, 1);
+
+        assertTrue(installer.install(device, PACKAGE, ImmutableList.of(apk), 1000, mLogger));
+        assertEquals(1, device.mInstallCount);
+        assertNotNull(device.mMarker);
+
+        assertFalse(installer.install(device, PACKAGE, ImmutableList.of(apk), 1000, mLogger));
+        assertEquals(1, device.mInstallCount);
+        // the data is cleared instead.
+        assertEquals("pm clear " + PACKAGE, device.mCommands.get(device.mCommands.size() - 1));
+    }
+
+    public void testChangedApkReinstalled() throws Exception {
+        FakeDevice device = new FakeDevice();
+        new ApkInstallCoordinator(true, 1).install(device, PACKAGE,
+                ImmutableList.of(createApk("old")), 1000, mLogger);
+
+        assertTrue(new ApkInstallCoordinator(true, 1).install(device, PACKAGE,
+                ImmutableList.of(createApk("new")), 1000, mLogger));
+        assertEquals(2, device.mInstallCount);
+    }
+
+    public void testUninstalledApkReinstalled() throws Exception {
+        File apk = createApk("content");
+        FakeDevice device = new FakeDevice();
+        ApkInstallCoordinator installer = new ApkInstallCoordinator(true, 1);
+        installer.install(device, PACKAGE, ImmutableList.of(apk), 1000, mLogger);
+
+        // the marker is left, but doesn't match a later install by someone else.
+        device.uninstallPackage(PACKAGE, 1000, mLogger);
+        assertTrue(installer.install(device, PACKAGE, ImmutableList.of(apk), 1000, mLogger));
+        device.installPackage(apk, ImmutableList.<String>of(), 1000, mLogger);
+        assertTrue(installer.install(device, PACKAGE, ImmutableList.of(apk), 1000, mLogger));
+        assertEquals(4, device.mInstallCount);
+    }
+
+    public void testAlwaysInstalledWithoutReuse() throws Exception {
+        File apk = createApk("content");
+        FakeDevice device = new FakeDevice();
+        ApkInstallCoordinator installer = new ApkInstallCoordinator(false, 1);
+
+        assertTrue(installer.install(device, PACKAGE, ImmutableList.of(apk), 1000, mLogger));
+        assertTrue(installer.install(device, PACKAGE, ImmutableList.of(apk), 1000, mLogger));
+        assertEquals(2, device.mInstallCount);
+        assertTrue(device.mCommands.isEmpty());
+    }
+
+    public void testHash() throws Exception {
+        File apk1 = createApk("1");
+        File apk2 = createApk("2");
+        ApkInstallCoordinator installer = new ApkInstallCoordinator(true, 1);
+
+        assertEquals(installer.getHash(ImmutableList.of(apk1)),
+                installer.getHash(ImmutableList.of(apk1)));
+        assertFalse(installer.getHash(ImmutableList.of(apk1, apk2)).equals(
+                installer.getHash(ImmutableList.of(apk2, apk1))));
+    }
+
+    @NonNull
+    private static File createApk(@NonNull String content) throws Exception {
+        File apk = new File(Files.createTempDir(), "app.apk");
+        Files.write(content, apk, Charsets.UTF_8);
+        return apk;
+    }
+}
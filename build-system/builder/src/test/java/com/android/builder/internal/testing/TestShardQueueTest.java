@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.testing;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.ddmlib.testrunner.TestRunResult;
+import com.android.utils.StdLogger;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class TestShardQueueTest extends TestCase {
+
+    private static final TestIdentifier A1 = new TestIdentifier("com.example.A", "test1");
+    private static final TestIdentifier A2 = new TestIdentifier("com.example.A", "test2");
+    private static final TestIdentifier B1 = new TestIdentifier("com.example.B", "test1");
+    private static final TestIdentifier C1 = new TestIdentifier("com.example.C", "test1");
+    private static final TestIdentifier D1 = new TestIdentifier("com.example.D", "test1");
+
+    public void testLongestShardsFirst() throws Exception {
+        Map<String, Long> durations = ImmutableMap.of(
+                TestShardQueue.getKey(A1), 10L,
+                TestShardQueue.getKey(A2), 10L,
+                TestShardQueue.getKey(B1), 40L,
+                TestShardQueue.getKey(C1), 30L,
+                TestShardQueue.getKey(D1), 5L);
+        TestShardQueue queue = new TestShardQueue(2, durations);
+        assertTrue(queue.awaitTests());
+        queue.setTests(ImmutableList.of(A1, A2, B1, C1, D1));
+        assertEquals(5, queue.getTestCount());
+
+        // B (40) and D (5) go to the first device, C (30) and A (20) to the second one.
+        assertEquals(ImmutableList.of("com.example.B"), queue.take(0).getClassNames());
+        assertEquals(ImmutableList.of("com.example.C"), queue.take(1).getClassNames());
+        assertEquals(ImmutableList.of("com.example.D"), queue.take(0).getClassNames());
+
+        // the first device is done, and steals the class of the second one.
+        TestShardQueue.Shard shard = queue.take(0);
+        assertEquals(ImmutableList.of("com.example.A"), shard.getClassNames());
+        assertEquals(2, shard.getTestCount());
+        assertEquals(20L, shard.getEstimatedDuration());
+
+        assertNull(queue.take(0));
+        assertNull(queue.take(1));
+    }
+
+    public void testStealShortestOfBusiestDevice() throws Exception {
+        TestShardQueue queue = new TestShardQueue(3, Collections.<String, Long>emptyMap());
+        assertTrue(queue.awaitTests());
+        queue.setTests(ImmutableList.of(A1, B1, C1, D1));
+
+        // without durations the classes are assigned in turn, so the first device gets 2.
+        assertNotNull(queue.take(1));
+        TestShardQueue.Shard stolen = queue.take(1);
+        assertEquals(ImmutableList.of("com.example.D"), stolen.getClassNames());
+        assertEquals(TestShardQueue.DEFAULT_TEST_DURATION_MS, stolen.getEstimatedDuration());
+        assertEquals(ImmutableList.of("com.example.A"), queue.take(0).getClassNames());
+        assertNotNull(queue.take(2));
+        assertNull(queue.take(0));
+    }
+
+    public void testLargeClassSplit() throws Exception {
+        Map<String, Long> durations = ImmutableMap.of(
+                TestShardQueue.getKey(A1), 100L,
+                TestShardQueue.getKey(A2), 100L,
+                TestShardQueue.getKey(B1), 10L);
+        TestShardQueue queue = new TestShardQueue(2, durations);
+        assertTrue(queue.awaitTests());
+        queue.setTests(ImmutableList.of(A1, A2, B1));
+
+        List<String> classNames = Lists.newArrayList();
+        TestShardQueue.Shard shard;
+        while ((shard = queue.take(0)) != null) {
+            classNames.addAll(shard.getClassNames());
+        }
+        assertEquals(
+                ImmutableList.of("com.example.A#test1", "com.example.B", "com.example.A#test2"),
+                classNames);
+    }
+
+    public void testRequeue() throws Exception {
+        Map<String, Long> durations = ImmutableMap.of(
+                TestShardQueue.getKey(B1), 40L,
+                TestShardQueue.getKey(C1), 30L);
+        TestShardQueue queue = new TestShardQueue(2, durations);
+        assertTrue(queue.awaitTests());
+        queue.setTests(ImmutableList.of(B1, C1));
+
+        // the first device fails while running B, which the second device runs before C.
+        TestShardQueue.Shard failed = queue.take(0);
+        assertEquals(ImmutableList.of("com.example.B"), failed.getClassNames());
+        assertTrue(queue.deviceFailed(0).isEmpty());
+        assertTrue(queue.requeue(failed));
+        assertSame(failed, queue.take(1));
+        assertEquals(ImmutableList.of("com.example.C"), queue.take(1).getClassNames());
+
+        // a shard failing again is not given back.
+        assertFalse(queue.requeue(failed));
+        assertNull(queue.take(1));
+    }
+
+    public void testRequeueSkipsDoneDevices() throws Exception {
+        TestShardQueue queue = new TestShardQueue(3, Collections.<String, Long>emptyMap());
+        assertTrue(queue.awaitTests());
+        queue.setTests(ImmutableList.of(A1, B1, C1));
+
+        TestShardQueue.Shard shard0 = queue.take(0);
+        TestShardQueue.Shard shard1 = queue.take(1);
+        assertNotNull(queue.take(2));
+        assertNull(queue.take(2));
+
+        // the shard of the first device goes to the second one, as the third one is done.
+        assertTrue(queue.deviceFailed(0).isEmpty());
+        assertTrue(queue.requeue(shard0));
+        assertSame(shard0, queue.take(1));
+
+        // the second device fails too, and no device is left to run its shards.
+        assertTrue(queue.deviceFailed(1).isEmpty());
+        assertFalse(queue.requeue(shard1));
+    }
+
+    public void testDeviceFailedWithoutDevicesLeft() throws Exception {
+        TestShardQueue queue = new TestShardQueue(2, Collections.<String, Long>emptyMap());
+        assertTrue(queue.deviceFailed(0).isEmpty());
+        assertTrue(queue.awaitTests());
+        queue.setTests(ImmutableList.of(A1, A2, B1));
+
+        // the tests all go to the second device, which fails before running them.
+        List<TestShardQueue.Shard> notRun = queue.deviceFailed(1);
+        assertEquals(3, notRun.size());
+        assertNull(queue.take(1));
+    }
+
+    public void testRemainingTests() throws Exception {
+        TestShardQueue queue = new TestShardQueue(1, Collections.<String, Long>emptyMap());
+        assertTrue(queue.awaitTests());
+        queue.setTests(ImmutableList.of(A1, A2));
+
+        TestShardQueue.Shard shard = queue.take(0);
+        assertSame(shard, shard.getRemainingTests(Collections.<TestIdentifier>emptySet()));
+        assertNull(shard.getRemainingTests(ImmutableSet.of(A1, A2)));
+
+        TestShardQueue.Shard remaining = shard.getRemainingTests(ImmutableSet.of(A1));
+        assertEquals(ImmutableList.of("com.example.A#test2"), remaining.getClassNames());
+        assertEquals(ImmutableList.of(A2), remaining.getTests());
+        assertEquals(TestShardQueue.DEFAULT_TEST_DURATION_MS, remaining.getEstimatedDuration());
+
+        // the remaining tests of the single device run on it again, but only once.
+        assertTrue(queue.requeue(remaining));
+        assertSame(remaining, queue.take(0));
+        assertFalse(queue.requeue(remaining));
+    }
+
+    public void testCollectionHandedOver() throws Exception {
+        final TestShardQueue queue = new TestShardQueue(2, Collections.<String, Long>emptyMap());
+        assertTrue(queue.awaitTests());
+
+        final AtomicBoolean mustCollect = new AtomicBoolean();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    mustCollect.set(queue.awaitTests());
+                    if (mustCollect.get()) {
+                        queue.setTests(ImmutableList.of(A1));
+                    }
+                } catch (InterruptedException e) {
+                    // the test fails below.
+                }
+            }
+        };
+        thread.start();
+
+        // the other device collects the tests once this one failed.
+        queue.collectionFailed();
+        thread.join();
+        assertTrue(mustCollect.get());
+        assertFalse(queue.awaitTests());
+        assertEquals(1, queue.getTestCount());
+    }
+
+    public void testDurations() throws Exception {
+        File file = new File(Files.createTempDir(), "durations.properties");
+        StdLogger logger = new StdLogger(StdLogger.Level.WARNING);
+        assertTrue(TestShardQueue.readDurations(file, logger).isEmpty());
+
+        TestRunResult result = new TestRunResult();
+        result.testRunStarted("run", 1);
+        result.testStarted(A1);
+        result.testEnded(A1, Collections.<String, String>emptyMap());
+        result.testStarted(B1);
+        TestShardQueue.writeDurations(file, ImmutableMap.of(TestShardQueue.getKey(C1), 42L),
+                result, logger);
+
+        Map<String, Long> durations = TestShardQueue.readDurations(file, logger);
+        // B1 never ended, so it isn't recorded.
+        assertEquals(2, durations.size());
+        assertEquals(Long.valueOf(42L), durations.get(TestShardQueue.getKey(C1)));
+        assertTrue(durations.get(TestShardQueue.getKey(A1)) >= 0);
+    }
+}
@@ -26,6 +26,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.concurrent.TimeUnit;
 
@@ -33,15 +34,18 @@ import java.util.concurrent.TimeUnit;
  * Helper class to handle requests and connections to adb.
  * <p/>{@link AndroidDebugBridge} is the public API to connection to adb, while {@link AdbHelper}
  * does the low level stuff.
- * <p/>This currently uses spin-wait non-blocking I/O. A Selector would be more efficient,
- * but seems like overkill for what we're doing here.
+ * <p/>This uses non-blocking I/O, and waits for sockets to be ready with the shared
+ * {@link AdbSocketSelector}.
  */
 final class AdbHelper {
 
     // public static final long kOkay = 0x59414b4fL;
     // public static final long kFail = 0x4c494146L;
 
-    static final int WAIT_TIME = 5; // spin-wait sleep, in ms
+    static final int WAIT_TIME = 5; // in ms
+
+    /** Interval at which long running services check whether their receiver was cancelled. */
+    private static final int CANCEL_CHECK_TIME = WAIT_TIME * 5; // in ms
 
     static final String DEFAULT_ENCODING = "ISO-8859-1"; //$NON-NLS-1$
 
@@ -279,70 +283,87 @@ final class AdbHelper {
       TimeUnit unit)
             throws TimeoutException, AdbCommandRejectedException, IOException {
 
-        RawImage imageParams = new RawImage();
-        byte[] request = formAdbRequest("framebuffer:"); //$NON-NLS-1$
-        byte[] nudge = {
-            0
-        };
-        byte[] reply;
-
+        RawImage imageParams;
         SocketChannel adbChan = null;
         try {
             adbChan = SocketChannel.open(adbSockAddr);
             adbChan.configureBlocking(false);
 
-            // if the device is not -1, then we first tell adb we're looking to talk
-            // to a specific device
-            setDevice(adbChan, device);
+            imageParams = openFrameBuffer(adbChan, device);
+            if (imageParams == null) {
+                return null;
+            }
 
-            write(adbChan, request);
+            byte[] reply = new byte[imageParams.size];
+            read(adbChan, reply, imageParams.size, unit.toMillis(timeout));
 
-            AdbResponse resp = readAdbResponse(adbChan, false /* readDiagString */);
-            if (!resp.okay) {
-                throw new AdbCommandRejectedException(resp.message);
+            imageParams.data = reply;
+        } finally {
+            if (adbChan != null) {
+                adbChan.close();
             }
+        }
 
-            // first the protocol version.
-            reply = new byte[4];
-            read(adbChan, reply);
+        return imageParams;
+    }
 
-            ByteBuffer buf = ByteBuffer.wrap(reply);
-            buf.order(ByteOrder.LITTLE_ENDIAN);
+    /**
+     * Requests the frame buffer of a device on a connection to adb, and reads its header. The
+     * pixels, {@link RawImage#size} bytes, can then be read from the connection.
+     * @param adbChan the connection to adb, in non-blocking mode.
+     * @param device the device to take the screenshot of.
+     * @return the header of the image, without data, or null if the protocol is not supported.
+     */
+    static RawImage openFrameBuffer(SocketChannel adbChan, IDevice device)
+            throws TimeoutException, AdbCommandRejectedException, IOException {
+        RawImage imageParams = new RawImage();
+        byte[] request = formAdbRequest("framebuffer:"); //$NON-NLS-1$
+        byte[] nudge = {
+            0
+        };
+        byte[] reply;
 
-            int version = buf.getInt();
+        // if the device is not -1, then we first tell adb we're looking to talk
+        // to a specific device
+        setDevice(adbChan, device);
 
-            // get the header size (this is a count of int)
-            int headerSize = RawImage.getHeaderSize(version);
+        write(adbChan, request);
 
-            // read the header
-            reply = new byte[headerSize * 4];
-            read(adbChan, reply);
+        AdbResponse resp = readAdbResponse(adbChan, false /* readDiagString */);
+        if (!resp.okay) {
+            throw new AdbCommandRejectedException(resp.message);
+        }
 
-            buf = ByteBuffer.wrap(reply);
-            buf.order(ByteOrder.LITTLE_ENDIAN);
+        // first the protocol version.
+        reply = new byte[4];
+        read(adbChan, reply);
 
-            // fill the RawImage with the header
-            if (!imageParams.readHeader(version, buf)) {
-                Log.e("Screenshot", "Unsupported protocol: " + version);
-                return null;
-            }
+        ByteBuffer buf = ByteBuffer.wrap(reply);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
 
-            Log.d("ddms", "image params: bpp=" + imageParams.bpp + ", size="
-                    + imageParams.size + ", width=" + imageParams.width
-                    + ", height=" + imageParams.height);
+        int version = buf.getInt();
 
-            write(adbChan, nudge);
+        // get the header size (this is a count of int)
+        int headerSize = RawImage.getHeaderSize(version);
 
-            reply = new byte[imageParams.size];
-            read(adbChan, reply, imageParams.size, unit.toMillis(timeout));
+        // read the header
+        reply = new byte[headerSize * 4];
+        read(adbChan, reply);
 
-            imageParams.data = reply;
-        } finally {
-            if (adbChan != null) {
-                adbChan.close();
-            }
+        buf = ByteBuffer.wrap(reply);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+
+        // fill the RawImage with the header
+        if (!imageParams.readHeader(version, buf)) {
+            Log.e("Screenshot", "Unsupported protocol: " + version);
+            return null;
         }
 
+        Log.d("ddms", "image params: bpp=" + imageParams.bpp + ", size="
+                + imageParams.size + ", width=" + imageParams.width
+                + ", height=" + imageParams.height);
+
+        write(adbChan, nudge);
         return imageParams;
     }
 
@@ -475,7 +496,12 @@ final class AdbHelper {
                     ByteBuffer buf = ByteBuffer.wrap(data, 0, read);
                     int written = 0;
                     while (buf.hasRemaining()) {
-                        written += adbChan.write(buf);
+                        int count = adbChan.write(buf);
+                        if (count == 0) {
+                            AdbSocketSelector.getInstance().awaitReady(adbChan,
+                                    SelectionKey.OP_WRITE, 0);
+                        }
+                        written += count;
                     }
                     if (written != read) {
                         Log.e("ddms",
@@ -488,6 +514,7 @@ final class AdbHelper {
             ByteBuffer buf = ByteBuffer.wrap(data);
             buf.clear();
             long timeToResponseCount = 0;
+            AdbSocketSelector selector = AdbSocketSelector.getInstance();
             while (true) {
                 int count;
 
@@ -504,14 +531,18 @@ final class AdbHelper {
                             + count);
                     break;
                 } else if (count == 0) {
+                    // wait for more output, waking up regularly to check for cancellation
+                    if (maxTimeToOutputMs > 0 && timeToResponseCount >= maxTimeToOutputMs) {
+                        throw new ShellCommandUnresponsiveException();
+                    }
+                    long wait = CANCEL_CHECK_TIME;
+                    if (maxTimeToOutputMs > 0) {
+                        wait = Math.min(wait, maxTimeToOutputMs - timeToResponseCount);
+                    }
                     try {
-                        int wait = WAIT_TIME * 5;
+                        selector.awaitReady(adbChan, SelectionKey.OP_READ, wait);
+                    } catch (TimeoutException e) {
                         timeToResponseCount += wait;
-                        if (maxTimeToOutputMs > 0 && timeToResponseCount > maxTimeToOutputMs) {
-                            throw new ShellCommandUnresponsiveException();
-                        }
-                        Thread.sleep(wait);
-                    } catch (InterruptedException ie) {
                     }
                 } else {
                     // reset timeout
@@ -581,6 +612,7 @@ final class AdbHelper {
 
             byte[] data = new byte[16384];
             ByteBuffer buf = ByteBuffer.wrap(data);
+            AdbSocketSelector selector = AdbSocketSelector.getInstance();
             while (true) {
                 int count;
 
@@ -592,9 +624,11 @@ final class AdbHelper {
                 if (count < 0) {
                     break;
                 } else if (count == 0) {
+                    // wait for more data, waking up regularly to check for cancellation
                     try {
-                        Thread.sleep(WAIT_TIME * 5);
-                    } catch (InterruptedException ie) {
+                        selector.awaitReady(adbChan, SelectionKey.OP_READ, CANCEL_CHECK_TIME);
+                    } catch (TimeoutException e) {
+                        // check for cancellation and wait again
                     }
                 } else {
                     if (rcvr != null) {
@@ -750,9 +784,20 @@ final class AdbHelper {
      */
     static void read(SocketChannel chan, byte[] data, int length, long timeout)
             throws TimeoutException, IOException {
-        ByteBuffer buf = ByteBuffer.wrap(data, 0, length != -1 ? length : data.length);
-        int numWaits = 0;
+        read(chan, ByteBuffer.wrap(data, 0, length != -1 ? length : data.length), timeout);
+    }
 
+    /**
+     * Reads from the socket until the buffer is filled up to its limit, or no more data is
+     * coming, as {@link #read(SocketChannel, byte[], int, long)} does.
+     *
+     * @param chan the opened socket to read from. It must be in non-blocking
+     *      mode for timeouts to work
+     * @param buf the buffer to store the read data into, from its position to its limit.
+     * @param timeout The timeout value in ms. A timeout of zero means "wait forever".
+     */
+    static void read(SocketChannel chan, ByteBuffer buf, long timeout)
+            throws TimeoutException, IOException {
         while (buf.position() != buf.limit()) {
             int count;
 
@@ -761,19 +806,13 @@ final class AdbHelper {
                 Log.d("ddms", "read: channel EOF");
                 throw new IOException("EOF");
             } else if (count == 0) {
-                // TODO: need more accurate timeout?
-                if (timeout != 0 && numWaits * WAIT_TIME > timeout) {
-                    Log.d("ddms", "read: timeout");
-                    throw new TimeoutException();
-                }
-                // non-blocking spin
                 try {
-                    Thread.sleep(WAIT_TIME);
-                } catch (InterruptedException ie) {
+                    AdbSocketSelector.getInstance().awaitReady(chan, SelectionKey.OP_READ,
+                            timeout);
+                } catch (TimeoutException e) {
+                    Log.d("ddms", "read: timeout");
+                    throw e;
                 }
-                numWaits++;
-            } else {
-                numWaits = 0;
             }
         }
     }
@@ -804,7 +843,6 @@ final class AdbHelper {
     static void write(SocketChannel chan, byte[] data, int length, int timeout)
             throws TimeoutException, IOException {
         ByteBuffer buf = ByteBuffer.wrap(data, 0, length != -1 ? length : data.length);
-        int numWaits = 0;
 
         while (buf.position() != buf.limit()) {
             int count;
@@ -814,19 +852,13 @@ final class AdbHelper {
                 Log.d("ddms", "write: channel EOF");
                 throw new IOException("channel EOF");
             } else if (count == 0) {
-                // TODO: need more accurate timeout?
-                if (timeout != 0 && numWaits * WAIT_TIME > timeout) {
-                    Log.d("ddms", "write: timeout");
-                    throw new TimeoutException();
-                }
-                // non-blocking spin
                 try {
-                    Thread.sleep(WAIT_TIME);
-                } catch (InterruptedException ie) {
+                    AdbSocketSelector.getInstance().awaitReady(chan, SelectionKey.OP_WRITE,
+                            timeout);
+                } catch (TimeoutException e) {
+                    Log.d("ddms", "write: timeout");
+                    throw e;
                 }
-                numWaits++;
-            } else {
-                numWaits = 0;
             }
         }
     }
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Waits for the non-blocking adb sockets to be ready for I/O.
+ * <p/>A single thread multiplexes all the sockets with a {@link Selector}, instead of each
+ * connection polling its socket and sleeping in between, so that waiting connections don't use
+ * any CPU and resume as soon as their socket is ready.
+ * <p/>Channels are only registered with the selector while they are waited on, and are
+ * deregistered before the wait completes, so they can be closed or put back in blocking mode
+ * right away. A channel must only be waited on by one thread at a time.
+ */
+final class AdbSocketSelector {
+
+    private static AdbSocketSelector sInstance;
+
+    private final Selector mSelector;
+
+    /** Waits requested since the selector thread last registered channels. */
+    private final Queue<Wait> mPendingWaits = new ConcurrentLinkedQueue<Wait>();
+
+    /** Waits whose channels are registered. Only used by the selector thread. */
+    private final List<Wait> mWaits = new ArrayList<Wait>();
+
+    private static final class Wait {
+        final SocketChannel channel;
+        final int ops;
+        /** Deadline in {@link System#nanoTime()} units, or 0 to wait forever. */
+        final long deadline;
+        final SettableFuture<Void> future = SettableFuture.create();
+        SelectionKey key;
+        boolean ready;
+
+        Wait(SocketChannel channel, int ops, long deadline) {
+            this.channel = channel;
+            this.ops = ops;
+            this.deadline = deadline;
+        }
+    }
+
+    private AdbSocketSelector() throws IOException {
+        mSelector = Selector.open();
+        Thread thread = new Thread("Adb Socket Selector") { //$NON-NLS-1$
+            @Override
+            public void run() {
+                runLoop();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the shared selector, starting its thread on first use.
+     */
+    @NonNull
+    static synchronized AdbSocketSelector getInstance() throws IOException {
+        if (sInstance == null) {
+            sInstance = new AdbSocketSelector();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns a future which completes once the channel is ready for the given operations, or
+     * fails with a {@link TimeoutException} if it isn't ready within the timeout.
+     *
+     * @param channel a channel in non-blocking mode
+     * @param ops the operations to wait for, e.g. {@link SelectionKey#OP_READ}
+     * @param timeout the timeout in ms. A timeout of zero means "wait forever".
+     */
+    @NonNull
+    ListenableFuture<Void> whenReady(@NonNull SocketChannel channel, int ops, long timeout) {
+        long deadline = 0;
+        if (timeout > 0) {
+            // 0 is reserved for "no deadline".
+            deadline = Math.max(System.nanoTime() + timeout * 1000000L, 1);
+        }
+        Wait wait = new Wait(channel, ops, deadline);
+        mPendingWaits.add(wait);
+        mSelector.wakeup();
+        return wait.future;
+    }
+
+    /**
+     * Blocks until the channel is ready for the given operations.
+     *
+     * @param channel a channel in non-blocking mode
+     * @param ops the operations to wait for, e.g. {@link SelectionKey#OP_READ}
+     * @param timeout the timeout in ms. A timeout of zero means "wait forever".
+     * @throws TimeoutException if the channel isn't ready within the timeout.
+     * @throws IOException if the channel is closed.
+     */
+    void awaitReady(@NonNull SocketChannel channel, int ops, long timeout)
+            throws TimeoutException, IOException {
+        try {
+            Uninterruptibles.getUninterruptibly(whenReady(channel, ops, timeout));
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TimeoutException) {
+                throw (TimeoutException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private void runLoop() {
+        List<Wait> ready = new ArrayList<Wait>();
+        List<Wait> expired = new ArrayList<Wait>();
+        while (true) {
+            try {
+                registerPendingWaits();
+
+                long now = System.nanoTime();
+                long timeout = 0;
+                for (Wait wait : mWaits) {
+                    if (wait.deadline != 0) {
+                        long remaining = Math.max((wait.deadline - now) / 1000000L, 1);
+                        timeout = timeout == 0 ? remaining : Math.min(timeout, remaining);
+                    }
+                }
+                mSelector.select(timeout);
+
+                // Keys are cancelled as their waits complete, and the channels deregistered by
+                // selectNow() before their futures are completed. selectNow() may select more
+                // keys, which are handled the same way.
+                boolean cancelled = collectCompletedWaits(ready, expired);
+                while (cancelled) {
+                    mSelector.selectNow();
+                    cancelled = collectCompletedWaits(ready, expired);
+                }
+
+                for (Wait wait : ready) {
+                    wait.future.set(null);
+                }
+                for (Wait wait : expired) {
+                    wait.future.setException(new TimeoutException());
+                }
+                ready.clear();
+                expired.clear();
+            } catch (Exception e) {
+                // we don't want to have our thread be killed because of any uncaught
+                // exception, so we intercept all here.
+                Log.e("ddms", "Exception in AdbSocketSelector");
+                Log.e("ddms", e);
+            }
+        }
+    }
+
+    private void registerPendingWaits() {
+        Wait wait;
+        while ((wait = mPendingWaits.poll()) != null) {
+            try {
+                if (wait.channel.keyFor(mSelector) != null) {
+                    throw new IllegalStateException("Channel is already being waited on");
+                }
+                wait.key = wait.channel.register(mSelector, wait.ops, wait);
+                mWaits.add(wait);
+            } catch (ClosedChannelException e) {
+                wait.future.setException(e);
+            } catch (RuntimeException e) {
+                // e.g. the channel is in blocking mode, or is already being waited on.
+                wait.future.setException(e);
+            }
+        }
+    }
+
+    /**
+     * Cancels the keys of the channels which are ready or whose wait has expired, and returns
+     * true if any was cancelled.
+     */
+    private boolean collectCompletedWaits(@NonNull List<Wait> ready, @NonNull List<Wait> expired) {
+        boolean cancelled = false;
+        for (SelectionKey key : mSelector.selectedKeys()) {
+            Wait wait = (Wait) key.attachment();
+            if (key.isValid()) {
+                key.cancel();
+                wait.ready = true;
+                ready.add(wait);
+                cancelled = true;
+            }
+        }
+        mSelector.selectedKeys().clear();
+
+        long now = System.nanoTime();
+        Iterator<Wait> iter = mWaits.iterator();
+        while (iter.hasNext()) {
+            Wait wait = iter.next();
+            if (wait.ready) {
+                iter.remove();
+            } else if (!wait.key.isValid()) {
+                // The channel was closed while being waited on.
+                iter.remove();
+                wait.future.setException(new ClosedChannelException());
+            } else if (wait.deadline != 0 && now - wait.deadline >= 0) {
+                iter.remove();
+                wait.key.cancel();
+                expired.add(wait);
+                cancelled = true;
+            }
+        }
+        return cancelled;
+    }
+}
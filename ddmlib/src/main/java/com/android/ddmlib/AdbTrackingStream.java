@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Connection to an adb tracking service, such as {@code host:track-devices} or
+ * {@code track-jdwp}, which is read whenever a selector reports data, without ever waiting for
+ * it.
+ * <p/>The requests are sent one at a time, each one after adb accepted the previous one, as adb
+ * drops the data following a transport request. Once all of them are accepted, adb sends
+ * messages made of a 4 digit hexadecimal length followed by their content. The data is
+ * accumulated until these messages are complete.
+ */
+final class AdbTrackingStream {
+    private static final byte[] OKAY = { 'O', 'K', 'A', 'Y' };
+    private static final byte[] FAIL = { 'F', 'A', 'I', 'L' };
+
+    private final ByteChannel mChannel;
+    private final List<String> mRequests;
+    private int mAcceptedRequests;
+    private ByteBuffer mBuffer = ByteBuffer.allocate(1024);
+
+    /**
+     * Creates the stream.
+     * @param channel the channel connected to adb. It can be non-blocking.
+     * @param requests the requests to send, the last one starting the tracking service.
+     */
+    AdbTrackingStream(@NonNull ByteChannel channel, @NonNull String... requests) {
+        mChannel = channel;
+        mRequests = Arrays.asList(requests);
+    }
+
+    /**
+     * Sends the first request.
+     * @throws IOException if the connection failed.
+     */
+    void start() throws IOException {
+        sendRequest(0);
+    }
+
+    /**
+     * Returns whether adb accepted all the requests, and is sending messages.
+     */
+    boolean isTracking() {
+        return mAcceptedRequests == mRequests.size();
+    }
+
+    /**
+     * Reads the available data. This must be called when the channel is readable, or it blocks
+     * for a blocking channel.
+     * @return the messages completed by the data, possibly none.
+     * @throws AdbCommandRejectedException if adb rejected a request.
+     * @throws IOException if the connection failed or was closed, or if the data is malformed.
+     */
+    @NonNull
+    List<String> read() throws AdbCommandRejectedException, IOException {
+        if (!mBuffer.hasRemaining()) {
+            ByteBuffer buffer = ByteBuffer.allocate(mBuffer.capacity() * 2);
+            mBuffer.flip();
+            buffer.put(mBuffer);
+            mBuffer = buffer;
+        }
+        if (mChannel.read(mBuffer) < 0) {
+            throw new IOException("EOF"); //$NON-NLS-1$
+        }
+
+        mBuffer.flip();
+        try {
+            return readMessages();
+        } finally {
+            mBuffer.compact();
+        }
+    }
+
+    @NonNull
+    private List<String> readMessages() throws AdbCommandRejectedException, IOException {
+        List<String> messages = Collections.emptyList();
+        while (!isTracking()) {
+            if (mBuffer.remaining() < 4) {
+                return messages;
+            }
+            if (startsWith(OKAY)) {
+                mBuffer.position(mBuffer.position() + 4);
+                mAcceptedRequests++;
+                if (!isTracking()) {
+                    sendRequest(mAcceptedRequests);
+                }
+            } else if (startsWith(FAIL)) {
+                String message = readMessage(4);
+                if (message == null) {
+                    return messages;
+                }
+                boolean deviceSelection =
+                        mRequests.get(mAcceptedRequests).startsWith("host:transport"); //$NON-NLS-1$
+                throw new AdbCommandRejectedException(message, deviceSelection);
+            } else {
+                throw new IOException("Unexpected response from adb"); //$NON-NLS-1$
+            }
+        }
+
+        while (true) {
+            String message = readMessage(0);
+            if (message == null) {
+                return messages;
+            }
+            if (messages.isEmpty()) {
+                messages = new ArrayList<String>();
+            }
+            messages.add(message);
+        }
+    }
+
+    /**
+     * Reads a message with its length at an offset from the current position, or returns null
+     * if it is not complete yet.
+     */
+    private String readMessage(int offset) throws IOException {
+        int start = mBuffer.position() + offset;
+        if (mBuffer.limit() - start < 4) {
+            return null;
+        }
+
+        String lengthText = new String(mBuffer.array(), mBuffer.arrayOffset() + start, 4,
+                AdbHelper.DEFAULT_ENCODING);
+        int length;
+        try {
+            length = Integer.parseInt(lengthText, 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("Unable to read length"); //$NON-NLS-1$
+        }
+        if (mBuffer.limit() - start - 4 < length) {
+            return null;
+        }
+
+        String message = new String(mBuffer.array(), mBuffer.arrayOffset() + start + 4, length,
+                AdbHelper.DEFAULT_ENCODING);
+        mBuffer.position(start + 4 + length);
+        return message;
+    }
+
+    private boolean startsWith(@NonNull byte[] id) {
+        int position = mBuffer.position();
+        for (int i = 0; i < id.length; i++) {
+            if (mBuffer.get(position + i) != id[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void sendRequest(int index) throws IOException {
+        // requests are small enough to be written right away, even on a non-blocking channel.
+        ByteBuffer request = ByteBuffer.wrap(AdbHelper.formAdbRequest(mRequests.get(index)));
+        while (request.hasRemaining()) {
+            mChannel.write(request);
+        }
+    }
+}
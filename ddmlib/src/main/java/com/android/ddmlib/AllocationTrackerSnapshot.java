@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The allocations recorded by the allocation tracker of a client, stored compactly.
+ * <p/>Unlike an array of {@link AllocationInfo}, the allocations are kept in primitive arrays,
+ * and their stack traces are deduplicated into a {@link StackTrie} of frames, each distinct
+ * method, source file and line being a frame. A {@link StackTraceElement} is created once per
+ * frame, when first needed.
+ * <p/>The usage of the heap by allocated class and by call site, the innermost frame of the
+ * stack traces, is updated as the allocations are added.
+ * @see AllocationsParser#parseCompact(java.nio.ByteBuffer)
+ */
+public final class AllocationTrackerSnapshot {
+
+    /** Frame id of the call site of the allocations without stack trace. */
+    private static final int NO_FRAME = -1;
+
+    /*
+     * The string tables of the dump.
+     */
+    @NonNull
+    private final String[] mClassNames;
+    @NonNull
+    private final String[] mMethodNames;
+    @NonNull
+    private final String[] mFileNames;
+
+    /*
+     * The frames, keyed by their string indices and line, and their elements once created.
+     */
+    @NonNull
+    private final LongIdMap mFrames = new LongIdMap();
+    @NonNull
+    private StackTraceElement[] mFrameElements = new StackTraceElement[16];
+    @NonNull
+    private final StackTrie mStacks = new StackTrie();
+
+    /*
+     * The allocations, oldest last.
+     */
+    private int mEntryCount;
+    @NonNull
+    private final int[] mSizes;
+    @NonNull
+    private final short[] mThreadIds;
+    @NonNull
+    private final int[] mClassIndices;
+    @NonNull
+    private final int[] mStackIds;
+
+    /*
+     * The usage, by index of the allocated class, and by frame id of the call site.
+     */
+    private long mTotalSize;
+    @NonNull
+    private final long[] mClassSizes;
+    @NonNull
+    private final int[] mClassAllocationCounts;
+    @NonNull
+    private long[] mCallSiteSizes = new long[16];
+    @NonNull
+    private int[] mCallSiteAllocationCounts = new int[16];
+
+    /**
+     * The memory used by a group of allocations.
+     */
+    public static final class Usage {
+        @Nullable
+        private final String mAllocatedClass;
+        @Nullable
+        private final StackTraceElement mCallSite;
+        private final long mTotalSize;
+        private final int mAllocationCount;
+
+        private Usage(@Nullable String allocatedClass, @Nullable StackTraceElement callSite,
+                long totalSize, int allocationCount) {
+            mAllocatedClass = allocatedClass;
+            mCallSite = callSite;
+            mTotalSize = totalSize;
+            mAllocationCount = allocationCount;
+        }
+
+        /**
+         * Returns the class of the allocated objects, or null for the usage by call site.
+         */
+        @Nullable
+        public String getAllocatedClass() {
+            return mAllocatedClass;
+        }
+
+        /**
+         * Returns the call site of the allocations, or null for the usage by class.
+         */
+        @Nullable
+        public StackTraceElement getCallSite() {
+            return mCallSite;
+        }
+
+        /**
+         * Returns the total size of the allocations, in bytes.
+         */
+        public long getTotalSize() {
+            return mTotalSize;
+        }
+
+        /**
+         * Returns the number of allocations.
+         */
+        public int getAllocationCount() {
+            return mAllocationCount;
+        }
+    }
+
+    private static final Comparator<Usage> BY_SIZE = new Comparator<Usage>() {
+        @Override
+        public int compare(Usage u1, Usage u2) {
+            return u1.mTotalSize < u2.mTotalSize ? 1 : (u1.mTotalSize > u2.mTotalSize ? -1 : 0);
+        }
+    };
+
+    AllocationTrackerSnapshot(@NonNull String[] classNames, @NonNull String[] methodNames,
+            @NonNull String[] fileNames, int entryCount) {
+        mClassNames = classNames;
+        mMethodNames = methodNames;
+        mFileNames = fileNames;
+        mSizes = new int[entryCount];
+        mThreadIds = new short[entryCount];
+        mClassIndices = new int[entryCount];
+        mStackIds = new int[entryCount];
+        mClassSizes = new long[classNames.length];
+        mClassAllocationCounts = new int[classNames.length];
+    }
+
+    /**
+     * Returns the frame id of a method, source file and line, adding it if it is new.
+     * @param classIndex the index of the class name of the method.
+     * @param methodIndex the index of the method name.
+     * @param fileIndex the index of the source file name.
+     * @param lineNumber the line number, -2 if native, -1 if no source.
+     */
+    int addFrame(int classIndex, int methodIndex, int fileIndex, short lineNumber) {
+        int frame = mFrames.add(((long) classIndex << 48) | ((long) methodIndex << 32)
+                | ((long) fileIndex << 16) | (lineNumber & 0xFFFFL));
+        if (frame == mFrameElements.length) {
+            int capacity = frame * 2;
+            mFrameElements = Arrays.copyOf(mFrameElements, capacity);
+            mCallSiteSizes = Arrays.copyOf(mCallSiteSizes, capacity);
+            mCallSiteAllocationCounts = Arrays.copyOf(mCallSiteAllocationCounts, capacity);
+        }
+        return frame;
+    }
+
+    /**
+     * Adds an allocation, older than the ones already added.
+     * @param frames the frame ids of the stack trace, innermost frame first.
+     * @param depth the number of frames of the stack trace.
+     */
+    void add(int size, short threadId, int classIndex, @NonNull int[] frames, int depth) {
+        // insert the outer frames first, so that the callers are shared in the trie.
+        int node = StackTrie.ROOT;
+        for (int i = depth - 1; i >= 0; i--) {
+            node = mStacks.add(node, frames[i]);
+        }
+
+        int index = mEntryCount++;
+        mSizes[index] = size;
+        mThreadIds[index] = threadId;
+        mClassIndices[index] = classIndex;
+        mStackIds[index] = node;
+
+        mTotalSize += size;
+        mClassSizes[classIndex] += size;
+        mClassAllocationCounts[classIndex]++;
+        int callSite = depth > 0 ? frames[0] : NO_FRAME;
+        if (callSite != NO_FRAME) {
+            mCallSiteSizes[callSite] += size;
+            mCallSiteAllocationCounts[callSite]++;
+        }
+    }
+
+    /**
+     * Returns the number of allocations. The most recent one is the first.
+     */
+    public int getAllocationCount() {
+        return mEntryCount;
+    }
+
+    /**
+     * Returns the allocation number of an allocation. Allocations are numbered as they happen
+     * with the most recent one having the highest number.
+     */
+    public int getAllocNumber(int allocation) {
+        return mEntryCount - checkAllocation(allocation);
+    }
+
+    /**
+     * Returns the name of the class allocated by an allocation.
+     */
+    @NonNull
+    public String getAllocatedClass(int allocation) {
+        return mClassNames[mClassIndices[checkAllocation(allocation)]];
+    }
+
+    /**
+     * Returns the size of an allocation.
+     */
+    public int getSize(int allocation) {
+        return mSizes[checkAllocation(allocation)];
+    }
+
+    /**
+     * Returns the id of the thread that performed an allocation.
+     */
+    public short getThreadId(int allocation) {
+        return mThreadIds[checkAllocation(allocation)];
+    }
+
+    /**
+     * Returns the stack trace of an allocation, as a node of {@link #getStackTrie()}.
+     */
+    public int getStackId(int allocation) {
+        return mStackIds[checkAllocation(allocation)];
+    }
+
+    /**
+     * Returns the stack trace of an allocation, innermost frame first. The elements are shared
+     * by the stack traces of all the allocations.
+     */
+    @NonNull
+    public StackTraceElement[] getStackTrace(int allocation) {
+        int[] frames = mStacks.getFrames(getStackId(allocation));
+        StackTraceElement[] elements = new StackTraceElement[frames.length];
+        for (int i = 0; i < frames.length; i++) {
+            elements[i] = getFrameElement(frames[i]);
+        }
+        return elements;
+    }
+
+    /**
+     * Returns the stack traces of the allocations. The frame ids are given to
+     * {@link #getFrameElement(int)}.
+     */
+    @NonNull
+    public StackTrie getStackTrie() {
+        return mStacks;
+    }
+
+    /**
+     * Returns the element of a frame.
+     */
+    @NonNull
+    public StackTraceElement getFrameElement(int frame) {
+        long key = mFrames.getKey(frame);
+        StackTraceElement element = mFrameElements[frame];
+        if (element == null) {
+            element = new StackTraceElement(
+                    mClassNames[(int) (key >>> 48)],
+                    mMethodNames[(int) (key >>> 32) & 0xFFFF],
+                    mFileNames[(int) (key >>> 16) & 0xFFFF],
+                    (short) key);
+            mFrameElements[frame] = element;
+        }
+        return element;
+    }
+
+    /**
+     * Returns the total size of the allocations, in bytes.
+     */
+    public long getTotalSize() {
+        return mTotalSize;
+    }
+
+    /**
+     * Returns the usage of the heap by allocated class, largest first.
+     */
+    @NonNull
+    public List<Usage> getUsageByClass() {
+        List<Usage> usages = new ArrayList<Usage>();
+        for (int i = 0; i < mClassNames.length; i++) {
+            if (mClassAllocationCounts[i] > 0) {
+                usages.add(new Usage(mClassNames[i], null, mClassSizes[i],
+                        mClassAllocationCounts[i]));
+            }
+        }
+        Collections.sort(usages, BY_SIZE);
+        return usages;
+    }
+
+    /**
+     * Returns the usage of the heap by call site, largest first. The allocations without stack
+     * trace are not included.
+     */
+    @NonNull
+    public List<Usage> getUsageByCallSite() {
+        List<Usage> usages = new ArrayList<Usage>();
+        for (int frame = 0; frame < mFrames.size(); frame++) {
+            if (mCallSiteAllocationCounts[frame] > 0) {
+                usages.add(new Usage(null, getFrameElement(frame), mCallSiteSizes[frame],
+                        mCallSiteAllocationCounts[frame]));
+            }
+        }
+        Collections.sort(usages, BY_SIZE);
+        return usages;
+    }
+
+    /**
+     * Returns the allocations as {@link AllocationInfo}, most recent first.
+     */
+    @NonNull
+    public AllocationInfo[] getAllocationInfos() {
+        AllocationInfo[] allocations = new AllocationInfo[mEntryCount];
+        for (int i = 0; i < mEntryCount; i++) {
+            allocations[i] = new AllocationInfo(getAllocNumber(i), getAllocatedClass(i),
+                    mSizes[i], mThreadIds[i], getStackTrace(i));
+        }
+        return allocations;
+    }
+
+    private int checkAllocation(int allocation) {
+        if (allocation < 0 || allocation >= mEntryCount) {
+            throw new IndexOutOfBoundsException("Unknown allocation: " + allocation);
+        }
+        return allocation;
+    }
+}
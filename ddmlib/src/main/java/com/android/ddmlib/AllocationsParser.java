@@ -114,6 +114,15 @@ public class AllocationsParser {
   */
   @NonNull
   public static AllocationInfo[] parse(@NonNull ByteBuffer data) {
+    return parseCompact(data).getAllocationInfos();
+  }
+
+  /**
+   * Parses the allocations without creating objects for each of them, with their stack
+   * traces deduplicated. See {@link #parse(ByteBuffer)} for the message format.
+   */
+  @NonNull
+  public static AllocationTrackerSnapshot parseCompact(@NonNull ByteBuffer data) {
     int messageHdrLen, entryHdrLen, stackFrameLen;
     int numEntries, offsetToStrings;
     int numClassNames, numMethodNames, numFileNames;
@@ -150,7 +159,9 @@ public class AllocationsParser {
      */
     data.position(messageHdrLen);
 
-    AllocationInfo[] allocations = new AllocationInfo[numEntries];
+    AllocationTrackerSnapshot allocations =
+            new AllocationTrackerSnapshot(classNames, methodNames, fileNames, numEntries);
+    int[] frames = new int[0xff];
     for (int i = 0; i < numEntries; i++) {
       int totalSize;
       int threadId, classNameIndex, stackDepth;
@@ -163,8 +174,6 @@ public class AllocationsParser {
       for (int skip = 9; skip < entryHdrLen; skip++)
         data.get();
 
-      StackTraceElement[] steArray = new StackTraceElement[stackDepth];
-
       /*
        * Pull out the stack trace.
        */
@@ -172,26 +181,21 @@ public class AllocationsParser {
         int methodClassNameIndex, methodNameIndex;
         int methodSourceFileIndex;
         short lineNumber;
-        String methodClassName, methodName, methodSourceFile;
 
         methodClassNameIndex = (data.getShort() & 0xffff);
         methodNameIndex = (data.getShort() & 0xffff);
         methodSourceFileIndex = (data.getShort() & 0xffff);
         lineNumber = data.getShort();
 
-        methodClassName = classNames[methodClassNameIndex];
-        methodName = methodNames[methodNameIndex];
-        methodSourceFile = fileNames[methodSourceFileIndex];
-
-        steArray[sti] = new StackTraceElement(methodClassName,
-                                              methodName, methodSourceFile, lineNumber);
+        frames[sti] = allocations.addFrame(methodClassNameIndex, methodNameIndex,
+                                           methodSourceFileIndex, lineNumber);
 
         /* we've consumed 8 bytes; gobble up any extra */
         for (int skip = 8; skip < stackFrameLen; skip++)
           data.get();
       }
 
-      allocations[i] = new AllocationInfo(numEntries - i, classNames[classNameIndex], totalSize, (short) threadId, steArray);
+      allocations.add(totalSize, (short) threadId, classNameIndex, frames, stackDepth);
     }
     return allocations;
   }
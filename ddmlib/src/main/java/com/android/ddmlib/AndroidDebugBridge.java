@@ -34,6 +34,7 @@ import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
@@ -85,6 +86,8 @@ public final class AndroidDebugBridge {
         new ArrayList<IDeviceChangeListener>();
     private static final ArrayList<IClientChangeListener> sClientListeners =
         new ArrayList<IClientChangeListener>();
+    private static final ArrayList<IDeviceEventListener> sDeviceEventListeners =
+        new ArrayList<IDeviceEventListener>();
 
     // lock object for synchronization
     private static final Object sLock = sBridgeListeners;
@@ -136,6 +139,21 @@ public final class AndroidDebugBridge {
         void deviceChanged(IDevice device, int changeMask);
     }
 
+    /**
+     * Classes which implement this interface provide a method that deals with typed
+     * {@link DeviceEvent}s, as an alternative to {@link IDeviceChangeListener}.
+     */
+    public interface IDeviceEventListener {
+        /**
+         * Sent when devices are connected, disconnected or changed. The events resulting from the
+         * same update from adb, e.g. when many devices connect at once, are sent together.
+         * <p/>
+         * This is sent from a non UI thread.
+         * @param events the events, in the order they happened.
+         */
+        void devicesChanged(@NonNull List<DeviceEvent> events);
+    }
+
     /**
      * Classes which implement this interface provide methods that deal
      * with {@link Client}  changes.
@@ -474,6 +492,30 @@ public final class AndroidDebugBridge {
     }
 
 
+    /**
+     * Adds the listener to the collection of listeners who will be notified of the
+     * {@link DeviceEvent}s of the devices.
+     * @param listener The listener which should be notified.
+     */
+    public static void addDeviceEventListener(@NonNull IDeviceEventListener listener) {
+        synchronized (sLock) {
+            if (!sDeviceEventListeners.contains(listener)) {
+                sDeviceEventListeners.add(listener);
+            }
+        }
+    }
+
+    /**
+     * Removes the listener from the collection of listeners who will be notified of the
+     * {@link DeviceEvent}s of the devices.
+     * @param listener The listener which should no longer be notified.
+     */
+    public static void removeDeviceEventListener(@NonNull IDeviceEventListener listener) {
+        synchronized (sLock) {
+            sDeviceEventListeners.remove(listener);
+        }
+    }
+
     /**
      * Returns the devices.
      * @see #hasInitialDeviceList()
@@ -829,6 +871,39 @@ public final class AndroidDebugBridge {
         }
     }
 
+    /**
+     * Notify the listeners of {@link DeviceEvent}s.
+     * <p/>
+     * This follows the same locking rules as {@link #deviceChanged(IDevice, int)}.
+     * @param events the events. Nothing is sent if it is empty.
+     * @see #getLock()
+     */
+    void devicesChanged(@NonNull List<DeviceEvent> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+
+        // because the listeners could remove themselves from the list while processing
+        // their event callback, we make a copy of the list and iterate on it instead of
+        // the main list.
+        IDeviceEventListener[] listenersCopy = null;
+        synchronized (sLock) {
+            listenersCopy = sDeviceEventListeners.toArray(
+                    new IDeviceEventListener[sDeviceEventListeners.size()]);
+        }
+
+        List<DeviceEvent> unmodifiableEvents = Collections.unmodifiableList(events);
+        for (IDeviceEventListener listener : listenersCopy) {
+            // we attempt to catch any exception so that a bad listener doesn't kill our
+            // thread
+            try {
+                listener.devicesChanged(unmodifiableEvents);
+            } catch (Exception e) {
+                Log.e(DDMS, e);
+            }
+        }
+    }
+
     /**
      * Notify the listener of a modified {@link Client}.
      * <p/>
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.google.common.base.Charsets;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Base implementation of {@link IShellOutputReceiver} which splits the raw data coming from the
+ * socket into lines, like {@link MultiLineReceiver}, but without allocating for each line.
+ * <p/>Line terminators ({@code \r\n}) are searched directly in the received bytes. Complete lines
+ * are handed to {@link #processLine(byte[], int, int)} as a slice of the received data, and only
+ * the start of a line split across packets is copied, to a buffer which is reused. By default,
+ * the line is then decoded into a reused {@link CharSequence} and passed to
+ * {@link #processLine(CharSequence)}.
+ * <p/>The slices and character sequences are only valid for the duration of the call; classes
+ * extending this one must copy them, e.g. with {@link CharSequence#toString()}, to keep them.
+ */
+public abstract class ByteLineReceiver implements IShellOutputReceiver {
+
+    private boolean mTrimLines = true;
+
+    /** Start of the unfinished line, stored for the next packet. */
+    private byte[] mPending = new byte[256];
+    private int mPendingLength;
+
+    private final LineBuffer mLine = new LineBuffer();
+
+    private final CharsetDecoder mDecoder = Charsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    /**
+     * Set the trim lines flag.
+     * @param trim whether the lines are trimmed, or not.
+     */
+    public void setTrimLine(boolean trim) {
+        mTrimLines = trim;
+    }
+
+    @Override
+    public final void addOutput(byte[] data, int offset, int length) {
+        if (isCancelled()) {
+            return;
+        }
+
+        int end = offset + length;
+        int start = offset;
+        boolean processed = false;
+        for (int i = offset; i < end; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            // the \r of the terminator may have been at the end of the previous packet.
+            if (i > start) {
+                if (data[i - 1] != '\r') {
+                    continue;
+                }
+                endLine(data, start, i - 1);
+            } else {
+                if (mPendingLength == 0 || mPending[mPendingLength - 1] != '\r') {
+                    continue;
+                }
+                mPendingLength--;
+                endLine(data, start, start);
+            }
+            start = i + 1;
+            processed = true;
+        }
+        appendPending(data, start, end);
+
+        if (processed) {
+            linesProcessed();
+        }
+    }
+
+    @Override
+    public final void flush() {
+        if (mPendingLength > 0) {
+            int length = mPendingLength;
+            mPendingLength = 0;
+            emitLine(mPending, 0, length);
+            linesProcessed();
+        }
+
+        done();
+    }
+
+    /**
+     * Called for each complete line, without its terminator.
+     * <p/>The default implementation decodes the line as UTF-8 and calls
+     * {@link #processLine(CharSequence)}.
+     *
+     * @param data an array holding the line. Its content is only valid during this call.
+     * @param offset the offset of the line in the array.
+     * @param length the length of the line.
+     */
+    protected void processLine(@NonNull byte[] data, int offset, int length) {
+        mLine.decode(data, offset, length, mDecoder);
+        processLine(mLine);
+    }
+
+    /**
+     * Called for each complete line, without its terminator.
+     *
+     * @param line the line. It is reused for the following lines, and must be copied with
+     *            {@link CharSequence#toString()} to be kept.
+     */
+    protected abstract void processLine(@NonNull CharSequence line);
+
+    /**
+     * Called after the complete lines of a packet have been processed.
+     */
+    protected void linesProcessed() {
+        // do nothing.
+    }
+
+    /**
+     * Terminates the process. This is called after the last line has been processed.
+     */
+    public void done() {
+        // do nothing.
+    }
+
+    /**
+     * Ends a line at {@code to}, which may have started in a previous packet.
+     */
+    private void endLine(@NonNull byte[] data, int from, int to) {
+        if (mPendingLength > 0) {
+            appendPending(data, from, to);
+            int length = mPendingLength;
+            mPendingLength = 0;
+            emitLine(mPending, 0, length);
+        } else {
+            emitLine(data, from, to - from);
+        }
+    }
+
+    private void emitLine(@NonNull byte[] data, int offset, int length) {
+        if (mTrimLines) {
+            // same as String#trim(): only ASCII characters are below or equal to a space.
+            while (length > 0 && data[offset] >= 0 && data[offset] <= ' ') {
+                offset++;
+                length--;
+            }
+            while (length > 0 && data[offset + length - 1] >= 0
+                    && data[offset + length - 1] <= ' ') {
+                length--;
+            }
+        }
+        processLine(data, offset, length);
+    }
+
+    private void appendPending(@NonNull byte[] data, int from, int to) {
+        int length = to - from;
+        if (length == 0) {
+            return;
+        }
+        if (mPendingLength + length > mPending.length) {
+            byte[] pending = new byte[Math.max(mPending.length * 2, mPendingLength + length)];
+            System.arraycopy(mPending, 0, pending, 0, mPendingLength);
+            mPending = pending;
+        }
+        System.arraycopy(data, from, mPending, mPendingLength, length);
+        mPendingLength += length;
+    }
+
+    /**
+     * A {@link CharSequence} over a reusable array of characters.
+     */
+    private static final class LineBuffer implements CharSequence {
+        private char[] mChars = new char[256];
+        private CharBuffer mCharBuffer = CharBuffer.wrap(mChars);
+        private int mLength;
+
+        void decode(@NonNull byte[] data, int offset, int length,
+                @NonNull CharsetDecoder decoder) {
+            // UTF-8 never decodes to more characters than there are bytes.
+            if (length > mChars.length) {
+                mChars = new char[Math.max(mChars.length * 2, length)];
+                mCharBuffer = CharBuffer.wrap(mChars);
+            }
+
+            // most lines are ASCII, which maps directly to characters.
+            int i = 0;
+            while (i < length && data[offset + i] >= 0) {
+                mChars[i] = (char) data[offset + i];
+                i++;
+            }
+            if (i == length) {
+                mLength = length;
+                return;
+            }
+
+            mCharBuffer.clear();
+            mCharBuffer.position(i);
+            decoder.reset();
+            decoder.decode(ByteBuffer.wrap(data, offset + i, length - i), mCharBuffer, true);
+            decoder.flush(mCharBuffer);
+            mLength = mCharBuffer.position();
+        }
+
+        @Override
+        public int length() {
+            return mLength;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index >= mLength) {
+                throw new IndexOutOfBoundsException();
+            }
+            return mChars[index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || end > mLength || start > end) {
+                throw new IndexOutOfBoundsException();
+            }
+            return new String(mChars, start, end - start);
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return new String(mChars, 0, mLength);
+        }
+    }
+}
@@ -478,7 +478,8 @@ public class Client {
 
     /**
      * Sends a native heap update request. this is asynchronous.
-     * <p/>The native heap info can be accessed by {@link ClientData#getNativeAllocationList()}.
+     * <p/>The native heap info can be accessed by {@link ClientData#getNativeAllocationList()},
+     * or compactly by {@link ClientData#getNativeHeapSnapshot()}.
      * The notification that the new data is available will be received through
      * {@link IClientChangeListener#clientChanged(Client, int)} with a <code>changeMask</code>
      * containing the mask {@link #CHANGE_NATIVE_HEAP_DATA}.
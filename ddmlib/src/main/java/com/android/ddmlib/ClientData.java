@@ -196,9 +196,10 @@ public class ClientData {
     private ArrayList<NativeLibraryMapInfo> mNativeLibMapInfo =
         new ArrayList<NativeLibraryMapInfo>();
 
-    /** Native Alloc info list */
-    private ArrayList<NativeAllocationInfo> mNativeAllocationList =
-        new ArrayList<NativeAllocationInfo>();
+    /** Native allocations */
+    private NativeHeapSnapshot mNativeHeapSnapshot = null;
+    /** Native Alloc info list, created from the snapshot when first requested. */
+    private List<NativeAllocationInfo> mNativeAllocationList = null;
     private int mNativeTotalMemory;
 
     private AllocationInfo[] mAllocations;
@@ -709,22 +710,42 @@ public class ClientData {
      * @see Client#requestNativeHeapInformation()
      */
     public synchronized List<NativeAllocationInfo> getNativeAllocationList() {
-        return Collections.unmodifiableList(mNativeAllocationList);
+        if (mNativeAllocationList == null) {
+            if (mNativeHeapSnapshot == null) {
+                return Collections.emptyList();
+            }
+            int count = mNativeHeapSnapshot.getEntryCount();
+            List<NativeAllocationInfo> list = new ArrayList<NativeAllocationInfo>(count);
+            for (int i = 0; i < count; i++) {
+                list.add(mNativeHeapSnapshot.getAllocationInfo(i));
+            }
+            mNativeAllocationList = Collections.unmodifiableList(list);
+        }
+        return mNativeAllocationList;
     }
 
     /**
-     * adds a new {@link NativeAllocationInfo} to the {@link Client}
-     * @param allocInfo The {@link NativeAllocationInfo} to add.
+     * Returns the native allocations, stored compactly, or null if they were not received.
+     * <p/>Unlike {@link #getNativeAllocationList()}, this doesn't create an object per
+     * allocation.
+     * @see Client#requestNativeHeapInformation()
      */
-    synchronized void addNativeAllocation(NativeAllocationInfo allocInfo) {
-        mNativeAllocationList.add(allocInfo);
+    @Nullable
+    public synchronized NativeHeapSnapshot getNativeHeapSnapshot() {
+        return mNativeHeapSnapshot;
+    }
+
+    synchronized void setNativeHeapSnapshot(@NonNull NativeHeapSnapshot snapshot) {
+        mNativeHeapSnapshot = snapshot;
+        mNativeAllocationList = null;
     }
 
     /**
      * Clear the current malloc info.
      */
     synchronized void clearNativeAllocationInfo() {
-        mNativeAllocationList.clear();
+        mNativeHeapSnapshot = null;
+        mNativeAllocationList = null;
     }
 
     /**
@@ -47,6 +47,8 @@ public final class DdmPreferences {
     /** Default values for the use of the ADBHOST environment variable. */
     public static final boolean DEFAULT_USE_ADBHOST = false;
     public static final String DEFAULT_ADBHOST_VALUE = "127.0.0.1";
+    /** Default maximum number of shell commands run at the same time on a device. */
+    public static final int DEFAULT_MAX_CONCURRENT_SHELL_COMMANDS = 4;
 
     private static boolean sThreadUpdate = DEFAULT_INITIAL_THREAD_UPDATE;
     private static boolean sInitialHeapUpdate = DEFAULT_INITIAL_HEAP_UPDATE;
@@ -60,6 +62,8 @@ public final class DdmPreferences {
     private static boolean sUseAdbHost = DEFAULT_USE_ADBHOST;
     private static String sAdbHostValue = DEFAULT_ADBHOST_VALUE;
 
+    private static int sMaxConcurrentShellCommands = DEFAULT_MAX_CONCURRENT_SHELL_COMMANDS;
+
     /**
      * Returns the initial {@link Client} flag for thread updates.
      * @see #setInitialThreadUpdate(boolean)
@@ -211,6 +215,23 @@ public final class DdmPreferences {
         sAdbHostValue = adbHostValue;
     }
 
+    /**
+     * Returns the maximum number of asynchronous shell commands run at the same time on a
+     * device.
+     */
+    public static int getMaxConcurrentShellCommands() {
+        return sMaxConcurrentShellCommands;
+    }
+
+    /**
+     * Sets the maximum number of asynchronous shell commands run at the same time on a device.
+     * <p/>This change takes effect for newly created {@link IDevice} objects only.
+     * @param maxCommands the maximum number of commands, at least 1.
+     */
+    public static void setMaxConcurrentShellCommands(int maxCommands) {
+        sMaxConcurrentShellCommands = Math.max(maxCommands, 1);
+    }
+
     /**
      * Non accessible constructor.
      */
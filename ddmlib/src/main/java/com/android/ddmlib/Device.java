@@ -72,6 +72,9 @@ final class Device implements IDevice {
 
     private final BatteryFetcher mBatteryFetcher = new BatteryFetcher(this);
 
+    private final ShellCommandExecutor mShellExecutor =
+            new ShellCommandExecutor(this, DdmPreferences.getMaxConcurrentShellCommands());
+
     @GuardedBy("mClients")
     private final List<Client> mClients = new ArrayList<Client>();
 
@@ -578,6 +581,14 @@ final class Device implements IDevice {
                 receiver, maxTimeToOutputResponse, maxTimeUnits);
     }
 
+    /**
+     * Returns the executor running the asynchronous shell commands of the device.
+     */
+    @NonNull
+    ShellCommandExecutor getShellCommandExecutor() {
+        return mShellExecutor;
+    }
+
     @Override
     public void runEventLogService(LogReceiver receiver)
             throws TimeoutException, AdbCommandRejectedException, IOException {
@@ -726,6 +737,14 @@ final class Device implements IDevice {
         mMountPoints.put(name, value);
     }
 
+    /**
+     * Sets the properties from the output of a {@code getprop} command.
+     * @param output the output of the command.
+     */
+    void setGetPropOutput(@NonNull String output) {
+        mPropFetcher.setGetPropOutput(output);
+    }
+
     private void addClientInfo(Client client) {
         ClientData cd = client.getClientData();
         setClientInfo(cd.getPid(), cd.getClientDescription());
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.AndroidDebugBridge.IDeviceEventListener;
+import com.android.ddmlib.IDevice.DeviceState;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A change of a device, sent to the {@link IDeviceEventListener}s.
+ */
+public final class DeviceEvent {
+
+    /**
+     * The type of change.
+     */
+    public enum Type {
+        /** The device is connected to adb. */
+        CONNECTED,
+        /** The device is disconnected from adb. */
+        DISCONNECTED,
+        /** The state of the device changed. See {@link DeviceEvent#getPreviousState()}. */
+        STATE_CHANGED,
+        /**
+         * The debuggable processes of the device changed. See {@link DeviceEvent#getAddedPids()}
+         * and {@link DeviceEvent#getRemovedPids()}.
+         */
+        CLIENT_LIST_CHANGED,
+        /** The properties and mount points of the device were loaded. */
+        BUILD_INFO_CHANGED
+    }
+
+    private final Type mType;
+    private final IDevice mDevice;
+    private final DeviceState mState;
+    private final DeviceState mPreviousState;
+    private final Set<Integer> mAddedPids;
+    private final Set<Integer> mRemovedPids;
+
+    private DeviceEvent(@NonNull Type type, @NonNull IDevice device,
+            @Nullable DeviceState previousState, @NonNull Set<Integer> addedPids,
+            @NonNull Set<Integer> removedPids) {
+        mType = type;
+        mDevice = device;
+        mState = device.getState();
+        mPreviousState = previousState;
+        mAddedPids = addedPids;
+        mRemovedPids = removedPids;
+    }
+
+    @NonNull
+    static DeviceEvent connected(@NonNull IDevice device) {
+        return new DeviceEvent(Type.CONNECTED, device, null, Collections.<Integer>emptySet(),
+                Collections.<Integer>emptySet());
+    }
+
+    @NonNull
+    static DeviceEvent disconnected(@NonNull IDevice device) {
+        return new DeviceEvent(Type.DISCONNECTED, device, null, Collections.<Integer>emptySet(),
+                Collections.<Integer>emptySet());
+    }
+
+    @NonNull
+    static DeviceEvent stateChanged(@NonNull IDevice device, @Nullable DeviceState previous) {
+        return new DeviceEvent(Type.STATE_CHANGED, device, previous,
+                Collections.<Integer>emptySet(), Collections.<Integer>emptySet());
+    }
+
+    @NonNull
+    static DeviceEvent clientListChanged(@NonNull IDevice device,
+            @NonNull Collection<Integer> addedPids, @NonNull Collection<Integer> removedPids) {
+        return new DeviceEvent(Type.CLIENT_LIST_CHANGED, device, null,
+                Collections.unmodifiableSet(new TreeSet<Integer>(addedPids)),
+                Collections.unmodifiableSet(new TreeSet<Integer>(removedPids)));
+    }
+
+    @NonNull
+    static DeviceEvent buildInfoChanged(@NonNull IDevice device) {
+        return new DeviceEvent(Type.BUILD_INFO_CHANGED, device, null,
+                Collections.<Integer>emptySet(), Collections.<Integer>emptySet());
+    }
+
+    /**
+     * Returns the type of change.
+     */
+    @NonNull
+    public Type getType() {
+        return mType;
+    }
+
+    /**
+     * Returns the device which changed.
+     */
+    @NonNull
+    public IDevice getDevice() {
+        return mDevice;
+    }
+
+    /**
+     * Returns the state of the device when the event was created. It may have changed since.
+     */
+    @Nullable
+    public DeviceState getState() {
+        return mState;
+    }
+
+    /**
+     * Returns the state of the device before a {@link Type#STATE_CHANGED} event, or null.
+     */
+    @Nullable
+    public DeviceState getPreviousState() {
+        return mPreviousState;
+    }
+
+    /**
+     * Returns the pids of the debuggable processes started, for a
+     * {@link Type#CLIENT_LIST_CHANGED} event.
+     */
+    @NonNull
+    public Set<Integer> getAddedPids() {
+        return mAddedPids;
+    }
+
+    /**
+     * Returns the pids of the debuggable processes terminated, for a
+     * {@link Type#CLIENT_LIST_CHANGED} event.
+     */
+    @NonNull
+    public Set<Integer> getRemovedPids() {
+        return mRemovedPids;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(mType).append(' ').append(mDevice.getSerialNumber());
+        switch (mType) {
+            case STATE_CHANGED:
+                sb.append(' ').append(mPreviousState).append(" -> ").append(mState);
+                break;
+            case CLIENT_LIST_CHANGED:
+                sb.append(" +").append(mAddedPids).append(" -").append(mRemovedPids);
+                break;
+            default:
+                break;
+        }
+        return sb.toString();
+    }
+}
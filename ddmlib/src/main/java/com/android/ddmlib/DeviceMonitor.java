@@ -16,20 +16,20 @@
 
 package com.android.ddmlib;
 
-import com.android.ddmlib.AdbHelper.AdbResponse;
 import com.android.ddmlib.ClientData.DebuggerStatus;
 import com.android.ddmlib.DebugPortManager.IDebugPortProvider;
 import com.android.ddmlib.IDevice.DeviceState;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.net.UnknownHostException;
-import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -37,25 +37,50 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A Device monitor. This connects to the Android Debug Bridge and get device and
  * debuggable process information from it.
+ * <p/>The device list and the debuggable processes of all the devices are tracked by a single
+ * thread, on a single {@link Selector}: the tracking connections are only read when adb sends
+ * data, and the reconnections to adb are scheduled rather than waited for. The connections to adb
+ * to track the processes of a device, and to the processes themselves, block until adb answers,
+ * so they are opened by a few background threads and then handed over to the monitor thread. The
+ * information of new devices is queried in the background, with a single shell command per device.
  */
 final class DeviceMonitor {
-    private byte[] mLengthBuffer = new byte[4];
-    private byte[] mLengthBuffer2 = new byte[4];
+    /** Delay before connecting to adb again, or reopening a client. */
+    private static final long RETRY_DELAY_MS = 1000;
 
-    private boolean mQuit = false;
+    /**
+     * Maximum number of times the delay before restarting the monitoring of a device is doubled
+     * after consecutive failures.
+     */
+    private static final int MAX_RESTART_BACKOFF_SHIFT = 5;
+
+    /** Number of threads processing the information of new devices. */
+    private static final int DEVICE_INFO_THREAD_COUNT = 2;
+
+    /** Number of threads opening the connections to adb for devices and clients. */
+    private static final int CONNECTION_THREAD_COUNT = 4;
+
+    private volatile boolean mQuit = false;
 
     private AndroidDebugBridge mServer;
 
     private SocketChannel mMainAdbConnection = null;
-    private boolean mMonitoring = false;
+    private AdbTrackingStream mDeviceListStream;
+    private volatile boolean mMonitoring = false;
     private int mConnectionAttempt = 0;
     private int mRestartAttemptCount = 0;
-    private boolean mInitialDeviceListDone = false;
+    private volatile boolean mInitialDeviceListDone = false;
+
+    /** Time of the next connection attempt to adb, in {@link System#nanoTime()} time. */
+    private long mNextConnectionTime;
 
     private Selector mSelector;
 
@@ -65,6 +90,74 @@ final class DeviceMonitor {
 
     private final HashMap<Client, Integer> mClientsToReopen = new HashMap<Client, Integer>();
 
+    /** Clients dropped and waiting to be reopened. Only accessed by the monitor thread. */
+    private final List<ClientReopening> mClientReopenings = new ArrayList<ClientReopening>();
+
+    /** Trackers connected in the background, to register with the selector. */
+    private final List<DeviceTracker> mConnectedTrackers = new ArrayList<DeviceTracker>();
+
+    /** Devices whose monitoring is restarted once a delay has elapsed. */
+    private final List<MonitoringRestart> mMonitoringRestarts = new ArrayList<MonitoringRestart>();
+
+    private final ThreadPoolExecutor mDeviceInfoExecutor;
+
+    private final ThreadPoolExecutor mConnectionExecutor;
+
+    /**
+     * The debuggable processes tracked for a device.
+     */
+    private static final class DeviceTracker {
+        final Device mDevice;
+        final SocketChannel mChannel;
+        final AdbTrackingStream mStream;
+        /** The pids last reported by adb. */
+        Set<Integer> mPids = Collections.emptySet();
+        /** The pids whose clients are being opened in the background. */
+        final Set<Integer> mOpeningPids = Collections.synchronizedSet(new HashSet<Integer>());
+        /** The number of consecutive failures of the monitoring of the device. */
+        int mFailureCount;
+
+        DeviceTracker(Device device, SocketChannel channel, AdbTrackingStream stream,
+                int failureCount) {
+            mDevice = device;
+            mChannel = channel;
+            mStream = stream;
+            mFailureCount = failureCount;
+        }
+    }
+
+    /**
+     * A device whose monitoring is restarted after a failure.
+     */
+    private static final class MonitoringRestart {
+        final Device mDevice;
+        final int mFailureCount;
+        /** Time of the restart, in {@link System#nanoTime()} time. */
+        final long mTime;
+
+        MonitoringRestart(Device device, int failureCount, long time) {
+            mDevice = device;
+            mFailureCount = failureCount;
+            mTime = time;
+        }
+    }
+
+    /**
+     * A client waiting to be reopened.
+     */
+    private static final class ClientReopening {
+        final Client mClient;
+        final int mPort;
+        /** Time of the reopening, in {@link System#nanoTime()} time. */
+        final long mTime;
+
+        ClientReopening(Client client, int port, long time) {
+            mClient = client;
+            mPort = port;
+            mTime = time;
+        }
+    }
+
     /**
      * Creates a new {@link DeviceMonitor} object and links it to the running
      * {@link AndroidDebugBridge} object.
@@ -74,13 +167,39 @@ final class DeviceMonitor {
         mServer = server;
 
         mDebuggerPorts.add(DdmPreferences.getDebugPortBase());
+
+        mDeviceInfoExecutor = new ThreadPoolExecutor(DEVICE_INFO_THREAD_COUNT,
+                DEVICE_INFO_THREAD_COUNT, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("Device Info Query-%d") //$NON-NLS-1$
+                        .setDaemon(true)
+                        .build());
+        mDeviceInfoExecutor.allowCoreThreadTimeOut(true);
+
+        mConnectionExecutor = new ThreadPoolExecutor(CONNECTION_THREAD_COUNT,
+                CONNECTION_THREAD_COUNT, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("Device Monitor Connection-%d") //$NON-NLS-1$
+                        .setDaemon(true)
+                        .build());
+        mConnectionExecutor.allowCoreThreadTimeOut(true);
     }
 
     /**
      * Starts the monitoring.
      */
     void start() {
-        new Thread("Device List Monitor") { //$NON-NLS-1$
+        try {
+            mSelector = Selector.open();
+        } catch (IOException e) {
+            Log.e("DeviceMonitor", "Unable to open the device monitoring selector: "
+                    + e.getMessage());
+            return;
+        }
+
+        new Thread("Device Monitor") { //$NON-NLS-1$
             @Override
             public void run() {
                 deviceMonitorLoop();
@@ -94,21 +213,14 @@ final class DeviceMonitor {
     void stop() {
         mQuit = true;
 
-        // wakeup the main loop thread by closing the main connection to adb.
-        try {
-            if (mMainAdbConnection != null) {
-                mMainAdbConnection.close();
-            }
-        } catch (IOException e1) {
-        }
-
-        // wake up the secondary loop by closing the selector.
+        // wake up the loop, which closes the connections to adb.
         if (mSelector != null) {
             mSelector.wakeup();
         }
-    }
-
 
+        mDeviceInfoExecutor.shutdownNow();
+        mConnectionExecutor.shutdownNow();
+    }
 
     /**
      * Returns if the monitor is currently connected to the debug bridge server.
@@ -151,62 +263,165 @@ final class DeviceMonitor {
                 mClientsToReopen.put(client, port);
             }
         }
-        mSelector.wakeup();
+        if (mSelector != null) {
+            mSelector.wakeup();
+        }
     }
 
     /**
-     * Monitors the devices. This connects to the Debug Bridge
+     * Monitors the devices and their clients. This connects to the Debug Bridge
      */
     private void deviceMonitorLoop() {
         do {
             try {
-                if (mMainAdbConnection == null) {
-                    Log.d("DeviceMonitor", "Opening adb connection");
-                    mMainAdbConnection = openAdbConnection();
-                    if (mMainAdbConnection == null) {
-                        mConnectionAttempt++;
-                        Log.e("DeviceMonitor", "Connection attempts: " + mConnectionAttempt);
-                        if (mConnectionAttempt > 10) {
-                            if (!mServer.startAdb()) {
-                                mRestartAttemptCount++;
-                                Log.e("DeviceMonitor",
-                                        "adb restart attempts: " + mRestartAttemptCount);
-                            } else {
-                                Log.i("DeviceMonitor", "adb restarted");
-                                mRestartAttemptCount = 0;
-                            }
-                        }
-                        waitABit();
-                    } else {
-                        Log.d("DeviceMonitor", "Connected to adb for device monitoring");
-                        mConnectionAttempt = 0;
-                    }
+                if (mMainAdbConnection == null && System.nanoTime() - mNextConnectionTime >= 0) {
+                    openDeviceListConnection();
                 }
 
-                if (mMainAdbConnection != null && !mMonitoring) {
-                    mMonitoring = sendDeviceListMonitoringRequest();
+                mSelector.select(getSelectTimeout());
+
+                if (mQuit) {
+                    break;
                 }
 
-                if (mMonitoring) {
-                    // read the length of the incoming message
-                    int length = readLength(mMainAdbConnection, mLengthBuffer);
+                registerConnectedTrackers();
+                restartMonitoring();
+                reopenClients();
 
-                    if (length >= 0) {
-                        // read the incoming message
-                        processIncomingDeviceData(length);
+                Set<SelectionKey> keys = mSelector.selectedKeys();
+                Iterator<SelectionKey> iter = keys.iterator();
+
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
 
-                        // flag the fact that we have build the list at least once.
-                        mInitialDeviceListDone = true;
+                    if (key.isValid() && key.isReadable()) {
+                        Object attachment = key.attachment();
+                        if (attachment == mDeviceListStream) {
+                            processDeviceListData();
+                        } else if (attachment instanceof DeviceTracker) {
+                            processJdwpData((DeviceTracker) attachment);
+                        }
                     }
                 }
-            } catch (AsynchronousCloseException ace) {
-                // this happens because of a call to Quit. We do nothing, and the loop will break.
-            } catch (TimeoutException ioe) {
-                handleExpectionInMonitorLoop(ioe);
-            } catch (IOException ioe) {
-                handleExpectionInMonitorLoop(ioe);
+            } catch (IOException e) {
+                Log.e("DeviceMonitor", "Connection error while monitoring devices: "
+                        + e.getMessage());
             }
         } while (!mQuit);
+
+        closeConnections();
+    }
+
+    /**
+     * Returns how long to wait for data, in milliseconds, before a connection attempt or a
+     * client reopening is due. 0 means no wait limit.
+     */
+    private long getSelectTimeout() {
+        long now = System.nanoTime();
+        long timeout = Long.MAX_VALUE;
+        if (mMainAdbConnection == null) {
+            timeout = mNextConnectionTime - now;
+        }
+        for (ClientReopening reopening : mClientReopenings) {
+            timeout = Math.min(timeout, reopening.mTime - now);
+        }
+        synchronized (mMonitoringRestarts) {
+            for (MonitoringRestart restart : mMonitoringRestarts) {
+                timeout = Math.min(timeout, restart.mTime - now);
+            }
+        }
+
+        if (timeout == Long.MAX_VALUE) {
+            return 0;
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeout));
+    }
+
+    private void closeConnections() {
+        for (SelectionKey key : mSelector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                // we can safely ignore that one.
+            }
+        }
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            // we can safely ignore that one.
+        }
+        mMainAdbConnection = null;
+        mMonitoring = false;
+    }
+
+    /**
+     * Connects to adb and starts tracking the device list. On failure, the next attempt is
+     * scheduled.
+     */
+    private void openDeviceListConnection() {
+        Log.d("DeviceMonitor", "Opening adb connection");
+        SocketChannel channel = openAdbConnection();
+        if (channel == null) {
+            mConnectionAttempt++;
+            Log.e("DeviceMonitor", "Connection attempts: " + mConnectionAttempt);
+            if (mConnectionAttempt > 10) {
+                if (!mServer.startAdb()) {
+                    mRestartAttemptCount++;
+                    Log.e("DeviceMonitor",
+                            "adb restart attempts: " + mRestartAttemptCount);
+                } else {
+                    Log.i("DeviceMonitor", "adb restarted");
+                    mRestartAttemptCount = 0;
+                }
+            }
+            mNextConnectionTime = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(RETRY_DELAY_MS);
+            return;
+        }
+
+        Log.d("DeviceMonitor", "Connected to adb for device monitoring");
+        mConnectionAttempt = 0;
+
+        try {
+            AdbTrackingStream stream = new AdbTrackingStream(channel,
+                    "host:track-devices"); //$NON-NLS-1$
+            channel.configureBlocking(false);
+            stream.start();
+            channel.register(mSelector, SelectionKey.OP_READ, stream);
+            mDeviceListStream = stream;
+            mMainAdbConnection = channel;
+        } catch (IOException e) {
+            Log.e("DeviceMonitor", "Sending Tracking request failed!");
+            try {
+                channel.close();
+            } catch (IOException e2) {
+                // we can safely ignore that one.
+            }
+            mNextConnectionTime = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(RETRY_DELAY_MS);
+        }
+    }
+
+    private void processDeviceListData() {
+        try {
+            List<String> messages = mDeviceListStream.read();
+            mMonitoring = mDeviceListStream.isTracking();
+
+            // each message is the complete list, so only the last one matters.
+            if (!messages.isEmpty()) {
+                processIncomingDeviceData(messages.get(messages.size() - 1));
+
+                // flag the fact that we have build the list at least once.
+                mInitialDeviceListDone = true;
+            }
+        } catch (AdbCommandRejectedException e) {
+            // request was refused by adb!
+            Log.e("DeviceMonitor", "adb refused request: " + e.getMessage());
+            handleExpectionInMonitorLoop(e);
+        } catch (IOException e) {
+            handleExpectionInMonitorLoop(e);
+        }
     }
 
     private void handleExpectionInMonitorLoop(Exception e) {
@@ -217,6 +432,8 @@ final class DeviceMonitor {
                 Log.e("DeviceMonitor", "Adb connection Error:" + e.getMessage());
             }
             mMonitoring = false;
+            mNextConnectionTime = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(RETRY_DELAY_MS);
             if (mMainAdbConnection != null) {
                 try {
                     mMainAdbConnection.close();
@@ -224,34 +441,28 @@ final class DeviceMonitor {
                     // we can safely ignore that one.
                 }
                 mMainAdbConnection = null;
+                mDeviceListStream = null;
 
                 // remove all devices from list
                 // because we are going to call mServer.deviceDisconnected which will acquire this
                 // lock we lock it first, so that the AndroidDebugBridge lock is always locked
                 // first.
                 synchronized (AndroidDebugBridge.getLock()) {
+                    List<DeviceEvent> events = new ArrayList<DeviceEvent>();
                     synchronized (mDevices) {
                         for (int n = mDevices.size() - 1; n >= 0; n--) {
                             Device device = mDevices.get(0);
                             removeDevice(device);
                             mServer.deviceDisconnected(device);
+                            events.add(DeviceEvent.disconnected(device));
                         }
                     }
+                    mServer.devicesChanged(events);
                 }
             }
         }
     }
 
-    /**
-     * Sleeps for a little bit.
-     */
-    private void waitABit() {
-        try {
-            Thread.sleep(1000);
-        } catch (InterruptedException e1) {
-        }
-    }
-
     /**
      * Attempts to connect to the debug bridge server.
      * @return a connect socket if success, null otherwise
@@ -269,41 +480,11 @@ final class DeviceMonitor {
         return adbChannel;
     }
 
-    /**
-     *
-     * @return
-     * @throws IOException
-     */
-    private boolean sendDeviceListMonitoringRequest() throws TimeoutException, IOException {
-        byte[] request = AdbHelper.formAdbRequest("host:track-devices"); //$NON-NLS-1$
-
-        try {
-            AdbHelper.write(mMainAdbConnection, request);
-
-            AdbResponse resp = AdbHelper.readAdbResponse(mMainAdbConnection,
-                    false /* readDiagString */);
-
-            if (!resp.okay) {
-                // request was refused by adb!
-                Log.e("DeviceMonitor", "adb refused request: " + resp.message);
-            }
-
-            return resp.okay;
-        } catch (IOException e) {
-            Log.e("DeviceMonitor", "Sending Tracking request failed!");
-            mMainAdbConnection.close();
-            throw e;
-        }
-    }
-
     /** Processes an incoming device message from the socket */
-    private void processIncomingDeviceData(int length) throws IOException {
+    private void processIncomingDeviceData(String result) {
         ArrayList<Device> list = new ArrayList<Device>();
 
-        if (length > 0) {
-            byte[] buffer = new byte[length];
-            String result = read(mMainAdbConnection, buffer);
-
+        if (!result.isEmpty()) {
             String[] devices = result.split("\n"); //$NON-NLS-1$
 
             for (String d : devices) {
@@ -331,9 +512,9 @@ final class DeviceMonitor {
         // we lock it first, so that the AndroidDebugBridge lock is always locked first.
         synchronized (AndroidDebugBridge.getLock()) {
             // array to store the devices that must be queried for information.
-            // it's important to not do it inside the synchronized loop as this could block
-            // the whole workspace (this lock is acquired during build too).
+            // the queries are run in the background, once the device list is updated.
             ArrayList<Device> devicesToQuery = new ArrayList<Device>();
+            List<DeviceEvent> events = new ArrayList<DeviceEvent>();
             synchronized (mDevices) {
                 // For each device in the current list, we look for a matching the new list.
                 // * if we find it, we update the current object with whatever new information
@@ -358,18 +539,16 @@ final class DeviceMonitor {
 
                             // update the state if needed.
                             if (device.getState() != newDevice.getState()) {
+                                DeviceState previousState = device.getState();
                                 device.setState(newDevice.getState());
                                 device.update(Device.CHANGE_STATE);
+                                events.add(DeviceEvent.stateChanged(device, previousState));
 
                                 // if the device just got ready/online, we need to start
                                 // monitoring it.
                                 if (device.isOnline()) {
                                     if (AndroidDebugBridge.getClientSupport()) {
-                                        if (!startMonitoringDevice(device)) {
-                                            Log.e("DeviceMonitor",
-                                                    "Failed to start monitoring "
-                                                    + device.getSerialNumber());
-                                        }
+                                        startMonitoringDevice(device, 0);
                                     }
 
                                     if (device.getPropertyCount() == 0) {
@@ -389,6 +568,7 @@ final class DeviceMonitor {
                         // to process the next one.
                         removeDevice(device);
                         mServer.deviceDisconnected(device);
+                        events.add(DeviceEvent.disconnected(device));
                     } else {
                         // process the next one
                         d++;
@@ -401,11 +581,12 @@ final class DeviceMonitor {
                     // add them to the list
                     mDevices.add(newDevice);
                     mServer.deviceConnected(newDevice);
+                    events.add(DeviceEvent.connected(newDevice));
 
                     // start monitoring them.
                     if (AndroidDebugBridge.getClientSupport()) {
                         if (newDevice.isOnline()) {
-                            startMonitoringDevice(newDevice);
+                            startMonitoringDevice(newDevice, 0);
                         }
                     }
 
@@ -416,6 +597,8 @@ final class DeviceMonitor {
                 }
             }
 
+            mServer.devicesChanged(events);
+
             // query the new devices for info.
             for (Device d : devicesToQuery) {
                 queryNewDeviceForInfo(d);
@@ -439,353 +622,426 @@ final class DeviceMonitor {
     }
 
     /**
-     * Queries a device for its build info.
+     * Queries a device for its build info and mount points, with a single shell command. The
+     * results are processed in the background.
      * @param device the device to query.
      */
-    private void queryNewDeviceForInfo(Device device) {
-        // TODO: do this in a separate thread.
-        try {
-            queryProperties(device);
-
-            queryNewDeviceForMountingPoint(device, IDevice.MNT_EXTERNAL_STORAGE);
-            queryNewDeviceForMountingPoint(device, IDevice.MNT_DATA);
-            queryNewDeviceForMountingPoint(device, IDevice.MNT_ROOT);
-
-            // now get the emulator Virtual Device name (if applicable).
-            if (device.isEmulator()) {
-                EmulatorConsole console = EmulatorConsole.getConsole(device);
-                if (console != null) {
-                    device.setAvdName(console.getAvdName());
-                    console.close();
+    private void queryNewDeviceForInfo(final Device device) {
+        final List<String> commands = ImmutableList.of(
+                "getprop", //$NON-NLS-1$
+                "echo $" + IDevice.MNT_EXTERNAL_STORAGE, //$NON-NLS-1$
+                "echo $" + IDevice.MNT_DATA, //$NON-NLS-1$
+                "echo $" + IDevice.MNT_ROOT); //$NON-NLS-1$
+        final ListenableFuture<List<String>> future = device.getShellCommandExecutor().executeBatch(
+                commands, DdmPreferences.getTimeOut(), TimeUnit.MILLISECONDS);
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    List<String> outputs = future.get();
+                    processDeviceInfo(device, outputs);
+                } catch (InterruptedException e) {
+                    Log.w("DeviceMonitor", String.format(
+                            "Interrupted getting info for device %s",
+                            device.getSerialNumber()));
+                } catch (ExecutionException e) {
+                    logDeviceInfoFailure(device, e.getCause());
                 }
             }
-        } catch (TimeoutException e) {
+        }, mDeviceInfoExecutor);
+    }
+
+    private void processDeviceInfo(Device device, List<String> outputs) {
+        device.setGetPropOutput(outputs.get(0));
+        setMountingPoint(device, IDevice.MNT_EXTERNAL_STORAGE, outputs.get(1));
+        setMountingPoint(device, IDevice.MNT_DATA, outputs.get(2));
+        setMountingPoint(device, IDevice.MNT_ROOT, outputs.get(3));
+
+        // now get the emulator Virtual Device name (if applicable).
+        if (device.isEmulator()) {
+            EmulatorConsole console = EmulatorConsole.getConsole(device);
+            if (console != null) {
+                device.setAvdName(console.getAvdName());
+                console.close();
+            }
+        }
+
+        synchronized (AndroidDebugBridge.getLock()) {
+            synchronized (mDevices) {
+                if (!mDevices.contains(device)) {
+                    return;
+                }
+            }
+            device.update(Device.CHANGE_BUILD_INFO);
+            mServer.devicesChanged(Collections.singletonList(DeviceEvent.buildInfoChanged(device)));
+        }
+    }
+
+    private static void setMountingPoint(Device device, String name, String output) {
+        for (String line : output.split("\n")) { //$NON-NLS-1$
+            line = line.trim();
+            if (!line.isEmpty()) {
+                // this should be the only one.
+                device.setMountingPoint(name, line);
+            }
+        }
+    }
+
+    private static void logDeviceInfoFailure(Device device, Throwable e) {
+        if (e instanceof TimeoutException) {
             Log.w("DeviceMonitor", String.format("Connection timeout getting info for device %s",
                     device.getSerialNumber()));
-
-        } catch (AdbCommandRejectedException e) {
+        } else if (e instanceof AdbCommandRejectedException) {
             // This should never happen as we only do this once the device is online.
             Log.w("DeviceMonitor", String.format(
                     "Adb rejected command to get  device %1$s info: %2$s",
                     device.getSerialNumber(), e.getMessage()));
-
-        } catch (ShellCommandUnresponsiveException e) {
+        } else if (e instanceof ShellCommandUnresponsiveException) {
             Log.w("DeviceMonitor", String.format(
                     "Adb shell command took too long returning info for device %s",
                     device.getSerialNumber()));
-
-        } catch (IOException e) {
+        } else if (e instanceof IOException) {
             Log.w("DeviceMonitor", String.format(
                     "IO Error getting info for device %s",
                     device.getSerialNumber()));
-        } catch (InterruptedException e) {
-            Log.w("DeviceMonitor", String.format(
-                    "Interrupted getting info for device %s",
-                    device.getSerialNumber()));
-        } catch (ExecutionException e) {
+        } else {
             Log.w("DeviceMonitor", String.format(
-                    "ExecutionException getting info for device %s",
-                    device.getSerialNumber()));
+                    "%1$s getting info for device %2$s",
+                    e.getClass().getSimpleName(), device.getSerialNumber()));
         }
     }
 
-    private void queryProperties(Device device) throws InterruptedException, ExecutionException {
-        // first attempt to populate the list of properties by querying arbitrary prop
-        // TODO: consider removing this call and just let properties be loaded on demand
-        Future<String> prop = device.getSystemProperty("ro.build.id");
-        prop.get();
-    }
-
-    private void queryNewDeviceForMountingPoint(final Device device, final String name)
-            throws TimeoutException, AdbCommandRejectedException, ShellCommandUnresponsiveException,
-            IOException {
-        device.executeShellCommand("echo $" + name, new MultiLineReceiver() { //$NON-NLS-1$
-            @Override
-            public boolean isCancelled() {
-                return false;
-            }
-
+    /**
+     * Starts a monitoring service for a device. The connection to adb and the tracking requests
+     * are done in the background, and the tracker is then registered with the selector by the
+     * monitor thread. The responses are read with the tracked data. If the connection fails, a
+     * restart is scheduled.
+     * @param device the device to monitor.
+     * @param failureCount the number of consecutive failures of the monitoring of the device.
+     */
+    private void startMonitoringDevice(final Device device, final int failureCount) {
+        executeConnection(new Runnable() {
             @Override
-            public void processNewLines(String[] lines) {
-                for (String line : lines) {
-                    if (!line.isEmpty()) {
-                        // this should be the only one.
-                        device.setMountingPoint(name, line);
+            public void run() {
+                DeviceTracker tracker = connectDeviceTracker(device, failureCount);
+                if (tracker != null) {
+                    synchronized (mConnectedTrackers) {
+                        mConnectedTrackers.add(tracker);
                     }
+                } else {
+                    Log.e("DeviceMonitor",
+                            "Failed to start monitoring " + device.getSerialNumber());
+                    scheduleMonitoringRestart(device, failureCount + 1);
                 }
+                mSelector.wakeup();
             }
         });
     }
 
     /**
-     * Starts a monitoring service for a device.
-     * @param device the device to monitor.
-     * @return true if success.
+     * Connects to adb and sends the requests to track the processes of a device.
+     * @return the tracker of the device, or null if the connection failed.
      */
-    private boolean startMonitoringDevice(Device device) {
+    private DeviceTracker connectDeviceTracker(Device device, int failureCount) {
         SocketChannel socketChannel = openAdbConnection();
 
         if (socketChannel != null) {
             try {
-                boolean result = sendDeviceMonitoringRequest(socketChannel, device);
-                if (result) {
-
-                    if (mSelector == null) {
-                        startDeviceMonitorThread();
-                    }
-
-                    device.setClientMonitoringSocket(socketChannel);
-
-                    synchronized (mDevices) {
-                        // always wakeup before doing the register. The synchronized block
-                        // ensure that the selector won't select() before the end of this block.
-                        // @see deviceClientMonitorLoop
-                        mSelector.wakeup();
-
-                        socketChannel.configureBlocking(false);
-                        socketChannel.register(mSelector, SelectionKey.OP_READ, device);
-                    }
-
-                    return true;
-                }
-            } catch (TimeoutException e) {
-                try {
-                    // attempt to close the socket if needed.
-                    socketChannel.close();
-                } catch (IOException e1) {
-                    // we can ignore that one. It may already have been closed.
-                }
-                Log.d("DeviceMonitor",
-                        "Connection Failure when starting to monitor device '"
-                        + device + "' : timeout");
-            } catch (AdbCommandRejectedException e) {
-                try {
-                    // attempt to close the socket if needed.
-                    socketChannel.close();
-                } catch (IOException e1) {
-                    // we can ignore that one. It may already have been closed.
-                }
-                Log.d("DeviceMonitor",
-                        "Adb refused to start monitoring device '"
-                        + device + "' : " + e.getMessage());
+                AdbTrackingStream stream = new AdbTrackingStream(socketChannel,
+                        "host:transport:" + device.getSerialNumber(), //$NON-NLS-1$
+                        "track-jdwp"); //$NON-NLS-1$
+                stream.start();
+                socketChannel.configureBlocking(false);
+                return new DeviceTracker(device, socketChannel, stream, failureCount);
             } catch (IOException e) {
-                try {
-                    // attempt to close the socket if needed.
-                    socketChannel.close();
-                } catch (IOException e1) {
-                    // we can ignore that one. It may already have been closed.
-                }
+                closeQuietly(socketChannel);
                 Log.d("DeviceMonitor",
                         "Connection Failure when starting to monitor device '"
                         + device + "' : " + e.getMessage());
             }
         }
 
-        return false;
+        return null;
     }
 
-    private void startDeviceMonitorThread() throws IOException {
-        mSelector = Selector.open();
-        new Thread("Device Client Monitor") { //$NON-NLS-1$
-            @Override
-            public void run() {
-                deviceClientMonitorLoop();
+    /**
+     * Registers the trackers connected in the background with the selector, unless their device
+     * was removed in the meantime.
+     */
+    private void registerConnectedTrackers() {
+        List<DeviceTracker> trackers;
+        synchronized (mConnectedTrackers) {
+            if (mConnectedTrackers.isEmpty()) {
+                return;
             }
-        }.start();
-    }
-
-    private void deviceClientMonitorLoop() {
-        do {
-            try {
-                // This synchronized block stops us from doing the select() if a new
-                // Device is being added.
-                // @see startMonitoringDevice()
-                synchronized (mDevices) {
-                }
-
-                int count = mSelector.select();
-
-                if (mQuit) {
-                    return;
-                }
-
-                synchronized (mClientsToReopen) {
-                    if (!mClientsToReopen.isEmpty()) {
-                        Set<Client> clients = mClientsToReopen.keySet();
-                        MonitorThread monitorThread = MonitorThread.getInstance();
-
-                        for (Client client : clients) {
-                            Device device = client.getDeviceImpl();
-                            int pid = client.getClientData().getPid();
-
-                            monitorThread.dropClient(client, false /* notify */);
-
-                            // This is kinda bad, but if we don't wait a bit, the client
-                            // will never answer the second handshake!
-                            waitABit();
-
-                            int port = mClientsToReopen.get(client);
-
-                            if (port == IDebugPortProvider.NO_STATIC_PORT) {
-                                port = getNextDebuggerPort();
-                            }
-                            Log.d("DeviceMonitor", "Reopening " + client);
-                            openClient(device, pid, port, monitorThread);
-                            device.update(Device.CHANGE_CLIENT_LIST);
-                        }
+            trackers = new ArrayList<DeviceTracker>(mConnectedTrackers);
+            mConnectedTrackers.clear();
+        }
 
-                        mClientsToReopen.clear();
+        for (DeviceTracker tracker : trackers) {
+            synchronized (mDevices) {
+                if (mDevices.contains(tracker.mDevice)) {
+                    try {
+                        tracker.mChannel.register(mSelector, SelectionKey.OP_READ, tracker);
+                        tracker.mDevice.setClientMonitoringSocket(tracker.mChannel);
+                        continue;
+                    } catch (IOException e) {
+                        Log.d("DeviceMonitor", "Failed to register the monitoring of '"
+                                + tracker.mDevice + "' : " + e.getMessage());
                     }
                 }
+            }
+            closeQuietly(tracker.mChannel);
+        }
+    }
 
-                if (count == 0) {
-                    continue;
-                }
-
-                Set<SelectionKey> keys = mSelector.selectedKeys();
-                Iterator<SelectionKey> iter = keys.iterator();
+    /**
+     * Schedules a restart of the monitoring of a device, after a delay doubling with each
+     * consecutive failure.
+     */
+    private void scheduleMonitoringRestart(Device device, int failureCount) {
+        long delay = RETRY_DELAY_MS << Math.min(failureCount - 1, MAX_RESTART_BACKOFF_SHIFT);
+        synchronized (mMonitoringRestarts) {
+            mMonitoringRestarts.add(new MonitoringRestart(device, failureCount,
+                    System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay)));
+        }
+    }
 
-                while (iter.hasNext()) {
-                    SelectionKey key = iter.next();
+    /**
+     * Restarts the monitoring of the devices whose delay has elapsed, if they are still online.
+     */
+    private void restartMonitoring() {
+        long now = System.nanoTime();
+        List<MonitoringRestart> restarts = new ArrayList<MonitoringRestart>();
+        synchronized (mMonitoringRestarts) {
+            for (Iterator<MonitoringRestart> iter = mMonitoringRestarts.iterator();
+                    iter.hasNext(); ) {
+                MonitoringRestart restart = iter.next();
+                if (now - restart.mTime >= 0) {
                     iter.remove();
+                    restarts.add(restart);
+                }
+            }
+        }
 
-                    if (key.isValid() && key.isReadable()) {
-                        Object attachment = key.attachment();
-
-                        if (attachment instanceof Device) {
-                            Device device = (Device)attachment;
+        for (MonitoringRestart restart : restarts) {
+            synchronized (mDevices) {
+                if (mDevices.contains(restart.mDevice) && restart.mDevice.isOnline()) {
+                    Log.d("DeviceMonitor",
+                            "Restarting monitoring service for " + restart.mDevice);
+                    startMonitoringDevice(restart.mDevice, restart.mFailureCount);
+                }
+            }
+        }
+    }
 
-                            SocketChannel socket = device.getClientMonitoringSocket();
+    /**
+     * Runs a task opening connections in the background, unless the monitor is stopped.
+     */
+    private void executeConnection(Runnable task) {
+        try {
+            mConnectionExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // the monitor was stopped.
+        }
+    }
 
-                            if (socket != null) {
-                                try {
-                                    int length = readLength(socket, mLengthBuffer2);
+    /**
+     * Drops the clients to reopen, and reopens the ones dropped long enough ago.
+     */
+    private void reopenClients() {
+        long now = System.nanoTime();
+        synchronized (mClientsToReopen) {
+            if (!mClientsToReopen.isEmpty()) {
+                MonitorThread monitorThread = MonitorThread.getInstance();
 
-                                    processIncomingJdwpData(device, socket, length);
-                                } catch (IOException ioe) {
-                                    Log.d("DeviceMonitor",
-                                            "Error reading jdwp list: " + ioe.getMessage());
-                                    socket.close();
+                for (Map.Entry<Client, Integer> entry : mClientsToReopen.entrySet()) {
+                    monitorThread.dropClient(entry.getKey(), false /* notify */);
 
-                                    // restart the monitoring of that device
-                                    synchronized (mDevices) {
-                                        if (mDevices.contains(device)) {
-                                            Log.d("DeviceMonitor",
-                                                    "Restarting monitoring service for " + device);
-                                            startMonitoringDevice(device);
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                    }
+                    // if we don't wait a bit, the client will never answer the second
+                    // handshake! The other devices are still monitored in the meantime.
+                    mClientReopenings.add(new ClientReopening(entry.getKey(), entry.getValue(),
+                            now + TimeUnit.MILLISECONDS.toNanos(RETRY_DELAY_MS)));
                 }
-            } catch (IOException e) {
-                Log.e("DeviceMonitor", "Connection error while monitoring clients.");
+
+                mClientsToReopen.clear();
             }
+        }
 
-        } while (!mQuit);
+        for (Iterator<ClientReopening> iter = mClientReopenings.iterator(); iter.hasNext(); ) {
+            ClientReopening reopening = iter.next();
+            if (now - reopening.mTime < 0) {
+                continue;
+            }
+            iter.remove();
+
+            Client client = reopening.mClient;
+            Device device = client.getDeviceImpl();
+            int pid = client.getClientData().getPid();
+            int port = reopening.mPort;
+            if (port == IDebugPortProvider.NO_STATIC_PORT) {
+                port = getNextDebuggerPort();
+            }
+            Log.d("DeviceMonitor", "Reopening " + client);
+            openClientAsync(getTracker(device), device, pid, port, MonitorThread.getInstance());
+        }
     }
 
-    private boolean sendDeviceMonitoringRequest(SocketChannel socket, Device device)
-            throws TimeoutException, AdbCommandRejectedException, IOException {
-
+    private void processJdwpData(DeviceTracker tracker) {
+        Device device = tracker.mDevice;
+        SocketChannel socket = tracker.mChannel;
         try {
-            AdbHelper.setDevice(socket, device);
-
-            byte[] request = AdbHelper.formAdbRequest("track-jdwp"); //$NON-NLS-1$
+            // each message is the complete list of pids, so only the last one matters.
+            List<String> messages = tracker.mStream.read();
+            if (!messages.isEmpty()) {
+                tracker.mFailureCount = 0;
+                processIncomingJdwpData(tracker, messages.get(messages.size() - 1));
+            }
+        } catch (AdbCommandRejectedException e) {
+            Log.d("DeviceMonitor",
+                    "Adb refused to start monitoring device '"
+                    + device + "' : " + e.getMessage());
+            closeQuietly(socket);
+        } catch (IOException ioe) {
+            Log.d("DeviceMonitor",
+                    "Error reading jdwp list: " + ioe.getMessage());
+            closeQuietly(socket);
 
-            AdbHelper.write(socket, request);
+            // restart the monitoring of that device, after a delay so that a device failing
+            // repeatedly doesn't keep the monitor thread busy.
+            synchronized (mDevices) {
+                if (mDevices.contains(device)) {
+                    scheduleMonitoringRestart(device, tracker.mFailureCount + 1);
+                }
+            }
+        }
+    }
 
-            AdbResponse resp = AdbHelper.readAdbResponse(socket, false /* readDiagString */);
+    /**
+     * Returns the tracker of the processes of a device, or null if it isn't monitored.
+     */
+    private DeviceTracker getTracker(Device device) {
+        SocketChannel socket = device.getClientMonitoringSocket();
+        SelectionKey key = socket != null ? socket.keyFor(mSelector) : null;
+        return key != null ? (DeviceTracker) key.attachment() : null;
+    }
 
-            if (!resp.okay) {
-                // request was refused by adb!
-                Log.e("DeviceMonitor", "adb refused request: " + resp.message);
+    private static void closeQuietly(SocketChannel socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // we can ignore that one. It may already have been closed.
             }
-
-            return resp.okay;
-        } catch (TimeoutException e) {
-            Log.e("DeviceMonitor", "Sending jdwp tracking request timed out!");
-            throw e;
-        } catch (IOException e) {
-            Log.e("DeviceMonitor", "Sending jdwp tracking request failed!");
-            throw e;
         }
     }
 
-    private void processIncomingJdwpData(Device device, SocketChannel monitorSocket, int length)
-            throws IOException {
-
-        // This methods reads @length bytes from the @monitorSocket channel.
-        // These bytes correspond to the pids of the current set of processes on the device.
+    private void processIncomingJdwpData(DeviceTracker tracker, String result) {
+        // This methods parses the pids of the current set of processes on the device.
         // It takes this set of pids and compares them with the existing set of clients
         // for the device. Clients that correspond to pids that are not alive anymore are
         // dropped, and new clients are created for pids that don't have a corresponding Client.
+        Device device = tracker.mDevice;
 
-        if (length >= 0) {
-            // array for the current pids.
-            Set<Integer> newPids = new HashSet<Integer>();
+        // array for the current pids.
+        Set<Integer> newPids = new HashSet<Integer>();
 
-            // get the string data if there are any
-            if (length > 0) {
-                byte[] buffer = new byte[length];
-                String result = read(monitorSocket, buffer);
+        // split each line in its own list and create an array of integer pid
+        String[] pids = result.split("\n"); //$NON-NLS-1$
 
-                // split each line in its own list and create an array of integer pid
-                String[] pids = result.split("\n"); //$NON-NLS-1$
-
-                for (String pid : pids) {
-                    try {
-                        newPids.add(Integer.valueOf(pid));
-                    } catch (NumberFormatException nfe) {
-                        // looks like this pid is not really a number. Lets ignore it.
-                        continue;
-                    }
-                }
+        for (String pid : pids) {
+            try {
+                newPids.add(Integer.valueOf(pid));
+            } catch (NumberFormatException nfe) {
+                // looks like this pid is not really a number. Lets ignore it.
+                continue;
             }
+        }
 
-            MonitorThread monitorThread = MonitorThread.getInstance();
+        MonitorThread monitorThread = MonitorThread.getInstance();
 
-            List<Client> clients = device.getClientList();
-            Map<Integer, Client> existingClients = new HashMap<Integer, Client>();
+        List<Client> clients = device.getClientList();
+        Map<Integer, Client> existingClients = new HashMap<Integer, Client>();
 
-            synchronized (clients) {
-                for (Client c : clients) {
-                    existingClients.put(
-                            c.getClientData().getPid(),
-                            c);
-                }
+        synchronized (clients) {
+            for (Client c : clients) {
+                existingClients.put(
+                        c.getClientData().getPid(),
+                        c);
             }
+        }
 
-            Set<Client> clientsToRemove = new HashSet<Client>();
-            for (Integer pid : existingClients.keySet()) {
-                if (!newPids.contains(pid)) {
-                    clientsToRemove.add(existingClients.get(pid));
-                }
+        Set<Client> clientsToRemove = new HashSet<Client>();
+        for (Integer pid : existingClients.keySet()) {
+            if (!newPids.contains(pid)) {
+                clientsToRemove.add(existingClients.get(pid));
             }
+        }
+
+        Set<Integer> pidsToAdd = new HashSet<Integer>(newPids);
+        pidsToAdd.removeAll(existingClients.keySet());
+        synchronized (tracker.mOpeningPids) {
+            pidsToAdd.removeAll(tracker.mOpeningPids);
+        }
 
-            Set<Integer> pidsToAdd = new HashSet<Integer>(newPids);
-            pidsToAdd.removeAll(existingClients.keySet());
+        monitorThread.dropClients(clientsToRemove, false);
 
-            monitorThread.dropClients(clientsToRemove, false);
+        // at this point whatever pid is left in the list needs to be converted into Clients.
+        // The clients are opened in the background, and the device is updated as each of them
+        // is added.
+        for (int newPid : pidsToAdd) {
+            openClientAsync(tracker, device, newPid, getNextDebuggerPort(), monitorThread);
+        }
 
-            // at this point whatever pid is left in the list needs to be converted into Clients.
-            for (int newPid : pidsToAdd) {
-                openClient(device, newPid, getNextDebuggerPort(), monitorThread);
-            }
+        if (!clientsToRemove.isEmpty()) {
+            mServer.deviceChanged(device, Device.CHANGE_CLIENT_LIST);
+        }
 
-            if (!pidsToAdd.isEmpty() || !clientsToRemove.isEmpty()) {
-                mServer.deviceChanged(device, Device.CHANGE_CLIENT_LIST);
-            }
+        // the event is relative to the previous report, as clients may also be dropped when
+        // their connection closes.
+        Set<Integer> startedPids = new HashSet<Integer>(newPids);
+        startedPids.removeAll(tracker.mPids);
+        Set<Integer> endedPids = new HashSet<Integer>(tracker.mPids);
+        endedPids.removeAll(newPids);
+        tracker.mPids = newPids;
+        if (!startedPids.isEmpty() || !endedPids.isEmpty()) {
+            mServer.devicesChanged(Collections.singletonList(
+                    DeviceEvent.clientListChanged(device, startedPids, endedPids)));
         }
     }
 
+    /**
+     * Opens and creates a new client in the background, as connecting to it blocks until adb
+     * answers, and updates the device once the client is added.
+     * @param tracker the tracker of the device, if it is monitored, so that the pid isn't opened
+     *                again while the client is being opened.
+     */
+    private void openClientAsync(final DeviceTracker tracker, final Device device, final int pid,
+            final int port, final MonitorThread monitorThread) {
+        if (tracker != null) {
+            tracker.mOpeningPids.add(pid);
+        }
+        executeConnection(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (openClient(device, pid, port, monitorThread)) {
+                        device.update(Device.CHANGE_CLIENT_LIST);
+                    }
+                } finally {
+                    if (tracker != null) {
+                        tracker.mOpeningPids.remove(pid);
+                    }
+                }
+            }
+        });
+    }
+
     /**
      * Opens and creates a new client.
-     * @return
+     * @return true if the client was added.
      */
-    private void openClient(Device device, int pid, int port, MonitorThread monitorThread) {
+    private boolean openClient(Device device, int pid, int port, MonitorThread monitorThread) {
 
         SocketChannel clientSocket;
         try {
@@ -796,23 +1052,23 @@ final class DeviceMonitor {
             clientSocket.configureBlocking(false);
         } catch (UnknownHostException uhe) {
             Log.d("DeviceMonitor", "Unknown Jdwp pid: " + pid);
-            return;
+            return false;
         } catch (TimeoutException e) {
             Log.w("DeviceMonitor",
                     "Failed to connect to client '" + pid + "': timeout");
-            return;
+            return false;
         } catch (AdbCommandRejectedException e) {
             Log.w("DeviceMonitor",
                     "Adb rejected connection to client '" + pid + "': " + e.getMessage());
-            return;
+            return false;
 
         } catch (IOException ioe) {
             Log.w("DeviceMonitor",
                     "Failed to connect to client '" + pid + "': " + ioe.getMessage());
-            return ;
+            return false;
         }
 
-        createClient(device, pid, clientSocket, port, monitorThread);
+        return createClient(device, pid, clientSocket, port, monitorThread);
     }
 
     /**
@@ -822,8 +1078,9 @@ final class DeviceMonitor {
      * @param socket
      * @param debuggerPort the debugger port.
      * @param monitorThread the {@link MonitorThread} object.
+     * @return true if the client was added.
      */
-    private void createClient(Device device, int pid, SocketChannel socket, int debuggerPort,
+    private boolean createClient(Device device, int pid, SocketChannel socket, int debuggerPort,
             MonitorThread monitorThread) {
 
         /*
@@ -858,9 +1115,9 @@ final class DeviceMonitor {
         if (client.isValid()) {
             device.addClient(client);
             monitorThread.addClient(client);
-        } else {
-            client = null;
+            return true;
         }
+        return false;
     }
 
     private int getNextDebuggerPort() {
@@ -904,54 +1161,4 @@ final class DeviceMonitor {
             }
         }
     }
-
-    /**
-     * Reads the length of the next message from a socket.
-     * @param socket The {@link SocketChannel} to read from.
-     * @return the length, or 0 (zero) if no data is available from the socket.
-     * @throws IOException if the connection failed.
-     */
-    private int readLength(SocketChannel socket, byte[] buffer) throws IOException {
-        String msg = read(socket, buffer);
-
-        if (msg != null) {
-            try {
-                return Integer.parseInt(msg, 16);
-            } catch (NumberFormatException nfe) {
-                // we'll throw an exception below.
-            }
-       }
-
-        // we receive something we can't read. It's better to reset the connection at this point.
-        throw new IOException("Unable to read length");
-    }
-
-    /**
-     * Fills a buffer from a socket.
-     * @param socket
-     * @param buffer
-     * @return the content of the buffer as a string, or null if it failed to convert the buffer.
-     * @throws IOException
-     */
-    private String read(SocketChannel socket, byte[] buffer) throws IOException {
-        ByteBuffer buf = ByteBuffer.wrap(buffer, 0, buffer.length);
-
-        while (buf.position() != buf.limit()) {
-            int count;
-
-            count = socket.read(buf);
-            if (count < 0) {
-                throw new IOException("EOF");
-            }
-        }
-
-        try {
-            return new String(buffer, 0, buf.position(), AdbHelper.DEFAULT_ENCODING);
-        } catch (UnsupportedEncodingException e) {
-            // we'll return null below.
-        }
-
-        return null;
-    }
-
 }
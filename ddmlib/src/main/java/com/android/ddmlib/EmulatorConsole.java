@@ -25,6 +25,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.security.InvalidParameterException;
 import java.util.Formatter;
@@ -51,8 +52,6 @@ public final class EmulatorConsole {
 
     private static final String DEFAULT_ENCODING = "ISO-8859-1"; //$NON-NLS-1$
 
-    private static final int WAIT_TIME = 5; // spin-wait sleep, in ms
-
     private static final int STD_TIMEOUT = 5000; // standard delay, in ms
 
     private static final String HOST = "127.0.0.1";  //$NON-NLS-1$
@@ -649,7 +648,6 @@ public final class EmulatorConsole {
     private String[] readLines() {
         try {
             ByteBuffer buf = ByteBuffer.wrap(mBuffer, 0, mBuffer.length);
-            int numWaits = 0;
             boolean stop = false;
 
             while (buf.position() != buf.limit() && !stop) {
@@ -659,17 +657,12 @@ public final class EmulatorConsole {
                 if (count < 0) {
                     return null;
                 } else if (count == 0) {
-                    if (numWaits * WAIT_TIME > STD_TIMEOUT) {
-                        return null;
-                    }
-                    // non-blocking spin
                     try {
-                        Thread.sleep(WAIT_TIME);
-                    } catch (InterruptedException ie) {
+                        AdbSocketSelector.getInstance().awaitReady(mSocketChannel,
+                                SelectionKey.OP_READ, STD_TIMEOUT);
+                    } catch (TimeoutException e) {
+                        return null;
                     }
-                    numWaits++;
-                } else {
-                    numWaits = 0;
                 }
 
                 // check the last few char aren't OK. For a valid message to test
@@ -248,11 +248,14 @@ final class HandleNativeHeap extends ChunkHandler {
         }
 
         int iterations = allocSize / allocInfoSize;
+        NativeHeapSnapshot snapshot = new NativeHeapSnapshot(
+                clientData.getMappedNativeLibraries(), iterations);
+        long[] addresses = new long[backtraceSize];
         for (int i = 0 ; i < iterations ; i++) {
-            NativeAllocationInfo info = new NativeAllocationInfo(
-                    buffer.getSizeT() /* size */,
-                    buffer.getSizeT() /* allocations */);
+            int size = buffer.getSizeT();
+            int allocations = buffer.getSizeT();
 
+            int depth = 0;
             for (int j = 0 ; j < backtraceSize ; j++) {
                 long addr = buffer.getPtr();
                 if (addr == 0x0) {
@@ -260,10 +263,11 @@ final class HandleNativeHeap extends ChunkHandler {
                     continue;
                 }
 
-                info.addStackCallAddress(addr);
+                addresses[depth++] = addr;
             }
-            clientData.addNativeAllocation(info);
+            snapshot.add(size, allocations, addresses, depth);
         }
+        clientData.setNativeHeapSnapshot(snapshot);
     }
 
     private void handleNHSG(Client client, ByteBuffer data) {
@@ -159,6 +159,14 @@ public final class Log {
 
     private Log() {}
 
+    /**
+     * Returns whether messages of the given level are output, so that callers can skip building
+     * messages which would be discarded.
+     */
+    public static boolean isLoggable(LogLevel logLevel) {
+        return logLevel.getPriority() >= sLevel.getPriority();
+    }
+
     /**
      * Outputs a {@link LogLevel#VERBOSE} level message.
      * @param tag The tag associated with the message.
@@ -324,7 +332,7 @@ public final class Log {
 
     /* currently prints to stdout; could write to a log window */
     private static void println(LogLevel logLevel, String tag, String message) {
-        if (logLevel.getPriority() >= sLevel.getPriority()) {
+        if (isLoggable(logLevel)) {
             if (sLogOutput != null) {
                 sLogOutput.printLog(logLevel, tag, message);
             } else {
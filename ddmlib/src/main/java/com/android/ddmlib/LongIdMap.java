@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import java.util.Arrays;
+
+/**
+ * Assigns consecutive ids, starting at 0, to distinct long keys.
+ * <p/>The keys are kept in an array indexed by id, and looked up through an open addressing
+ * table of ids, so that no object is allocated per key.
+ */
+final class LongIdMap {
+    private static final int NO_ID = -1;
+
+    /** The keys, by id. */
+    private long[] mKeys;
+    private int mSize;
+    /** The ids of the keys, by hash of the key. Its length is a power of 2. */
+    private int[] mTable;
+
+    LongIdMap() {
+        this(16);
+    }
+
+    LongIdMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        mKeys = new long[Math.max(expectedSize, 16)];
+        mTable = new int[capacity];
+        Arrays.fill(mTable, NO_ID);
+    }
+
+    /**
+     * Returns the id of a key, assigning it the next id if it is new.
+     */
+    int add(long key) {
+        int mask = mTable.length - 1;
+        int slot = hash(key) & mask;
+        int id;
+        while ((id = mTable[slot]) != NO_ID) {
+            if (mKeys[id] == key) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        id = mSize++;
+        if (id == mKeys.length) {
+            mKeys = Arrays.copyOf(mKeys, id * 2);
+        }
+        mKeys[id] = key;
+        mTable[slot] = id;
+        if (mSize * 2 > mTable.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    /**
+     * Returns the id of a key, or -1 if it was never added.
+     */
+    int get(long key) {
+        int mask = mTable.length - 1;
+        int slot = hash(key) & mask;
+        int id;
+        while ((id = mTable[slot]) != NO_ID) {
+            if (mKeys[id] == key) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NO_ID;
+    }
+
+    long getKey(int id) {
+        if (id < 0 || id >= mSize) {
+            throw new IndexOutOfBoundsException("Unknown id: " + id);
+        }
+        return mKeys[id];
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    private void rehash() {
+        int[] table = new int[mTable.length * 2];
+        Arrays.fill(table, NO_ID);
+        int mask = table.length - 1;
+        for (int id = 0; id < mSize; id++) {
+            int slot = hash(mKeys[id]) & mask;
+            while (table[slot] != NO_ID) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id;
+        }
+        mTable = table;
+    }
+
+    /**
+     * Mixes all the bits of a key into the low bits used for the slots (the finalizer of
+     * MurmurHash3), as keys such as addresses differ mostly in their middle bits.
+     */
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
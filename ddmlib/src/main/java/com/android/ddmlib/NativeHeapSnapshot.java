@@ -0,0 +1,431 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The native allocations of a client, stored compactly.
+ * <p/>Unlike a list of {@link NativeAllocationInfo}, the allocations are kept in primitive
+ * arrays, and their stack traces are deduplicated into a {@link StackTrie} of frames, each
+ * distinct address being a frame. The addresses are mapped to the {@link NativeLibraryMapInfo}
+ * containing them once per frame, through an index of the libraries sorted by address.
+ * <p/>The usage of the heap by library and by call site is updated as the allocations are
+ * added, rather than computed from all of them when requested. The call site of an allocation
+ * is its innermost frame that is not in the allocator libraries, as for
+ * {@link NativeAllocationInfo#getRelevantStackCallInfo()}, and the library of an allocation is
+ * the library of its call site.
+ * @see ClientData#getNativeHeapSnapshot()
+ */
+public final class NativeHeapSnapshot {
+
+    /* constants for flag bits, as in NativeAllocationInfo */
+    private static final int FLAG_ZYGOTE_CHILD  = (1<<31);
+    private static final int FLAG_MASK          = (FLAG_ZYGOTE_CHILD);
+
+    /** Library index of the addresses outside of the mapped libraries. */
+    private static final int NO_LIBRARY = -1;
+    /** Frame id of the call site of the stack traces without a relevant frame. */
+    private static final int NO_FRAME = -1;
+
+    /*
+     * The index of the libraries: the libraries sorted by start address, and their ranges.
+     */
+    @NonNull
+    private final NativeLibraryMapInfo[] mLibraries;
+    @NonNull
+    private final long[] mLibraryStarts;
+    @NonNull
+    private final long[] mLibraryEnds;
+    @NonNull
+    private final boolean[] mRelevantLibraries;
+
+    /*
+     * The frames: their addresses by id, and the library of each address, by frame id.
+     */
+    @NonNull
+    private final LongIdMap mFrames = new LongIdMap();
+    @NonNull
+    private int[] mFrameLibraries;
+
+    /*
+     * The stack traces, and for each node, the innermost relevant frame of the stack trace
+     * ending with it, or NO_FRAME.
+     */
+    @NonNull
+    private final StackTrie mStacks = new StackTrie();
+    @NonNull
+    private int[] mNodeCallSites;
+
+    /*
+     * The allocations. The sizes include the flags.
+     */
+    private int mEntryCount;
+    @NonNull
+    private int[] mSizes;
+    @NonNull
+    private int[] mAllocationCounts;
+    @NonNull
+    private int[] mStackIds;
+
+    /*
+     * The usage, by library index (the last index for the unmapped addresses) and by frame id of
+     * the call site.
+     */
+    private long mTotalSize;
+    @NonNull
+    private final long[] mLibrarySizes;
+    @NonNull
+    private final int[] mLibraryAllocationCounts;
+    @NonNull
+    private long[] mCallSiteSizes;
+    @NonNull
+    private int[] mCallSiteAllocationCounts;
+
+    /**
+     * The memory used by a group of allocations.
+     */
+    public static final class Usage {
+        @Nullable
+        private final NativeLibraryMapInfo mLibrary;
+        private final long mAddress;
+        private final long mTotalSize;
+        private final int mAllocationCount;
+
+        private Usage(@Nullable NativeLibraryMapInfo library, long address, long totalSize,
+                int allocationCount) {
+            mLibrary = library;
+            mAddress = address;
+            mTotalSize = totalSize;
+            mAllocationCount = allocationCount;
+        }
+
+        /**
+         * Returns the library of the allocations, or null for the addresses outside of the
+         * mapped libraries.
+         */
+        @Nullable
+        public NativeLibraryMapInfo getLibrary() {
+            return mLibrary;
+        }
+
+        /**
+         * Returns the address of the call site of the allocations, or 0 for the usage by
+         * library.
+         */
+        public long getAddress() {
+            return mAddress;
+        }
+
+        /**
+         * Returns the total size of the allocations, in bytes.
+         */
+        public long getTotalSize() {
+            return mTotalSize;
+        }
+
+        /**
+         * Returns the number of allocations.
+         */
+        public int getAllocationCount() {
+            return mAllocationCount;
+        }
+    }
+
+    private static final Comparator<Usage> BY_SIZE = new Comparator<Usage>() {
+        @Override
+        public int compare(Usage u1, Usage u2) {
+            return u1.mTotalSize < u2.mTotalSize ? 1 : (u1.mTotalSize > u2.mTotalSize ? -1 : 0);
+        }
+    };
+
+    /**
+     * Creates an empty snapshot.
+     * @param libraries the libraries mapped in the memory of the client.
+     * @param expectedEntryCount the expected number of entries, to size the arrays.
+     */
+    NativeHeapSnapshot(@NonNull List<NativeLibraryMapInfo> libraries, int expectedEntryCount) {
+        mLibraries = libraries.toArray(new NativeLibraryMapInfo[libraries.size()]);
+        Arrays.sort(mLibraries, new Comparator<NativeLibraryMapInfo>() {
+            @Override
+            public int compare(NativeLibraryMapInfo lib1, NativeLibraryMapInfo lib2) {
+                long start1 = lib1.getStartAddress();
+                long start2 = lib2.getStartAddress();
+                return start1 < start2 ? -1 : (start1 > start2 ? 1 : 0);
+            }
+        });
+        int libraryCount = mLibraries.length;
+        mLibraryStarts = new long[libraryCount];
+        mLibraryEnds = new long[libraryCount];
+        mRelevantLibraries = new boolean[libraryCount];
+        for (int i = 0; i < libraryCount; i++) {
+            mLibraryStarts[i] = mLibraries[i].getStartAddress();
+            mLibraryEnds[i] = mLibraries[i].getEndAddress();
+            mRelevantLibraries[i] =
+                    NativeAllocationInfo.isRelevantLibrary(mLibraries[i].getLibraryName());
+        }
+        mLibrarySizes = new long[libraryCount + 1];
+        mLibraryAllocationCounts = new int[libraryCount + 1];
+
+        int capacity = Math.max(expectedEntryCount, 16);
+        mSizes = new int[capacity];
+        mAllocationCounts = new int[capacity];
+        mStackIds = new int[capacity];
+
+        mFrameLibraries = new int[16];
+        mCallSiteSizes = new long[16];
+        mCallSiteAllocationCounts = new int[16];
+        mNodeCallSites = new int[16];
+    }
+
+    /**
+     * Adds an entry of the native heap.
+     * @param size the size of the allocations, with the flags.
+     * @param allocationCount the number of allocations.
+     * @param addresses the stack trace of the allocations, innermost frame first.
+     * @param depth the number of addresses of the stack trace.
+     */
+    void add(int size, int allocationCount, @NonNull long[] addresses, int depth) {
+        // insert the outer frames first, so that the callers are shared in the trie.
+        int node = StackTrie.ROOT;
+        for (int i = depth - 1; i >= 0; i--) {
+            int frame = getFrame(addresses[i]);
+            int parent = node;
+            node = mStacks.add(parent, frame);
+            if (node == mNodeCallSites.length) {
+                mNodeCallSites = Arrays.copyOf(mNodeCallSites, node * 2);
+            }
+            if (node == mStacks.getNodeCount() - 1) {
+                // a new node: its call site is its own frame, unless it is in an allocator.
+                int library = mFrameLibraries[frame];
+                if (library == NO_LIBRARY || mRelevantLibraries[library]) {
+                    mNodeCallSites[node] = frame;
+                } else {
+                    mNodeCallSites[node] =
+                            parent == StackTrie.ROOT ? NO_FRAME : mNodeCallSites[parent];
+                }
+            }
+        }
+
+        int index = mEntryCount++;
+        if (index == mSizes.length) {
+            int capacity = index * 2;
+            mSizes = Arrays.copyOf(mSizes, capacity);
+            mAllocationCounts = Arrays.copyOf(mAllocationCounts, capacity);
+            mStackIds = Arrays.copyOf(mStackIds, capacity);
+        }
+        mSizes[index] = size;
+        mAllocationCounts[index] = allocationCount;
+        mStackIds[index] = node;
+
+        long totalSize = (long) (size & ~FLAG_MASK) * allocationCount;
+        mTotalSize += totalSize;
+        int callSite = node == StackTrie.ROOT ? NO_FRAME : getCallSite(node);
+        if (callSite != NO_FRAME) {
+            mCallSiteSizes[callSite] += totalSize;
+            mCallSiteAllocationCounts[callSite] += allocationCount;
+        }
+        int library = callSite == NO_FRAME ? NO_LIBRARY : mFrameLibraries[callSite];
+        int libraryIndex = library == NO_LIBRARY ? mLibraries.length : library;
+        mLibrarySizes[libraryIndex] += totalSize;
+        mLibraryAllocationCounts[libraryIndex] += allocationCount;
+    }
+
+    /**
+     * Returns the frame id of an address, looking up its library if it is new.
+     */
+    private int getFrame(long address) {
+        int frame = mFrames.add(address);
+        if (frame == mFrameLibraries.length) {
+            int capacity = frame * 2;
+            mFrameLibraries = Arrays.copyOf(mFrameLibraries, capacity);
+            mCallSiteSizes = Arrays.copyOf(mCallSiteSizes, capacity);
+            mCallSiteAllocationCounts = Arrays.copyOf(mCallSiteAllocationCounts, capacity);
+        }
+        if (frame == mFrames.size() - 1) {
+            mFrameLibraries[frame] = findLibrary(address);
+        }
+        return frame;
+    }
+
+    /**
+     * Returns the index of the library containing an address, or {@link #NO_LIBRARY}.
+     */
+    private int findLibrary(long address) {
+        // the last library starting at or before the address.
+        int index = Arrays.binarySearch(mLibraryStarts, address);
+        if (index < 0) {
+            index = -index - 2;
+        }
+        return index >= 0 && address <= mLibraryEnds[index] ? index : NO_LIBRARY;
+    }
+
+    /**
+     * Returns the number of entries. Each entry is a number of allocations of the same size,
+     * with the same stack trace.
+     */
+    public int getEntryCount() {
+        return mEntryCount;
+    }
+
+    /**
+     * Returns the size of the allocations of an entry.
+     */
+    public int getSize(int entry) {
+        return mSizes[checkEntry(entry)] & ~FLAG_MASK;
+    }
+
+    /**
+     * Returns whether the allocations of an entry happened in a child of the zygote process.
+     */
+    public boolean isZygoteChild(int entry) {
+        return (mSizes[checkEntry(entry)] & FLAG_ZYGOTE_CHILD) != 0;
+    }
+
+    /**
+     * Returns the number of allocations of an entry.
+     */
+    public int getAllocationCount(int entry) {
+        return mAllocationCounts[checkEntry(entry)];
+    }
+
+    /**
+     * Returns the stack trace of an entry, as a node of {@link #getStackTrie()}.
+     */
+    public int getStackId(int entry) {
+        return mStackIds[checkEntry(entry)];
+    }
+
+    /**
+     * Returns the stack trace of an entry as raw addresses, innermost frame first.
+     */
+    @NonNull
+    public long[] getStackAddresses(int entry) {
+        int[] frames = mStacks.getFrames(getStackId(entry));
+        long[] addresses = new long[frames.length];
+        for (int i = 0; i < frames.length; i++) {
+            addresses[i] = mFrames.getKey(frames[i]);
+        }
+        return addresses;
+    }
+
+    /**
+     * Returns the stack traces of the entries. The frame ids are given to
+     * {@link #getFrameAddress(int)} and {@link #getFrameLibrary(int)}.
+     */
+    @NonNull
+    public StackTrie getStackTrie() {
+        return mStacks;
+    }
+
+    /**
+     * Returns the address of a frame.
+     */
+    public long getFrameAddress(int frame) {
+        return mFrames.getKey(frame);
+    }
+
+    /**
+     * Returns the library containing the address of a frame, or null if it is not mapped.
+     */
+    @Nullable
+    public NativeLibraryMapInfo getFrameLibrary(int frame) {
+        if (frame < 0 || frame >= mFrames.size()) {
+            throw new IndexOutOfBoundsException("Unknown frame: " + frame);
+        }
+        int library = mFrameLibraries[frame];
+        return library == NO_LIBRARY ? null : mLibraries[library];
+    }
+
+    /**
+     * Returns the frame id of the call site of the stack trace ending with a node: its innermost
+     * frame outside of the allocator libraries, or its innermost frame if there is none.
+     */
+    public int getCallSite(int node) {
+        int frame = mStacks.getFrame(node);
+        int callSite = mNodeCallSites[node];
+        return callSite != NO_FRAME ? callSite : frame;
+    }
+
+    /**
+     * Returns the total size of the allocations, in bytes.
+     */
+    public long getTotalSize() {
+        return mTotalSize;
+    }
+
+    /**
+     * Returns the usage of the heap by the library of the call site of the allocations, largest
+     * first. The allocations without stack trace are counted as outside of the libraries.
+     */
+    @NonNull
+    public List<Usage> getUsageByLibrary() {
+        List<Usage> usages = new ArrayList<Usage>();
+        for (int i = 0; i < mLibrarySizes.length; i++) {
+            if (mLibraryAllocationCounts[i] > 0 || mLibrarySizes[i] > 0) {
+                usages.add(new Usage(i < mLibraries.length ? mLibraries[i] : null, 0,
+                        mLibrarySizes[i], mLibraryAllocationCounts[i]));
+            }
+        }
+        Collections.sort(usages, BY_SIZE);
+        return usages;
+    }
+
+    /**
+     * Returns the usage of the heap by call site, largest first. The allocations without stack
+     * trace are not included.
+     */
+    @NonNull
+    public List<Usage> getUsageByCallSite() {
+        List<Usage> usages = new ArrayList<Usage>();
+        for (int frame = 0; frame < mFrames.size(); frame++) {
+            if (mCallSiteAllocationCounts[frame] > 0 || mCallSiteSizes[frame] > 0) {
+                usages.add(new Usage(getFrameLibrary(frame), mFrames.getKey(frame),
+                        mCallSiteSizes[frame], mCallSiteAllocationCounts[frame]));
+            }
+        }
+        Collections.sort(usages, BY_SIZE);
+        return usages;
+    }
+
+    /**
+     * Returns an entry as a {@link NativeAllocationInfo}.
+     */
+    @NonNull
+    public NativeAllocationInfo getAllocationInfo(int entry) {
+        NativeAllocationInfo info = new NativeAllocationInfo(
+                mSizes[checkEntry(entry)], mAllocationCounts[entry]);
+        for (long address : getStackAddresses(entry)) {
+            info.addStackCallAddress(address);
+        }
+        return info;
+    }
+
+    private int checkEntry(int entry) {
+        if (entry < 0 || entry >= mEntryCount) {
+            throw new IndexOutOfBoundsException("Unknown entry: " + entry);
+        }
+        return entry;
+    }
+}
@@ -17,6 +17,7 @@ package com.android.ddmlib;
 
 import com.android.annotations.NonNull;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
 import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.SettableFuture;
 
@@ -153,6 +154,20 @@ class PropertyFetcher {
         propThread.start();
     }
 
+    /**
+     * Populates the cache with the output of a {@code getprop} command run by the caller, e.g.
+     * in the same shell as other commands, and completes the pending requests.
+     *
+     * @param output the output of the command
+     */
+    synchronized void setGetPropOutput(@NonNull String output) {
+        GetPropReceiver propReceiver = new GetPropReceiver();
+        byte[] data = output.getBytes(Charsets.UTF_8);
+        propReceiver.addOutput(data, 0, data.length);
+        propReceiver.flush();
+        populateCache(propReceiver.getCollectedProperties());
+    }
+
     private synchronized void populateCache(@NonNull Map<String, String> props) {
         mCacheState = props.isEmpty() ? CacheState.UNPOPULATED : CacheState.POPULATED;
         if (!props.isEmpty()) {
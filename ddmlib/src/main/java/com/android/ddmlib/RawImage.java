@@ -17,6 +17,9 @@
 package com.android.ddmlib;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 
 /**
  * Data representing an image taken from a device frame buffer.
@@ -38,6 +41,9 @@ public final class RawImage {
 
     public byte[] data;
 
+    /** ARGB values of the RGB565 pixels, created on first use. */
+    private static volatile int[] sRgb565Table;
+
     /**
      * Reads the header of a RawImage from a {@link ByteBuffer}.
      * <p/>The way the data is sent over adb is defined in system/core/adb/framebuffer_service.c
@@ -197,6 +203,85 @@ public final class RawImage {
         return a << 24 | r << 16 | g << 8 | b;
     }
 
+    /**
+     * Converts all the pixels of {@link #data} to ARGB integer values, as
+     * {@link #getARGB(int)} does for each pixel, in a single pass.
+     * @param argb the array receiving the values, row by row. Its length must be at least
+     *             width * height.
+     */
+    public void getARGB(int[] argb) {
+        toARGB(ByteBuffer.wrap(data), argb);
+    }
+
+    /**
+     * Converts all the pixels of an image to ARGB integer values.
+     * @param pixels the pixels, in the format described by this header, from the position of
+     *               the buffer.
+     * @param argb the array receiving the values, row by row.
+     */
+    void toARGB(ByteBuffer pixels, int[] argb) {
+        int count = width * height;
+        ByteBuffer buffer = pixels.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (bpp == 16) {
+            ShortBuffer values = buffer.asShortBuffer();
+            int[] table = getRgb565Table();
+            for (int i = 0; i < count; i++) {
+                argb[i] = table[values.get(i) & 0x0FFFF];
+            }
+        } else if (bpp == 32) {
+            IntBuffer values = buffer.asIntBuffer();
+            values.get(argb, 0, count);
+
+            if (red_length == 8 && green_length == 8 && blue_length == 8
+                    && alpha_length == 8 && green_offset == 8 && alpha_offset == 24) {
+                if (red_offset == 16 && blue_offset == 0) {
+                    // BGRA in memory is already ARGB once read as a little endian int.
+                    return;
+                }
+                if (red_offset == 0 && blue_offset == 16) {
+                    // RGBA in memory: swap the red and blue bytes.
+                    for (int i = 0; i < count; i++) {
+                        int value = argb[i];
+                        argb[i] = (value & 0xFF00FF00) | ((value & 0xFF) << 16)
+                                | ((value >>> 16) & 0xFF);
+                    }
+                    return;
+                }
+            }
+
+            int redMask = getMask(red_length);
+            int greenMask = getMask(green_length);
+            int blueMask = getMask(blue_length);
+            int alphaMask = getMask(alpha_length);
+            for (int i = 0; i < count; i++) {
+                int value = argb[i];
+                int r = ((value >>> red_offset) & redMask) << (8 - red_length);
+                int g = ((value >>> green_offset) & greenMask) << (8 - green_length);
+                int b = ((value >>> blue_offset) & blueMask) << (8 - blue_length);
+                int a = ((value >>> alpha_offset) & alphaMask) << (8 - alpha_length);
+                argb[i] = a << 24 | r << 16 | g << 8 | b;
+            }
+        } else {
+            throw new UnsupportedOperationException(
+                    "RawImage.getARGB(int[]) only works in 16 and 32 bit mode.");
+        }
+    }
+
+    private static int[] getRgb565Table() {
+        int[] table = sRgb565Table;
+        if (table == null) {
+            table = new int[0x10000];
+            for (int value = 0; value < table.length; value++) {
+                int r = ((value >>> 11) & 0x1f) * 255/31;
+                int g = ((value >>> 5)  & 0x3f) * 255/63;
+                int b = ((value)        & 0x1f) * 255/31;
+                table[value] = 0xFF << 24 | r << 16 | g << 8 | b;
+            }
+            sRgb565Table = table;
+        }
+        return table;
+    }
+
     /**
      * creates a mask value based on a length and offset.
      * <p/>This value is compatible with org.eclipse.swt.graphics.PaletteData
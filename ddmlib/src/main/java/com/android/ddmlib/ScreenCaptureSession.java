@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Continuous capture of the screen of a device, for callers taking many screenshots.
+ * <p/>Unlike {@link IDevice#getScreenshot()}, the frames are read into a direct buffer kept by
+ * the session, and converted to ARGB values in a single pass into arrays reused between the
+ * frames. Frames identical to the previous one can also be skipped, without being converted.
+ * <p/>adb sends a single frame per {@code framebuffer:} request, so each frame still uses its
+ * own connection to adb.
+ * <p/>A session is meant to be used by one thread at a time.
+ */
+public final class ScreenCaptureSession implements Closeable {
+
+    /** Maximum number of released pixel arrays kept for the next frames. */
+    private static final int MAX_POOLED_PIXELS = 3;
+
+    @NonNull
+    private final IDevice mDevice;
+    private final boolean mSkipUnchangedFrames;
+
+    /** The buffer the frames are read into. */
+    @Nullable
+    private ByteBuffer mBuffer;
+    /** The pixel arrays released by the caller, all of {@link #mPixelCount} values. */
+    @NonNull
+    private final Deque<int[]> mPixelPool = new ArrayDeque<int[]>();
+    private int mPixelCount;
+
+    private boolean mHasPreviousFrame = false;
+    private long mPreviousHash;
+    private int mPreviousWidth;
+    private int mPreviousHeight;
+
+    /**
+     * A frame, as ARGB values.
+     */
+    public final class Frame {
+        private final int mWidth;
+        private final int mHeight;
+        @Nullable
+        private int[] mPixels;
+
+        private Frame(int width, int height, @NonNull int[] pixels) {
+            mWidth = width;
+            mHeight = height;
+            mPixels = pixels;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        /**
+         * Returns the ARGB values of the pixels, row by row. The array can be wrapped in a
+         * {@code java.awt.image.DataBufferInt} to back a {@code BufferedImage} without copy.
+         * @throws IllegalStateException if the frame was released.
+         */
+        @NonNull
+        public int[] getPixels() {
+            if (mPixels == null) {
+                throw new IllegalStateException("The frame was released");
+            }
+            return mPixels;
+        }
+
+        /**
+         * Gives the pixel array back to the session, to receive a later frame. The frame cannot
+         * be used anymore.
+         */
+        public void release() {
+            if (mPixels != null) {
+                releasePixels(mPixels);
+                mPixels = null;
+            }
+        }
+    }
+
+    /**
+     * Creates a session.
+     * @param device the device to capture the screen of.
+     * @param skipUnchangedFrames whether {@link #capture} returns null for a frame identical
+     *                            to the previous one, rather than converting it again.
+     */
+    public ScreenCaptureSession(@NonNull IDevice device, boolean skipUnchangedFrames) {
+        mDevice = device;
+        mSkipUnchangedFrames = skipUnchangedFrames;
+    }
+
+    /**
+     * Captures a frame. A timeout of 0 indicates that it will wait forever.
+     * @return the frame, or null if the frame is unchanged and unchanged frames are skipped.
+     * @throws TimeoutException in case of timeout on the connection.
+     * @throws AdbCommandRejectedException if adb rejects the command
+     * @throws IOException in case of I/O error on the connection, or if the frame buffer
+     *     protocol of the device is not supported.
+     */
+    @Nullable
+    public Frame capture(long timeout, @NonNull TimeUnit unit)
+            throws TimeoutException, AdbCommandRejectedException, IOException {
+        InetSocketAddress adbSockAddr = AndroidDebugBridge.getSocketAddress();
+        RawImage header;
+        ByteBuffer buffer;
+
+        SocketChannel adbChan = null;
+        try {
+            adbChan = SocketChannel.open(adbSockAddr);
+            adbChan.configureBlocking(false);
+
+            header = AdbHelper.openFrameBuffer(adbChan, mDevice);
+            if (header == null) {
+                throw new IOException("Unsupported frame buffer protocol"); //$NON-NLS-1$
+            }
+
+            buffer = getBuffer(header.size);
+            AdbHelper.read(adbChan, buffer, unit.toMillis(timeout));
+            buffer.flip();
+        } finally {
+            if (adbChan != null) {
+                adbChan.close();
+            }
+        }
+
+        if (mSkipUnchangedFrames) {
+            long hash = hash(buffer);
+            boolean unchanged = mHasPreviousFrame && hash == mPreviousHash
+                    && header.width == mPreviousWidth && header.height == mPreviousHeight;
+            mHasPreviousFrame = true;
+            mPreviousHash = hash;
+            mPreviousWidth = header.width;
+            mPreviousHeight = header.height;
+            if (unchanged) {
+                return null;
+            }
+        }
+
+        int[] pixels = getPixels(header.width * header.height);
+        header.toARGB(buffer, pixels);
+        return new Frame(header.width, header.height, pixels);
+    }
+
+    /**
+     * Frees the buffers of the session. The frames already returned can still be used.
+     */
+    @Override
+    public void close() {
+        mBuffer = null;
+        synchronized (mPixelPool) {
+            mPixelPool.clear();
+        }
+    }
+
+    /**
+     * Returns the read buffer, cleared and limited to a size, reallocating it only if it is
+     * too small.
+     */
+    @NonNull
+    private ByteBuffer getBuffer(int size) {
+        if (mBuffer == null || mBuffer.capacity() < size) {
+            mBuffer = ByteBuffer.allocateDirect(size);
+        }
+        mBuffer.clear();
+        mBuffer.limit(size);
+        return mBuffer;
+    }
+
+    @NonNull
+    private int[] getPixels(int count) {
+        synchronized (mPixelPool) {
+            if (count != mPixelCount) {
+                // the size of the screen changed.
+                mPixelPool.clear();
+                mPixelCount = count;
+            }
+            int[] pixels = mPixelPool.poll();
+            return pixels != null ? pixels : new int[count];
+        }
+    }
+
+    private void releasePixels(@NonNull int[] pixels) {
+        synchronized (mPixelPool) {
+            if (pixels.length == mPixelCount && mPixelPool.size() < MAX_POOLED_PIXELS) {
+                mPixelPool.push(pixels);
+            }
+        }
+    }
+
+    /**
+     * Returns a 64 bit hash of the content of a buffer, read by 8 bytes at a time: FNV-1a on
+     * longs, with the high bits folded back after each step so that they affect the next ones.
+     */
+    static long hash(@NonNull ByteBuffer buffer) {
+        ByteBuffer data = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        long hash = 0xcbf29ce484222325L;
+        while (data.remaining() >= 8) {
+            hash ^= data.getLong();
+            hash *= 0x100000001b3L;
+            hash ^= hash >>> 32;
+        }
+        while (data.hasRemaining()) {
+            hash ^= data.get() & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
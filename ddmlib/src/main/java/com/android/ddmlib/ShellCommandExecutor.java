@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs shell commands on a device asynchronously.
+ * <p/>Each command uses its own adb connection, and at most
+ * {@link DdmPreferences#getMaxConcurrentShellCommands()} of them are opened at the same time for
+ * a device; further commands are queued until a connection is released.
+ * <p/>A batch of commands is run in a single shell session, which saves opening a connection to
+ * adb and starting a shell for each of them. The commands are run one after the other, each in
+ * its own sub shell, and a marker is printed after each of them to split their output. As the
+ * length of an adb request is limited, a long batch is split into several sessions, run one
+ * after the other.
+ * <p/>The executor of a device is obtained with {@link #forDevice(IShellEnabledDevice)}.
+ */
+public final class ShellCommandExecutor {
+    private static final String MARKER_PREFIX = "ddmlib-batch-"; //$NON-NLS-1$
+
+    /** Prefix of the adb request of a shell command. */
+    private static final String SHELL_REQUEST_PREFIX = "shell:"; //$NON-NLS-1$
+
+    /**
+     * Maximum length of the adb request of a batch. The length of a request is sent as 4 hex
+     * digits, and older adb daemons only accept requests fitting in their 4KB payloads.
+     */
+    @VisibleForTesting
+    static final int MAX_REQUEST_LENGTH = 4000;
+
+    private static final Random sRandom = new Random();
+
+    /** The executors of the devices other than {@link Device}, which holds its own. */
+    private static final Map<IShellEnabledDevice, ShellCommandExecutor> sExecutors =
+            new WeakHashMap<IShellEnabledDevice, ShellCommandExecutor>();
+
+    private final IShellEnabledDevice mDevice;
+    private final ThreadPoolExecutor mExecutor;
+
+    ShellCommandExecutor(@NonNull IShellEnabledDevice device, int maxConcurrentCommands) {
+        mDevice = device;
+        // Idle threads are let go so that devices which don't use this don't hold any.
+        mExecutor = new ThreadPoolExecutor(maxConcurrentCommands, maxConcurrentCommands,
+                10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("Shell Command Executor-%d") //$NON-NLS-1$
+                        .setDaemon(true)
+                        .build());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the executor of a device, shared by all the users of the device so that the number
+     * of concurrent commands stays bounded.
+     */
+    @NonNull
+    public static ShellCommandExecutor forDevice(@NonNull IShellEnabledDevice device) {
+        if (device instanceof Device) {
+            return ((Device) device).getShellCommandExecutor();
+        }
+        synchronized (sExecutors) {
+            ShellCommandExecutor executor = sExecutors.get(device);
+            if (executor == null) {
+                executor = new ShellCommandExecutor(device,
+                        DdmPreferences.getMaxConcurrentShellCommands());
+                sExecutors.put(device, executor);
+            }
+            return executor;
+        }
+    }
+
+    /**
+     * Executes a shell command, and sends its output to the receiver.
+     * <p/>Cancelling the returned future cancels the output of the command, as if
+     * {@link IShellOutputReceiver#isCancelled()} had returned true.
+     *
+     * @param command the shell command to execute
+     * @param receiver the {@link IShellOutputReceiver} that will receives the output of the shell
+     *            command
+     * @param maxTimeToOutputResponse the maximum amount of time during which the command is
+     *            allowed to not output any response. A value of 0 means the command may run
+     *            forever, until the <var>receiver</var> or the future is cancelled.
+     * @param maxTimeUnits Units for non-zero {@code maxTimeToOutputResponse} values.
+     * @return a future which completes when the command is done, or fails with the exception
+     *         which {@link IShellEnabledDevice#executeShellCommand} would have thrown.
+     */
+    @NonNull
+    public ListenableFuture<Void> execute(@NonNull String command,
+            @NonNull IShellOutputReceiver receiver, long maxTimeToOutputResponse,
+            @NonNull TimeUnit maxTimeUnits) {
+        return submit(Collections.singletonList(command), receiver, maxTimeToOutputResponse,
+                maxTimeUnits, new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Executes a shell command, and returns its output.
+     *
+     * @see #execute(String, IShellOutputReceiver, long, TimeUnit)
+     */
+    @NonNull
+    public ListenableFuture<String> execute(@NonNull String command,
+            long maxTimeToOutputResponse, @NonNull TimeUnit maxTimeUnits) {
+        final CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+        return submit(Collections.singletonList(command), receiver, maxTimeToOutputResponse,
+                maxTimeUnits, new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return receiver.getOutput();
+                    }
+                });
+    }
+
+    /**
+     * Executes several shell commands in a single shell session, and returns their outputs.
+     * <p/>Each command is run in its own sub shell, so it may change directory or exit without
+     * affecting the following commands. The commands must not read from their standard input.
+     * If the batch is too long for a single adb request, it is split into several shell
+     * sessions, run one after the other with a single connection at a time.
+     *
+     * @param commands the shell commands to execute
+     * @param maxTimeToOutputResponse the maximum amount of time during which the commands are
+     *            allowed to not output any response.
+     * @param maxTimeUnits Units for non-zero {@code maxTimeToOutputResponse} values.
+     * @return a future returning the output of each command, in order.
+     */
+    @NonNull
+    public ListenableFuture<List<String>> executeBatch(@NonNull final List<String> commands,
+            long maxTimeToOutputResponse, @NonNull TimeUnit maxTimeUnits) {
+        final String marker = createMarker();
+        final CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+        return submit(createBatchCommands(commands, marker, MAX_REQUEST_LENGTH), receiver,
+                maxTimeToOutputResponse, maxTimeUnits, new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() throws IOException {
+                        return splitBatchOutput(receiver.getOutput(), marker, commands.size());
+                    }
+                });
+    }
+
+    /**
+     * Queues commands to run one after the other with the same receiver, and returns a future set
+     * to the value of {@code result} once they are done.
+     */
+    @NonNull
+    private <T> ListenableFuture<T> submit(@NonNull final List<String> commands,
+            @NonNull final IShellOutputReceiver receiver, final long maxTimeToOutputResponse,
+            @NonNull final TimeUnit maxTimeUnits, @NonNull final Callable<T> result) {
+        final SettableFuture<T> future = SettableFuture.create();
+        final IShellOutputReceiver cancellableReceiver = new IShellOutputReceiver() {
+            @Override
+            public void addOutput(byte[] data, int offset, int length) {
+                receiver.addOutput(data, offset, length);
+            }
+
+            @Override
+            public void flush() {
+                receiver.flush();
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return future.isCancelled() || receiver.isCancelled();
+            }
+        };
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (String command : commands) {
+                        if (cancellableReceiver.isCancelled()) {
+                            return;
+                        }
+                        mDevice.executeShellCommand(command, cancellableReceiver,
+                                maxTimeToOutputResponse, maxTimeUnits);
+                    }
+                    future.set(result.call());
+                } catch (Exception e) {
+                    future.setException(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    @NonNull
+    private static String createMarker() {
+        return MARKER_PREFIX + Long.toHexString(sRandom.nextLong());
+    }
+
+    /**
+     * Joins the commands of a batch into as few shell commands as possible, each fitting in an adb
+     * request of at most {@code maxRequestLength} characters. A command too long on its own is
+     * still run, in a shell command of its own.
+     */
+    @VisibleForTesting
+    @NonNull
+    static List<String> createBatchCommands(@NonNull List<String> commands,
+            @NonNull String marker, int maxRequestLength) {
+        List<String> batches = new ArrayList<String>();
+        StringBuilder sb = new StringBuilder();
+        for (String command : commands) {
+            String wrapped = '(' + command + ");echo " + marker; //$NON-NLS-1$
+            if (sb.length() > 0 && SHELL_REQUEST_PREFIX.length() + sb.length() + 1
+                    + wrapped.length() > maxRequestLength) {
+                batches.add(sb.toString());
+                sb.setLength(0);
+            }
+            if (sb.length() > 0) {
+                sb.append(';');
+            }
+            sb.append(wrapped);
+        }
+        if (sb.length() > 0) {
+            batches.add(sb.toString());
+        }
+        return batches;
+    }
+
+    /**
+     * Splits the output of a batch on the marker echoed after each command.
+     *
+     * @throws IOException if the output has fewer markers than there are commands, i.e. the
+     *         shell session ended early.
+     */
+    @VisibleForTesting
+    @NonNull
+    static List<String> splitBatchOutput(@NonNull String output, @NonNull String marker,
+            int commandCount) throws IOException {
+        List<String> outputs = new ArrayList<String>(commandCount);
+        int start = 0;
+        while (outputs.size() < commandCount) {
+            int markerStart = output.indexOf(marker, start);
+            if (markerStart < 0) {
+                throw new IOException(String.format(
+                        "Shell session ended after %1$d of %2$d commands",
+                        outputs.size(), commandCount));
+            }
+            outputs.add(output.substring(start, markerStart));
+            // skip the rest of the marker line, whether it ends with \n or \r\n.
+            int lineEnd = output.indexOf('\n', markerStart + marker.length());
+            start = lineEnd < 0 ? output.length() : lineEnd + 1;
+        }
+        return outputs;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+
+/**
+ * Stack traces deduplicated into a trie of frame ids.
+ * <p/>Each node of the trie is a frame, called from the frame of its parent node. The outermost
+ * frames have the {@link #ROOT} as parent. A stack trace is identified by the node of its
+ * innermost frame, and stack traces sharing their outer frames share the nodes of these
+ * frames, so that identical stack traces are stored only once.
+ * <p/>The frame ids are given by the owner of the trie, for instance an index into a table of
+ * addresses.
+ */
+public final class StackTrie {
+
+    /** The parent of the outermost frames, and the id of the empty stack trace. */
+    public static final int ROOT = -1;
+
+    /** The nodes, keyed by their parent node and their frame id. */
+    @NonNull
+    private final LongIdMap mNodes = new LongIdMap();
+
+    /**
+     * Returns the node of a frame called from the frame of a node, adding it if it is new.
+     * New nodes get the next id, starting at 0.
+     */
+    int add(int parent, int frame) {
+        return mNodes.add(getKey(parent, frame));
+    }
+
+    /**
+     * Returns the node of a frame called from the frame of a node, or -1 if there is none.
+     */
+    public int getNode(int parent, int frame) {
+        return mNodes.get(getKey(parent, frame));
+    }
+
+    /**
+     * Returns the number of nodes of the trie. The nodes are numbered from 0.
+     */
+    public int getNodeCount() {
+        return mNodes.size();
+    }
+
+    /**
+     * Returns the parent of a node, or {@link #ROOT} for an outermost frame.
+     */
+    public int getParent(int node) {
+        return (int) (mNodes.getKey(node) >>> 32) - 1;
+    }
+
+    /**
+     * Returns the frame id of a node.
+     */
+    public int getFrame(int node) {
+        return (int) mNodes.getKey(node);
+    }
+
+    /**
+     * Returns the number of frames of the stack trace ending with a node.
+     */
+    public int getDepth(int node) {
+        int depth = 0;
+        for (; node != ROOT; node = getParent(node)) {
+            depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * Returns the frame ids of the stack trace ending with a node, innermost frame first.
+     */
+    @NonNull
+    public int[] getFrames(int node) {
+        int[] frames = new int[getDepth(node)];
+        for (int i = 0; node != ROOT; node = getParent(node)) {
+            frames[i++] = getFrame(node);
+        }
+        return frames;
+    }
+
+    private static long getKey(int parent, int frame) {
+        // the parent is shifted by one so that the root is stored as 0.
+        return ((long) (parent + 1) << 32) | (frame & 0xFFFFFFFFL);
+    }
+}
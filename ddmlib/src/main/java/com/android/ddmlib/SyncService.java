@@ -20,15 +20,28 @@ import com.android.ddmlib.AdbHelper.AdbResponse;
 import com.android.ddmlib.FileListingService.FileEntry;
 import com.android.ddmlib.SyncException.SyncError;
 import com.android.ddmlib.utils.ArrayHelper;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Sync service class to push/pull to/from devices/emulators, through the debug bridge.
@@ -44,8 +57,8 @@ public class SyncService {
     private static final byte[] ID_DATA = { 'D', 'A', 'T', 'A' };
     private static final byte[] ID_DONE = { 'D', 'O', 'N', 'E' };
     private static final byte[] ID_SEND = { 'S', 'E', 'N', 'D' };
-//    private final static byte[] ID_LIST = { 'L', 'I', 'S', 'T' };
-//    private final static byte[] ID_DENT = { 'D', 'E', 'N', 'T' };
+    private static final byte[] ID_LIST = { 'L', 'I', 'S', 'T' };
+    private static final byte[] ID_DENT = { 'D', 'E', 'N', 'T' };
 
     private static final NullSyncProgressMonitor sNullSyncProgressMonitor =
             new NullSyncProgressMonitor();
@@ -78,6 +91,15 @@ public class SyncService {
     private static final int SYNC_DATA_MAX = 64*1024;
     private static final int REMOTE_PATH_MAX_LENGTH = 1024;
 
+    /** Maximum number of requests sent on a connection ahead of their responses. */
+    private static final int PIPELINE_DEPTH = 32;
+
+    /** Size of the buffer in which the requests of consecutive files are grouped. */
+    private static final int BATCH_BUFFER_SIZE = 2 * (SYNC_DATA_MAX + 8);
+
+    /** Smallest data chunk written to the batch buffer before it is flushed. */
+    private static final int MIN_BATCH_CHUNK = 4 * 1024;
+
     /**
      * Classes which implement this interface provide methods that deal
      * with displaying transfer progress.
@@ -132,6 +154,81 @@ public class SyncService {
         }
     }
 
+    /**
+     * A Sync progress monitor shared by the connections of a transfer. The calls to the monitor
+     * are serialized, and the first failure of a connection cancels the others.
+     */
+    private static final class SharedSyncProgressMonitor implements ISyncProgressMonitor {
+        private final ISyncProgressMonitor mMonitor;
+        private Throwable mFailure;
+
+        SharedSyncProgressMonitor(ISyncProgressMonitor monitor) {
+            mMonitor = monitor;
+        }
+
+        synchronized void fail(Throwable failure) {
+            if (mFailure == null) {
+                mFailure = failure;
+            }
+        }
+
+        synchronized Throwable getFailure() {
+            return mFailure;
+        }
+
+        @Override
+        public synchronized void start(int totalWork) {
+            mMonitor.start(totalWork);
+        }
+
+        @Override
+        public synchronized void stop() {
+            mMonitor.stop();
+        }
+
+        @Override
+        public synchronized boolean isCanceled() {
+            return mFailure != null || mMonitor.isCanceled();
+        }
+
+        @Override
+        public synchronized void startSubTask(String name) {
+            mMonitor.startSubTask(name);
+        }
+
+        @Override
+        public synchronized void advance(int work) {
+            mMonitor.advance(work);
+        }
+    }
+
+    /**
+     * A file to transfer between a local and a remote path, with its size and modification time.
+     */
+    private static final class FileTransfer {
+        final File mLocal;
+        final String mRemotePath;
+        final byte[] mRemotePathContent;
+        final long mSize;
+        /** Modification time, in seconds. */
+        final int mTime;
+
+        FileTransfer(File local, String remotePath, long size, int time) throws SyncException {
+            mLocal = local;
+            mRemotePath = remotePath;
+            try {
+                mRemotePathContent = remotePath.getBytes(AdbHelper.DEFAULT_ENCODING);
+            } catch (UnsupportedEncodingException e) {
+                throw new SyncException(SyncError.REMOTE_PATH_ENCODING, e);
+            }
+            if (mRemotePathContent.length > REMOTE_PATH_MAX_LENGTH) {
+                throw new SyncException(SyncError.REMOTE_PATH_LENGTH);
+            }
+            mSize = size;
+            mTime = time;
+        }
+    }
+
     private InetSocketAddress mAddress;
     private Device mDevice;
     private SocketChannel mChannel;
@@ -141,6 +238,13 @@ public class SyncService {
      */
     private byte[] mBuffer;
 
+    /**
+     * Buffer grouping the requests sent to the device in a single write, and its used length.
+     * Allocated when needed and reused afterward.
+     */
+    private byte[] mBatchBuffer;
+    private int mBatchLength;
+
     /**
      * Creates a Sync service object.
      * @param address The address to connect to
@@ -382,6 +486,104 @@ public class SyncService {
         monitor.stop();
     }
 
+    /**
+     * Pushes the files of a local directory, recursively, to a remote directory.
+     * <p/>Files which already exist on the device with the same size and modification time are
+     * skipped. The other files are spread over up to {@code connectionCount} sync connections,
+     * and on each connection the requests of several files are sent without waiting for the
+     * response to the previous ones. The modification time of the local files is kept on the
+     * device, so that unchanged files are skipped by the next push.
+     * <p/>Empty local directories are not created on the device.
+     * @param localDirectory the local directory.
+     * @param remoteDirectory the remote directory. It is created if needed.
+     * @param connectionCount the maximum number of sync connections, including this one.
+     * @param monitor The progress monitor. Cannot be null. It is called from several threads,
+     *      but never concurrently.
+     * @return the number of files which were pushed.
+     *
+     * @throws SyncException if a file could not be pushed
+     * @throws IOException in case of I/O error on the connection.
+     * @throws TimeoutException in case of a timeout reading responses from the device.
+     */
+    public int pushDirectory(String localDirectory, String remoteDirectory, int connectionCount,
+            ISyncProgressMonitor monitor) throws SyncException, IOException, TimeoutException {
+        File root = new File(localDirectory);
+        if (!root.isDirectory()) {
+            throw new SyncException(root.exists() ? SyncError.TARGET_IS_FILE
+                    : SyncError.NO_LOCAL_FILE);
+        }
+
+        Integer mode = readMode(remoteDirectory);
+        if (mode != null && getFileType(mode) == FileListingService.TYPE_FILE) {
+            throw new SyncException(SyncError.REMOTE_IS_FILE);
+        }
+
+        List<FileTransfer> files = new ArrayList<FileTransfer>();
+        listLocalFiles(root, remoteDirectory, files);
+        List<FileTransfer> changed = getChangedRemoteFiles(files, monitor);
+
+        monitor.start(getTotalTransferSize(changed));
+
+        transferFiles(changed, true /*push*/, connectionCount, monitor);
+
+        monitor.stop();
+        return changed.size();
+    }
+
+    /**
+     * Pulls the files of a remote directory, recursively, to a local directory.
+     * <p/>Files which already exist locally with the same size and modification time are
+     * skipped. The other files are spread over up to {@code connectionCount} sync connections,
+     * and on each connection the requests of several files are sent without waiting for the
+     * response to the previous ones. The modification time of the remote files is kept on the
+     * local files, so that unchanged files are skipped by the next pull.
+     * @param remoteDirectory the remote directory.
+     * @param localDirectory the local directory. It is created if needed.
+     * @param connectionCount the maximum number of sync connections, including this one.
+     * @param monitor The progress monitor. Cannot be null. It is called from several threads,
+     *      but never concurrently.
+     * @return the number of files which were pulled.
+     *
+     * @throws SyncException if a file could not be pulled
+     * @throws IOException in case of I/O error on the connection.
+     * @throws TimeoutException in case of a timeout reading responses from the device.
+     */
+    public int pullDirectory(String remoteDirectory, String localDirectory, int connectionCount,
+            ISyncProgressMonitor monitor) throws SyncException, IOException, TimeoutException {
+        // a link is accepted, as it can be listed if it points to a directory.
+        Integer mode = readMode(remoteDirectory);
+        if (mode == null || mode == 0) {
+            throw new SyncException(SyncError.NO_REMOTE_OBJECT);
+        }
+        if (getFileType(mode) == FileListingService.TYPE_FILE) {
+            throw new SyncException(SyncError.REMOTE_IS_FILE);
+        }
+
+        File root = new File(localDirectory);
+        if (root.isFile()) {
+            throw new SyncException(SyncError.TARGET_IS_FILE);
+        }
+
+        List<FileTransfer> files = new ArrayList<FileTransfer>();
+        listRemoteFiles(remoteDirectory, root, files);
+
+        List<FileTransfer> changed = new ArrayList<FileTransfer>();
+        for (FileTransfer file : files) {
+            File f = file.mLocal;
+            if (!f.isFile() || f.length() != file.mSize
+                    || f.lastModified() / 1000 != (file.mTime & 0xFFFFFFFFL)) {
+                changed.add(file);
+            }
+        }
+
+        monitor.start(getTotalTransferSize(changed));
+
+        transferFiles(changed, false /*push*/, connectionCount, monitor);
+
+        monitor.stop();
+        return changed.size();
+    }
+
     /**
      * compute the recursive file size of all the files in the list. Folder
      * have a weight of 1.
@@ -428,6 +630,413 @@ public class SyncService {
         return count;
     }
 
+    private static int getTotalTransferSize(List<FileTransfer> files) {
+        long count = 0;
+        for (FileTransfer file : files) {
+            count += file.mSize;
+        }
+        return (int) Math.min(count, Integer.MAX_VALUE);
+    }
+
+    private static String getRemotePath(String directory, String name) {
+        if (directory.endsWith(FileListingService.FILE_SEPARATOR)) {
+            return directory + name;
+        }
+        return directory + FileListingService.FILE_SEPARATOR + name;
+    }
+
+    /**
+     * Lists the files of a local directory, recursively, with the remote path they are pushed to.
+     */
+    private static void listLocalFiles(File directory, String remoteDirectory,
+            List<FileTransfer> files) throws SyncException {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return;
+        }
+
+        for (File f : children) {
+            String remotePath = getRemotePath(remoteDirectory, f.getName());
+            if (f.isDirectory()) {
+                listLocalFiles(f, remotePath, files);
+            } else if (f.isFile()) {
+                files.add(new FileTransfer(f, remotePath, f.length(),
+                        (int) (f.lastModified() / 1000)));
+            }
+        }
+    }
+
+    /**
+     * Lists the files of a remote directory, recursively, with the local file they are pulled
+     * to. The local directories are created.
+     */
+    private void listRemoteFiles(String remoteDirectory, File directory, List<FileTransfer> files)
+            throws SyncException, IOException, TimeoutException {
+        final int timeOut = DdmPreferences.getTimeOut();
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new SyncException(SyncError.FILE_WRITE_ERROR);
+        }
+
+        try {
+            byte[] msg = createFileReq(ID_LIST,
+                    remoteDirectory.getBytes(AdbHelper.DEFAULT_ENCODING));
+            AdbHelper.write(mChannel, msg, -1, timeOut);
+
+            // each entry is made of 5 ints (id, mode, size, time, name length) and the name.
+            byte[] entry = new byte[20];
+            List<String> directories = new ArrayList<String>();
+            while (true) {
+                AdbHelper.read(mChannel, entry, -1, timeOut);
+                if (checkResult(entry, ID_DONE)) {
+                    break;
+                }
+                if (!checkResult(entry, ID_DENT)) {
+                    throw new SyncException(SyncError.TRANSFER_PROTOCOL_ERROR);
+                }
+
+                int mode = ArrayHelper.swap32bitFromArray(entry, 4);
+                int size = ArrayHelper.swap32bitFromArray(entry, 8);
+                int time = ArrayHelper.swap32bitFromArray(entry, 12);
+                int nameLength = ArrayHelper.swap32bitFromArray(entry, 16);
+                if (nameLength < 0 || nameLength > REMOTE_PATH_MAX_LENGTH) {
+                    throw new SyncException(SyncError.BUFFER_OVERRUN);
+                }
+                AdbHelper.read(mChannel, getBuffer(), nameLength, timeOut);
+                String name = new String(getBuffer(), 0, nameLength,
+                        AdbHelper.DEFAULT_ENCODING);
+
+                if (".".equals(name) || "..".equals(name)) { //$NON-NLS-1$ //$NON-NLS-2$
+                    continue;
+                }
+
+                int type = getFileType(mode);
+                if (type == FileListingService.TYPE_DIRECTORY) {
+                    directories.add(name);
+                } else if (type == FileListingService.TYPE_FILE) {
+                    files.add(new FileTransfer(new File(directory, name),
+                            getRemotePath(remoteDirectory, name), size & 0xFFFFFFFFL, time));
+                }
+            }
+
+            // the connection is only free for the next listing once this one is done.
+            for (String name : directories) {
+                listRemoteFiles(getRemotePath(remoteDirectory, name), new File(directory, name),
+                        files);
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new SyncException(SyncError.REMOTE_PATH_ENCODING, e);
+        }
+    }
+
+    /**
+     * Returns the files which don't exist on the device with the same size and modification
+     * time. The STAT requests of several files are sent before reading their responses.
+     */
+    private List<FileTransfer> getChangedRemoteFiles(List<FileTransfer> files,
+            ISyncProgressMonitor monitor) throws SyncException, IOException, TimeoutException {
+        final int timeOut = DdmPreferences.getTimeOut();
+
+        // the result is made of 4 ints (id, mode, size, time)
+        byte[] statResult = new byte[16];
+        List<FileTransfer> changed = new ArrayList<FileTransfer>();
+        int requested = 0;
+        for (int i = 0; i < files.size(); i++) {
+            if (monitor.isCanceled()) {
+                throw new SyncException(SyncError.CANCELED);
+            }
+
+            requested = sendRequests(ID_STAT, files, i, requested, timeOut);
+
+            AdbHelper.read(mChannel, statResult, -1 /* full length */, timeOut);
+            if (!checkResult(statResult, ID_STAT)) {
+                throw new SyncException(SyncError.TRANSFER_PROTOCOL_ERROR);
+            }
+
+            FileTransfer file = files.get(i);
+            int mode = ArrayHelper.swap32bitFromArray(statResult, 4);
+            int size = ArrayHelper.swap32bitFromArray(statResult, 8);
+            int time = ArrayHelper.swap32bitFromArray(statResult, 12);
+            if (getFileType(mode) != FileListingService.TYPE_FILE
+                    || (size & 0xFFFFFFFFL) != file.mSize || time != file.mTime) {
+                changed.add(file);
+            }
+        }
+
+        return changed;
+    }
+
+    /**
+     * Transfers files over several sync connections: this one, and the ones opened for the
+     * transfer. The largest files are given first, each to the connection with the least data to
+     * transfer.
+     */
+    private void transferFiles(List<FileTransfer> files, final boolean push, int connectionCount,
+            ISyncProgressMonitor monitor) throws SyncException, IOException, TimeoutException {
+        List<FileTransfer> sorted = new ArrayList<FileTransfer>(files);
+        Collections.sort(sorted, new Comparator<FileTransfer>() {
+            @Override
+            public int compare(FileTransfer file1, FileTransfer file2) {
+                return file1.mSize < file2.mSize ? 1 : (file1.mSize > file2.mSize ? -1 : 0);
+            }
+        });
+
+        final List<SyncService> services = new ArrayList<SyncService>();
+        services.add(this);
+        ExecutorService executor = null;
+        try {
+            int count = Math.max(1, Math.min(connectionCount, sorted.size()));
+            while (services.size() < count) {
+                SyncService service = new SyncService(mAddress, mDevice);
+                try {
+                    if (!service.openSync()) {
+                        break;
+                    }
+                } catch (AdbCommandRejectedException e) {
+                    Log.w("ddms", "Failed to open an additional sync connection: "
+                            + e.getMessage());
+                    break;
+                }
+                services.add(service);
+            }
+
+            final List<List<FileTransfer>> shards = new ArrayList<List<FileTransfer>>();
+            long[] shardSizes = new long[services.size()];
+            for (int i = 0; i < services.size(); i++) {
+                shards.add(new ArrayList<FileTransfer>());
+            }
+            for (FileTransfer file : sorted) {
+                int smallest = 0;
+                for (int i = 1; i < shardSizes.length; i++) {
+                    if (shardSizes[i] < shardSizes[smallest]) {
+                        smallest = i;
+                    }
+                }
+                shards.get(smallest).add(file);
+                // count a fixed cost for each file, so that empty files are spread as well.
+                shardSizes[smallest] += file.mSize + SYNC_DATA_MAX / 16;
+            }
+
+            final SharedSyncProgressMonitor sharedMonitor = new SharedSyncProgressMonitor(monitor);
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (int i = 0; i < services.size(); i++) {
+                final SyncService service = services.get(i);
+                final List<FileTransfer> shard = shards.get(i);
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        try {
+                            if (push) {
+                                service.pushFiles(shard, sharedMonitor);
+                            } else {
+                                service.pullFiles(shard, sharedMonitor);
+                            }
+                        } catch (Exception e) {
+                            // stops the other connections.
+                            sharedMonitor.fail(e);
+                        }
+                        return null;
+                    }
+                });
+            }
+
+            // this connection is used by the calling thread.
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            if (tasks.size() > 1) {
+                executor = Executors.newFixedThreadPool(tasks.size() - 1,
+                        new ThreadFactoryBuilder()
+                                .setNameFormat("Sync Service-%d") //$NON-NLS-1$
+                                .setDaemon(true)
+                                .build());
+                for (Callable<Void> task : tasks.subList(1, tasks.size())) {
+                    futures.add(executor.submit(task));
+                }
+            }
+            try {
+                tasks.get(0).call();
+                for (Future<Void> future : futures) {
+                    Uninterruptibles.getUninterruptibly(future);
+                }
+            } catch (ExecutionException e) {
+                sharedMonitor.fail(e.getCause());
+            } catch (Exception e) {
+                sharedMonitor.fail(e);
+            }
+
+            Throwable failure = sharedMonitor.getFailure();
+            if (failure != null) {
+                Throwables.propagateIfInstanceOf(failure, SyncException.class);
+                Throwables.propagateIfInstanceOf(failure, IOException.class);
+                Throwables.propagateIfInstanceOf(failure, TimeoutException.class);
+                throw Throwables.propagate(failure);
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+            for (SyncService service : services.subList(1, services.size())) {
+                service.close();
+            }
+        }
+    }
+
+    /**
+     * Pushes files on this connection. The requests of consecutive files are grouped in the same
+     * writes, and up to {@link #PIPELINE_DEPTH} files are sent before reading their responses.
+     */
+    private void pushFiles(List<FileTransfer> files, ISyncProgressMonitor monitor)
+            throws SyncException, IOException, TimeoutException {
+        final int timeOut = DdmPreferences.getTimeOut();
+
+        byte[] result = new byte[8];
+        int pending = 0;
+        for (FileTransfer file : files) {
+            if (monitor.isCanceled()) {
+                throw new SyncException(SyncError.CANCELED);
+            }
+
+            monitor.startSubTask(file.mRemotePath);
+            sendFile(file, monitor, timeOut);
+            pending++;
+
+            if (pending == PIPELINE_DEPTH) {
+                // keep the device busy with the other half while reading the responses.
+                flushBatch(timeOut);
+                while (pending > PIPELINE_DEPTH / 2) {
+                    readOkay(result, timeOut);
+                    pending--;
+                }
+            }
+        }
+
+        flushBatch(timeOut);
+        while (pending > 0) {
+            readOkay(result, timeOut);
+            pending--;
+        }
+    }
+
+    /**
+     * Adds the SEND, DATA and DONE requests of a file to the batch buffer. The file is read
+     * directly in the buffer.
+     */
+    private void sendFile(FileTransfer file, ISyncProgressMonitor monitor, int timeOut)
+            throws SyncException, IOException, TimeoutException {
+        FileChannel channel = new RandomAccessFile(file.mLocal, "r").getChannel(); //$NON-NLS-1$
+        try {
+            appendBatch(createSendFileReq(ID_SEND, file.mRemotePathContent, 0644), timeOut);
+
+            byte[] batch = getBatchBuffer();
+            while (true) {
+                if (monitor.isCanceled()) {
+                    throw new SyncException(SyncError.CANCELED);
+                }
+
+                if (batch.length - mBatchLength < 8 + MIN_BATCH_CHUNK) {
+                    flushBatch(timeOut);
+                }
+                int max = Math.min(SYNC_DATA_MAX, batch.length - mBatchLength - 8);
+                int readCount = channel.read(ByteBuffer.wrap(batch, mBatchLength + 8, max));
+                if (readCount == -1) {
+                    // we reached the end of the file
+                    break;
+                }
+                if (readCount > 0) {
+                    System.arraycopy(ID_DATA, 0, batch, mBatchLength, ID_DATA.length);
+                    ArrayHelper.swap32bitsToArray(readCount, batch, mBatchLength + 4);
+                    mBatchLength += readCount + 8;
+                    monitor.advance(readCount);
+                }
+            }
+        } finally {
+            channel.close();
+        }
+
+        appendBatch(createReq(ID_DONE, file.mTime), timeOut);
+    }
+
+    /**
+     * Pulls files on this connection. Up to {@link #PIPELINE_DEPTH} RECV requests are sent
+     * ahead of the file being received.
+     */
+    private void pullFiles(List<FileTransfer> files, ISyncProgressMonitor monitor)
+            throws SyncException, IOException, TimeoutException {
+        final int timeOut = DdmPreferences.getTimeOut();
+
+        byte[] pullResult = new byte[8];
+        byte[] data = new byte[SYNC_DATA_MAX];
+        int requested = 0;
+        for (int i = 0; i < files.size(); i++) {
+            if (monitor.isCanceled()) {
+                throw new SyncException(SyncError.CANCELED);
+            }
+
+            requested = sendRequests(ID_RECV, files, i, requested, timeOut);
+
+            FileTransfer file = files.get(i);
+            monitor.startSubTask(file.mRemotePath);
+            AdbHelper.read(mChannel, pullResult, -1, timeOut);
+            receiveFile(file.mLocal, pullResult, data, monitor, timeOut);
+
+            if (!file.mLocal.setLastModified((file.mTime & 0xFFFFFFFFL) * 1000)) {
+                Log.w("ddms", "Failed to set the modification time of "
+                        + file.mLocal.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Sends the requests of the files following {@code next}, so that up to
+     * {@link #PIPELINE_DEPTH} requests are waiting for their responses. The requests are only
+     * sent when half of them have been answered, to group them in the same write.
+     * @param command the 4 byte command (ID_STAT, ID_RECV)
+     * @param files the files to request.
+     * @param next the index of the next response to read.
+     * @param requested the number of files already requested.
+     * @return the new number of files requested.
+     */
+    private int sendRequests(byte[] command, List<FileTransfer> files, int next, int requested,
+            int timeOut) throws IOException, TimeoutException {
+        if (requested - next > PIPELINE_DEPTH / 2 || requested == files.size()) {
+            return requested;
+        }
+
+        while (requested < files.size() && requested - next < PIPELINE_DEPTH) {
+            appendBatch(createFileReq(command, files.get(requested).mRemotePathContent),
+                    timeOut);
+            requested++;
+        }
+        flushBatch(timeOut);
+        return requested;
+    }
+
+    private void readOkay(byte[] result, int timeOut)
+            throws SyncException, IOException, TimeoutException {
+        AdbHelper.read(mChannel, result, -1 /* full length */, timeOut);
+
+        if (!checkResult(result, ID_OKAY)) {
+            throw new SyncException(SyncError.TRANSFER_PROTOCOL_ERROR,
+                    readErrorMessage(result, timeOut));
+        }
+    }
+
+    private void appendBatch(byte[] request, int timeOut) throws IOException, TimeoutException {
+        byte[] batch = getBatchBuffer();
+        if (mBatchLength + request.length > batch.length) {
+            flushBatch(timeOut);
+        }
+        System.arraycopy(request, 0, batch, mBatchLength, request.length);
+        mBatchLength += request.length;
+    }
+
+    private void flushBatch(int timeOut) throws IOException, TimeoutException {
+        if (mBatchLength > 0) {
+            int length = mBatchLength;
+            mBatchLength = 0;
+            AdbHelper.write(mChannel, getBatchBuffer(), length, timeOut);
+        }
+    }
+
     /**
      * Pulls multiple files/folders recursively.
      * @param entries The list of entry to pull
@@ -504,19 +1113,30 @@ public class SyncService {
             // read the result, in a byte array containing 2 ints
             // (id, size)
             AdbHelper.read(mChannel, pullResult, -1, timeOut);
-
-            // check we have the proper data back
-            if (!checkResult(pullResult, ID_DATA) &&
-                    !checkResult(pullResult, ID_DONE)) {
-                throw new SyncException(SyncError.TRANSFER_PROTOCOL_ERROR,
-                        readErrorMessage(pullResult, timeOut));
-            }
         } catch (UnsupportedEncodingException e) {
             throw new SyncException(SyncError.REMOTE_PATH_ENCODING, e);
         }
 
-        // access the destination file
-        File f = new File(localPath);
+        receiveFile(new File(localPath), pullResult, new byte[SYNC_DATA_MAX], monitor, timeOut);
+    }
+
+    /**
+     * Receives the content of a file requested with RECV, and writes it to a local file.
+     * @param f the local file.
+     * @param pullResult the header of the first response, read from the connection. It is
+     *      used to read the following headers.
+     * @param data the buffer to read the data.
+     * @param monitor The progress monitor. Cannot be null.
+     * @param timeOut the timeout of the connection.
+     */
+    private void receiveFile(File f, byte[] pullResult, byte[] data, ISyncProgressMonitor monitor,
+            int timeOut) throws IOException, SyncException, TimeoutException {
+        // check we have the proper data back
+        if (!checkResult(pullResult, ID_DATA) &&
+                !checkResult(pullResult, ID_DONE)) {
+            throw new SyncException(SyncError.TRANSFER_PROTOCOL_ERROR,
+                    readErrorMessage(pullResult, timeOut));
+        }
 
         // create the stream to write in the file. We use a new try/catch block to differentiate
         // between file and network io exceptions.
@@ -524,9 +1144,6 @@ public class SyncService {
         try {
             fos = new FileOutputStream(f);
 
-            // the buffer to read the data
-            byte[] data = new byte[SYNC_DATA_MAX];
-
             // loop to get data until we're done.
             while (true) {
                 // check if we're cancelled
@@ -622,7 +1239,7 @@ public class SyncService {
      */
     private void doPushFile(String localPath, String remotePath,
             ISyncProgressMonitor monitor) throws SyncException, IOException, TimeoutException {
-        FileInputStream fis = null;
+        FileChannel channel = null;
         byte[] msg;
 
         final int timeOut = DdmPreferences.getTimeOut();
@@ -636,8 +1253,8 @@ public class SyncService {
 
             File f = new File(localPath);
 
-            // create the stream to read the file
-            fis = new FileInputStream(f);
+            // open the channel to read the file
+            channel = new RandomAccessFile(f, "r").getChannel(); //$NON-NLS-1$
 
             // create the header for the action
             msg = createSendFileReq(ID_SEND, remotePathContent, 0644);
@@ -648,6 +1265,9 @@ public class SyncService {
 
             System.arraycopy(ID_DATA, 0, getBuffer(), 0, ID_DATA.length);
 
+            // the file is read directly after the 8 byte header.
+            ByteBuffer data = ByteBuffer.wrap(getBuffer());
+
             // look while there is something to read
             while (true) {
                 // check if we're canceled
@@ -656,7 +1276,8 @@ public class SyncService {
                 }
 
                 // read up to SYNC_DATA_MAX
-                int readCount = fis.read(getBuffer(), 8, SYNC_DATA_MAX);
+                data.position(8);
+                int readCount = channel.read(data);
 
                 if (readCount == -1) {
                     // we reached the end of the file
@@ -677,8 +1298,8 @@ public class SyncService {
             throw new SyncException(SyncError.REMOTE_PATH_ENCODING, e);
         } finally {
             // close the local file
-            if (fis != null) {
-                fis.close();
+            if (channel != null) {
+                channel.close();
             }
         }
 
@@ -884,4 +1505,11 @@ public class SyncService {
         }
         return mBuffer;
     }
+
+    private byte[] getBatchBuffer() {
+        if (mBatchBuffer == null) {
+            mBatchBuffer = new byte[BATCH_BUFFER_SIZE];
+        }
+        return mBatchBuffer;
+    }
 }
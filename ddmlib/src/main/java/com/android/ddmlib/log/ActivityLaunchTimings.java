@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.log;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.log.EventContainer.EventValueType;
+import com.android.ddmlib.log.EventValueDescription.ValueType;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The launch times of the activities, aggregated by component from {@link EventBatch}es of
+ * {@code am_activity_launch_time} events.
+ * <p/>The component and the launch time are found in the events through the descriptions of the
+ * tag: the first string value, and the first value in milliseconds.
+ */
+public final class ActivityLaunchTimings implements EventLogDecoder.IBatchListener {
+
+    /** Name of the tag of the activity launch events. */
+    public static final String LAUNCH_TIME_TAG_NAME = "am_activity_launch_time"; //$NON-NLS-1$
+
+    private final int mTag;
+    private final int mComponentIndex;
+    private final int mTimeIndex;
+
+    @NonNull
+    private final Map<String, Timing> mTimings = new HashMap<String, Timing>();
+    @NonNull
+    private final EventValueHistogram mHistogram;
+
+    /**
+     * The launch times of a component.
+     */
+    public static final class Timing {
+        private int mCount;
+        private long mTotalTime;
+        private long mMinTime = Long.MAX_VALUE;
+        private long mMaxTime;
+
+        private void add(long time) {
+            mCount++;
+            mTotalTime += time;
+            mMinTime = Math.min(mMinTime, time);
+            mMaxTime = Math.max(mMaxTime, time);
+        }
+
+        /**
+         * Returns the number of launches.
+         */
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * Returns the total time of the launches, in milliseconds.
+         */
+        public long getTotalTime() {
+            return mTotalTime;
+        }
+
+        public long getMinTime() {
+            return mMinTime;
+        }
+
+        public long getMaxTime() {
+            return mMaxTime;
+        }
+    }
+
+    /**
+     * Creates the timings.
+     * @param parser a parser initialized with the tags of the device. If it doesn't describe
+     *               the launch events, no launch is counted.
+     */
+    public ActivityLaunchTimings(@NonNull EventLogParser parser) {
+        int tag = -1;
+        for (Map.Entry<Integer, String> entry : parser.getTagMap().entrySet()) {
+            if (LAUNCH_TIME_TAG_NAME.equals(entry.getValue())) {
+                tag = entry.getKey();
+                break;
+            }
+        }
+
+        int componentIndex = -1;
+        int timeIndex = -1;
+        EventValueDescription[] descriptions = parser.getEventInfoMap().get(tag);
+        if (descriptions != null) {
+            for (int i = 0; i < descriptions.length; i++) {
+                EventValueDescription description = descriptions[i];
+                if (componentIndex == -1
+                        && description.getEventValueType() == EventValueType.STRING) {
+                    componentIndex = i;
+                } else if (timeIndex == -1
+                        && description.getValueType() == ValueType.MILLISECONDS) {
+                    timeIndex = i;
+                }
+            }
+        }
+
+        mTag = componentIndex != -1 && timeIndex != -1 ? tag : -1;
+        mComponentIndex = componentIndex;
+        mTimeIndex = timeIndex;
+        mHistogram = new EventValueHistogram(mTag, timeIndex);
+    }
+
+    @Override
+    public void eventsDecoded(@NonNull EventBatch batch) {
+        if (mTag == -1) {
+            return;
+        }
+        mHistogram.eventsDecoded(batch);
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.getTag(i) != mTag) {
+                continue;
+            }
+            int componentIndex = batch.getValueIndex(i, mComponentIndex, EventBatch.TYPE_STRING);
+            int timeIndex = batch.getValueIndex(i, mTimeIndex, EventBatch.TYPE_LONG);
+            if (timeIndex == -1) {
+                timeIndex = batch.getValueIndex(i, mTimeIndex, EventBatch.TYPE_INT);
+            }
+            if (componentIndex != -1 && timeIndex != -1) {
+                String component = batch.getStringAt(componentIndex);
+                Timing timing = mTimings.get(component);
+                if (timing == null) {
+                    timing = new Timing();
+                    mTimings.put(component, timing);
+                }
+                timing.add(batch.getLongAt(timeIndex));
+            }
+        }
+    }
+
+    /**
+     * Returns the launch times, by component.
+     */
+    @NonNull
+    public Map<String, Timing> getTimings() {
+        return Collections.unmodifiableMap(mTimings);
+    }
+
+    /**
+     * Returns the launch times of a component, or null if it wasn't launched.
+     */
+    @Nullable
+    public Timing getTiming(@NonNull String component) {
+        return mTimings.get(component);
+    }
+
+    /**
+     * Returns the histogram of the launch times of all the components, in milliseconds.
+     */
+    @NonNull
+    public EventValueHistogram getHistogram() {
+        return mHistogram;
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.log;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.log.EventContainer.EventValueType;
+
+import java.util.Arrays;
+
+/**
+ * A batch of events decoded by an {@link EventLogDecoder}, stored by column.
+ * <p/>Each event has a tag, pid, tid and timestamp, and a number of values. The values of an
+ * event are the values of its lists, flattened in order, so that they match the
+ * {@link EventValueDescription}s of its tag. Numerical values are stored as longs, and only
+ * strings are objects.
+ * <p/>The arrays of a batch are reused once it is {@link #clear() cleared}.
+ */
+public final class EventBatch {
+
+    /*
+     * Value types, matching EventValueType.getValue().
+     */
+    static final byte TYPE_INT = 1;
+    static final byte TYPE_LONG = 2;
+    static final byte TYPE_STRING = 3;
+
+    private final int mCapacity;
+    private int mSize;
+
+    /*
+     * The event columns.
+     */
+    @NonNull
+    private final int[] mTags;
+    @NonNull
+    private final int[] mPids;
+    @NonNull
+    private final int[] mTids;
+    @NonNull
+    private final long[] mTimestamps;
+    /** The index of the first value of each event, and the end of the values of the last one. */
+    @NonNull
+    private final int[] mValueStarts;
+
+    /*
+     * The value columns. The strings are null for the numerical values.
+     */
+    private int mValueCount;
+    @NonNull
+    private byte[] mValueTypes;
+    @NonNull
+    private long[] mValues;
+    @NonNull
+    private String[] mStrings;
+
+    /**
+     * Creates a batch.
+     * @param capacity the maximum number of events of the batch.
+     */
+    public EventBatch(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mCapacity = capacity;
+        mTags = new int[capacity];
+        mPids = new int[capacity];
+        mTids = new int[capacity];
+        mTimestamps = new long[capacity];
+        mValueStarts = new int[capacity + 1];
+
+        int valueCapacity = capacity * 4;
+        mValueTypes = new byte[valueCapacity];
+        mValues = new long[valueCapacity];
+        mStrings = new String[valueCapacity];
+    }
+
+    /**
+     * Returns the number of events of the batch.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns whether the batch can't receive more events.
+     */
+    public boolean isFull() {
+        return mSize == mCapacity;
+    }
+
+    /**
+     * Removes all the events, keeping the arrays for the next ones.
+     */
+    public void clear() {
+        // let go of the strings.
+        Arrays.fill(mStrings, 0, mValueCount, null);
+        mSize = 0;
+        mValueCount = 0;
+    }
+
+    public int getTag(int event) {
+        return mTags[checkEvent(event)];
+    }
+
+    public int getPid(int event) {
+        return mPids[checkEvent(event)];
+    }
+
+    public int getTid(int event) {
+        return mTids[checkEvent(event)];
+    }
+
+    /**
+     * Returns the time of an event, in nanoseconds since Epoch.
+     */
+    public long getTimestamp(int event) {
+        return mTimestamps[checkEvent(event)];
+    }
+
+    /**
+     * Returns the number of values of an event.
+     */
+    public int getValueCount(int event) {
+        return mValueStarts[checkEvent(event) + 1] - mValueStarts[event];
+    }
+
+    /**
+     * Returns the type of a value of an event: {@link EventValueType#INT},
+     * {@link EventValueType#LONG} or {@link EventValueType#STRING}.
+     */
+    @NonNull
+    public EventValueType getValueType(int event, int value) {
+        switch (mValueTypes[getValueIndex(event, value)]) {
+            case TYPE_INT:
+                return EventValueType.INT;
+            case TYPE_LONG:
+                return EventValueType.LONG;
+            default:
+                return EventValueType.STRING;
+        }
+    }
+
+    /**
+     * Returns a numerical value of an event.
+     * @throws InvalidTypeException if the value is a string.
+     */
+    public long getLong(int event, int value) throws InvalidTypeException {
+        int index = getValueIndex(event, value);
+        if (mValueTypes[index] == TYPE_STRING) {
+            throw new InvalidTypeException();
+        }
+        return mValues[index];
+    }
+
+    /**
+     * Returns a value of an event as a string, converting the numerical values.
+     */
+    @NonNull
+    public String getString(int event, int value) {
+        int index = getValueIndex(event, value);
+        if (mValueTypes[index] == TYPE_STRING) {
+            return mStrings[index];
+        }
+        return Long.toString(mValues[index]);
+    }
+
+    /**
+     * Returns the index of a tag value in the value columns, or -1 if the event has no such
+     * value or it is of another type. This is meant for aggregations, which check the type of
+     * the values of the events once.
+     */
+    int getValueIndex(int event, int value, byte type) {
+        int index = mValueStarts[event] + value;
+        if (value < 0 || index >= mValueStarts[event + 1] || mValueTypes[index] != type) {
+            return -1;
+        }
+        return index;
+    }
+
+    /** Returns a numerical value, by index in the value columns. */
+    long getLongAt(int index) {
+        return mValues[index];
+    }
+
+    /** Returns a string value, by index in the value columns. */
+    @Nullable
+    String getStringAt(int index) {
+        return mStrings[index];
+    }
+
+    /**
+     * Starts a new event. Its values are then added, and it is ended by {@link #endEvent()}.
+     */
+    void startEvent(int tag, int pid, int tid, long timestamp) {
+        if (mSize == mCapacity) {
+            throw new IllegalStateException("The batch is full");
+        }
+        mTags[mSize] = tag;
+        mPids[mSize] = pid;
+        mTids[mSize] = tid;
+        mTimestamps[mSize] = timestamp;
+        mValueStarts[mSize] = mValueCount;
+    }
+
+    void addLong(byte type, long value) {
+        int index = nextValue();
+        mValueTypes[index] = type;
+        mValues[index] = value;
+    }
+
+    void addString(@NonNull String value) {
+        int index = nextValue();
+        mValueTypes[index] = TYPE_STRING;
+        mStrings[index] = value;
+    }
+
+    void endEvent() {
+        mSize++;
+        mValueStarts[mSize] = mValueCount;
+    }
+
+    /**
+     * Removes the values of the started event, which is not added.
+     */
+    void cancelEvent() {
+        int start = mValueStarts[mSize];
+        Arrays.fill(mStrings, start, mValueCount, null);
+        mValueCount = start;
+    }
+
+    private int nextValue() {
+        if (mValueCount == mValues.length) {
+            int capacity = mValueCount * 2;
+            mValueTypes = Arrays.copyOf(mValueTypes, capacity);
+            mValues = Arrays.copyOf(mValues, capacity);
+            mStrings = Arrays.copyOf(mStrings, capacity);
+        }
+        return mValueCount++;
+    }
+
+    private int getValueIndex(int event, int value) {
+        int start = mValueStarts[checkEvent(event)];
+        if (value < 0 || start + value >= mValueStarts[event + 1]) {
+            throw new ArrayIndexOutOfBoundsException(value);
+        }
+        return start + value;
+    }
+
+    private int checkEvent(int event) {
+        if (event < 0 || event >= mSize) {
+            throw new ArrayIndexOutOfBoundsException(event);
+        }
+        return event;
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.log;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.log.LogReceiver.LogEntry;
+import com.android.ddmlib.utils.ArrayHelper;
+import com.google.common.base.Charsets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decoder of binary events into {@link EventBatch}es, without creating an
+ * {@link EventContainer} and boxed values per event.
+ * <p/>The value descriptions of the {@link EventLogParser} are compiled once into a decoder per
+ * tag, which reads the values in the layout expected from the descriptions. The events not
+ * matching the descriptions of their tag, and the events of tags without descriptions, are
+ * decoded from the types found in their data, as {@link EventLogParser#parse(LogEntry)} does.
+ * As with the parser, the GC events are decoded into the values described by
+ * {@link EventLogParser#getEventInfoMap()} rather than into their raw longs.
+ * <p/>Used as a {@link LogReceiver.ILogListener}, the decoder fills a batch, and gives it to its
+ * {@link IBatchListener}s each time it is full. A decoder is meant to be used by one thread at
+ * a time.
+ */
+public final class EventLogDecoder implements LogReceiver.ILogListener {
+
+    /*
+     * Binary event types, as in EventLogParser.
+     */
+    private static final int EVENT_TYPE_INT      = 0;
+    private static final int EVENT_TYPE_LONG     = 1;
+    private static final int EVENT_TYPE_STRING   = 2;
+    private static final int EVENT_TYPE_LIST     = 3;
+
+    /**
+     * Classes which implement this interface receive the batches of events decoded by an
+     * {@link EventLogDecoder}, for instance to aggregate them.
+     */
+    public interface IBatchListener {
+        /**
+         * Sent when a batch of events was decoded. The batch is reused once the listeners
+         * return, so they must not keep it.
+         * @param batch the decoded events.
+         */
+        void eventsDecoded(@NonNull EventBatch batch);
+    }
+
+    /**
+     * The layout of the events of a tag.
+     */
+    private static final class TagDecoder {
+        final int mTag;
+        /** The binary types of the values. */
+        @NonNull
+        final byte[] mTypes;
+        /** Whether the values are in a list, rather than a single value. */
+        final boolean mIsList;
+
+        TagDecoder(int tag, @NonNull EventValueDescription[] descriptions) {
+            mTag = tag;
+            mIsList = descriptions.length > 1;
+            mTypes = new byte[descriptions.length];
+            for (int i = 0; i < descriptions.length; i++) {
+                mTypes[i] = getBinaryType(descriptions[i].getEventValueType());
+            }
+        }
+
+        /**
+         * Decodes the values of an event, or returns false if they don't match the layout.
+         */
+        boolean decode(@NonNull byte[] data, int offset, @NonNull EventBatch batch) {
+            int length = data.length;
+            if (mIsList) {
+                if (length - offset < 2 || data[offset] != EVENT_TYPE_LIST
+                        || data[offset + 1] != mTypes.length) {
+                    return false;
+                }
+                offset += 2;
+            }
+
+            for (byte type : mTypes) {
+                if (length - offset < 1 || data[offset++] != type) {
+                    return false;
+                }
+                switch (type) {
+                    case EVENT_TYPE_INT:
+                        if (length - offset < 4) {
+                            return false;
+                        }
+                        batch.addLong(EventBatch.TYPE_INT,
+                                ArrayHelper.swap32bitFromArray(data, offset));
+                        offset += 4;
+                        break;
+                    case EVENT_TYPE_LONG:
+                        if (length - offset < 8) {
+                            return false;
+                        }
+                        batch.addLong(EventBatch.TYPE_LONG,
+                                ArrayHelper.swap64bitFromArray(data, offset));
+                        offset += 8;
+                        break;
+                    default:
+                        offset = decodeString(data, offset, batch);
+                        if (offset == -1) {
+                            return false;
+                        }
+                        break;
+                }
+            }
+            return true;
+        }
+    }
+
+    /** The decoders by tag, in an open addressing table whose length is a power of 2. */
+    @NonNull
+    private final TagDecoder[] mDecoders;
+
+    /** The raw longs of a GC event, and its decoded values. */
+    @NonNull
+    private final long[] mGcData = new long[4];
+    @NonNull
+    private final long[] mGcValues = new long[GcEventContainer.VALUE_COUNT];
+
+    @Nullable
+    private final EventBatch mBatch;
+    @NonNull
+    private final List<IBatchListener> mListeners = new ArrayList<IBatchListener>();
+
+    /**
+     * Creates a decoder, to use with {@link #decode(LogEntry, EventBatch)}.
+     * @param parser a parser initialized with the tags of the device.
+     */
+    public EventLogDecoder(@NonNull EventLogParser parser) {
+        this(parser, null);
+    }
+
+    /**
+     * Creates a decoder, to receive the events from a {@link LogReceiver}.
+     * @param parser a parser initialized with the tags of the device.
+     * @param batchSize the number of events given to the listeners at a time.
+     */
+    public EventLogDecoder(@NonNull EventLogParser parser, int batchSize) {
+        this(parser, new EventBatch(batchSize));
+    }
+
+    private EventLogDecoder(@NonNull EventLogParser parser, @Nullable EventBatch batch) {
+        mBatch = batch;
+
+        Map<Integer, EventValueDescription[]> descriptions = parser.getEventInfoMap();
+        int capacity = 16;
+        while (capacity < descriptions.size() * 2) {
+            capacity <<= 1;
+        }
+        mDecoders = new TagDecoder[capacity];
+        for (Map.Entry<Integer, EventValueDescription[]> entry : descriptions.entrySet()) {
+            int tag = entry.getKey();
+            // the GC events are decoded from their raw longs.
+            if (tag != GcEventContainer.GC_EVENT_TAG) {
+                int slot = tag & (capacity - 1);
+                while (mDecoders[slot] != null) {
+                    slot = (slot + 1) & (capacity - 1);
+                }
+                mDecoders[slot] = new TagDecoder(tag, entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Adds a listener receiving the batches of decoded events.
+     */
+    public void addBatchListener(@NonNull IBatchListener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * Decodes an event received by a {@link LogReceiver}, and gives the batch of events to the
+     * listeners if it is full.
+     * @throws IllegalStateException if the decoder was created without batch.
+     */
+    @Override
+    public void newEntry(@NonNull LogEntry entry) {
+        if (mBatch == null) {
+            throw new IllegalStateException("The decoder has no batch");
+        }
+        if (decode(entry, mBatch) && mBatch.isFull()) {
+            flush();
+        }
+    }
+
+    @Override
+    public void newData(byte[] data, int offset, int length) {
+        // the events are decoded from the entries.
+    }
+
+    /**
+     * Gives the events decoded since the last batch to the listeners, for instance once the
+     * log is read.
+     */
+    public void flush() {
+        if (mBatch != null && mBatch.size() > 0) {
+            for (IBatchListener listener : mListeners) {
+                listener.eventsDecoded(mBatch);
+            }
+            mBatch.clear();
+        }
+    }
+
+    /**
+     * Decodes an event, and adds it to a batch.
+     * @return true if the event was added, false if its data is invalid.
+     * @throws IllegalStateException if the batch is full.
+     */
+    public boolean decode(@NonNull LogEntry entry, @NonNull EventBatch batch) {
+        if (entry.len < 4) {
+            return false;
+        }
+
+        byte[] data = entry.data;
+        int tag = ArrayHelper.swap32bitFromArray(data, 0);
+        batch.startEvent(tag, entry.pid, entry.tid, entry.sec * 1000000000L + entry.nsec);
+
+        boolean decoded;
+        if (tag == GcEventContainer.GC_EVENT_TAG) {
+            decoded = decodeGcEvent(data, batch);
+        } else {
+            TagDecoder decoder = getDecoder(tag);
+            decoded = decoder != null && decoder.decode(data, 4, batch);
+        }
+
+        if (!decoded) {
+            batch.cancelEvent();
+            decoded = decodeValue(data, 4, batch) != -1;
+        }
+
+        if (!decoded) {
+            batch.cancelEvent();
+            return false;
+        }
+        batch.endEvent();
+        return true;
+    }
+
+    /**
+     * Decodes the raw longs of a GC event into the values described by
+     * {@link GcEventContainer#getValueDescriptions()}.
+     */
+    private boolean decodeGcEvent(@NonNull byte[] data, @NonNull EventBatch batch) {
+        int offset = 4;
+        if (data.length - offset < 2 || data[offset] != EVENT_TYPE_LIST) {
+            return false;
+        }
+        int count = data[offset + 1];
+        if (count < 1 || count > mGcData.length) {
+            return false;
+        }
+        offset += 2;
+        for (int i = 0; i < count; i++) {
+            if (data.length - offset < 9 || data[offset] != EVENT_TYPE_LONG) {
+                return false;
+            }
+            mGcData[i] = ArrayHelper.swap64bitFromArray(data, offset + 1);
+            offset += 9;
+        }
+
+        Arrays.fill(mGcValues, 0);
+        for (int i = 0; i < count; i++) {
+            GcEventContainer.parseDvmHeapInfo(mGcData[i], i, mGcValues);
+        }
+        batch.addString(GcEventContainer.getProcessId(mGcData[0]));
+        for (int i = 1; i < mGcValues.length; i++) {
+            batch.addLong(EventBatch.TYPE_LONG, mGcValues[i]);
+        }
+        return true;
+    }
+
+    @Nullable
+    private TagDecoder getDecoder(int tag) {
+        int mask = mDecoders.length - 1;
+        int slot = tag & mask;
+        TagDecoder decoder;
+        while ((decoder = mDecoders[slot]) != null) {
+            if (decoder.mTag == tag) {
+                return decoder;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Decodes a value from the types found in the data, flattening the lists.
+     * @return the offset after the value, or -1 if the data is invalid.
+     */
+    private static int decodeValue(@NonNull byte[] data, int offset,
+            @NonNull EventBatch batch) {
+        if (data.length - offset < 1) {
+            return -1;
+        }
+
+        int type = data[offset++];
+        switch (type) {
+            case EVENT_TYPE_INT:
+                if (data.length - offset < 4) {
+                    return -1;
+                }
+                batch.addLong(EventBatch.TYPE_INT, ArrayHelper.swap32bitFromArray(data, offset));
+                return offset + 4;
+            case EVENT_TYPE_LONG:
+                if (data.length - offset < 8) {
+                    return -1;
+                }
+                batch.addLong(EventBatch.TYPE_LONG, ArrayHelper.swap64bitFromArray(data, offset));
+                return offset + 8;
+            case EVENT_TYPE_STRING:
+                return decodeString(data, offset, batch);
+            case EVENT_TYPE_LIST:
+                if (data.length - offset < 1) {
+                    return -1;
+                }
+                int count = data[offset++];
+                for (int i = 0; i < count && offset != -1; i++) {
+                    offset = decodeValue(data, offset, batch);
+                }
+                return offset;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Decodes a string, after its type.
+     * @return the offset after the string, or -1 if the data is invalid.
+     */
+    private static int decodeString(@NonNull byte[] data, int offset,
+            @NonNull EventBatch batch) {
+        if (data.length - offset < 4) {
+            return -1;
+        }
+        int length = ArrayHelper.swap32bitFromArray(data, offset);
+        offset += 4;
+        if (length < 0 || data.length - offset < length) {
+            return -1;
+        }
+        batch.addString(new String(data, offset, length, Charsets.UTF_8));
+        return offset + length;
+    }
+
+    private static byte getBinaryType(@Nullable EventContainer.EventValueType type) {
+        if (type == null) {
+            // an unknown type in the tag file: no event matches the layout.
+            return -1;
+        }
+        switch (type) {
+            case INT:
+                return EVENT_TYPE_INT;
+            case LONG:
+                return EVENT_TYPE_LONG;
+            case STRING:
+                return EVENT_TYPE_STRING;
+            default:
+                // not a value type: no event matches the layout.
+                return -1;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.log;
+
+import com.android.annotations.NonNull;
+
+/**
+ * Histogram of a numerical value of the events of a tag, aggregated from {@link EventBatch}es.
+ * <p/>The values are counted in buckets of powers of 2: bucket 0 counts the values lower than 1,
+ * and bucket {@code i} the values from 2<sup>i-1</sup> to 2<sup>i</sup> - 1.
+ */
+public final class EventValueHistogram implements EventLogDecoder.IBatchListener {
+
+    /** Number of buckets, enough for all the positive longs. */
+    public static final int BUCKET_COUNT = 64;
+
+    private final int mTag;
+    private final int mValueIndex;
+
+    @NonNull
+    private final long[] mBuckets = new long[BUCKET_COUNT];
+    private long mCount;
+    private long mTotal;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = Long.MIN_VALUE;
+
+    /**
+     * Creates a histogram.
+     * @param tag the tag of the events.
+     * @param valueIndex the index of the value in the {@link EventValueDescription}s of the tag.
+     */
+    public EventValueHistogram(int tag, int valueIndex) {
+        mTag = tag;
+        mValueIndex = valueIndex;
+    }
+
+    /**
+     * Creates a histogram of the duration of the GCs, in milliseconds.
+     */
+    @NonNull
+    public static EventValueHistogram createGcPauseHistogram() {
+        return new EventValueHistogram(GcEventContainer.GC_EVENT_TAG,
+                GcEventContainer.GC_TIME_INDEX);
+    }
+
+    @Override
+    public void eventsDecoded(@NonNull EventBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.getTag(i) == mTag) {
+                int index = batch.getValueIndex(i, mValueIndex, EventBatch.TYPE_LONG);
+                if (index == -1) {
+                    index = batch.getValueIndex(i, mValueIndex, EventBatch.TYPE_INT);
+                }
+                if (index != -1) {
+                    add(batch.getLongAt(index));
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a value to the histogram.
+     */
+    public void add(long value) {
+        mBuckets[getBucket(value)]++;
+        mCount++;
+        mTotal += value;
+        mMin = Math.min(mMin, value);
+        mMax = Math.max(mMax, value);
+    }
+
+    /**
+     * Returns the number of values.
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the sum of the values.
+     */
+    public long getTotal() {
+        return mTotal;
+    }
+
+    /**
+     * Returns the lowest value, or {@link Long#MAX_VALUE} if there is none.
+     */
+    public long getMin() {
+        return mMin;
+    }
+
+    /**
+     * Returns the highest value, or {@link Long#MIN_VALUE} if there is none.
+     */
+    public long getMax() {
+        return mMax;
+    }
+
+    /**
+     * Returns the number of values of a bucket.
+     */
+    public long getBucketCount(int bucket) {
+        return mBuckets[bucket];
+    }
+
+    /**
+     * Returns the highest value counted by a bucket.
+     */
+    public static long getBucketUpperBound(int bucket) {
+        return (1L << bucket) - 1;
+    }
+
+    /**
+     * Returns an upper bound of a percentile of the values: the highest value of the bucket
+     * containing it, bounded by the highest value.
+     * @param percentile the percentile, from 0 to 100.
+     */
+    public long getPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(mCount * percentile / 100);
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += mBuckets[i];
+            if (count >= rank && count > 0) {
+                return Math.min(getBucketUpperBound(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    private static int getBucket(long value) {
+        return value < 1 ? 0 : BUCKET_COUNT - Long.numberOfLeadingZeros(value);
+    }
+}
@@ -30,23 +30,34 @@ final class GcEventContainer extends EventContainer {
     
     public static final int GC_EVENT_TAG = 20001;
 
+    /** Index of the GC time in the values of {@link #getValueDescriptions()}. */
+    static final int GC_TIME_INDEX = 1;
+    /** Number of values of {@link #getValueDescriptions()}. */
+    static final int VALUE_COUNT = 21;
+
+    /*
+     * Indices of the other values, as described by getValueDescriptions().
+     */
+    private static final int OBJECTS_FREED_INDEX = 2;
+    private static final int BYTES_FREED_INDEX = 3;
+    private static final int SOFT_LIMIT_INDEX = 4;
+    private static final int ACTUAL_SIZE_INDEX = 5;
+    private static final int ALLOWED_SIZE_INDEX = 6;
+    private static final int OBJECTS_ALLOCATED_INDEX = 7;
+    private static final int BYTES_ALLOCATED_INDEX = 8;
+    private static final int NON_ZYGOTE_ACTUAL_SIZE_INDEX = 9;
+    private static final int Z_ACTUAL_SIZE_INDEX = 13;
+    private static final int Z_ALLOWED_SIZE_INDEX = 14;
+    private static final int Z_OBJECTS_ALLOCATED_INDEX = 15;
+    private static final int Z_BYTES_ALLOCATED_INDEX = 16;
+    private static final int EXTERNAL_LIMIT_INDEX = 17;
+    private static final int EXTERNAL_BYTES_ALLOCATED_INDEX = 18;
+    private static final int DLMALLOC_FOOTPRINT_INDEX = 19;
+    private static final int MALLINFO_INDEX = 20;
+
     private String processId;
-    private long gcTime;
-    private long bytesFreed;
-    private long objectsFreed;
-    private long actualSize;
-    private long allowedSize;
-    private long softLimit;
-    private long objectsAllocated;
-    private long bytesAllocated;
-    private long zActualSize;
-    private long zAllowedSize;
-    private long zObjectsAllocated;
-    private long zBytesAllocated;
-    private long dlmallocFootprint;
-    private long mallinfoTotalAllocatedSpace;
-    private long externalLimit;
-    private long externalBytesAllocated;
+    /** The values, by index in {@link #getValueDescriptions()}. The first one is unused. */
+    private final long[] mValues = new long[VALUE_COUNT];
 
     GcEventContainer(LogEntry entry, int tag, Object data) {
         super(entry, tag, data);
@@ -66,7 +77,10 @@ final class GcEventContainer extends EventContainer {
             Object[] values = (Object[])data;
             for (int i = 0; i < values.length; i++) {
                 if (values[i] instanceof Long) {
-                    parseDvmHeapInfo((Long)values[i], i);
+                    parseDvmHeapInfo((Long)values[i], i, mValues);
+                    if (i == 0) {
+                        processId = getProcessId((Long)values[i]);
+                    }
                 }
             }
         }
@@ -202,24 +216,23 @@ final class GcEventContainer extends EventContainer {
         return null;
     }
 
-    private void parseDvmHeapInfo(long data, int index) {
+    /**
+     * Decodes one of the longs of a GC event into the values described by
+     * {@link #getValueDescriptions()}, except for the process name.
+     * @param data the long to decode.
+     * @param index the index of the long in the event.
+     * @param values the values, by index in {@link #getValueDescriptions()}.
+     */
+    static void parseDvmHeapInfo(long data, int index, long[] values) {
         switch (index) {
             case 0:
                 //    [63   ] Must be zero
                 //    [62-24] ASCII process identifier
                 //    [23-12] GC time in ms
                 //    [11- 0] Bytes freed
-                
-                gcTime = float12ToInt((int)((data >> 12) & 0xFFFL));
-                bytesFreed = float12ToInt((int)(data & 0xFFFL));
-                
-                // convert the long into an array, in the proper order so that we can convert the
-                // first 5 char into a string.
-                byte[] dataArray = new byte[8];
-                put64bitsToArray(data, dataArray, 0);
-                
-                // get the name from the string
-                processId = new String(dataArray, 0, 5);
+
+                values[GC_TIME_INDEX] = float12ToInt((int)((data >> 12) & 0xFFFL));
+                values[BYTES_FREED_INDEX] = float12ToInt((int)(data & 0xFFFL));
                 break;
             case 1:
                 //    [63-62] 10
@@ -229,11 +242,11 @@ final class GcEventContainer extends EventContainer {
                 //    [35-24] Allowed size (current hard max)
                 //    [23-12] Objects allocated
                 //    [11- 0] Bytes allocated
-                objectsFreed = float12ToInt((int)((data >> 48) & 0xFFFL));
-                actualSize = float12ToInt((int)((data >> 36) & 0xFFFL));
-                allowedSize = float12ToInt((int)((data >> 24) & 0xFFFL));
-                objectsAllocated = float12ToInt((int)((data >> 12) & 0xFFFL));
-                bytesAllocated = float12ToInt((int)(data & 0xFFFL));
+                values[OBJECTS_FREED_INDEX] = float12ToInt((int)((data >> 48) & 0xFFFL));
+                values[ACTUAL_SIZE_INDEX] = float12ToInt((int)((data >> 36) & 0xFFFL));
+                values[ALLOWED_SIZE_INDEX] = float12ToInt((int)((data >> 24) & 0xFFFL));
+                values[OBJECTS_ALLOCATED_INDEX] = float12ToInt((int)((data >> 12) & 0xFFFL));
+                values[BYTES_ALLOCATED_INDEX] = float12ToInt((int)(data & 0xFFFL));
                 break;
             case 2:
                 //    [63-62] 11
@@ -243,11 +256,11 @@ final class GcEventContainer extends EventContainer {
                 //    [35-24] Allowed size (current hard max)
                 //    [23-12] Objects allocated
                 //    [11- 0] Bytes allocated
-                softLimit = float12ToInt((int)((data >> 48) & 0xFFFL));
-                zActualSize = float12ToInt((int)((data >> 36) & 0xFFFL));
-                zAllowedSize = float12ToInt((int)((data >> 24) & 0xFFFL));
-                zObjectsAllocated = float12ToInt((int)((data >> 12) & 0xFFFL));
-                zBytesAllocated = float12ToInt((int)(data & 0xFFFL));
+                values[SOFT_LIMIT_INDEX] = float12ToInt((int)((data >> 48) & 0xFFFL));
+                values[Z_ACTUAL_SIZE_INDEX] = float12ToInt((int)((data >> 36) & 0xFFFL));
+                values[Z_ALLOWED_SIZE_INDEX] = float12ToInt((int)((data >> 24) & 0xFFFL));
+                values[Z_OBJECTS_ALLOCATED_INDEX] = float12ToInt((int)((data >> 12) & 0xFFFL));
+                values[Z_BYTES_ALLOCATED_INDEX] = float12ToInt((int)(data & 0xFFFL));
                 break;
             case 3:
                 //    [63-48] Reserved; must be zero
@@ -255,16 +268,35 @@ final class GcEventContainer extends EventContainer {
                 //    [35-24] mallinfo: total allocated space
                 //    [23-12] External byte limit
                 //    [11- 0] External bytes allocated
-                dlmallocFootprint = float12ToInt((int)((data >> 36) & 0xFFFL));
-                mallinfoTotalAllocatedSpace = float12ToInt((int)((data >> 24) & 0xFFFL));
-                externalLimit = float12ToInt((int)((data >> 12) & 0xFFFL));
-                externalBytesAllocated = float12ToInt((int)(data & 0xFFFL));
+                values[DLMALLOC_FOOTPRINT_INDEX] = float12ToInt((int)((data >> 36) & 0xFFFL));
+                values[MALLINFO_INDEX] = float12ToInt((int)((data >> 24) & 0xFFFL));
+                values[EXTERNAL_LIMIT_INDEX] = float12ToInt((int)((data >> 12) & 0xFFFL));
+                values[EXTERNAL_BYTES_ALLOCATED_INDEX] = float12ToInt((int)(data & 0xFFFL));
                 break;
             default:
-                break;
+                return;
+        }
+
+        // the sizes and allocations outside of the zygote, in the same order.
+        for (int i = 0; i < 4; i++) {
+            values[NON_ZYGOTE_ACTUAL_SIZE_INDEX + i] =
+                    values[ACTUAL_SIZE_INDEX + i] - values[Z_ACTUAL_SIZE_INDEX + i];
         }
     }
-    
+
+    /**
+     * Returns the process name encoded in the first long of a GC event.
+     */
+    static String getProcessId(long data) {
+        // convert the long into an array, in the proper order so that we can convert the
+        // first 5 char into a string.
+        byte[] dataArray = new byte[8];
+        put64bitsToArray(data, dataArray, 0);
+
+        // get the name from the string
+        return new String(dataArray, 0, 5);
+    }
+
     /**
      * Converts a 12 bit float representation into an unsigned int (returned as a long)
      * @param f12
@@ -297,51 +329,13 @@ final class GcEventContainer extends EventContainer {
      * @throws InvalidTypeException if index is 0 as it is a string value.
      */
     private final long getValueAsLong(int valueIndex) throws InvalidTypeException {
-        switch (valueIndex) {
-            case 0:
-                throw new InvalidTypeException();
-            case 1:
-                return gcTime;
-            case 2:
-                return objectsFreed;
-            case 3:
-                return bytesFreed;
-            case 4:
-                return softLimit;
-            case 5:
-                return actualSize;
-            case 6:
-                return allowedSize;
-            case 7:
-                return objectsAllocated;
-            case 8:
-                return bytesAllocated;
-            case 9:
-                return actualSize - zActualSize;
-            case 10:
-                return allowedSize - zAllowedSize;
-            case 11:
-                return objectsAllocated - zObjectsAllocated;
-            case 12:
-                return bytesAllocated - zBytesAllocated;
-            case 13:
-               return zActualSize;
-            case 14:
-                return zAllowedSize;
-            case 15:
-                return zObjectsAllocated;
-            case 16:
-                return zBytesAllocated;
-            case 17:
-                return externalLimit;
-            case 18:
-                return externalBytesAllocated;
-            case 19:
-                return dlmallocFootprint;
-            case 20:
-                return mallinfoTotalAllocatedSpace;
+        if (valueIndex == 0) {
+            throw new InvalidTypeException();
+        }
+        if (valueIndex < 0 || valueIndex >= VALUE_COUNT) {
+            throw new ArrayIndexOutOfBoundsException();
         }
 
-        throw new ArrayIndexOutOfBoundsException();
+        return mValues[valueIndex];
     }
 }
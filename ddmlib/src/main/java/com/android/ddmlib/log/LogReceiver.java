@@ -89,6 +89,9 @@ public final class LogReceiver {
     /** Listener waiting for receive fully read {@link LogEntry} objects */
     private ILogListener mListener;
 
+    /** Whether the data is parsed into {@link LogEntry} objects. */
+    private final boolean mParseEntries;
+
     private boolean mIsCancelled = false;
     
     /**
@@ -99,7 +102,19 @@ public final class LogReceiver {
      * @param listener the listener to receive new log entries.
      */
     public LogReceiver(ILogListener listener) {
+        this(listener, true);
+    }
+
+    /**
+     * Creates a {@link LogReceiver} with an {@link ILogListener}, which may only be interested
+     * in the raw data.
+     * @param listener the listener to receive the log data.
+     * @param parseEntries whether the listener receives new log entries. If false, the data is
+     * only passed on to {@link ILogListener#newData(byte[], int, int)}, and isn't parsed.
+     */
+    public LogReceiver(ILogListener listener, boolean parseEntries) {
         mListener = listener;
+        mParseEntries = parseEntries;
     }
     
 
@@ -115,6 +130,10 @@ public final class LogReceiver {
             mListener.newData(data, offset, length);
         }
 
+        if (!mParseEntries) {
+            return;
+        }
+
         // loop while there is still data to be read and the receiver has not be cancelled.
         while (length > 0 && !mIsCancelled) {
             // first check if we have no current entry.
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.logcat;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.utils.ArrayHelper;
+import com.google.common.base.Charsets;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Class to parse the binary output of {@code logcat -B}, or of the {@code log:} adb service, to
+ * {@link LogCatMessage} objects.
+ * <p/>The output is a sequence of logger entries: a header giving the length of the payload, the
+ * pid, tid and time of the entry, followed by the payload made of the priority, the tag and the
+ * message. The fields are read at fixed offsets, so unlike {@link LogCatMessageParser} no
+ * regular expression is run, and tags are looked up in a cache by their bytes instead of being
+ * decoded for each entry.
+ * <p/>Entries may be split across calls to {@link #processBinaryLogData}. As with the text
+ * output, a message spanning several lines results in one {@link LogCatMessage} per line.
+ */
+public final class LogCatBinaryParser {
+    /** Size of the header of version 1 entries, which don't specify their header size. */
+    private static final int ENTRY_HEADER_SIZE_V1 = 20;
+
+    /** Length of the payload, and of the header, needed to get the size of an entry. */
+    private static final int ENTRY_SIZE_FIELDS = 4;
+
+    private static final LogLevel[] sLevels = new LogLevel[8];
+    static {
+        for (LogLevel level : LogLevel.values()) {
+            sLevels[level.getPriority()] = level;
+        }
+    }
+
+    /** Start of the entry split across calls, stored for the next call. */
+    private byte[] mPending = new byte[1024];
+    private int mPendingLength;
+
+    private final TagCache mTags = new TagCache();
+
+    private final SimpleDateFormat mTimeFormat =
+            new SimpleDateFormat("MM-dd HH:mm:ss", Locale.US); //$NON-NLS-1$
+    private int mLastSec = -1;
+    private String mLastSecText;
+    private int mLastMs = -1;
+    private String mLastTime;
+
+    private int mLastPid = -1;
+    private String mLastPidText;
+    private int mLastTid = -1;
+    private String mLastTidText;
+
+    /**
+     * Parses binary log data into {@link LogCatMessage} objects.
+     * @param data the data buffer
+     * @param offset the offset of the new data in the buffer
+     * @param length the length of the new data
+     * @param device device from which these log messages have been received
+     * @return the messages of the entries completed by the new data
+     */
+    @NonNull
+    public List<LogCatMessage> processBinaryLogData(@NonNull byte[] data, int offset,
+            int length, @Nullable IDevice device) {
+        List<LogCatMessage> messages = new ArrayList<LogCatMessage>();
+        int end = offset + length;
+        while (offset < end) {
+            if (mPendingLength > 0) {
+                // complete the size fields first, then the entry.
+                int size = mPendingLength < ENTRY_SIZE_FIELDS
+                        ? ENTRY_SIZE_FIELDS : getEntrySize(mPending, 0);
+                int count = Math.min(size - mPendingLength, end - offset);
+                appendPending(data, offset, count);
+                offset += count;
+                if (mPendingLength >= ENTRY_SIZE_FIELDS
+                        && mPendingLength == getEntrySize(mPending, 0)) {
+                    mPendingLength = 0;
+                    processEntry(mPending, 0, device, messages);
+                }
+            } else if (end - offset < ENTRY_SIZE_FIELDS
+                    || end - offset < getEntrySize(data, offset)) {
+                appendPending(data, offset, end - offset);
+                offset = end;
+            } else {
+                processEntry(data, offset, device, messages);
+                offset += getEntrySize(data, offset);
+            }
+        }
+
+        return messages;
+    }
+
+    private static int getHeaderSize(@NonNull byte[] data, int offset) {
+        // version 1 entries have 2 bytes of padding instead of the header size.
+        int headerSize = ArrayHelper.swapU16bitFromArray(data, offset + 2);
+        return Math.max(headerSize, ENTRY_HEADER_SIZE_V1);
+    }
+
+    private static int getEntrySize(@NonNull byte[] data, int offset) {
+        return getHeaderSize(data, offset) + ArrayHelper.swapU16bitFromArray(data, offset);
+    }
+
+    private void processEntry(@NonNull byte[] data, int offset, @Nullable IDevice device,
+            @NonNull List<LogCatMessage> messages) {
+        int payloadLength = ArrayHelper.swapU16bitFromArray(data, offset);
+        int payload = offset + getHeaderSize(data, offset);
+        int payloadEnd = payload + payloadLength;
+        if (payloadLength < 2) {
+            // not even a priority and an empty tag.
+            return;
+        }
+
+        int pid = ArrayHelper.swap32bitFromArray(data, offset + 4);
+        int tid = ArrayHelper.swap32bitFromArray(data, offset + 8);
+        int sec = ArrayHelper.swap32bitFromArray(data, offset + 12);
+        int nsec = ArrayHelper.swap32bitFromArray(data, offset + 16);
+
+        int priority = data[payload];
+        LogLevel level = sLevels[Math.max(Math.min(priority, sLevels.length - 1),
+                LogLevel.VERBOSE.getPriority())];
+
+        int tagStart = payload + 1;
+        int tagEnd = indexOf(data, (byte) 0, tagStart, payloadEnd);
+        String tag = mTags.get(data, tagStart, tagEnd);
+        int messageEnd = indexOf(data, (byte) 0, Math.min(tagEnd + 1, payloadEnd), payloadEnd);
+
+        String pidText = getPidText(pid);
+        String tidText = getTidText(tid);
+        String time = getTime(sec, nsec);
+        String appName = ""; //$NON-NLS-1$
+        if (device != null) {
+            appName = device.getClientName(pid);
+        }
+
+        // one message per line, skipping empty lines like the text output.
+        int lineStart = tagEnd + 1;
+        while (lineStart < messageEnd) {
+            int lineEnd = indexOf(data, (byte) '\n', lineStart, messageEnd);
+            if (lineEnd > lineStart) {
+                String line = new String(data, lineStart, lineEnd - lineStart, Charsets.UTF_8);
+                messages.add(new LogCatMessage(level, pidText, tidText, appName, tag, time,
+                        line));
+            }
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    private static int indexOf(@NonNull byte[] data, byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    @NonNull
+    private String getPidText(int pid) {
+        if (pid != mLastPid || mLastPidText == null) {
+            mLastPid = pid;
+            mLastPidText = Integer.toString(pid);
+        }
+        return mLastPidText;
+    }
+
+    @NonNull
+    private String getTidText(int tid) {
+        if (tid != mLastTid || mLastTidText == null) {
+            mLastTid = tid;
+            mLastTidText = Integer.toString(tid);
+        }
+        return mLastTidText;
+    }
+
+    /**
+     * Returns the time of an entry in the format of {@code logcat -v long}, in the local time
+     * zone.
+     */
+    @NonNull
+    private String getTime(int sec, int nsec) {
+        int ms = nsec / 1000000;
+        if (sec != mLastSec || mLastSecText == null) {
+            mLastSec = sec;
+            mLastSecText = mTimeFormat.format(new Date(sec * 1000L));
+            mLastMs = -1;
+        }
+        if (ms != mLastMs) {
+            mLastMs = ms;
+            StringBuilder sb = new StringBuilder(mLastSecText.length() + 4);
+            sb.append(mLastSecText).append('.');
+            if (ms < 100) {
+                sb.append('0');
+            }
+            if (ms < 10) {
+                sb.append('0');
+            }
+            mLastTime = sb.append(ms).toString();
+        }
+        return mLastTime;
+    }
+
+    private void appendPending(@NonNull byte[] data, int offset, int length) {
+        if (mPendingLength + length > mPending.length) {
+            byte[] pending = new byte[Math.max(mPending.length * 2, mPendingLength + length)];
+            System.arraycopy(mPending, 0, pending, 0, mPendingLength);
+            mPending = pending;
+        }
+        System.arraycopy(data, offset, mPending, mPendingLength, length);
+        mPendingLength += length;
+    }
+
+    /**
+     * A direct mapped cache of the decoded tags, indexed by a hash of their bytes.
+     */
+    private static final class TagCache {
+        private static final int SIZE = 512;
+
+        private final byte[][] mKeys = new byte[SIZE][];
+        private final String[] mTags = new String[SIZE];
+
+        @NonNull
+        String get(@NonNull byte[] data, int from, int to) {
+            int hash = 0;
+            for (int i = from; i < to; i++) {
+                hash = 31 * hash + data[i];
+            }
+            int slot = (hash ^ (hash >>> 16)) & (SIZE - 1);
+
+            byte[] key = mKeys[slot];
+            if (key != null && key.length == to - from) {
+                int i = 0;
+                while (i < key.length && key[i] == data[from + i]) {
+                    i++;
+                }
+                if (i == key.length) {
+                    return mTags[slot];
+                }
+            }
+
+            key = new byte[to - from];
+            System.arraycopy(data, from, key, 0, key.length);
+            // like the text output, the tag is trimmed.
+            String tag = new String(key, Charsets.UTF_8).trim();
+            mKeys[slot] = key;
+            mTags[slot] = tag;
+            return tag;
+        }
+    }
+}
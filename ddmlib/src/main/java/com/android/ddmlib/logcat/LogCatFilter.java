@@ -16,6 +16,7 @@
 package com.android.ddmlib.logcat;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.ddmlib.Log.LogLevel;
 
 import java.util.ArrayList;
@@ -186,6 +187,24 @@ public final class LogCatFilter {
         return mLogLevel;
     }
 
+    /** Returns the app name pattern, or null if the app name isn't checked. */
+    @Nullable
+    Pattern getAppNamePattern() {
+        return mCheckAppName ? mAppNamePattern : null;
+    }
+
+    /** Returns the tag pattern, or null if the tag isn't checked. */
+    @Nullable
+    Pattern getTagPattern() {
+        return mCheckTag ? mTagPattern : null;
+    }
+
+    /** Returns the text pattern, or null if the text isn't checked. */
+    @Nullable
+    Pattern getTextPattern() {
+        return mCheckText ? mTextPattern : null;
+    }
+
     /**
      * Check whether a given message will make it through this filter.
      * @param m message to check
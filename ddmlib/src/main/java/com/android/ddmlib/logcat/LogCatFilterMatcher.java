@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.logcat;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Matches messages against several {@link LogCatFilter} objects at once, giving the same
+ * results as {@link LogCatFilter#matches(LogCatMessage)} for each of them.
+ * <p/>Each field of a message is checked once for all the filters:
+ * <ul>
+ * <li>the filters checking the pid are looked up by the pid of the message.</li>
+ * <li>the app name and tag patterns are only run once for each distinct app name and tag, and
+ * the filters they match are then looked up by the name.</li>
+ * <li>the text patterns which are plain words, as typed in a search bar, are searched for all
+ * at once with a single automaton. Only the other text patterns are run as regular
+ * expressions.</li>
+ * </ul>
+ * <p/>This class isn't thread safe.
+ */
+public final class LogCatFilterMatcher {
+    /** Number of distinct app names or tags after which their cached matches are cleared. */
+    private static final int MAX_CACHED_NAMES = 4096;
+
+    private final List<LogCatFilter> mFilters;
+    private final int[] mMinPriorities;
+
+    private final BitSet mPidFilters = new BitSet();
+    private final Map<String, BitSet> mPidMatches = new HashMap<String, BitSet>();
+
+    private final NameMatcher mAppNameMatcher;
+    private final NameMatcher mTagMatcher;
+
+    private final BitSet mTextFilters = new BitSet();
+    private final TextAutomaton mTextAutomaton;
+    private final Pattern[] mTextPatterns;
+    private final BitSet mTextMatches = new BitSet();
+
+    private final BitSet mMatches = new BitSet();
+
+    public LogCatFilterMatcher(@NonNull List<LogCatFilter> filters) {
+        mFilters = ImmutableList.copyOf(filters);
+        int count = mFilters.size();
+        mMinPriorities = new int[count];
+
+        Pattern[] appNamePatterns = new Pattern[count];
+        Pattern[] tagPatterns = new Pattern[count];
+        mTextPatterns = new Pattern[count];
+        List<String> words = new ArrayList<String>();
+        List<Integer> wordFilters = new ArrayList<Integer>();
+        for (int i = 0; i < count; i++) {
+            LogCatFilter filter = mFilters.get(i);
+            mMinPriorities[i] = filter.getLogLevel().getPriority();
+
+            if (!filter.getPid().isEmpty()) {
+                mPidFilters.set(i);
+                BitSet matches = mPidMatches.get(filter.getPid());
+                if (matches == null) {
+                    matches = new BitSet();
+                    mPidMatches.put(filter.getPid(), matches);
+                }
+                matches.set(i);
+            }
+
+            appNamePatterns[i] = filter.getAppNamePattern();
+            tagPatterns[i] = filter.getTagPattern();
+
+            Pattern textPattern = filter.getTextPattern();
+            if (textPattern != null) {
+                mTextFilters.set(i);
+                if (isPlainWord(textPattern.pattern())) {
+                    words.add(textPattern.pattern());
+                    wordFilters.add(i);
+                } else {
+                    mTextPatterns[i] = textPattern;
+                }
+            }
+        }
+
+        mAppNameMatcher = new NameMatcher(appNamePatterns);
+        mTagMatcher = new NameMatcher(tagPatterns);
+        mTextAutomaton = new TextAutomaton(words, wordFilters);
+    }
+
+    @NonNull
+    public List<LogCatFilter> getFilters() {
+        return mFilters;
+    }
+
+    /**
+     * Returns the filters a message makes it through.
+     * @param m message to check
+     * @param matches set to the indices in {@link #getFilters()} of the matching filters.
+     */
+    public void getMatchingFilters(@NonNull LogCatMessage m, @NonNull BitSet matches) {
+        matches.clear();
+        int priority = m.getLogLevel().getPriority();
+        for (int i = 0; i < mMinPriorities.length; i++) {
+            if (priority >= mMinPriorities[i]) {
+                matches.set(i);
+            }
+        }
+
+        if (mPidFilters.intersects(matches)) {
+            retain(matches, mPidFilters, mPidMatches.get(m.getPid()));
+        }
+        if (mAppNameMatcher.mFilters.intersects(matches)) {
+            retain(matches, mAppNameMatcher.mFilters, mAppNameMatcher.getMatches(m.getAppName()));
+        }
+        if (mTagMatcher.mFilters.intersects(matches)) {
+            retain(matches, mTagMatcher.mFilters, mTagMatcher.getMatches(m.getTag()));
+        }
+        if (mTextFilters.intersects(matches)) {
+            String text = m.getMessage();
+            mTextMatches.clear();
+            mTextAutomaton.find(text, matches, mTextMatches);
+            for (int i = mTextFilters.nextSetBit(0); i >= 0; i = mTextFilters.nextSetBit(i + 1)) {
+                if (mTextPatterns[i] != null && matches.get(i)
+                        && mTextPatterns[i].matcher(text).find()) {
+                    mTextMatches.set(i);
+                }
+            }
+            retain(matches, mTextFilters, mTextMatches);
+        }
+    }
+
+    /**
+     * Returns whether a message makes it through all the filters.
+     */
+    public boolean matchesAll(@NonNull LogCatMessage m) {
+        getMatchingFilters(m, mMatches);
+        return mMatches.cardinality() == mFilters.size();
+    }
+
+    /**
+     * Returns whether a message makes it through any of the filters.
+     */
+    public boolean matchesAny(@NonNull LogCatMessage m) {
+        getMatchingFilters(m, mMatches);
+        return !mMatches.isEmpty();
+    }
+
+    /**
+     * Clears from {@code matches} the filters checking a field which the field didn't pass.
+     */
+    private static void retain(@NonNull BitSet matches, @NonNull BitSet checking,
+            @Nullable BitSet passed) {
+        for (int i = checking.nextSetBit(0); i >= 0; i = checking.nextSetBit(i + 1)) {
+            if (passed == null || !passed.get(i)) {
+                matches.clear(i);
+            }
+        }
+    }
+
+    /**
+     * Returns whether a pattern only matches itself, i.e. it doesn't use any construct of
+     * regular expressions.
+     */
+    private static boolean isPlainWord(@NonNull String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            if ("\\^$.|?*+()[]{}".indexOf(pattern.charAt(i)) >= 0) { //$NON-NLS-1$
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Matches names, such as tags, against the patterns of the filters, caching the filters
+     * matched by each name.
+     */
+    private static final class NameMatcher {
+        private final Pattern[] mPatterns;
+        /** The filters checking this name. */
+        final BitSet mFilters = new BitSet();
+        private final Map<String, BitSet> mMatches = new HashMap<String, BitSet>();
+
+        NameMatcher(@NonNull Pattern[] patterns) {
+            mPatterns = patterns;
+            for (int i = 0; i < patterns.length; i++) {
+                if (patterns[i] != null) {
+                    mFilters.set(i);
+                }
+            }
+        }
+
+        @NonNull
+        BitSet getMatches(@NonNull String name) {
+            BitSet matches = mMatches.get(name);
+            if (matches == null) {
+                matches = new BitSet();
+                for (int i = mFilters.nextSetBit(0); i >= 0; i = mFilters.nextSetBit(i + 1)) {
+                    if (mPatterns[i].matcher(name).find()) {
+                        matches.set(i);
+                    }
+                }
+                if (mMatches.size() >= MAX_CACHED_NAMES) {
+                    mMatches.clear();
+                }
+                mMatches.put(name, matches);
+            }
+            return matches;
+        }
+    }
+
+    /**
+     * An Aho-Corasick automaton finding several words in a text in a single pass.
+     * <p/>Like the patterns of {@link LogCatFilter}, words without upper case characters are
+     * matched ignoring the case of ASCII characters. The automaton runs on the text with ASCII
+     * characters in lower case, and the matches of the other words are checked against the
+     * original text.
+     */
+    private static final class TextAutomaton {
+        private final String[] mWords;
+        private final int[] mWordFilters;
+        private final boolean[] mCaseSensitive;
+
+        /** Transitions, keyed by state and character. */
+        private final TransitionTable mTransitions = new TransitionTable();
+        /** The state of the longest proper suffix of each state which is also a state. */
+        private int[] mFailures;
+        /** The words ending at each state, including through its failure states. */
+        private int[][] mOutputs;
+
+        TextAutomaton(@NonNull List<String> words, @NonNull List<Integer> wordFilters) {
+            int count = words.size();
+            mWords = words.toArray(new String[count]);
+            mWordFilters = new int[count];
+            mCaseSensitive = new boolean[count];
+
+            // build the trie.
+            List<int[]> outputs = new ArrayList<int[]>();
+            outputs.add(new int[0]);
+            for (int w = 0; w < count; w++) {
+                mWordFilters[w] = wordFilters.get(w);
+                String word = mWords[w];
+                int state = 0;
+                for (int i = 0; i < word.length(); i++) {
+                    char c = word.charAt(i);
+                    if (Character.isUpperCase(c)) {
+                        mCaseSensitive[w] = true;
+                    }
+                    c = toLowerCase(c);
+                    int next = mTransitions.get(state, c);
+                    if (next < 0) {
+                        next = outputs.size();
+                        outputs.add(new int[0]);
+                        mTransitions.put(state, c, next);
+                    }
+                    state = next;
+                }
+                int[] ending = outputs.get(state);
+                ending = Arrays.copyOf(ending, ending.length + 1);
+                ending[ending.length - 1] = w;
+                outputs.set(state, ending);
+            }
+
+            // compute the failure states by increasing depth, since the failure of a state is
+            // found from the failure of its parent. States are created after their parent.
+            int stateCount = outputs.size();
+            mFailures = new int[stateCount];
+            mOutputs = outputs.toArray(new int[stateCount][]);
+            int[] depths = new int[stateCount];
+            int maxDepth = 0;
+            for (int s = 1; s < stateCount; s++) {
+                depths[s] = depths[mTransitions.getParent(s)] + 1;
+                maxDepth = Math.max(maxDepth, depths[s]);
+            }
+            for (int depth = 2; depth <= maxDepth; depth++) {
+                for (int s = 1; s < stateCount; s++) {
+                    if (depths[s] != depth) {
+                        continue;
+                    }
+                    char c = mTransitions.getChar(s);
+                    int failure = mFailures[mTransitions.getParent(s)];
+                    int next = mTransitions.get(failure, c);
+                    while (next < 0 && failure != 0) {
+                        failure = mFailures[failure];
+                        next = mTransitions.get(failure, c);
+                    }
+                    mFailures[s] = next < 0 ? 0 : next;
+
+                    int[] inherited = mOutputs[mFailures[s]];
+                    if (inherited.length > 0) {
+                        int[] merged = Arrays.copyOf(mOutputs[s],
+                                mOutputs[s].length + inherited.length);
+                        System.arraycopy(inherited, 0, merged, mOutputs[s].length,
+                                inherited.length);
+                        mOutputs[s] = merged;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Sets in {@code matches} the filters among {@code candidates} whose word is found in
+         * the text.
+         */
+        void find(@NonNull String text, @NonNull BitSet candidates, @NonNull BitSet matches) {
+            if (mWords.length == 0) {
+                return;
+            }
+            int state = 0;
+            for (int i = 0; i < text.length(); i++) {
+                char c = toLowerCase(text.charAt(i));
+                int next = mTransitions.get(state, c);
+                while (next < 0 && state != 0) {
+                    state = mFailures[state];
+                    next = mTransitions.get(state, c);
+                }
+                state = next < 0 ? 0 : next;
+
+                for (int w : mOutputs[state]) {
+                    int filter = mWordFilters[w];
+                    if (candidates.get(filter) && !matches.get(filter)
+                            && (!mCaseSensitive[w] || text.startsWith(mWords[w],
+                                    i + 1 - mWords[w].length()))) {
+                        matches.set(filter);
+                    }
+                }
+            }
+        }
+
+        private static char toLowerCase(char c) {
+            return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        }
+    }
+
+    /**
+     * An open addressing hash table of the transitions of a trie, which also records the parent
+     * and character of each state.
+     */
+    private static final class TransitionTable {
+        private long[] mKeys = new long[64];
+        private int[] mValues = new int[64];
+        private int mSize;
+
+        /** Parent state and character of each state, as keys of {@link #mKeys}. */
+        private long[] mStateKeys = new long[64];
+
+        private static long key(int state, char c) {
+            return ((long) state << 16) | c;
+        }
+
+        int get(int state, char c) {
+            long key = key(state, c);
+            int mask = mKeys.length - 1;
+            for (int slot = hash(key) & mask; mValues[slot] != 0; slot = (slot + 1) & mask) {
+                if (mKeys[slot] == key) {
+                    return mValues[slot];
+                }
+            }
+            return -1;
+        }
+
+        /** Adds a transition to a new state, which is never the root state. */
+        void put(int state, char c, int next) {
+            if ((mSize + 1) * 2 > mKeys.length) {
+                long[] keys = mKeys;
+                int[] values = mValues;
+                mKeys = new long[keys.length * 2];
+                mValues = new int[keys.length * 2];
+                mSize = 0;
+                for (int i = 0; i < keys.length; i++) {
+                    if (values[i] != 0) {
+                        insert(keys[i], values[i]);
+                    }
+                }
+            }
+            insert(key(state, c), next);
+
+            if (next >= mStateKeys.length) {
+                mStateKeys = Arrays.copyOf(mStateKeys, Math.max(mStateKeys.length * 2, next + 1));
+            }
+            mStateKeys[next] = key(state, c);
+        }
+
+        int getParent(int state) {
+            return (int) (mStateKeys[state] >>> 16);
+        }
+
+        char getChar(int state) {
+            return (char) (mStateKeys[state] & 0xffff);
+        }
+
+        private void insert(long key, int value) {
+            int mask = mKeys.length - 1;
+            int slot = hash(key) & mask;
+            while (mValues[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            mKeys[slot] = key;
+            mValues[slot] = value;
+            mSize++;
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package com.android.ddmlib.logcat;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.Log.LogLevel;
 import com.google.common.primitives.Ints;
@@ -35,6 +36,7 @@ public final class LogCatMessageParser {
     private String mCurTid = "?";
     private String mCurTag = "?";
     private String mCurTime = "?:??";
+    private Integer mCurPidValue = null;
 
     /**
      * This pattern is meant to parse the first line of a log message with the option
@@ -54,6 +56,9 @@ public final class LogCatMessageParser {
             "^\\[\\s(\\d\\d-\\d\\d\\s\\d\\d:\\d\\d:\\d\\d\\.\\d+)"
           + "\\s+(\\d*):\\s*(\\S+)\\s([VDIWEAF])/(.*)\\]$");
 
+    /** Matcher of {@link #sLogHeaderPattern}, reset for each line. */
+    private final Matcher mHeaderMatcher = sLogHeaderPattern.matcher("");
+
     /**
      * Parse a list of strings into {@link LogCatMessage} objects. This method
      * maintains state from previous calls regarding the last seen header of
@@ -67,35 +72,50 @@ public final class LogCatMessageParser {
         List<LogCatMessage> messages = new ArrayList<LogCatMessage>(lines.length);
 
         for (String line : lines) {
-            if (line.isEmpty()) {
-                continue;
+            LogCatMessage m = processLogLine(line, device);
+            if (m != null) {
+                messages.add(m);
             }
+        }
 
-            Matcher matcher = sLogHeaderPattern.matcher(line);
-            if (matcher.matches()) {
-                mCurTime = matcher.group(1);
-                mCurPid = matcher.group(2);
-                mCurTid = matcher.group(3);
-                mCurLogLevel = LogLevel.getByLetterString(matcher.group(4));
-                mCurTag = matcher.group(5).trim();
+        return messages;
+    }
 
-                /* LogLevel doesn't support messages with severity "F". Log.wtf() is supposed
-                 * to generate "A", but generates "F". */
-                if (mCurLogLevel == null && matcher.group(4).equals("F")) {
-                    mCurLogLevel = LogLevel.ASSERT;
-                }
-            } else {
-                String pkgName = ""; //$NON-NLS-1$
-                Integer pid = Ints.tryParse(mCurPid);
-                if (pid != null && device != null) {
-                    pkgName = device.getClientName(pid);
-                }
-                LogCatMessage m = new LogCatMessage(mCurLogLevel, mCurPid, mCurTid,
-                        pkgName, mCurTag, mCurTime, line);
-                messages.add(m);
+    /**
+     * Parses a single line into a {@link LogCatMessage}. Like
+     * {@link #processLogLines(String[], IDevice)}, this maintains state from the previous lines.
+     * @param line raw line obtained from logcat -v long. It is not kept by the parser.
+     * @param device device from which this log message has been received
+     * @return the message, or null if the line is a header or empty.
+     */
+    @Nullable
+    public LogCatMessage processLogLine(@NonNull CharSequence line, @Nullable IDevice device) {
+        if (line.length() == 0) {
+            return null;
+        }
+
+        Matcher matcher = mHeaderMatcher.reset(line);
+        if (matcher.matches()) {
+            mCurTime = matcher.group(1);
+            mCurPid = matcher.group(2);
+            mCurTid = matcher.group(3);
+            mCurLogLevel = LogLevel.getByLetterString(matcher.group(4));
+            mCurTag = matcher.group(5).trim();
+            mCurPidValue = Ints.tryParse(mCurPid);
+
+            /* LogLevel doesn't support messages with severity "F". Log.wtf() is supposed
+             * to generate "A", but generates "F". */
+            if (mCurLogLevel == null && matcher.group(4).equals("F")) {
+                mCurLogLevel = LogLevel.ASSERT;
             }
+            return null;
         }
 
-        return messages;
+        String pkgName = ""; //$NON-NLS-1$
+        if (mCurPidValue != null && device != null) {
+            pkgName = device.getClientName(mCurPidValue);
+        }
+        return new LogCatMessage(mCurLogLevel, mCurPid, mCurTid, pkgName, mCurTag, mCurTime,
+                line.toString());
     }
 }
@@ -19,14 +19,16 @@ package com.android.ddmlib.logcat;
 import com.android.annotations.NonNull;
 import com.android.annotations.concurrency.GuardedBy;
 import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.ByteLineReceiver;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.Log.LogLevel;
-import com.android.ddmlib.MultiLineReceiver;
 import com.android.ddmlib.ShellCommandUnresponsiveException;
 import com.android.ddmlib.TimeoutException;
+import com.android.ddmlib.log.LogReceiver;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -35,6 +37,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 public class LogCatReceiverTask implements Runnable {
     private static final String LOGCAT_COMMAND = "logcat -v long"; //$NON-NLS-1$
+    private static final String LOGCAT_BUFFER = "main"; //$NON-NLS-1$
     private static final int DEVICE_POLL_INTERVAL_MSEC = 1000;
 
     private static final LogCatMessage sDeviceDisconnectedMsg =
@@ -48,12 +51,29 @@ public class LogCatReceiverTask implements Runnable {
     private final LogCatOutputReceiver mReceiver;
     private final LogCatMessageParser mParser;
     private final AtomicBoolean mCancelled;
+    private final boolean mBinary;
+
+    /** Receiver of the binary log service, if it is used. */
+    private volatile LogReceiver mLogReceiver;
 
     @GuardedBy("this")
     private final Set<LogCatListener> mListeners = new HashSet<LogCatListener>();
 
     public LogCatReceiverTask(@NonNull IDevice device) {
+        this(device, false);
+    }
+
+    /**
+     * Creates a task reading the log of a device.
+     * @param device the device
+     * @param binary whether to read the binary log of the main buffer with the {@code log:}
+     * service, which is much cheaper to parse than the text output of logcat, but doesn't
+     * include the other log buffers. Devices which don't support the service fall back to the
+     * text output.
+     */
+    public LogCatReceiverTask(@NonNull IDevice device, boolean binary) {
         mDevice = device;
+        mBinary = binary;
 
         mReceiver = new LogCatOutputReceiver();
         mParser = new LogCatMessageParser();
@@ -72,7 +92,9 @@ public class LogCatReceiverTask implements Runnable {
         }
 
         try {
-            mDevice.executeShellCommand(LOGCAT_COMMAND, mReceiver, 0);
+            if (!mBinary || !runBinaryLogService()) {
+                mDevice.executeShellCommand(LOGCAT_COMMAND, mReceiver, 0);
+            }
         } catch (TimeoutException e) {
             notifyListeners(Collections.singletonList(sConnectionTimeoutMsg));
         } catch (AdbCommandRejectedException ignored) {
@@ -88,9 +110,54 @@ public class LogCatReceiverTask implements Runnable {
 
     public void stop() {
         mCancelled.set(true);
+        LogReceiver logReceiver = mLogReceiver;
+        if (logReceiver != null) {
+            logReceiver.cancel();
+        }
     }
 
-    private class LogCatOutputReceiver extends MultiLineReceiver {
+    /**
+     * Reads the binary log until the task is stopped.
+     * @return false if the device doesn't support the binary log service.
+     */
+    private boolean runBinaryLogService() throws TimeoutException, IOException {
+        final LogCatBinaryParser parser = new LogCatBinaryParser();
+        LogReceiver logReceiver = new LogReceiver(new LogReceiver.ILogListener() {
+            @Override
+            public void newEntry(LogReceiver.LogEntry entry) {
+                // the data isn't parsed into entries.
+            }
+
+            @Override
+            public void newData(byte[] data, int offset, int length) {
+                if (!mCancelled.get()) {
+                    List<LogCatMessage> messages =
+                            parser.processBinaryLogData(data, offset, length, mDevice);
+                    if (!messages.isEmpty()) {
+                        notifyListeners(messages);
+                    }
+                }
+            }
+        }, false /* parseEntries */);
+
+        mLogReceiver = logReceiver;
+        if (mCancelled.get()) {
+            // stopped before the receiver could be cancelled.
+            return true;
+        }
+
+        try {
+            mDevice.runLogService(LOGCAT_BUFFER, logReceiver);
+        } catch (AdbCommandRejectedException e) {
+            return false;
+        }
+        return true;
+    }
+
+    private class LogCatOutputReceiver extends ByteLineReceiver {
+        /** Messages parsed from the current packet. */
+        private List<LogCatMessage> mMessages = new ArrayList<LogCatMessage>();
+
         public LogCatOutputReceiver() {
             setTrimLine(false);
         }
@@ -102,16 +169,22 @@ public class LogCatReceiverTask implements Runnable {
         }
 
         @Override
-        public void processNewLines(String[] lines) {
+        protected void processLine(@NonNull CharSequence line) {
             if (!mCancelled.get()) {
-                processLogLines(lines);
+                LogCatMessage message = mParser.processLogLine(line, mDevice);
+                if (message != null) {
+                    mMessages.add(message);
+                }
             }
         }
 
-        private void processLogLines(String[] lines) {
-            List<LogCatMessage> newMessages = mParser.processLogLines(lines, mDevice);
-            if (!newMessages.isEmpty()) {
-                notifyListeners(newMessages);
+        @Override
+        protected void linesProcessed() {
+            if (!mMessages.isEmpty()) {
+                // the listeners may keep the list.
+                List<LogCatMessage> messages = mMessages;
+                mMessages = new ArrayList<LogCatMessage>();
+                notifyListeners(messages);
             }
         }
     }
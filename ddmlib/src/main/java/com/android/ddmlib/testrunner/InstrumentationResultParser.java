@@ -16,15 +16,18 @@
 
 package com.android.ddmlib.testrunner;
 
+import com.android.annotations.NonNull;
+import com.android.ddmlib.ByteLineReceiver;
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.Log;
-import com.android.ddmlib.MultiLineReceiver;
+import com.android.ddmlib.Log.LogLevel;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.regex.Matcher;
@@ -65,7 +68,7 @@ import java.util.regex.Pattern;
  * </pre>
  * <p>Note that the "value" portion of the key-value pair may wrap over several text lines
  */
-public class InstrumentationResultParser extends MultiLineReceiver {
+public class InstrumentationResultParser extends ByteLineReceiver {
 
     /** Relevant test status keys. */
     private static class StatusKeys {
@@ -201,6 +204,16 @@ public class InstrumentationResultParser extends MultiLineReceiver {
      */
     private Map<String, String> mTestMetrics = new HashMap<String, String>();
 
+    /**
+     * Whether a subclass overrides {@link #processNewLines(String[])}, in which case the lines of
+     * each packet are collected in {@link #mNewLines} and passed to it, as before this class read
+     * the output as bytes.
+     */
+    private final boolean mProcessesNewLines;
+
+    @NonNull
+    private final List<String> mNewLines = new ArrayList<String>();
+
     private static final String LOG_TAG = "InstrumentationResultParser";
 
     /** Error message supplied when no parseable test results are received from test run. */
@@ -223,6 +236,16 @@ public class InstrumentationResultParser extends MultiLineReceiver {
     public InstrumentationResultParser(String runName, Collection<ITestRunListener> listeners) {
         mTestRunName = runName;
         mTestListeners = new ArrayList<ITestRunListener>(listeners);
+        mProcessesNewLines = overridesProcessNewLines(getClass());
+    }
+
+    private static boolean overridesProcessNewLines(@NonNull Class<?> parserClass) {
+        try {
+            return parserClass.getMethod("processNewLines", String[].class).getDeclaringClass()
+                    != InstrumentationResultParser.class;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
     }
 
     /**
@@ -238,15 +261,44 @@ public class InstrumentationResultParser extends MultiLineReceiver {
 
     /**
      * Processes the instrumentation test output from shell.
-     *
-     * @see MultiLineReceiver#processNewLines
+     * <p/>The output is now parsed line by line through {@link #processLine(CharSequence)}. This
+     * is still called with the lines of each packet when a subclass overrides it, at the cost of
+     * a {@link String} per line.
      */
-    @Override
     public void processNewLines(String[] lines) {
         for (String line : lines) {
-            parse(line);
-            // in verbose mode, dump all adb output to log
-            Log.v(LOG_TAG, line);
+            parseLine(line);
+        }
+    }
+
+    /**
+     * Processes a line of the instrumentation test output from shell.
+     *
+     * @see ByteLineReceiver#processLine(CharSequence)
+     */
+    @Override
+    protected void processLine(@NonNull CharSequence line) {
+        if (mProcessesNewLines) {
+            mNewLines.add(line.toString());
+        } else {
+            parseLine(line);
+        }
+    }
+
+    @Override
+    protected void linesProcessed() {
+        if (!mNewLines.isEmpty()) {
+            String[] lines = mNewLines.toArray(new String[mNewLines.size()]);
+            mNewLines.clear();
+            processNewLines(lines);
+        }
+    }
+
+    private void parseLine(@NonNull CharSequence line) {
+        parse(line);
+        // in verbose mode, dump all adb output to log
+        if (Log.isLoggable(LogLevel.VERBOSE)) {
+            Log.v(LOG_TAG, line.toString());
         }
     }
 
@@ -268,38 +320,38 @@ public class InstrumentationResultParser extends MultiLineReceiver {
      *
      * @param line  Text output line
      */
-    private void parse(String line) {
-        if (line.startsWith(Prefixes.STATUS_CODE)) {
+    private void parse(CharSequence line) {
+        if (startsWith(line, Prefixes.STATUS_CODE)) {
             // Previous status key-value has been collected. Store it.
             submitCurrentKeyValue();
             mInInstrumentationResultKey = false;
             parseStatusCode(line);
-        } else if (line.startsWith(Prefixes.STATUS)) {
+        } else if (startsWith(line, Prefixes.STATUS)) {
             // Previous status key-value has been collected. Store it.
             submitCurrentKeyValue();
             mInInstrumentationResultKey = false;
             parseKey(line, Prefixes.STATUS.length());
-        } else if (line.startsWith(Prefixes.RESULT)) {
+        } else if (startsWith(line, Prefixes.RESULT)) {
             // Previous status key-value has been collected. Store it.
             submitCurrentKeyValue();
             mInInstrumentationResultKey = true;
             parseKey(line, Prefixes.RESULT.length());
-        } else if (line.startsWith(Prefixes.STATUS_FAILED) ||
-                   line.startsWith(Prefixes.CODE)) {
+        } else if (startsWith(line, Prefixes.STATUS_FAILED) ||
+                   startsWith(line, Prefixes.CODE)) {
             // Previous status key-value has been collected. Store it.
             submitCurrentKeyValue();
             mInInstrumentationResultKey = false;
             // these codes signal the end of the instrumentation run
             mTestRunFinished = true;
             // just ignore the remaining data on this line
-        } else if (line.startsWith(Prefixes.TIME_REPORT)) {
+        } else if (startsWith(line, Prefixes.TIME_REPORT)) {
             parseTime(line);
         } else {
             if (mCurrentValue != null) {
                 // this is a value that has wrapped to next line.
                 mCurrentValue.append("\r\n");
                 mCurrentValue.append(line);
-            } else if (!line.trim().isEmpty()) {
+            } else if (!line.toString().trim().isEmpty()) {
                 Log.d(LOG_TAG, "unrecognized line " + line);
             }
         }
@@ -378,10 +430,10 @@ public class InstrumentationResultParser extends MultiLineReceiver {
      * @param line full line of text to parse
      * @param keyStartPos the starting position of the key in the given line
      */
-    private void parseKey(String line, int keyStartPos) {
-        int endKeyPos = line.indexOf('=', keyStartPos);
+    private void parseKey(CharSequence line, int keyStartPos) {
+        int endKeyPos = indexOf(line, '=', keyStartPos);
         if (endKeyPos != -1) {
-            mCurrentKey = line.substring(keyStartPos, endKeyPos).trim();
+            mCurrentKey = line.subSequence(keyStartPos, endKeyPos).toString().trim();
             parseValue(line, endKeyPos + 1);
         }
     }
@@ -392,16 +444,17 @@ public class InstrumentationResultParser extends MultiLineReceiver {
      * @param line - full line of text to parse
      * @param valueStartPos - the starting position of the value in the given line
      */
-    private void parseValue(String line, int valueStartPos) {
+    private void parseValue(CharSequence line, int valueStartPos) {
         mCurrentValue = new StringBuilder();
-        mCurrentValue.append(line.substring(valueStartPos));
+        mCurrentValue.append(line, valueStartPos, line.length());
     }
 
     /**
      * Parses out a status code result.
      */
-    private void parseStatusCode(String line) {
-        String value = line.substring(Prefixes.STATUS_CODE.length()).trim();
+    private void parseStatusCode(CharSequence line) {
+        String value = line.subSequence(Prefixes.STATUS_CODE.length(), line.length()).toString()
+                .trim();
         TestResult testInfo = getCurrentTestInfo();
         testInfo.mCode = StatusCodes.ERROR;
         try {
@@ -417,6 +470,27 @@ public class InstrumentationResultParser extends MultiLineReceiver {
         }
     }
 
+    private static boolean startsWith(@NonNull CharSequence line, @NonNull String prefix) {
+        if (line.length() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (line.charAt(i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(@NonNull CharSequence line, char c, int fromIndex) {
+        for (int i = fromIndex; i < line.length(); i++) {
+            if (line.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Returns true if test run canceled.
      *
@@ -540,7 +614,7 @@ public class InstrumentationResultParser extends MultiLineReceiver {
     /**
      * Parses out and store the elapsed time.
      */
-    private void parseTime(String line) {
+    private void parseTime(CharSequence line) {
         final Pattern timePattern = Pattern.compile(String.format("%s\\s*([\\d\\.]+)",
                 Prefixes.TIME_REPORT));
         Matcher timeMatcher = timePattern.matcher(line);
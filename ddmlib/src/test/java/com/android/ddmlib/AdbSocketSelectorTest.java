@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+public class AdbSocketSelectorTest extends TestCase {
+    private ServerSocketChannel mServer;
+    private SocketChannel mClient;
+    private SocketChannel mPeer;
+
+    @Override
+    protected void setUp() throws Exception {
+        mServer = ServerSocketChannel.open();
+        mServer.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        mClient = SocketChannel.open(mServer.socket().getLocalSocketAddress());
+        mClient.configureBlocking(false);
+        mPeer = mServer.accept();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mClient.close();
+        mPeer.close();
+        mServer.close();
+    }
+
+    public void testReadWrite() throws Exception {
+        final byte[] message = "OKAY".getBytes("ISO-8859-1");
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                    mPeer.write(ByteBuffer.wrap(message));
+                } catch (Exception e) {
+                    // the read below times out
+                }
+            }
+        }.start();
+
+        byte[] reply = new byte[4];
+        AdbHelper.read(mClient, reply, -1, 5000);
+        assertTrue(AdbHelper.isOkay(reply));
+
+        AdbHelper.write(mClient, message, -1, 5000);
+        ByteBuffer buf = ByteBuffer.allocate(4);
+        while (buf.hasRemaining()) {
+            mPeer.read(buf);
+        }
+        assertEquals("OKAY", new String(buf.array(), "ISO-8859-1"));
+
+        // the channel is no longer registered once the wait completed.
+        mClient.configureBlocking(true);
+    }
+
+    public void testTimeout() throws Exception {
+        long start = System.currentTimeMillis();
+        try {
+            AdbSocketSelector.getInstance().awaitReady(mClient, SelectionKey.OP_READ, 100);
+            fail("Expected a timeout");
+        } catch (TimeoutException e) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        mClient.configureBlocking(true);
+    }
+
+    public void testEof() throws Exception {
+        mPeer.close();
+        try {
+            AdbHelper.read(mClient, new byte[4], -1, 5000);
+            fail("Expected EOF");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testClosedChannel() throws Exception {
+        mClient.close();
+        try {
+            AdbSocketSelector.getInstance().awaitReady(mClient, SelectionKey.OP_READ, 0);
+            fail("Expected the channel to be closed");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class AdbTrackingStreamTest extends TestCase {
+
+    /** A channel returning the data it is given, and recording what is written. */
+    private static class FakeChannel implements ByteChannel {
+        ByteBuffer mInput = ByteBuffer.allocate(0);
+        boolean mEof;
+        final ByteArrayOutputStream mOutput = new ByteArrayOutputStream();
+
+        void feed(String data) {
+            mInput = ByteBuffer.wrap(data.getBytes(Charsets.ISO_8859_1));
+        }
+
+        String getWritten() {
+            String written = new String(mOutput.toByteArray(), Charsets.ISO_8859_1);
+            mOutput.reset();
+            return written;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!mInput.hasRemaining()) {
+                return mEof ? -1 : 0;
+            }
+            int count = Math.min(dst.remaining(), mInput.remaining());
+            for (int i = 0; i < count; i++) {
+                dst.put(mInput.get());
+            }
+            return count;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int count = src.remaining();
+            while (src.hasRemaining()) {
+                mOutput.write(src.get());
+            }
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    public void testRequestsAndMessages() throws Exception {
+        FakeChannel channel = new FakeChannel();
+        AdbTrackingStream stream = new AdbTrackingStream(channel, "host:transport:emulator-5554",
+                "track-jdwp");
+        stream.start();
+        assertEquals("001Chost:transport:emulator-5554", channel.getWritten());
+
+        // the second request is only sent once the first one is accepted.
+        channel.feed("OK");
+        assertEquals(Collections.emptyList(), stream.read());
+        assertEquals("", channel.getWritten());
+        channel.feed("AY");
+        assertEquals(Collections.emptyList(), stream.read());
+        assertEquals("000Atrack-jdwp", channel.getWritten());
+        assertFalse(stream.isTracking());
+
+        channel.feed("OKAY0004123\n00");
+        assertEquals(ImmutableList.of("123\n"), stream.read());
+        assertTrue(stream.isTracking());
+        channel.feed("000008");
+        assertEquals(ImmutableList.of(""), stream.read());
+        channel.feed("1\n2\n3\n4\n");
+        assertEquals(ImmutableList.of("1\n2\n3\n4\n"), stream.read());
+    }
+
+    public void testLargeMessagesSplit() throws Exception {
+        String message = Strings.repeat("emulator-5554\tdevice\n", 200);
+        String data = "OKAY" + String.format("%04x", message.length()) + message + "0000";
+
+        FakeChannel channel = new FakeChannel();
+        AdbTrackingStream stream = new AdbTrackingStream(channel, "host:track-devices");
+        stream.start();
+        List<String> messages = new ArrayList<String>();
+        for (int i = 0; i < data.length(); i += 7) {
+            channel.feed(data.substring(i, Math.min(i + 7, data.length())));
+            // a full buffer is only grown by the next read.
+            while (channel.mInput.hasRemaining()) {
+                messages.addAll(stream.read());
+            }
+        }
+        assertEquals(ImmutableList.of(message, ""), messages);
+    }
+
+    public void testRejected() throws Exception {
+        FakeChannel channel = new FakeChannel();
+        AdbTrackingStream stream = new AdbTrackingStream(channel, "host:transport:emulator-5554",
+                "track-jdwp");
+        stream.start();
+        channel.feed("FAIL0010device not");
+        assertEquals(Collections.emptyList(), stream.read());
+        channel.feed(" found");
+        try {
+            stream.read();
+            fail("Expected the request to be rejected");
+        } catch (AdbCommandRejectedException e) {
+            assertEquals("device not found", e.getMessage());
+            assertTrue(e.wasErrorDuringDeviceSelection());
+        }
+    }
+
+    public void testEof() throws Exception {
+        FakeChannel channel = new FakeChannel();
+        AdbTrackingStream stream = new AdbTrackingStream(channel, "host:track-devices");
+        stream.start();
+        channel.mEof = true;
+        try {
+            stream.read();
+            fail("Expected the end of the stream to fail");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ByteLineReceiverTest extends TestCase {
+
+    private static class CollectingLineReceiver extends ByteLineReceiver {
+        final List<String> mLines = new ArrayList<String>();
+        int mPackets;
+        boolean mDone;
+
+        @Override
+        protected void processLine(@NonNull CharSequence line) {
+            mLines.add(line.toString());
+        }
+
+        @Override
+        protected void linesProcessed() {
+            mPackets++;
+        }
+
+        @Override
+        public void done() {
+            mDone = true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    }
+
+    private static final String OUTPUT =
+            "first\r\n  trimmed  \r\n\r\nlone\nnewline\r\n\u00e9t\u00e9 \u65e5\u672c\r\nlast";
+
+    private static final List<String> LINES = ImmutableList.of(
+            "first", "trimmed", "", "lone\nnewline", "\u00e9t\u00e9 \u65e5\u672c", "last");
+
+    public void testSinglePacket() {
+        CollectingLineReceiver receiver = new CollectingLineReceiver();
+        byte[] data = OUTPUT.getBytes(Charsets.UTF_8);
+        receiver.addOutput(data, 0, data.length);
+        assertEquals(LINES.subList(0, LINES.size() - 1), receiver.mLines);
+        assertEquals(1, receiver.mPackets);
+
+        receiver.flush();
+        assertEquals(LINES, receiver.mLines);
+        assertTrue(receiver.mDone);
+    }
+
+    public void testSplitPackets() {
+        // Lines, terminators and multi-byte characters split across packets of all sizes.
+        byte[] data = OUTPUT.getBytes(Charsets.UTF_8);
+        for (int packetSize = 1; packetSize <= data.length; packetSize++) {
+            CollectingLineReceiver receiver = new CollectingLineReceiver();
+            byte[] packet = new byte[packetSize + 2];
+            for (int offset = 0; offset < data.length; offset += packetSize) {
+                int length = Math.min(packetSize, data.length - offset);
+                System.arraycopy(data, offset, packet, 1, length);
+                receiver.addOutput(packet, 1, length);
+            }
+            receiver.flush();
+            assertEquals(LINES, receiver.mLines);
+        }
+    }
+
+    public void testNoTrim() {
+        CollectingLineReceiver receiver = new CollectingLineReceiver();
+        receiver.setTrimLine(false);
+        byte[] data = " a \r\n\tb\r\n".getBytes(Charsets.UTF_8);
+        receiver.addOutput(data, 0, data.length);
+        receiver.flush();
+        assertEquals(ImmutableList.of(" a ", "\tb"), receiver.mLines);
+    }
+
+    public void testMalformedInput() {
+        CollectingLineReceiver receiver = new CollectingLineReceiver();
+        byte[] data = new byte[] { 'a', (byte) 0xff, 'b', '\r', '\n' };
+        receiver.addOutput(data, 0, data.length);
+        assertEquals(ImmutableList.of("a\ufffdb"), receiver.mLines);
+    }
+}
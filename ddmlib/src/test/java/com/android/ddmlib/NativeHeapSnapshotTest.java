@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.google.common.collect.ImmutableList;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class NativeHeapSnapshotTest extends TestCase {
+
+    private static final NativeLibraryMapInfo LIBC =
+            new NativeLibraryMapInfo(0x1000, 0x1fff, "/system/lib/libc.so");
+    private static final NativeLibraryMapInfo LIBFOO =
+            new NativeLibraryMapInfo(0x3000, 0x3fff, "/data/app-lib/libfoo.so");
+
+    private static final long MALLOC = 0x1010;
+    private static final long FOO = 0x3010;
+    private static final long BAR = 0x3020;
+    private static final long MAIN = 0x5000;
+
+    private NativeHeapSnapshot mSnapshot;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // the libraries are not sorted.
+        mSnapshot = new NativeHeapSnapshot(ImmutableList.of(LIBFOO, LIBC), 1);
+    }
+
+    public void testStacksDeduplicated() {
+        add(16, 1, MALLOC, FOO, MAIN);
+        add(32, 2, MALLOC, FOO, MAIN);
+        add(8, 1, MALLOC, BAR, MAIN);
+
+        assertEquals(3, mSnapshot.getEntryCount());
+        assertEquals(mSnapshot.getStackId(0), mSnapshot.getStackId(1));
+        // MAIN is shared by the two stack traces.
+        StackTrie stacks = mSnapshot.getStackTrie();
+        assertEquals(5, stacks.getNodeCount());
+        assertEquals(3, stacks.getDepth(mSnapshot.getStackId(2)));
+        assertTrue(Arrays.equals(new long[] { MALLOC, BAR, MAIN },
+                mSnapshot.getStackAddresses(2)));
+        assertEquals(2, mSnapshot.getAllocationCount(1));
+        assertEquals(32, mSnapshot.getSize(1));
+    }
+
+    public void testLibraries() {
+        add(16, 1, MALLOC, FOO, MAIN);
+
+        int node = mSnapshot.getStackId(0);
+        StackTrie stacks = mSnapshot.getStackTrie();
+        assertSame(LIBC, mSnapshot.getFrameLibrary(stacks.getFrame(node)));
+        node = stacks.getParent(node);
+        assertSame(LIBFOO, mSnapshot.getFrameLibrary(stacks.getFrame(node)));
+        node = stacks.getParent(node);
+        assertNull(mSnapshot.getFrameLibrary(stacks.getFrame(node)));
+        assertEquals(StackTrie.ROOT, stacks.getParent(node));
+    }
+
+    public void testUsage() {
+        add(16, 1, MALLOC, FOO, MAIN);
+        add(32, 2, MALLOC, FOO, MAIN);
+        add(8, 1, MALLOC, BAR, MAIN);
+        // only the allocator: the call site is the innermost frame.
+        add(4, 1, MALLOC);
+        add(100, 1);
+
+        assertEquals(192, mSnapshot.getTotalSize());
+
+        List<NativeHeapSnapshot.Usage> byCallSite = mSnapshot.getUsageByCallSite();
+        assertEquals(3, byCallSite.size());
+        assertEquals(FOO, byCallSite.get(0).getAddress());
+        assertSame(LIBFOO, byCallSite.get(0).getLibrary());
+        assertEquals(80, byCallSite.get(0).getTotalSize());
+        assertEquals(3, byCallSite.get(0).getAllocationCount());
+        assertEquals(BAR, byCallSite.get(1).getAddress());
+        assertEquals(MALLOC, byCallSite.get(2).getAddress());
+
+        List<NativeHeapSnapshot.Usage> byLibrary = mSnapshot.getUsageByLibrary();
+        assertEquals(3, byLibrary.size());
+        // the allocation without stack trace is outside of the libraries.
+        assertNull(byLibrary.get(0).getLibrary());
+        assertEquals(100, byLibrary.get(0).getTotalSize());
+        assertSame(LIBFOO, byLibrary.get(1).getLibrary());
+        assertEquals(88, byLibrary.get(1).getTotalSize());
+        assertSame(LIBC, byLibrary.get(2).getLibrary());
+        assertEquals(4, byLibrary.get(2).getTotalSize());
+    }
+
+    public void testAllocationInfo() {
+        add(16 | (1 << 31), 3, MALLOC, FOO);
+
+        assertTrue(mSnapshot.isZygoteChild(0));
+        NativeAllocationInfo expected = new NativeAllocationInfo(16 | (1 << 31), 3);
+        expected.addStackCallAddress(MALLOC);
+        expected.addStackCallAddress(FOO);
+        NativeAllocationInfo info = mSnapshot.getAllocationInfo(0);
+        assertEquals(expected, info);
+        assertTrue(info.isZygoteChild());
+        assertEquals(16, info.getSize());
+    }
+
+    private void add(int size, int allocations, long... addresses) {
+        mSnapshot.add(size, allocations, addresses, addresses.length);
+    }
+}
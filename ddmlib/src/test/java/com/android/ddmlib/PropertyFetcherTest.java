@@ -40,6 +40,17 @@ public class PropertyFetcherTest extends TestCase {
         assertEquals("480", receiver.getCollectedProperties().get("ro.sf.lcd_density"));
     }
 
+    /**
+     * Test that the output of a getprop command run by the caller populates the cache
+     */
+    public void testSetGetPropOutput() throws Exception {
+        PropertyFetcher fetcher = new PropertyFetcher(null);
+        fetcher.setGetPropOutput(GETPROP_RESPONSE);
+        assertEquals("1", fetcher.getProperties().get("ro.secure"));
+        assertEquals("480", fetcher.getProperty("ro.sf.lcd_density").get(1,
+                TimeUnit.MILLISECONDS));
+    }
+
     /**
      * Test that getProperty works as expected when queries made in different states
      */
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class RawImageTest extends TestCase {
+
+    private static final int WIDTH = 7;
+    private static final int HEIGHT = 5;
+
+    public void testRgb565() {
+        RawImage image = createImage(16);
+        image.data = randomData(16);
+        checkBulkConversion(image);
+    }
+
+    public void testRgba8888() {
+        checkBulkConversion(createImage32(0, 8, 16, 24, 8));
+    }
+
+    public void testBgra8888() {
+        checkBulkConversion(createImage32(16, 8, 0, 24, 8));
+    }
+
+    public void testRgbx8888() {
+        checkBulkConversion(createImage32(0, 8, 16, 24, 0));
+    }
+
+    public void testUnsupported() {
+        RawImage image = createImage(24);
+        image.data = randomData(24);
+        try {
+            image.getARGB(new int[WIDTH * HEIGHT]);
+            fail("Expected 24 bit images to be unsupported");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    private static void checkBulkConversion(RawImage image) {
+        int[] argb = new int[WIDTH * HEIGHT];
+        image.getARGB(argb);
+
+        int bytesPerPixel = image.bpp >> 3;
+        for (int i = 0; i < argb.length; i++) {
+            assertEquals("pixel " + i, image.getARGB(i * bytesPerPixel), argb[i]);
+        }
+    }
+
+    private static RawImage createImage32(int redOffset, int greenOffset, int blueOffset,
+            int alphaOffset, int alphaLength) {
+        RawImage image = createImage(32);
+        image.red_offset = redOffset;
+        image.red_length = 8;
+        image.green_offset = greenOffset;
+        image.green_length = 8;
+        image.blue_offset = blueOffset;
+        image.blue_length = 8;
+        image.alpha_offset = alphaOffset;
+        image.alpha_length = alphaLength;
+        image.data = randomData(32);
+        return image;
+    }
+
+    private static RawImage createImage(int bpp) {
+        RawImage image = new RawImage();
+        image.version = 1;
+        image.bpp = bpp;
+        image.width = WIDTH;
+        image.height = HEIGHT;
+        image.size = WIDTH * HEIGHT * (bpp >> 3);
+        return image;
+    }
+
+    private static byte[] randomData(int bpp) {
+        byte[] data = new byte[WIDTH * HEIGHT * (bpp >> 3)];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ShellCommandExecutorTest extends TestCase {
+
+    /**
+     * A device which echoes its commands, and records them and how many run at the same time.
+     */
+    private static class FakeDevice implements IShellEnabledDevice {
+        final AtomicInteger mRunning = new AtomicInteger();
+        final AtomicInteger mMaxRunning = new AtomicInteger();
+        final CountDownLatch mRelease = new CountDownLatch(1);
+        final List<String> mCommands = Collections.synchronizedList(new ArrayList<String>());
+
+        @NonNull
+        @Override
+        public String getName() {
+            return "fake";
+        }
+
+        @Override
+        public void executeShellCommand(String command, IShellOutputReceiver receiver,
+                long maxTimeToOutputResponse, TimeUnit maxTimeUnits)
+                throws TimeoutException, AdbCommandRejectedException,
+                ShellCommandUnresponsiveException, IOException {
+            mCommands.add(command);
+            int running = mRunning.incrementAndGet();
+            while (true) {
+                int max = mMaxRunning.get();
+                if (running <= max || mMaxRunning.compareAndSet(max, running)) {
+                    break;
+                }
+            }
+            try {
+                mRelease.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mRunning.decrementAndGet();
+
+            if (command.startsWith("fail")) {
+                throw new ShellCommandUnresponsiveException();
+            }
+            // one line per statement, like a shell echoing the markers of a batch.
+            byte[] output = command.replace(';', '\n').getBytes(Charsets.UTF_8);
+            receiver.addOutput(output, 0, output.length);
+            receiver.flush();
+        }
+
+        @Override
+        public Future<String> getSystemProperty(@NonNull String name) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    public void testBoundedConcurrency() throws Exception {
+        FakeDevice device = new FakeDevice();
+        ShellCommandExecutor executor = new ShellCommandExecutor(device, 2);
+        List<ListenableFuture<String>> futures = new ArrayList<ListenableFuture<String>>();
+        for (int i = 0; i < 6; i++) {
+            futures.add(executor.execute("command " + i, 1, TimeUnit.SECONDS));
+        }
+        Thread.sleep(50);
+        assertEquals(2, device.mRunning.get());
+
+        device.mRelease.countDown();
+        for (int i = 0; i < 6; i++) {
+            assertEquals("command " + i, futures.get(i).get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(2, device.mMaxRunning.get());
+    }
+
+    public void testFailure() throws Exception {
+        FakeDevice device = new FakeDevice();
+        device.mRelease.countDown();
+        ShellCommandExecutor executor = new ShellCommandExecutor(device, 1);
+        try {
+            executor.execute("fail", 1, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS);
+            fail("Expected the command to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ShellCommandUnresponsiveException);
+        }
+    }
+
+    public void testBatchCommand() {
+        assertEquals(ImmutableList.of("(ls);echo M;(cd /; pwd);echo M"),
+                ShellCommandExecutor.createBatchCommands(ImmutableList.of("ls", "cd /; pwd"), "M",
+                        ShellCommandExecutor.MAX_REQUEST_LENGTH));
+    }
+
+    public void testLongBatchCommand() {
+        // "shell:" and "(ls);echo M" fit in 17 characters, but not with another command.
+        assertEquals(ImmutableList.of("(ls);echo M", "(pwd);echo M", "(a long command);echo M"),
+                ShellCommandExecutor.createBatchCommands(
+                        ImmutableList.of("ls", "pwd", "a long command"), "M", 18));
+        assertEquals(ImmutableList.of("(ls);echo M;(id);echo M", "(pwd);echo M"),
+                ShellCommandExecutor.createBatchCommands(
+                        ImmutableList.of("ls", "id", "pwd"), "M", 29));
+    }
+
+    public void testBatchSessions() throws Exception {
+        FakeDevice device = new FakeDevice();
+        device.mRelease.countDown();
+        ShellCommandExecutor executor = new ShellCommandExecutor(device, 1);
+        List<String> commands = new ArrayList<String>();
+        for (int i = 0; i < 1000; i++) {
+            commands.add("echo " + i);
+        }
+        List<String> outputs =
+                executor.executeBatch(commands, 1, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS);
+
+        assertEquals(1000, outputs.size());
+
+        assertTrue(device.mCommands.size() > 1);
+        for (String command : device.mCommands) {
+            assertTrue(command.length() + "shell:".length()
+                    <= ShellCommandExecutor.MAX_REQUEST_LENGTH);
+        }
+    }
+
+    public void testSplitBatchOutput() throws Exception {
+        String marker = "ddmlib-batch-1f";
+        String output = "a\r\nb\r\n" + marker + "\r\n" + marker + "\r\nno newline" + marker + "\n";
+        assertEquals(ImmutableList.of("a\r\nb\r\n", "", "no newline"),
+                ShellCommandExecutor.splitBatchOutput(output, marker, 3));
+
+        try {
+            ShellCommandExecutor.splitBatchOutput("a\n" + marker + "\nb\n", marker, 2);
+            fail("Expected the output to be incomplete");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
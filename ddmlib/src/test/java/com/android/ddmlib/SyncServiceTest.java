@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib;
+
+import com.android.ddmlib.IDevice.DeviceState;
+import com.android.ddmlib.SyncService.ISyncProgressMonitor;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SyncServiceTest extends TestCase {
+
+    /**
+     * A minimal adb server, giving access to a local directory through the sync protocol.
+     */
+    private static class FakeAdbServer implements Runnable {
+        final File mRoot;
+        final ServerSocket mServerSocket;
+        final AtomicInteger mConnections = new AtomicInteger();
+        final AtomicInteger mSentFiles = new AtomicInteger();
+
+        FakeAdbServer(File root) throws IOException {
+            mRoot = root;
+            mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            Thread thread = new Thread(this, "Fake adb server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        InetSocketAddress getAddress() {
+            return new InetSocketAddress(mServerSocket.getInetAddress(),
+                    mServerSocket.getLocalPort());
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final Socket socket;
+                try {
+                    socket = mServerSocket.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                mConnections.incrementAndGet();
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            serve(socket);
+                        } catch (IOException e) {
+                            // the client closed the connection.
+                        } finally {
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                                // ignore.
+                            }
+                        }
+                    }
+                });
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        void close() throws IOException {
+            mServerSocket.close();
+        }
+
+        private void serve(Socket socket) throws IOException {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+
+            // host:transport:<serial>, then sync:
+            for (int i = 0; i < 2; i++) {
+                byte[] length = new byte[4];
+                in.readFully(length);
+                int requestLength = Integer.parseInt(new String(length, Charsets.US_ASCII), 16);
+                in.readFully(new byte[requestLength]);
+                out.write("OKAY".getBytes(Charsets.US_ASCII));
+            }
+
+            byte[] header = new byte[8];
+            while (true) {
+                in.readFully(header);
+                String id = new String(header, 0, 4, Charsets.US_ASCII);
+                byte[] path = new byte[readInt(header, 4)];
+                in.readFully(path);
+                String name = new String(path, Charsets.ISO_8859_1);
+                if (id.equals("STAT")) {
+                    File f = new File(mRoot, name);
+                    writeHeader(out, "STAT", getMode(f));
+                    writeInt(out, f.isFile() ? (int) f.length() : 0);
+                    writeInt(out, (int) (f.lastModified() / 1000));
+                } else if (id.equals("LIST")) {
+                    File[] children = new File(mRoot, name).listFiles();
+                    for (File child : children != null ? children : new File[0]) {
+                        byte[] childName = child.getName().getBytes(Charsets.ISO_8859_1);
+                        writeHeader(out, "DENT", getMode(child));
+                        writeInt(out, child.isFile() ? (int) child.length() : 0);
+                        writeInt(out, (int) (child.lastModified() / 1000));
+                        writeInt(out, childName.length);
+                        out.write(childName);
+                    }
+                    writeHeader(out, "DONE", 0);
+                    writeInt(out, 0);
+                    writeInt(out, 0);
+                    writeInt(out, 0);
+                } else if (id.equals("SEND")) {
+                    receive(in, out, name.substring(0, name.lastIndexOf(',')));
+                } else if (id.equals("RECV")) {
+                    byte[] content = Files.toByteArray(new File(mRoot, name));
+                    for (int offset = 0; offset < content.length; offset += 64 * 1024) {
+                        int length = Math.min(64 * 1024, content.length - offset);
+                        writeHeader(out, "DATA", length);
+                        out.write(content, offset, length);
+                    }
+                    writeHeader(out, "DONE", 0);
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private void receive(DataInputStream in, OutputStream out, String name)
+                throws IOException {
+            byte[] header = new byte[8];
+            byte[] content = new byte[0];
+            while (true) {
+                in.readFully(header);
+                String id = new String(header, 0, 4, Charsets.US_ASCII);
+                if (id.equals("DATA")) {
+                    int length = readInt(header, 4);
+                    assertTrue(length <= 64 * 1024);
+                    content = Arrays.copyOf(content, content.length + length);
+                    in.readFully(content, content.length - length, length);
+                } else {
+                    assertEquals("DONE", id);
+                    break;
+                }
+            }
+
+            if (name.contains("fail")) {
+                byte[] message = "Permission denied".getBytes(Charsets.US_ASCII);
+                writeHeader(out, "FAIL", message.length);
+                out.write(message);
+                return;
+            }
+
+            File f = new File(mRoot, name);
+            f.getParentFile().mkdirs();
+            Files.write(content, f);
+            f.setLastModified(readInt(header, 4) * 1000L);
+            mSentFiles.incrementAndGet();
+            writeHeader(out, "OKAY", 0);
+        }
+
+        private static int getMode(File f) {
+            if (f.isDirectory()) {
+                return 0x41ed;
+            }
+            return f.isFile() ? 0x81a4 : 0;
+        }
+
+        private static int readInt(byte[] data, int offset) {
+            return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8
+                    | (data[offset + 2] & 0xff) << 16 | (data[offset + 3] & 0xff) << 24;
+        }
+
+        private static void writeHeader(OutputStream out, String id, int value)
+                throws IOException {
+            out.write(id.getBytes(Charsets.US_ASCII));
+            writeInt(out, value);
+        }
+
+        private static void writeInt(OutputStream out, int value) throws IOException {
+            out.write(new byte[] {
+                    (byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24)
+            });
+        }
+    }
+
+    private static class CountingMonitor implements ISyncProgressMonitor {
+        int mTotal;
+        int mWork;
+
+        @Override
+        public void start(int totalWork) {
+            mTotal = totalWork;
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return false;
+        }
+
+        @Override
+        public void startSubTask(String name) {
+        }
+
+        @Override
+        public void advance(int work) {
+            mWork += work;
+        }
+    }
+
+    private File mLocal;
+    private File mDevice;
+    private FakeAdbServer mServer;
+    private SyncService mSyncService;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mLocal = Files.createTempDir();
+        mDevice = Files.createTempDir();
+        mServer = new FakeAdbServer(mDevice);
+        mSyncService = new SyncService(mServer.getAddress(),
+                new Device(null, "fake", DeviceState.ONLINE));
+        assertTrue(mSyncService.openSync());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSyncService.close();
+        mServer.close();
+        deleteRecursively(mLocal);
+        deleteRecursively(mDevice);
+        super.tearDown();
+    }
+
+    public void testPushDirectory() throws Exception {
+        int size = createFiles(new File(mLocal, "dir"));
+
+        CountingMonitor monitor = new CountingMonitor();
+        assertEquals(101, mSyncService.pushDirectory(mLocal.getPath(), "/data/", 3, monitor));
+        assertEquals(size, monitor.mTotal);
+        assertEquals(size, monitor.mWork);
+        assertEquals(3, mServer.mConnections.get());
+        assertSameFiles(mLocal, new File(mDevice, "data"));
+
+        // nothing changed.
+        assertEquals(0, mSyncService.pushDirectory(mLocal.getPath(), "/data", 3, monitor));
+
+        File changed = new File(mLocal, "dir/sub2/file3");
+        Files.write("changed", changed, Charsets.UTF_8);
+        changed.setLastModified(1000000000L);
+        assertEquals(1, mSyncService.pushDirectory(mLocal.getPath(), "/data", 3, monitor));
+        assertSameFiles(mLocal, new File(mDevice, "data"));
+        assertEquals(102, mServer.mSentFiles.get());
+    }
+
+    public void testPullDirectory() throws Exception {
+        int size = createFiles(new File(mDevice, "data/dir"));
+
+        CountingMonitor monitor = new CountingMonitor();
+        assertEquals(101, mSyncService.pullDirectory("/data", mLocal.getPath(), 2, monitor));
+        assertEquals(size, monitor.mTotal);
+        assertEquals(size, monitor.mWork);
+        assertSameFiles(new File(mDevice, "data"), mLocal);
+
+        // nothing changed.
+        assertEquals(0, mSyncService.pullDirectory("/data/", mLocal.getPath(), 2, monitor));
+    }
+
+    public void testPushFailure() throws Exception {
+        createFiles(mLocal);
+        Files.write("content", new File(mLocal, "fail"), Charsets.UTF_8);
+
+        try {
+            mSyncService.pushDirectory(mLocal.getPath(), "/data", 2, new CountingMonitor());
+            fail("Expected the push to fail");
+        } catch (SyncException e) {
+            assertEquals("Permission denied", e.getMessage());
+        }
+    }
+
+    /**
+     * Creates 100 small files and a large one in a directory.
+     * @return the total size of the files.
+     */
+    private static int createFiles(File directory) throws IOException {
+        int size = 0;
+        for (int i = 0; i < 100; i++) {
+            File f = new File(directory, "sub" + (i % 7) + "/file" + i);
+            f.getParentFile().mkdirs();
+            byte[] content = new byte[i * 37];
+            Arrays.fill(content, (byte) i);
+            Files.write(content, f);
+            f.setLastModified(1400000000000L + i * 1000L);
+            size += content.length;
+        }
+
+        byte[] content = new byte[300 * 1000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31);
+        }
+        Files.write(content, new File(directory, "large"));
+        return size + content.length;
+    }
+
+    private static void assertSameFiles(File expected, File actual) throws IOException {
+        assertTrue(actual.getPath(), actual.exists());
+        if (expected.isDirectory()) {
+            String[] names = expected.list();
+            String[] actualNames = actual.list();
+            Arrays.sort(names);
+            Arrays.sort(actualNames);
+            assertEquals(Arrays.asList(names), Arrays.asList(actualNames));
+            for (String name : names) {
+                assertSameFiles(new File(expected, name), new File(actual, name));
+            }
+        } else {
+            assertTrue(Arrays.equals(Files.toByteArray(expected), Files.toByteArray(actual)));
+            assertEquals(expected.lastModified() / 1000, actual.lastModified() / 1000);
+        }
+    }
+
+    private static void deleteRecursively(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        f.delete();
+    }
+}
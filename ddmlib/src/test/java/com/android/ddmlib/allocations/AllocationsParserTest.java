@@ -16,6 +16,7 @@
 package com.android.ddmlib.allocations;
 
 import com.android.ddmlib.AllocationInfo;
+import com.android.ddmlib.AllocationTrackerSnapshot;
 import com.android.ddmlib.AllocationsParser;
 import com.google.common.base.Charsets;
 import junit.framework.TestCase;
@@ -23,6 +24,7 @@ import junit.framework.TestCase;
 import java.io.IOException;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.util.List;
 
 public class AllocationsParserTest extends TestCase {
 
@@ -102,6 +104,35 @@ public class AllocationsParserTest extends TestCase {
     checkStackFrame("path.Blue", "watchCatVideos", "SomewhatBlue.java", 16, elems3[2]);
   }
 
+  public void testParsingCompact() throws IOException {
+    ByteBuffer data = putAllocationInfo(new String[]{"path.Foo", "path.Bar"}, new String[]{"foo", "bar"},
+            new String[]{"Foo.java"}, new int[][]{{16, 1, 0, 2}, {32, 1, 1, 2}, {8, 2, 0, 1}},
+            new short[][][]{{{0, 0, 0, 1}, {1, 1, 0, 2}}, {{0, 0, 0, 1}, {1, 1, 0, 2}}, {{1, 1, 0, 2}}});
+    AllocationTrackerSnapshot snapshot = AllocationsParser.parseCompact(data);
+    assertEquals(3, snapshot.getAllocationCount());
+    assertEquals(56, snapshot.getTotalSize());
+
+    // the identical stack traces are stored once, and share their caller with the last one.
+    assertEquals(snapshot.getStackId(0), snapshot.getStackId(1));
+    assertEquals(2, snapshot.getStackTrie().getNodeCount());
+    assertEquals(snapshot.getStackId(2), snapshot.getStackTrie().getParent(snapshot.getStackId(0)));
+    assertSame(snapshot.getStackTrace(0)[0], snapshot.getStackTrace(1)[0]);
+    checkStackFrame("path.Bar", "bar", "Foo.java", 2, snapshot.getStackTrace(0)[1]);
+
+    List<AllocationTrackerSnapshot.Usage> byClass = snapshot.getUsageByClass();
+    assertEquals(2, byClass.size());
+    assertEquals("path.Bar", byClass.get(0).getAllocatedClass());
+    assertEquals(32, byClass.get(0).getTotalSize());
+    assertEquals(24, byClass.get(1).getTotalSize());
+    assertEquals(2, byClass.get(1).getAllocationCount());
+
+    List<AllocationTrackerSnapshot.Usage> byCallSite = snapshot.getUsageByCallSite();
+    assertEquals(2, byCallSite.size());
+    checkStackFrame("path.Foo", "foo", "Foo.java", 1, byCallSite.get(0).getCallSite());
+    assertEquals(48, byCallSite.get(0).getTotalSize());
+    assertEquals(8, byCallSite.get(1).getTotalSize());
+  }
+
   private static void checkEntry(int order, String className, int size, int thread, AllocationInfo alloc) {
     assertEquals(order, alloc.getAllocNumber());
     assertEquals(className, alloc.getAllocatedClass());
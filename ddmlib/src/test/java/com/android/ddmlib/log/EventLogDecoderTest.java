@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.log;
+
+import com.android.ddmlib.log.EventContainer.EventValueType;
+import com.android.ddmlib.log.LogReceiver.LogEntry;
+import com.google.common.base.Charsets;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+
+public class EventLogDecoderTest extends TestCase {
+
+    private static final int BATTERY_LEVEL_TAG = 2722;
+    private static final int LAUNCH_TIME_TAG = 30009;
+
+    private static final String[] TAGS = new String[] {
+            "# event tags",
+            "2722 battery_level (level|1|6),(voltage|1|1),(temperature|1|1)",
+            "20001 dvm_gc_info (custom|2),(custom|2),(custom|2),(custom|2)",
+            "30009 am_activity_launch_time (Token|1|5),(Component Name|3),(time|2|3)",
+            "42 answer",
+    };
+
+    // the GC longs, from the format described in GcEventContainer.
+    private static final long GC_DATA_0 = 0x006d795f61000000L | (0x00aL << 12) | 0x2ffL;
+    private static final long GC_DATA_1 = (2L << 62) | (0x010L << 48) | (0x220L << 36);
+    private static final long GC_DATA_2 = (3L << 62) | (0x001L << 48) | (0x020L << 36);
+
+    private EventLogParser mParser;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mParser = new EventLogParser();
+        mParser.init(TAGS);
+    }
+
+    public void testDescribedEvent() throws Exception {
+        LogEntry entry = createEntry(BATTERY_LEVEL_TAG,
+                new EventWriter().list(3).putInt(98).putInt(4100).putInt(-5));
+        entry.pid = 12;
+        entry.tid = 34;
+        entry.sec = 2;
+        entry.nsec = 5;
+
+        EventBatch batch = new EventBatch(4);
+        assertTrue(new EventLogDecoder(mParser).decode(entry, batch));
+
+        assertEquals(1, batch.size());
+        assertEquals(BATTERY_LEVEL_TAG, batch.getTag(0));
+        assertEquals(12, batch.getPid(0));
+        assertEquals(34, batch.getTid(0));
+        assertEquals(2000000005L, batch.getTimestamp(0));
+        assertEquals(3, batch.getValueCount(0));
+        EventContainer event = mParser.parse(entry);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(EventValueType.INT, batch.getValueType(0, i));
+            assertEquals(((Integer) event.getValue(i)).longValue(), batch.getLong(0, i));
+        }
+    }
+
+    public void testUndescribedEvent() throws Exception {
+        EventBatch batch = new EventBatch(4);
+        EventLogDecoder decoder = new EventLogDecoder(mParser);
+
+        // the values don't match the description of the tag.
+        assertTrue(decoder.decode(createEntry(BATTERY_LEVEL_TAG,
+                new EventWriter().list(2).putLong(1).putString("high")), batch));
+        // the tag has no description.
+        assertTrue(decoder.decode(createEntry(42,
+                new EventWriter().list(2).putInt(4).list(1).putInt(2)), batch));
+
+        assertEquals(2, batch.size());
+        assertEquals(2, batch.getValueCount(0));
+        assertEquals(EventValueType.LONG, batch.getValueType(0, 0));
+        assertEquals("high", batch.getString(0, 1));
+        // the nested list is flattened.
+        assertEquals(2, batch.getValueCount(1));
+        assertEquals(2, batch.getLong(1, 1));
+    }
+
+    public void testInvalidEvent() throws Exception {
+        EventBatch batch = new EventBatch(4);
+        EventLogDecoder decoder = new EventLogDecoder(mParser);
+        byte[] data = createEntry(BATTERY_LEVEL_TAG,
+                new EventWriter().list(3).putInt(98).putInt(4100).putInt(-5)).data;
+        LogEntry entry = new LogEntry();
+        entry.data = new byte[data.length - 2];
+        System.arraycopy(data, 0, entry.data, 0, entry.data.length);
+        entry.len = entry.data.length;
+
+        assertFalse(decoder.decode(entry, batch));
+        assertEquals(0, batch.size());
+        assertTrue(decoder.decode(createEntry(42, new EventWriter().putString("ok")), batch));
+        assertEquals(1, batch.getValueCount(0));
+    }
+
+    public void testGcEvent() throws Exception {
+        LogEntry entry = createEntry(GcEventContainer.GC_EVENT_TAG, new EventWriter().list(3)
+                .putLong(GC_DATA_0).putLong(GC_DATA_1).putLong(GC_DATA_2));
+
+        EventBatch batch = new EventBatch(1);
+        assertTrue(new EventLogDecoder(mParser).decode(entry, batch));
+
+        // the values are the ones of GcEventContainer.
+        EventContainer event = mParser.parse(entry);
+        assertEquals(GcEventContainer.VALUE_COUNT, batch.getValueCount(0));
+        assertEquals(event.getValue(0), batch.getString(0, 0));
+        for (int i = 1; i < GcEventContainer.VALUE_COUNT; i++) {
+            assertEquals(event.getValue(i), batch.getLong(0, i));
+        }
+        assertEquals(10, batch.getLong(0, GcEventContainer.GC_TIME_INDEX));
+    }
+
+    public void testAggregations() throws Exception {
+        EventLogDecoder decoder = new EventLogDecoder(mParser, 2);
+        EventValueHistogram gcPauses = EventValueHistogram.createGcPauseHistogram();
+        ActivityLaunchTimings launches = new ActivityLaunchTimings(mParser);
+        decoder.addBatchListener(gcPauses);
+        decoder.addBatchListener(launches);
+
+        decoder.newEntry(createLaunch("com.example/.Main", 300));
+        decoder.newEntry(createEntry(GcEventContainer.GC_EVENT_TAG,
+                new EventWriter().list(2).putLong(GC_DATA_0).putLong(GC_DATA_1)));
+        decoder.newEntry(createLaunch("com.example/.Main", 100));
+        // only the full batch was aggregated.
+        assertEquals(1, launches.getHistogram().getCount());
+        decoder.newEntry(createLaunch("com.example/.Settings", 900));
+        decoder.flush();
+
+        assertEquals(1, gcPauses.getCount());
+        assertEquals(10, gcPauses.getMax());
+        assertEquals(1, gcPauses.getBucketCount(4));
+
+        assertEquals(2, launches.getTimings().size());
+        ActivityLaunchTimings.Timing main = launches.getTiming("com.example/.Main");
+        assertEquals(2, main.getCount());
+        assertEquals(400, main.getTotalTime());
+        assertEquals(100, main.getMinTime());
+        assertEquals(300, main.getMaxTime());
+
+        EventValueHistogram histogram = launches.getHistogram();
+        assertEquals(3, histogram.getCount());
+        assertEquals(511, histogram.getPercentile(50));
+        assertEquals(900, histogram.getPercentile(100));
+    }
+
+    private static LogEntry createLaunch(String component, long time) {
+        return createEntry(LAUNCH_TIME_TAG,
+                new EventWriter().list(3).putInt(7).putString(component).putLong(time));
+    }
+
+    private static LogEntry createEntry(int tag, EventWriter writer) {
+        EventWriter data = new EventWriter();
+        data.putRawInt(tag);
+        byte[] values = writer.mOut.toByteArray();
+        data.mOut.write(values, 0, values.length);
+
+        LogEntry entry = new LogEntry();
+        entry.data = data.mOut.toByteArray();
+        entry.len = entry.data.length;
+        return entry;
+    }
+
+    /**
+     * Writes the binary values of an event, in little endian.
+     */
+    private static final class EventWriter {
+        final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+
+        EventWriter list(int count) {
+            mOut.write(3);
+            mOut.write(count);
+            return this;
+        }
+
+        EventWriter putInt(int value) {
+            mOut.write(0);
+            putRawInt(value);
+            return this;
+        }
+
+        EventWriter putLong(long value) {
+            mOut.write(1);
+            for (int i = 0; i < 8; i++) {
+                mOut.write((int) (value >>> (i * 8)));
+            }
+            return this;
+        }
+
+        EventWriter putString(String value) {
+            byte[] bytes = value.getBytes(Charsets.UTF_8);
+            mOut.write(2);
+            putRawInt(bytes.length);
+            mOut.write(bytes, 0, bytes.length);
+            return this;
+        }
+
+        void putRawInt(int value) {
+            for (int i = 0; i < 4; i++) {
+                mOut.write(value >>> (i * 8));
+            }
+        }
+    }
+}
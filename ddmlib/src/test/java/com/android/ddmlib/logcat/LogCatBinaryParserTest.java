@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.logcat;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.utils.ArrayHelper;
+import com.google.common.base.Charsets;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+public class LogCatBinaryParserTest extends TestCase {
+    private static final int SEC = 1420000000;
+
+    private byte[] mLog;
+
+    @Override
+    protected void setUp() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeEntry(out, 0, 123, 0x1c8, 0, 5000000, 4, "ActivityManager", "Start proc");
+        writeEntry(out, 24, 123, 456, 1, 999000000, 6, "  dalvikvm ", "line 1\nline 2\n");
+        writeEntry(out, 24, 7, 8, 1, 999000000, 7, "ActivityManager", "");
+        writeEntry(out, 0, 7, 8, 2, 0, 3, "ActivityManager", "unicode \u00e9");
+        mLog = out.toByteArray();
+    }
+
+    private static void writeEntry(ByteArrayOutputStream out, int headerSize, int pid, int tid,
+            int sec, int nsec, int priority, String tag, String message) {
+        byte[] tagBytes = tag.getBytes(Charsets.UTF_8);
+        byte[] messageBytes = message.getBytes(Charsets.UTF_8);
+        int length = 1 + tagBytes.length + 1 + messageBytes.length + 1;
+        byte[] header = new byte[headerSize == 0 ? 20 : headerSize];
+        ArrayHelper.swap32bitsToArray(length | headerSize << 16, header, 0);
+        ArrayHelper.swap32bitsToArray(pid, header, 4);
+        ArrayHelper.swap32bitsToArray(tid, header, 8);
+        ArrayHelper.swap32bitsToArray(SEC + sec, header, 12);
+        ArrayHelper.swap32bitsToArray(nsec, header, 16);
+        out.write(header, 0, header.length);
+        out.write(priority);
+        out.write(tagBytes, 0, tagBytes.length);
+        out.write(0);
+        out.write(messageBytes, 0, messageBytes.length);
+        out.write(0);
+    }
+
+    private static String time(int sec, int ms) {
+        SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss", Locale.US);
+        return format.format(new Date((SEC + sec) * 1000L)) + String.format(".%03d", ms);
+    }
+
+    public void testParse() {
+        List<LogCatMessage> messages = new LogCatBinaryParser().processBinaryLogData(mLog, 0,
+                mLog.length, null);
+        assertEquals(4, messages.size());
+
+        LogCatMessage m = messages.get(0);
+        assertEquals(LogLevel.INFO, m.getLogLevel());
+        assertEquals("123", m.getPid());
+        assertEquals("456", m.getTid());
+        assertEquals("ActivityManager", m.getTag());
+        assertEquals(time(0, 5), m.getTime());
+        assertEquals("Start proc", m.getMessage());
+
+        m = messages.get(1);
+        assertEquals(LogLevel.ERROR, m.getLogLevel());
+        assertEquals("dalvikvm", m.getTag());
+        assertEquals(time(1, 999), m.getTime());
+        assertEquals("line 1", m.getMessage());
+        assertEquals("line 2", messages.get(2).getMessage());
+        assertEquals(time(1, 999), messages.get(2).getTime());
+
+        m = messages.get(3);
+        assertEquals(LogLevel.DEBUG, m.getLogLevel());
+        assertEquals("7", m.getPid());
+        assertEquals("unicode \u00e9", m.getMessage());
+    }
+
+    public void testSplitData() {
+        List<LogCatMessage> expected = new LogCatBinaryParser().processBinaryLogData(mLog, 0,
+                mLog.length, null);
+        for (int chunk = 1; chunk < mLog.length; chunk++) {
+            LogCatBinaryParser parser = new LogCatBinaryParser();
+            List<LogCatMessage> messages = new ArrayList<LogCatMessage>();
+            for (int offset = 0; offset < mLog.length; offset += chunk) {
+                messages.addAll(parser.processBinaryLogData(mLog, offset,
+                        Math.min(chunk, mLog.length - offset), null));
+            }
+            assertEquals(expected.size(), messages.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).toString(), messages.get(i).toString());
+            }
+        }
+    }
+}
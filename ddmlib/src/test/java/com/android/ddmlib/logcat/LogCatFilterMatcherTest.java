@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.logcat;
+
+import com.android.ddmlib.Log.LogLevel;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+public class LogCatFilterMatcherTest extends TestCase {
+    private static final String[] WORDS = {
+            "he", "she", "his", "hers", "Hers", "sh.rs", "ab", "b", "abab", "[bad", "Ex", "^s" };
+    private static final String[] PIDS = { "", "1", "2" };
+    private static final String[] TAGS = { "", "dalvik", "Dalvik.*", "act" };
+    private static final String[] APPS = { "", "com.foo", "bar$" };
+
+    public void testSameAsFilters() {
+        Random random = new Random(1);
+        List<LogCatFilter> filters = new ArrayList<LogCatFilter>();
+        for (int i = 0; i < 40; i++) {
+            filters.add(new LogCatFilter("filter" + i, pick(random, TAGS),
+                    random.nextInt(4) == 0 ? "" : pick(random, WORDS), pick(random, PIDS),
+                    pick(random, APPS), pick(random, LogLevel.values())));
+        }
+        LogCatFilterMatcher matcher = new LogCatFilterMatcher(filters);
+
+        String[] tags = { "dalvikvm", "Dalvikvm", "ActivityManager", "art" };
+        String[] apps = { "com.foo.bar", "com.other", "" };
+        String[] texts = { "ushers", "SHE said", "abab", "xxhisx", "Exception: [bad", "shars",
+                "s", "" };
+        BitSet matches = new BitSet();
+        for (int i = 0; i < 2000; i++) {
+            LogCatMessage m = new LogCatMessage(pick(random, LogLevel.values()),
+                    pick(random, PIDS), "1", pick(random, apps), pick(random, tags), "",
+                    pick(random, texts));
+            matcher.getMatchingFilters(m, matches);
+            boolean all = true;
+            boolean any = false;
+            for (int f = 0; f < filters.size(); f++) {
+                boolean expected = filters.get(f).matches(m);
+                assertEquals(filters.get(f).getName() + " on " + m, expected, matches.get(f));
+                all &= expected;
+                any |= expected;
+            }
+            assertEquals(all, matcher.matchesAll(m));
+            assertEquals(any, matcher.matchesAny(m));
+        }
+    }
+
+    public void testQuery() {
+        LogCatFilterMatcher matcher = new LogCatFilterMatcher(
+                LogCatFilter.fromString("tag:dalvik gc", LogLevel.VERBOSE));
+        assertTrue(matcher.matchesAll(new LogCatMessage(LogLevel.DEBUG, "1", "1", "",
+                "dalvikvm", "", "GC_CONCURRENT freed")));
+        assertFalse(matcher.matchesAll(new LogCatMessage(LogLevel.DEBUG, "1", "1", "",
+                "dalvikvm", "", "freed")));
+        assertTrue(matcher.matchesAny(new LogCatMessage(LogLevel.DEBUG, "1", "1", "",
+                "dalvikvm", "", "freed")));
+    }
+
+    private static <T> T pick(Random random, T[] values) {
+        return values[random.nextInt(values.length)];
+    }
+}
@@ -21,7 +21,9 @@ import junit.framework.TestCase;
 import org.easymock.Capture;
 import org.easymock.EasyMock;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -100,6 +102,29 @@ public class InstrumentationResultParserTest extends TestCase {
         injectAndVerifyTestString(output.toString());
     }
 
+    /**
+     * Tests that a subclass overriding processNewLines still gets the lines of the output.
+     */
+    public void testParse_processNewLinesOverride() {
+        final List<String> lines = new ArrayList<String>();
+        mParser = new InstrumentationResultParser(RUN_NAME, mMockListener) {
+            @Override
+            public void processNewLines(String[] newLines) {
+                Collections.addAll(lines, newLines);
+                super.processNewLines(newLines);
+            }
+        };
+        StringBuilder output = createSuccessTest();
+
+        mMockListener.testRunStarted(RUN_NAME, 1);
+        mMockListener.testStarted(TEST_ID);
+        mMockListener.testEnded(TEST_ID, Collections.EMPTY_MAP);
+        mMockListener.testRunEnded(0, Collections.EMPTY_MAP);
+
+        injectAndVerifyTestString(output.toString());
+        assertEquals(output.toString().trim().split("\r\n").length, lines.size());
+    }
+
     /**
      * Tests parsing output for a successful test execution with metrics.
      */
@@ -17,9 +17,13 @@
 package com.android.tools.perflib.heap;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.hash.Hasher;
 
 public class ArrayInstance extends Instance {
 
+    static final int HASH_CHUNK_SIZE = 1 << 16;
+
     private final Type mType;
 
     private final int mLength;
@@ -45,15 +49,83 @@ public class ArrayInstance extends Instance {
         return values;
     }
 
+    /**
+     * Decodes a single element of the array, without decoding the others.
+     */
+    @Nullable
+    public Object getValue(int index) {
+        if (index < 0 || index >= mLength) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", length: " + mLength);
+        }
+        getBuffer().setPosition(mValuesOffset + (long) index * mType.getSize());
+        return readValue(mType);
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Decodes a range of the elements of a {@code char[]}, e.g. the value of a String.
+     */
+    @NonNull
+    public char[] asCharArray(int offset, int length) {
+        assert mType == Type.CHAR;
+        if (offset < 0 || length < 0 || offset + length > mLength) {
+            throw new IndexOutOfBoundsException(
+                    "Range: " + offset + "+" + length + ", length: " + mLength);
+        }
+        char[] chars = new char[length];
+        getBuffer().setPosition(mValuesOffset + (long) offset * Type.CHAR.getSize());
+        for (int i = 0; i < length; i++) {
+            chars[i] = getBuffer().readChar();
+        }
+        return chars;
+    }
+
     @Override
     public final int getSize() {
         // TODO: Take the rest of the fields into account: length, type, etc (~16 bytes).
         return mLength * mType.getSize();
     }
 
+    @Override
+    void hashContent(@NonNull Hasher hasher, boolean followArrays) {
+        hasher.putInt(mType.ordinal());
+        hasher.putInt(mLength);
+        if (mType == Type.OBJECT) {
+            // Object arrays of different classes must not match, and as the ids of the elements
+            // differ across dumps, only which elements are null is compared.
+            super.hashContent(hasher, followArrays);
+            getBuffer().setPosition(mValuesOffset);
+            for (int i = 0; i < mLength; i++) {
+                hasher.putBoolean(readId() != 0);
+            }
+        } else {
+            getBuffer().setPosition(mValuesOffset);
+            long remaining = (long) mLength * mType.getSize();
+            byte[] chunk = new byte[(int) Math.min(remaining, HASH_CHUNK_SIZE)];
+            for (; remaining > 0; remaining -= chunk.length) {
+                if (remaining < chunk.length) {
+                    chunk = new byte[(int) remaining];
+                }
+                getBuffer().read(chunk);
+                hasher.putBytes(chunk);
+            }
+        }
+    }
+
+    @Override
+    long getValuesOffset() {
+        return mValuesOffset;
+    }
+
     @Override
     public final void accept(@NonNull Visitor visitor) {
         visitor.visitArrayInstance(this);
+        if (acceptReferencesLazily(visitor)) {
+            return;
+        }
         if (mType == Type.OBJECT) {
             for (Object value : getValues()) {
                 if (value instanceof Instance) {
@@ -17,7 +17,9 @@
 package com.android.tools.perflib.heap;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
+import com.google.common.hash.Hasher;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -36,6 +38,27 @@ public class ClassInstance extends Instance {
         return getValues().get(new Field(type, name));
     }
 
+    /**
+     * Decodes the value of a single field, without decoding any other field of this instance. If
+     * a superclass declares a field with the same name, the one of the most derived class is read.
+     *
+     * @return the value of the field, or null if it is a null reference or there is no such field.
+     */
+    @Nullable
+    public Object getFieldValue(@NonNull String name) {
+        long offset = mValuesOffset;
+        for (ClassObj clazz = getClassObj(); clazz != null; clazz = clazz.getSuperClassObj()) {
+            for (Field field : clazz.getFields()) {
+                if (field.getName().equals(name)) {
+                    getBuffer().setPosition(offset);
+                    return readValue(field.getType());
+                }
+                offset += field.getType().getSize();
+            }
+        }
+        return null;
+    }
+
     @NonNull
     public Map<Field, Object> getValues() {
         Map<Field, Object> result = new HashMap<Field, Object>();
@@ -51,9 +74,51 @@ public class ClassInstance extends Instance {
         return result;
     }
 
+    @Override
+    void hashContent(@NonNull Hasher hasher, boolean followArrays) {
+        ClassObj clazz = getClassObj();
+        if (clazz == null) {
+            return;
+        }
+        hasher.putUnencodedChars(clazz.getClassName());
+        long position = mValuesOffset;
+        while (clazz != null) {
+            for (Field field : clazz.getFields()) {
+                Type type = field.getType();
+                getBuffer().setPosition(position);
+                if (type != Type.OBJECT) {
+                    for (int i = 0; i < type.getSize(); i++) {
+                        hasher.putByte(getBuffer().readByte());
+                    }
+                } else {
+                    long id = readId();
+                    hasher.putBoolean(id != 0);
+                    Instance value = followArrays && id != 0
+                            ? mHeap.mSnapshot.findReference(id) : null;
+                    if (value instanceof ArrayInstance
+                            && ((ArrayInstance) value).getArrayType() != Type.OBJECT) {
+                        value.hashContent(hasher, false);
+                    } else if (value != null && value.getClassObj() != null) {
+                        hasher.putUnencodedChars(value.getClassObj().getClassName());
+                    }
+                }
+                position += type.getSize();
+            }
+            clazz = clazz.getSuperClassObj();
+        }
+    }
+
+    @Override
+    long getValuesOffset() {
+        return mValuesOffset;
+    }
+
     @Override
     public final void accept(@NonNull Visitor visitor) {
         visitor.visitClassInstance(this);
+        if (acceptReferencesLazily(visitor)) {
+            return;
+        }
         for (Object value : getValues().values()) {
             if (value instanceof Instance) {
                 if (!mReferencesAdded) {
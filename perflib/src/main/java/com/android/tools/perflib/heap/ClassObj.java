@@ -19,7 +19,10 @@ package com.android.tools.perflib.heap;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
+import com.android.tools.perflib.heap.io.HprofBuffer;
+import com.google.common.hash.Hasher;
 import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TLongArrayList;
 
 import java.util.*;
 
@@ -145,6 +148,66 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
         return result;
     }
 
+    @Override
+    void hashContent(@NonNull Hasher hasher, boolean followArrays) {
+        hasher.putUnencodedChars(mClassName);
+    }
+
+    @Override
+    long getValuesOffset() {
+        return mStaticFieldsOffset;
+    }
+
+    /**
+     * Appends the ids of the objects referred by the static fields of this class, reading only
+     * the reference values from the buffer. Null references are skipped.
+     */
+    void readReferenceIds(@NonNull TLongArrayList ids) {
+        if (mStaticFields.length == 0) {
+            return;
+        }
+        getBuffer().setPosition(mStaticFieldsOffset);
+
+        int numEntries = readUnsignedShort();
+        for (int i = 0; i < numEntries; i++) {
+            Type type = mStaticFields[i].getType();
+
+            readId();
+            readUnsignedByte();
+
+            if (type == Type.OBJECT) {
+                long id = readId();
+                if (id != 0) {
+                    ids.add(id);
+                }
+            } else {
+                getBuffer().setPosition(getBuffer().position() + type.getSize());
+            }
+        }
+    }
+
+    /**
+     * Appends the ids of the objects referred by the fields of an instance of this class, whose
+     * values are at the given position in the buffer. Null references are skipped.
+     */
+    void readInstanceReferenceIds(long valuesOffset, @NonNull TLongArrayList ids) {
+        HprofBuffer buffer = getBuffer();
+        buffer.setPosition(valuesOffset);
+        for (ClassObj clazz = this; clazz != null; clazz = clazz.getSuperClassObj()) {
+            for (Field field : clazz.getFields()) {
+                Type type = field.getType();
+                if (type == Type.OBJECT) {
+                    long id = readId();
+                    if (id != 0) {
+                        ids.add(id);
+                    }
+                } else {
+                    buffer.setPosition(buffer.position() + type.getSize());
+                }
+            }
+        }
+    }
+
     public final void dump() {
         System.out.println("+----------  ClassObj dump for: " + mClassName);
 
@@ -172,6 +235,9 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
     @Override
     public final void accept(@NonNull Visitor visitor) {
         visitor.visitClassObj(this);
+        if (acceptReferencesLazily(visitor)) {
+            return;
+        }
         for (Object value : getStaticFieldValues().values()) {
             if (value instanceof Instance) {
                 if (!mReferencesAdded) {
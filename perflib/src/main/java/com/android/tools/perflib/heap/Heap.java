@@ -182,6 +182,10 @@ public class Heap {
         return mClassesByName.values();
     }
 
+    public int getInstancesCount() {
+        return mInstances.size();
+    }
+
     @NonNull
     public Collection<Instance> getInstances() {
         final ArrayList<Instance> result = new ArrayList<Instance>(mInstances.size());
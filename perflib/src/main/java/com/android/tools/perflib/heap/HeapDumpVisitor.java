@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.heap.io.HprofBuffer;
+
+/**
+ * Receives the contents of a heap dump, in file order, as they are read by
+ * {@link HprofParser#parse(HeapDumpVisitor)}. No {@link Snapshot} is built and nothing is kept
+ * once a callback returns, so the memory used only depends on what the visitor keeps.
+ *
+ * Callbacks that take an {@link HprofBuffer} get it positioned at the start of the field values
+ * or array elements of the object. The visitor may read from it, or from any other position later
+ * on, as the parser restores the position itself.
+ */
+public interface HeapDumpVisitor {
+
+    /**
+     * Called when the following records belong to another heap. Records are in the default heap,
+     * with id 0, until the first call.
+     */
+    void visitHeap(int id, @NonNull String name);
+
+    void visitRoot(@NonNull RootType type, long id);
+
+    /**
+     * Called for each class definition, with the instance fields declared by the class itself
+     * and not by its superclasses, in the order their values are stored in instances.
+     */
+    void visitClass(long id, @NonNull String name, long superClassId, int instanceSize,
+            @NonNull Field[] fields);
+
+    void visitInstance(long id, long classId, @NonNull HprofBuffer values);
+
+    void visitObjectArray(long id, long classId, int length, @NonNull HprofBuffer values);
+
+    void visitPrimitiveArray(long id, @NonNull Type type, int length,
+            @NonNull HprofBuffer values);
+}
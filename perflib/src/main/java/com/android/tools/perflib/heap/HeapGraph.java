@@ -0,0 +1,798 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.heap.analysis.LinkEvalDominators;
+import com.android.tools.perflib.heap.io.HprofBuffer;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import gnu.trove.TIntArrayList;
+
+/**
+ * Compact, columnar representation of the object graph of a {@link Snapshot}.
+ *
+ * Every class and instance is identified by an int ordinal, in increasing order of their ids, and
+ * its attributes live in parallel primitive buffers instead of per-object fields. References are
+ * kept in CSR (compressed sparse row) form: the outgoing edges of ordinal <i>i</i> are
+ * {@code mOutEdges[mOutOffsets[i]]} to {@code mOutEdges[mOutOffsets[i + 1] - 1]}, and likewise for
+ * incoming edges. Ordinal 0 is reserved for the {@link Snapshot#SENTINEL_ROOT}, which has an edge
+ * to every instance referred by a GC root. The buffers wrap arrays for a graph built in memory, and
+ * are mapped from the file for a graph loaded from a {@link HeapGraphIndex}.
+ *
+ * The graph is built by reading reference ids straight from the buffer, so none of the
+ * {@link Instance#getReferences()} lists need to be populated. It is either built from a parsed
+ * {@link Snapshot}, or directly by {@link HprofParser#parseGraph()}, in which case no
+ * {@link Instance} is ever created for the objects of the heap dump: {@link #getInstance(int)}
+ * creates views of the nodes on demand instead. A graph can also be saved to and loaded from a
+ * {@link HeapGraphIndex}, in which case it may not be attached to any snapshot.
+ */
+public class HeapGraph {
+
+    /**
+     * Ordinal of the sentinel root node.
+     */
+    public static final int ROOT = 0;
+
+    /**
+     * Marks a missing ordinal, e.g. the class of an instance whose class isn't in the snapshot.
+     */
+    public static final int NONE = LinkEvalDominators.NONE;
+
+    /*
+     * Kinds of nodes. Arrays have the id of the type of their elements as kind.
+     */
+    static final byte KIND_INSTANCE = 0;
+
+    static final byte KIND_CLASS = 1;
+
+    /**
+     * Frontiers of the breadth-first search to the GC roots are split into chunks of this many
+     * nodes to be expanded in parallel.
+     */
+    private static final int FRONTIER_CHUNK_SIZE = 4096;
+
+    @Nullable
+    private Snapshot mSnapshot;
+
+    final int mNodeCount;
+
+    //  Sorted ids, indexed by ordinal. mIds[ROOT] is unused.
+    @NonNull
+    final LongBuffer mIds;
+
+    //  Position of the values of each node in the buffer, or -1.
+    @NonNull
+    final LongBuffer mOffsets;
+
+    @NonNull
+    final IntBuffer mSizes;
+
+    @NonNull
+    final IntBuffer mClassOrdinals;
+
+    @NonNull
+    final ByteBuffer mHeapIndices;
+
+    @NonNull
+    final ByteBuffer mKinds;
+
+    @NonNull
+    final IntBuffer mOutOffsets;
+
+    @NonNull
+    final IntBuffer mOutEdges;
+
+    @NonNull
+    final IntBuffer mInOffsets;
+
+    @NonNull
+    final IntBuffer mInEdges;
+
+    //  Ordinals of all the ClassObj nodes in increasing order, and their names.
+    @NonNull
+    final int[] mClasses;
+
+    @NonNull
+    final String[] mClassNames;
+
+    @Nullable
+    IntBuffer mDominators;
+
+    @Nullable
+    LongBuffer mRetainedSizes;
+
+    @Nullable
+    IntBuffer mTopologicalOrder;
+
+    @Nullable
+    IntBuffer mDistances;
+
+    @Nullable
+    IntBuffer mNextToGcRoot;
+
+    /**
+     * Creates a graph over buffers holding one element per node, or per edge for
+     * {@code outEdges} and {@code inEdges}, with their position at 0.
+     */
+    HeapGraph(@Nullable Snapshot snapshot, @NonNull LongBuffer ids, @NonNull LongBuffer offsets,
+            @NonNull IntBuffer sizes, @NonNull IntBuffer classOrdinals,
+            @NonNull ByteBuffer heapIndices, @NonNull ByteBuffer kinds,
+            @NonNull IntBuffer outOffsets, @NonNull IntBuffer outEdges,
+            @NonNull IntBuffer inOffsets, @NonNull IntBuffer inEdges, @NonNull int[] classes,
+            @NonNull String[] classNames) {
+        mSnapshot = snapshot;
+        mNodeCount = ids.limit();
+        mIds = ids;
+        mOffsets = offsets;
+        mSizes = sizes;
+        mClassOrdinals = classOrdinals;
+        mHeapIndices = heapIndices;
+        mKinds = kinds;
+        mOutOffsets = outOffsets;
+        mOutEdges = outEdges;
+        mInOffsets = inOffsets;
+        mInEdges = inEdges;
+        mClasses = classes;
+        mClassNames = classNames;
+    }
+
+    /**
+     * Returns the contents of a buffer as an array, without copying them if the buffer wraps one.
+     */
+    @NonNull
+    private static int[] toArray(@NonNull IntBuffer buffer) {
+        if (buffer.hasArray() && buffer.arrayOffset() == 0
+                && buffer.array().length == buffer.limit()) {
+            return buffer.array();
+        }
+        int[] values = new int[buffer.limit()];
+        IntBuffer source = buffer.duplicate();
+        source.rewind();
+        source.get(values);
+        return values;
+    }
+
+    /**
+     * Builds the graph of all the classes and instances in the snapshot, whose classes must have
+     * been resolved already.
+     */
+    @NonNull
+    public static HeapGraph build(@NonNull Snapshot snapshot) {
+        HeapGraphBuilder builder = new HeapGraphBuilder(snapshot);
+        for (Heap heap : snapshot.getHeaps()) {
+            int heapIndex = snapshot.getHeapIndex(heap);
+            // Classes are iterated by id, as several classes may share the same name.
+            for (Object value : heap.mClassesById.getValues()) {
+                ClassObj classObj = (ClassObj) value;
+                builder.addClass(classObj.getId(), heapIndex, classObj.getSize(),
+                        classObj.getValuesOffset());
+            }
+            for (Instance instance : heap.getInstances()) {
+                if (instance instanceof ArrayInstance) {
+                    ArrayInstance array = (ArrayInstance) instance;
+                    builder.addArray(array.getId(), heapIndex, array.getArrayType(),
+                            array.mClassId, array.getSize(), array.getValuesOffset());
+                } else {
+                    builder.addInstance(instance.getId(), heapIndex, instance.mClassId,
+                            instance.getSize(), instance.getValuesOffset());
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    static byte getArrayKind(@NonNull Type type) {
+        return (byte) type.getTypeId();
+    }
+
+    @NonNull
+    static Type getArrayType(byte kind) {
+        return Type.getType(kind);
+    }
+
+    /**
+     * Returns the snapshot this graph provides views of, or null for a graph loaded from an index
+     * and not attached to a snapshot yet.
+     */
+    @Nullable
+    public Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Attaches a graph loaded from an index to the snapshot parsed from the same heap dump, so that
+     * {@link #getInstance(int)} can be used.
+     */
+    public void setSnapshot(@NonNull Snapshot snapshot) {
+        mSnapshot = snapshot;
+    }
+
+    /**
+     * Returns the number of nodes in the graph, including the sentinel root.
+     */
+    public int getNodeCount() {
+        return mNodeCount;
+    }
+
+    /**
+     * Returns the ordinal of the class or instance with the given id, or {@link #NONE}.
+     */
+    public int getOrdinal(long id) {
+        int low = 1;
+        int high = mNodeCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleId = mIds.get(middle);
+            if (middleId < id) {
+                low = middle + 1;
+            } else if (middleId > id) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return NONE;
+    }
+
+    public long getId(int ordinal) {
+        return mIds.get(ordinal);
+    }
+
+    /**
+     * Returns a view of the given node as an {@link Instance}.
+     *
+     * If the snapshot was parsed by {@link HprofParser#parseGraph()}, it only holds the classes,
+     * and a new view is created for each call on any other node. Such views can decode their
+     * values and read their distance to the GC roots from the graph, but have no allocation stack
+     * trace and none of the results of the other analyses done on instances.
+     */
+    @NonNull
+    public Instance getInstance(int ordinal) {
+        if (ordinal == ROOT) {
+            return Snapshot.SENTINEL_ROOT;
+        }
+        if (mSnapshot == null) {
+            throw new IllegalStateException("The graph is not attached to a snapshot");
+        }
+        if (mKinds.get(ordinal) != KIND_CLASS && mSnapshot.hasInstancesInGraph()) {
+            return createView(ordinal);
+        }
+        Instance instance = mSnapshot.findReference(mIds.get(ordinal));
+        assert instance != null;
+        return instance;
+    }
+
+    @NonNull
+    private Instance createView(int ordinal) {
+        assert mSnapshot != null;
+        int classOrdinal = mClassOrdinals.get(ordinal);
+        Instance instance;
+        if (mKinds.get(ordinal) == KIND_INSTANCE) {
+            instance = new ClassInstance(mIds.get(ordinal), null, mOffsets.get(ordinal));
+            instance.setSize(mSizes.get(ordinal));
+        } else {
+            Type type = getArrayType(mKinds.get(ordinal));
+            instance = new ArrayInstance(mIds.get(ordinal), null, type,
+                    mSizes.get(ordinal) / type.getSize(), mOffsets.get(ordinal));
+        }
+        instance.setClassId(classOrdinal != NONE ? mIds.get(classOrdinal) : 0);
+        instance.setHeap(mSnapshot.mHeaps.get(mHeapIndices.get(ordinal)));
+        instance.mGraphOrdinal = ordinal;
+        return instance;
+    }
+
+    /**
+     * Returns the position in the heap dump of the field or array values of a node, or -1.
+     */
+    public long getOffset(int ordinal) {
+        return mOffsets.get(ordinal);
+    }
+
+    public int getSize(int ordinal) {
+        return mSizes.get(ordinal);
+    }
+
+    /**
+     * Returns the ordinal of the {@link ClassObj} of the given node, or {@link #NONE}.
+     */
+    public int getClassOrdinal(int ordinal) {
+        return mClassOrdinals.get(ordinal);
+    }
+
+    /**
+     * Returns the index of the heap of the given node, following {@link Snapshot#getHeapIndex}.
+     */
+    public int getHeapIndex(int ordinal) {
+        return mHeapIndices.get(ordinal);
+    }
+
+    /**
+     * Returns the class name of a {@link ClassObj} node, or null if the node isn't a class.
+     */
+    @Nullable
+    public String getClassName(int ordinal) {
+        int index = Arrays.binarySearch(mClasses, ordinal);
+        return index >= 0 ? mClassNames[index] : null;
+    }
+
+    /**
+     * Returns the type of the elements of an array node, or null if the node isn't an array.
+     */
+    @Nullable
+    public Type getElementType(int ordinal) {
+        byte kind = mKinds.get(ordinal);
+        return kind != KIND_INSTANCE && kind != KIND_CLASS ? getArrayType(kind) : null;
+    }
+
+    /**
+     * Returns the allocation stack trace of a node. If the snapshot only holds classes, the serial
+     * number of the trace is read from the record of the node in the heap dump, so that no view
+     * of the node is created.
+     */
+    @Nullable
+    public StackTrace getStackTrace(int ordinal) {
+        if (ordinal == ROOT) {
+            return null;
+        }
+        if (mSnapshot == null) {
+            throw new IllegalStateException("The graph is not attached to a snapshot");
+        }
+        byte kind = mKinds.get(ordinal);
+        if (kind == KIND_CLASS) {
+            ClassObj classObj = mSnapshot.findClass(mIds.get(ordinal));
+            return classObj != null ? classObj.getStack() : null;
+        }
+        if (!mSnapshot.hasInstancesInGraph()) {
+            Instance instance = mSnapshot.findReference(mIds.get(ordinal));
+            return instance != null ? instance.getStack() : null;
+        }
+        // The serial number is followed by the class id and the length for instances, by the
+        // length and the class id for object arrays, and by the length and the element type for
+        // primitive arrays.
+        long position = mOffsets.get(ordinal) - 4 - 4;
+        if (kind == KIND_INSTANCE || getArrayType(kind) == Type.OBJECT) {
+            position -= Type.OBJECT.getSize();
+        } else {
+            position -= 1;
+        }
+        HprofBuffer buffer = mSnapshot.getBuffer();
+        long previous = buffer.position();
+        buffer.setPosition(position);
+        int serial = buffer.readInt();
+        buffer.setPosition(previous);
+        return mSnapshot.getStackTrace(serial);
+    }
+
+    /**
+     * Returns a hash of the contents of a node that doesn't depend on object ids, in the same way
+     * as {@link Instance#getContentHash()}, but reading the values straight from the heap dump,
+     * and the classes of referenced objects from the graph, so that no view of the node is created.
+     */
+    public long getContentHash(int ordinal) {
+        if (mSnapshot == null) {
+            throw new IllegalStateException("The graph is not attached to a snapshot");
+        }
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        long position = mSnapshot.getBuffer().position();
+        hashContent(ordinal, hasher, true);
+        mSnapshot.getBuffer().setPosition(position);
+        return hasher.hash().asLong();
+    }
+
+    /**
+     * Adds the contents of a node to the hasher, as {@code Instance#hashContent} does. The buffer
+     * position is not restored.
+     */
+    private void hashContent(int ordinal, @NonNull Hasher hasher, boolean followArrays) {
+        assert mSnapshot != null;
+        HprofBuffer buffer = mSnapshot.getBuffer();
+        byte kind = mKinds.get(ordinal);
+        int classOrdinal = mClassOrdinals.get(ordinal);
+        if (kind == KIND_CLASS) {
+            hasher.putUnencodedChars(getClassName(ordinal));
+        } else if (kind == KIND_INSTANCE) {
+            ClassObj classObj = classOrdinal != NONE
+                    ? mSnapshot.findClass(mIds.get(classOrdinal)) : null;
+            if (classObj == null) {
+                return;
+            }
+            hasher.putUnencodedChars(classObj.getClassName());
+            long position = mOffsets.get(ordinal);
+            for (; classObj != null; classObj = classObj.getSuperClassObj()) {
+                for (Field field : classObj.getFields()) {
+                    Type type = field.getType();
+                    buffer.setPosition(position);
+                    if (type != Type.OBJECT) {
+                        for (int i = 0; i < type.getSize(); i++) {
+                            hasher.putByte(buffer.readByte());
+                        }
+                    } else {
+                        long id = Type.readId(buffer);
+                        hasher.putBoolean(id != 0);
+                        int value = followArrays && id != 0 ? getOrdinal(id) : NONE;
+                        if (value != NONE) {
+                            Type elementType = getElementType(value);
+                            int valueClass = mClassOrdinals.get(value);
+                            if (elementType != null && elementType != Type.OBJECT) {
+                                hashContent(value, hasher, false);
+                            } else if (valueClass != NONE) {
+                                hasher.putUnencodedChars(getClassName(valueClass));
+                            }
+                        }
+                    }
+                    position += type.getSize();
+                }
+            }
+        } else {
+            Type type = getArrayType(kind);
+            int length = mSizes.get(ordinal) / type.getSize();
+            hasher.putInt(type.ordinal());
+            hasher.putInt(length);
+            buffer.setPosition(mOffsets.get(ordinal));
+            if (type == Type.OBJECT) {
+                if (classOrdinal != NONE) {
+                    hasher.putUnencodedChars(getClassName(classOrdinal));
+                }
+                for (int i = 0; i < length; i++) {
+                    hasher.putBoolean(Type.readId(buffer) != 0);
+                }
+            } else {
+                long remaining = (long) length * type.getSize();
+                byte[] chunk = new byte[(int) Math.min(remaining, ArrayInstance.HASH_CHUNK_SIZE)];
+                for (; remaining > 0; remaining -= chunk.length) {
+                    if (remaining < chunk.length) {
+                        chunk = new byte[(int) remaining];
+                    }
+                    buffer.read(chunk);
+                    hasher.putBytes(chunk);
+                }
+            }
+        }
+    }
+
+    public int getOutDegree(int ordinal) {
+        return mOutOffsets.get(ordinal + 1) - mOutOffsets.get(ordinal);
+    }
+
+    public int getOutEdge(int ordinal, int index) {
+        return mOutEdges.get(mOutOffsets.get(ordinal) + index);
+    }
+
+    public int getInDegree(int ordinal) {
+        return mInOffsets.get(ordinal + 1) - mInOffsets.get(ordinal);
+    }
+
+    public int getInEdge(int ordinal, int index) {
+        return mInEdges.get(mInOffsets.get(ordinal) + index);
+    }
+
+    /**
+     * Computes the immediate dominators and the total retained sizes of all the nodes, unless they
+     * have been computed already.
+     */
+    public void computeDominators() {
+        if (mDominators != null) {
+            return;
+        }
+
+        int[] vertex = new int[mNodeCount];
+        int[] dominators = LinkEvalDominators.computeImmediateDominators(mNodeCount,
+                toArray(mOutOffsets), toArray(mOutEdges), toArray(mInOffsets), toArray(mInEdges),
+                vertex);
+
+        long[] retainedSizes = new long[mNodeCount];
+        for (int ordinal = 1; ordinal < mNodeCount; ordinal++) {
+            retainedSizes[ordinal] = mSizes.get(ordinal);
+        }
+        for (int i = mNodeCount - 1; i > 0; i--) {
+            int ordinal = vertex[i];
+            if (ordinal != NONE && dominators[ordinal] != ROOT) {
+                retainedSizes[dominators[ordinal]] += retainedSizes[ordinal];
+            }
+        }
+        dominators[ROOT] = NONE;
+
+        mDominators = IntBuffer.wrap(dominators);
+        mRetainedSizes = LongBuffer.wrap(retainedSizes);
+    }
+
+    /**
+     * Returns the ordinal of the immediate dominator of a node, {@link #ROOT} if it is only
+     * dominated by the sentinel root, or {@link #NONE} if it isn't reachable from any GC root.
+     */
+    public int getImmediateDominator(int ordinal) {
+        assert mDominators != null : "computeDominators() must be called first";
+        return mDominators.get(ordinal);
+    }
+
+    /**
+     * Returns the retained size of a node across all heaps, or just its own size if unreachable.
+     */
+    public long getRetainedSize(int ordinal) {
+        assert mRetainedSizes != null : "computeDominators() must be called first";
+        return mRetainedSizes.get(ordinal);
+    }
+
+    /**
+     * Computes a topological order of the nodes reachable from the GC roots, i.e. the reverse of a
+     * depth-first postorder, so that a node comes before its successors unless they're in a cycle.
+     * The sentinel root gets order 0, the reachable nodes get 1 to N, in the same way as
+     * {@link com.android.tools.perflib.heap.analysis.TopologicalSort}.
+     */
+    public void computeTopologicalOrder() {
+        if (mTopologicalOrder != null) {
+            return;
+        }
+
+        int[] order = new int[mNodeCount];
+        Arrays.fill(order, NONE);
+        int[] cursor = new int[mNodeCount];
+        int[] stack = new int[mNodeCount];
+        boolean[] seen = new boolean[mNodeCount];
+
+        // Number the nodes in postorder first, then reverse the numbering.
+        int postorder = 0;
+        int top = 0;
+        stack[top++] = ROOT;
+        seen[ROOT] = true;
+        cursor[ROOT] = mOutOffsets.get(ROOT);
+        while (top > 0) {
+            int node = stack[top - 1];
+            if (cursor[node] < mOutOffsets.get(node + 1)) {
+                int successor = mOutEdges.get(cursor[node]++);
+                if (!seen[successor]) {
+                    seen[successor] = true;
+                    cursor[successor] = mOutOffsets.get(successor);
+                    stack[top++] = successor;
+                }
+            } else {
+                top--;
+                order[node] = postorder++;
+            }
+        }
+        for (int ordinal = 0; ordinal < mNodeCount; ordinal++) {
+            if (order[ordinal] != NONE) {
+                order[ordinal] = postorder - 1 - order[ordinal];
+            }
+        }
+
+        mTopologicalOrder = IntBuffer.wrap(order);
+    }
+
+    /**
+     * Returns the topological order of a node, or {@link #NONE} if it isn't reachable.
+     */
+    public int getTopologicalOrder(int ordinal) {
+        assert mTopologicalOrder != null : "computeTopologicalOrder() must be called first";
+        return mTopologicalOrder.get(ordinal);
+    }
+
+    /**
+     * Computes the length of the shortest path from any GC root to every node, with a breadth-first
+     * search from the sentinel root. Instances directly referred by GC roots are at distance 0.
+     */
+    public void computeDistancesToGcRoots() {
+        computeDistancesToGcRoots(null);
+    }
+
+    /**
+     * Same as {@link #computeDistancesToGcRoots()}, but expands each level of the search in
+     * parallel on {@code executor} when it is large enough.
+     *
+     * The search is level-synchronous: all the nodes at distance <i>d</i> are expanded before any
+     * node at distance <i>d + 1</i>, and nodes are claimed through a bitset of visited flags
+     * updated with compare-and-set, so that each one is added to a single frontier. The next node
+     * on the path to a GC root is then picked as the first predecessor, in ordinal order, one level
+     * closer to the roots, so the result doesn't depend on the thread scheduling.
+     */
+    public void computeDistancesToGcRoots(@Nullable ExecutorService executor) {
+        if (mDistances != null) {
+            return;
+        }
+
+        int[] distances = new int[mNodeCount];
+        int[] next = new int[mNodeCount];
+        Arrays.fill(distances, Integer.MAX_VALUE);
+        Arrays.fill(next, NONE);
+        AtomicLongArray visited = new AtomicLongArray((mNodeCount + 63) / 64);
+
+        distances[ROOT] = -1;
+        visited.set(0, 1L);
+        int[] frontier = new int[]{ROOT};
+        while (frontier.length > 0) {
+            int chunkCount = (frontier.length + FRONTIER_CHUNK_SIZE - 1) / FRONTIER_CHUNK_SIZE;
+            TIntArrayList[] expanded = new TIntArrayList[chunkCount];
+            if (executor == null || chunkCount == 1) {
+                for (int i = 0; i < chunkCount; i++) {
+                    expanded[i] = new LevelExpander(frontier, i, distances, next, visited).call();
+                }
+            } else {
+                List<Future<TIntArrayList>> futures = new ArrayList<Future<TIntArrayList>>();
+                for (int i = 0; i < chunkCount; i++) {
+                    futures.add(executor.submit(
+                            new LevelExpander(frontier, i, distances, next, visited)));
+                }
+                try {
+                    for (int i = 0; i < chunkCount; i++) {
+                        expanded[i] = futures.get(i).get();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+
+            int size = 0;
+            for (TIntArrayList nodes : expanded) {
+                size += nodes.size();
+            }
+            frontier = new int[size];
+            size = 0;
+            for (TIntArrayList nodes : expanded) {
+                for (int i = 0; i < nodes.size(); i++) {
+                    frontier[size++] = nodes.get(i);
+                }
+            }
+        }
+
+        mDistances = IntBuffer.wrap(distances);
+        mNextToGcRoot = IntBuffer.wrap(next);
+    }
+
+    /**
+     * Returns the shortest path from a GC root to each of the given nodes, computing the distances
+     * to the GC roots first if needed. Each path starts with the node referred by a GC root and
+     * ends with the target itself, and is empty if the target is {@link #NONE} or isn't reachable.
+     */
+    @NonNull
+    public int[][] getPathsToGcRoots(@NonNull int[] targets) {
+        computeDistancesToGcRoots();
+        assert mDistances != null && mNextToGcRoot != null;
+
+        int[][] paths = new int[targets.length][];
+        for (int i = 0; i < targets.length; i++) {
+            int node = targets[i];
+            if (node == ROOT || node == NONE || mDistances.get(node) == Integer.MAX_VALUE) {
+                paths[i] = new int[0];
+                continue;
+            }
+            int[] path = new int[mDistances.get(node) + 1];
+            for (int j = path.length - 1; j >= 0; j--) {
+                path[j] = node;
+                node = mNextToGcRoot.get(node);
+            }
+            paths[i] = path;
+        }
+        return paths;
+    }
+
+    /**
+     * Returns whether {@link #computeDistancesToGcRoots()} was called.
+     */
+    public boolean hasDistancesToGcRoots() {
+        return mDistances != null;
+    }
+
+    /**
+     * Returns the length of the shortest path from a GC root to the given node, or
+     * {@link Integer#MAX_VALUE} if it isn't reachable.
+     */
+    public int getDistanceToGcRoot(int ordinal) {
+        assert mDistances != null : "computeDistancesToGcRoots() must be called first";
+        return mDistances.get(ordinal);
+    }
+
+    /**
+     * Returns the next node on a shortest path to a GC root, {@link #ROOT} for nodes referred by
+     * a GC root, or {@link #NONE} if the node isn't reachable.
+     */
+    public int getNextToGcRoot(int ordinal) {
+        assert mNextToGcRoot != null : "computeDistancesToGcRoots() must be called first";
+        return mNextToGcRoot.get(ordinal);
+    }
+
+    /**
+     * Resolves the next node to a GC root of a chunk of the current frontier, and collects the
+     * unvisited successors of the chunk as part of the next frontier.
+     */
+    private class LevelExpander implements Callable<TIntArrayList> {
+
+        @NonNull
+        private final int[] mFrontier;
+
+        private final int mChunk;
+
+        @NonNull
+        private final int[] mDistances;
+
+        @NonNull
+        private final int[] mNext;
+
+        @NonNull
+        private final AtomicLongArray mVisited;
+
+        LevelExpander(@NonNull int[] frontier, int chunk, @NonNull int[] distances,
+                @NonNull int[] next, @NonNull AtomicLongArray visited) {
+            mFrontier = frontier;
+            mChunk = chunk;
+            mDistances = distances;
+            mNext = next;
+            mVisited = visited;
+        }
+
+        @Override
+        public TIntArrayList call() {
+            TIntArrayList expanded = new TIntArrayList();
+            int end = Math.min(mFrontier.length, (mChunk + 1) * FRONTIER_CHUNK_SIZE);
+            for (int i = mChunk * FRONTIER_CHUNK_SIZE; i < end; i++) {
+                int node = mFrontier[i];
+                int distance = mDistances[node];
+                if (node != ROOT) {
+                    // The nodes of the previous level are all final by now.
+                    for (int j = mInOffsets.get(node); j < mInOffsets.get(node + 1); j++) {
+                        if (mDistances[mInEdges.get(j)] == distance - 1) {
+                            mNext[node] = mInEdges.get(j);
+                            break;
+                        }
+                    }
+                }
+                for (int j = mOutOffsets.get(node); j < mOutOffsets.get(node + 1); j++) {
+                    int successor = mOutEdges.get(j);
+                    if (claim(successor)) {
+                        mDistances[successor] = distance + 1;
+                        expanded.add(successor);
+                    }
+                }
+            }
+            return expanded;
+        }
+
+        /**
+         * Marks a node as visited, returning false if it already was.
+         */
+        private boolean claim(int node) {
+            int word = node >>> 6;
+            long bit = 1L << (node & 63);
+            while (true) {
+                long bits = mVisited.get(word);
+                if ((bits & bit) != 0) {
+                    return false;
+                }
+                if (mVisited.compareAndSet(word, bits, bits | bit)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.heap.analysis.LinkEvalDominators;
+import com.android.tools.perflib.heap.io.HprofBuffer;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+import gnu.trove.TIntArrayList;
+import gnu.trove.TLongArrayList;
+
+/**
+ * Collects the classes and instances of a heap dump as records of primitives, in any order, and
+ * sorts them by id into a {@link HeapGraph}. The references of the records are read from the
+ * buffer of the snapshot when the graph is built, using the field layouts of its classes, so only
+ * the {@link ClassObj}s need to exist as objects.
+ */
+class HeapGraphBuilder {
+
+    /**
+     * Size of a record that is only known once all the classes are loaded: the size of a class
+     * object, or the instance size of the class of an instance.
+     */
+    static final int CLASS_SIZE = -1;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    @NonNull
+    private final Snapshot mSnapshot;
+
+    @NonNull
+    private final TLongArrayList mIds = new TLongArrayList(INITIAL_CAPACITY);
+
+    @NonNull
+    private final TLongArrayList mOffsets = new TLongArrayList(INITIAL_CAPACITY);
+
+    //  Ids of the classes of instances and object arrays, 0 for other records.
+    @NonNull
+    private final TLongArrayList mClassIds = new TLongArrayList(INITIAL_CAPACITY);
+
+    @NonNull
+    private final TIntArrayList mSizes = new TIntArrayList(INITIAL_CAPACITY);
+
+    @NonNull
+    private byte[] mHeapIndices = new byte[INITIAL_CAPACITY];
+
+    //  HeapGraph.KIND_INSTANCE, HeapGraph.KIND_CLASS or the type id of the array elements.
+    @NonNull
+    private byte[] mKinds = new byte[INITIAL_CAPACITY];
+
+    HeapGraphBuilder(@NonNull Snapshot snapshot) {
+        mSnapshot = snapshot;
+    }
+
+    void addClass(long id, int heapIndex, int size, long valuesOffset) {
+        add(id, heapIndex, HeapGraph.KIND_CLASS, 0, size, valuesOffset);
+    }
+
+    void addInstance(long id, int heapIndex, long classId, int size, long valuesOffset) {
+        add(id, heapIndex, HeapGraph.KIND_INSTANCE, classId, size, valuesOffset);
+    }
+
+    /**
+     * Adds an array. The class of primitive arrays is looked up by name, as they have no class id.
+     */
+    void addArray(long id, int heapIndex, @NonNull Type type, long classId, int size,
+            long valuesOffset) {
+        add(id, heapIndex, HeapGraph.getArrayKind(type), classId, size, valuesOffset);
+    }
+
+    private void add(long id, int heapIndex, byte kind, long classId, int size,
+            long valuesOffset) {
+        int record = mIds.size();
+        if (record == mKinds.length) {
+            mKinds = Arrays.copyOf(mKinds, record * 2);
+            mHeapIndices = Arrays.copyOf(mHeapIndices, record * 2);
+        }
+        mIds.add(id);
+        mOffsets.add(valuesOffset);
+        mClassIds.add(classId);
+        mSizes.add(size);
+        mHeapIndices[record] = (byte) heapIndex;
+        mKinds[record] = kind;
+    }
+
+    /**
+     * Sorts the records by id into a graph attached to the snapshot, whose classes must have been
+     * resolved already. When several records have the same id, which is not expected in
+     * well-formed dumps, the first one is kept.
+     */
+    @NonNull
+    HeapGraph build() {
+        int records = mIds.size();
+        long[] ids = new long[records + 1];
+        for (int i = 0; i < records; i++) {
+            ids[i + 1] = mIds.get(i);
+        }
+        Arrays.sort(ids, 1, ids.length);
+        int unique = 1;
+        for (int i = 1; i < ids.length; i++) {
+            if (unique == 1 || ids[i] != ids[unique - 1]) {
+                ids[unique++] = ids[i];
+            }
+        }
+        if (unique < ids.length) {
+            ids = Arrays.copyOf(ids, unique);
+        }
+
+        int[] recordOfOrdinal = new int[unique];
+        Arrays.fill(recordOfOrdinal, -1);
+        for (int record = 0; record < records; record++) {
+            int ordinal = Arrays.binarySearch(ids, 1, unique, mIds.get(record));
+            if (recordOfOrdinal[ordinal] == -1) {
+                recordOfOrdinal[ordinal] = record;
+            }
+        }
+
+        long[] offsets = new long[unique];
+        int[] sizes = new int[unique];
+        int[] classOrdinals = new int[unique];
+        byte[] heapIndices = new byte[unique];
+        byte[] kinds = new byte[unique];
+        int[] outOffsets = new int[unique + 1];
+        TIntArrayList outEdges = new TIntArrayList(unique);
+        TIntArrayList classes = new TIntArrayList();
+        TLongArrayList referenceIds = new TLongArrayList();
+
+        offsets[HeapGraph.ROOT] = -1;
+        classOrdinals[HeapGraph.ROOT] = HeapGraph.NONE;
+        for (RootObj root : mSnapshot.getGCRoots()) {
+            int ordinal = findOrdinal(ids, root.getId());
+            if (ordinal != HeapGraph.NONE) {
+                outEdges.add(ordinal);
+            }
+        }
+
+        //  The class of the previous instance, as instances of the same class are often together.
+        ClassObj classObj = null;
+        for (int ordinal = 1; ordinal < unique; ordinal++) {
+            outOffsets[ordinal] = outEdges.size();
+            int record = recordOfOrdinal[ordinal];
+            long offset = mOffsets.get(record);
+            int size = mSizes.get(record);
+            byte kind = mKinds[record];
+            offsets[ordinal] = offset;
+            heapIndices[ordinal] = mHeapIndices[record];
+            kinds[ordinal] = kind;
+            referenceIds.clear();
+
+            if (kind == HeapGraph.KIND_CLASS) {
+                classes.add(ordinal);
+                classOrdinals[ordinal] = HeapGraph.NONE;
+                ClassObj self = mSnapshot.findClass(ids[ordinal]);
+                if (size == CLASS_SIZE) {
+                    size = self.getSize();
+                }
+                self.readReferenceIds(referenceIds);
+            } else if (kind == HeapGraph.KIND_INSTANCE) {
+                long classId = mClassIds.get(record);
+                if (classObj == null || classObj.getId() != classId) {
+                    classObj = mSnapshot.findClass(classId);
+                }
+                classOrdinals[ordinal] = findOrdinal(ids, classId);
+                if (size == CLASS_SIZE) {
+                    size = classObj != null ? classObj.getInstanceSize() : 0;
+                }
+                if (classObj != null) {
+                    classObj.readInstanceReferenceIds(offset, referenceIds);
+                }
+            } else {
+                Type type = HeapGraph.getArrayType(kind);
+                if (type == Type.OBJECT) {
+                    classOrdinals[ordinal] = findOrdinal(ids, mClassIds.get(record));
+                    readArrayReferenceIds(offset, size / type.getSize(), referenceIds);
+                } else {
+                    ClassObj arrayClass =
+                            mSnapshot.findClass(Type.getClassNameOfPrimitiveArray(type));
+                    classOrdinals[ordinal] = arrayClass != null
+                            ? findOrdinal(ids, arrayClass.getId()) : HeapGraph.NONE;
+                }
+            }
+            sizes[ordinal] = size;
+
+            for (int i = 0; i < referenceIds.size(); i++) {
+                int reference = findOrdinal(ids, referenceIds.get(i));
+                if (reference != HeapGraph.NONE) {
+                    outEdges.add(reference);
+                }
+            }
+        }
+        outOffsets[unique] = outEdges.size();
+
+        String[] classNames = new String[classes.size()];
+        for (int i = 0; i < classNames.length; i++) {
+            classNames[i] = mSnapshot.findClass(ids[classes.get(i)]).getClassName();
+        }
+
+        int[] edges = outEdges.toNativeArray();
+        int[] inOffsets = new int[unique + 1];
+        int[] inEdges = LinkEvalDominators.invert(unique, outOffsets, edges, inOffsets);
+        return new HeapGraph(mSnapshot, LongBuffer.wrap(ids), LongBuffer.wrap(offsets),
+                IntBuffer.wrap(sizes), IntBuffer.wrap(classOrdinals),
+                ByteBuffer.wrap(heapIndices), ByteBuffer.wrap(kinds), IntBuffer.wrap(outOffsets),
+                IntBuffer.wrap(edges), IntBuffer.wrap(inOffsets), IntBuffer.wrap(inEdges),
+                classes.toNativeArray(), classNames);
+    }
+
+    private void readArrayReferenceIds(long offset, int length, @NonNull TLongArrayList ids) {
+        HprofBuffer buffer = mSnapshot.getBuffer();
+        buffer.setPosition(offset);
+        for (int i = 0; i < length; i++) {
+            long id = Type.readId(buffer);
+            if (id != 0) {
+                ids.add(id);
+            }
+        }
+    }
+
+    static int findOrdinal(@NonNull long[] ids, long id) {
+        int ordinal = Arrays.binarySearch(ids, 1, ids.length, id);
+        return ordinal > 0 ? ordinal : HeapGraph.NONE;
+    }
+}
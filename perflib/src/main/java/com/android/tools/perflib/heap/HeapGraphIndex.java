@@ -0,0 +1,864 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.heap.io.HprofBuffer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent sidecar index of a heap dump, storing its {@link HeapGraph} together with whatever
+ * analysis results have been computed (dominators, retained sizes, distances to GC roots and
+ * topological order), so that reopening the same dump doesn't need to redo that work. The heaps,
+ * classes, roots, threads and stack traces of the snapshot of the graph are stored as well, so that
+ * {@link HprofParser#parseGraph(File, File)} doesn't need to read the heap dump at all.
+ *
+ * The index is keyed by the length, modification time and a checksum of the head of the heap dump
+ * it was built from, and {@link #read} ignores an index whose key doesn't match, as well as a
+ * truncated or corrupt one. All the arrays are stored big-endian and in the same order as in the
+ * graph, so that loading maps them from the file and reads them in place instead of copying them.
+ * The index ends with its total length, so that an incomplete index is detected.
+ *
+ * @see HprofParser#parseGraph(File, File)
+ * @see Snapshot#loadHeapGraph(File, File)
+ */
+public final class HeapGraphIndex {
+
+    private static final int MAGIC = 0x48475849; // "HGXI"
+
+    private static final int VERSION = 3;
+
+    private static final int HAS_DOMINATORS = 1;
+
+    private static final int HAS_DISTANCES = 1 << 1;
+
+    private static final int HAS_TOPOLOGICAL_ORDER = 1 << 2;
+
+    private static final int HAS_SNAPSHOT = 1 << 3;
+
+    // Length of the head of the heap dump covered by the checksum.
+    private static final int CHECKSUM_LENGTH = 1 << 16;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Magic, version, hprof length, modification time and checksum, followed by the node, edge
+    // and class counts and the flags.
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8 + 4 + 4 + 4 + 4;
+
+    // Total length of the index and magic, written last.
+    private static final int TRAILER_SIZE = 8 + 4;
+
+    // Length of a null string.
+    private static final int NULL_STRING = -1;
+
+    // Depth of a stack trace that is a whole trace of the heap, rather than its frames from some
+    // depth on.
+    private static final int WHOLE_TRACE = -1;
+
+    private HeapGraphIndex() {
+    }
+
+    /**
+     * Returns the conventional location of the index of a heap dump, next to the dump itself.
+     */
+    @NonNull
+    public static File getDefaultIndexFile(@NonNull File hprof) {
+        return new File(hprof.getPath() + ".index");
+    }
+
+    /**
+     * Writes the graph and its computed analysis results to the given index file, along with the
+     * snapshot the graph is attached to, if any. The index is written to a temporary file next to
+     * it first, and then renamed, so that readers never see a partially written index.
+     */
+    public static void write(@NonNull HeapGraph graph, @NonNull File hprof, @NonNull File index)
+            throws IOException {
+        File directory = index.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile(index.getName(), ".tmp", directory);
+        boolean written = false;
+        try {
+            FileOutputStream stream = new FileOutputStream(temp);
+            try {
+                writeGraph(graph, hprof, new Output(stream.getChannel()));
+            } finally {
+                stream.close();
+            }
+            // Renaming doesn't replace an existing file on all platforms.
+            if (index.exists() && !index.delete()) {
+                throw new IOException("Cannot replace " + index);
+            }
+            if (!temp.renameTo(index)) {
+                throw new IOException("Cannot rename " + temp + " to " + index);
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                temp.delete();
+            }
+        }
+    }
+
+    private static void writeGraph(@NonNull HeapGraph graph, @NonNull File hprof,
+            @NonNull Output out) throws IOException {
+        Snapshot snapshot = graph.getSnapshot();
+        int flags = 0;
+        if (graph.mDominators != null) {
+            flags |= HAS_DOMINATORS;
+        }
+        if (graph.mDistances != null) {
+            flags |= HAS_DISTANCES;
+        }
+        if (graph.mTopologicalOrder != null) {
+            flags |= HAS_TOPOLOGICAL_ORDER;
+        }
+        if (snapshot != null) {
+            flags |= HAS_SNAPSHOT;
+        }
+
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putLong(hprof.length());
+        out.putLong(hprof.lastModified());
+        out.putLong(computeChecksum(hprof));
+        out.putInt(graph.mNodeCount);
+        out.putInt(graph.mOutEdges.limit());
+        out.putInt(graph.mClasses.length);
+        out.putInt(flags);
+
+        out.putLongs(graph.mIds);
+        out.putLongs(graph.mOffsets);
+        out.putInts(graph.mSizes);
+        out.putInts(graph.mClassOrdinals);
+        out.putBytes(graph.mHeapIndices);
+        out.putBytes(graph.mKinds);
+        out.putInts(graph.mOutOffsets);
+        out.putInts(graph.mOutEdges);
+        out.putInts(graph.mInOffsets);
+        out.putInts(graph.mInEdges);
+        if (graph.mDominators != null) {
+            out.putInts(graph.mDominators);
+            out.putLongs(graph.mRetainedSizes);
+        }
+        if (graph.mDistances != null) {
+            out.putInts(graph.mDistances);
+            out.putInts(graph.mNextToGcRoot);
+        }
+        if (graph.mTopologicalOrder != null) {
+            out.putInts(graph.mTopologicalOrder);
+        }
+        out.putInts(IntBuffer.wrap(graph.mClasses));
+
+        for (String name : graph.mClassNames) {
+            out.putString(name);
+        }
+        if (snapshot != null) {
+            writeSnapshot(snapshot, out);
+        }
+
+        out.putLong(out.getLength() + TRAILER_SIZE);
+        out.putInt(MAGIC);
+        out.flush();
+    }
+
+    /**
+     * Writes the heaps of a snapshot in order, each with its stack frames, stack traces, threads,
+     * classes and roots, which is all that a snapshot parsed by {@link HprofParser#parseGraph()}
+     * holds.
+     */
+    private static void writeSnapshot(@NonNull Snapshot snapshot, @NonNull Output out)
+            throws IOException {
+        out.putInt(snapshot.mHeaps.size());
+        for (Heap heap : snapshot.mHeaps) {
+            out.putInt(heap.getId());
+            out.putString(heap.getName());
+
+            Object[] frames = heap.mFrames.getValues();
+            out.putInt(frames.length);
+            for (Object value : frames) {
+                StackFrame frame = (StackFrame) value;
+                out.putLong(frame.mId);
+                out.putString(frame.mMethodName);
+                out.putString(frame.mSignature);
+                out.putString(frame.mFilename);
+                out.putInt(frame.mSerialNumber);
+                out.putInt(frame.mLineNumber);
+            }
+
+            Object[] traces = heap.mTraces.getValues();
+            out.putInt(traces.length);
+            for (Object value : traces) {
+                StackTrace trace = (StackTrace) value;
+                out.putInt(trace.mSerialNumber);
+                out.putInt(trace.mThreadSerialNumber);
+                out.putInt(trace.mFrames.length);
+                for (StackFrame frame : trace.mFrames) {
+                    out.putByte(frame != null ? 1 : 0);
+                    out.putLong(frame != null ? frame.mId : 0);
+                }
+            }
+
+            int[] threadSerialNumbers = heap.mThreads.keys();
+            out.putInt(threadSerialNumbers.length);
+            for (int serialNumber : threadSerialNumbers) {
+                ThreadObj thread = heap.mThreads.get(serialNumber);
+                out.putInt(serialNumber);
+                out.putLong(thread.mId);
+                out.putInt(thread.mStackTrace);
+            }
+
+            // Classes are written in file order, so that the class found by name is the same one
+            // as when parsing if several classes have the same name.
+            Object[] classes = heap.mClassesById.getValues();
+            Arrays.sort(classes, new Comparator<Object>() {
+                @Override
+                public int compare(Object a, Object b) {
+                    long offsetA = ((ClassObj) a).getValuesOffset();
+                    long offsetB = ((ClassObj) b).getValuesOffset();
+                    return offsetA < offsetB ? -1 : (offsetA == offsetB ? 0 : 1);
+                }
+            });
+            out.putInt(classes.length);
+            for (Object value : classes) {
+                ClassObj theClass = (ClassObj) value;
+                out.putLong(theClass.getId());
+                putStackTrace(theClass.mStack, out);
+                out.putString(theClass.mClassName);
+                out.putLong(theClass.getValuesOffset());
+                out.putLong(theClass.mSuperClassId);
+                out.putLong(theClass.mClassLoaderId);
+                out.putInt(theClass.getInstanceSize());
+                putFields(theClass.mStaticFields, out);
+                putFields(theClass.mFields, out);
+            }
+
+            out.putInt(heap.mRoots.size());
+            for (RootObj root : heap.mRoots) {
+                out.putByte(root.mType.ordinal());
+                out.putLong(root.getId());
+                out.putInt(root.mThread);
+                putStackTrace(root.mStack, out);
+            }
+        }
+    }
+
+    /**
+     * Writes a stack trace as the serial number of a trace of the heap, and the depth its frames
+     * start from if it only holds some of them.
+     */
+    private static void putStackTrace(@Nullable StackTrace trace, @NonNull Output out)
+            throws IOException {
+        out.putByte(trace != null ? 1 : 0);
+        if (trace != null) {
+            out.putInt(trace.mParent != null ? trace.mParent.mSerialNumber : trace.mSerialNumber);
+            out.putInt(trace.mParent != null ? trace.mOffset : WHOLE_TRACE);
+        }
+    }
+
+    private static void putFields(@NonNull Field[] fields, @NonNull Output out)
+            throws IOException {
+        out.putInt(fields.length);
+        for (Field field : fields) {
+            out.putString(field.getName());
+            out.putByte(field.getType().getTypeId());
+        }
+    }
+
+    /**
+     * Loads the graph stored in an index, or returns null if the index doesn't exist, is in an
+     * unknown format, is truncated or corrupt, or was built from a different version of the heap
+     * dump. The arrays of the graph are mapped from the index, and every count, ordinal, kind and
+     * heap index is checked before the graph is returned, so that a bad index is never used.
+     *
+     * @param snapshot the snapshot parsed from the same heap dump, if any, to attach to the graph.
+     */
+    @Nullable
+    public static HeapGraph read(@NonNull File hprof, @NonNull File index,
+            @Nullable Snapshot snapshot) throws IOException {
+        return read(hprof, index, snapshot, null);
+    }
+
+    /**
+     * Like {@link #read(File, File, Snapshot)}, but also loads the snapshot stored in the index
+     * into a new {@link Snapshot} of the given buffer of the heap dump, which is attached to the
+     * graph and creates views of its instances on demand. Returns null as well if the index holds
+     * no snapshot. The id size of {@link Type} must have been set from the heap dump.
+     */
+    @Nullable
+    static HeapGraph readWithSnapshot(@NonNull File hprof, @NonNull File index,
+            @NonNull HprofBuffer buffer) throws IOException {
+        return read(hprof, index, null, buffer);
+    }
+
+    @Nullable
+    private static HeapGraph read(@NonNull File hprof, @NonNull File index,
+            @Nullable Snapshot snapshot, @Nullable HprofBuffer buffer) throws IOException {
+        if (!index.isFile()) {
+            return null;
+        }
+
+        FileInputStream stream = new FileInputStream(index);
+        try {
+            FileChannel channel = stream.getChannel();
+            long length = channel.size();
+            if (length < HEADER_SIZE + TRAILER_SIZE || !hasTrailer(channel, length)) {
+                return null;
+            }
+            return readGraph(new Input(channel, length - TRAILER_SIZE), hprof, snapshot, buffer);
+        } catch (InvalidIndexException e) {
+            return null;
+        } catch (BufferUnderflowException e) {
+            // The stored strings or snapshot are shorter than their counts claim.
+            return null;
+        } finally {
+            // The sections stay mapped once the file is closed.
+            stream.close();
+        }
+    }
+
+    @Nullable
+    private static HeapGraph readGraph(@NonNull Input in, @NonNull File hprof,
+            @Nullable Snapshot snapshot, @Nullable HprofBuffer buffer) throws IOException {
+        ByteBuffer header = in.map(HEADER_SIZE);
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            return null;
+        }
+        if (header.getLong() != hprof.length() || header.getLong() != hprof.lastModified()
+                || header.getLong() != computeChecksum(hprof)) {
+            return null;
+        }
+
+        // Every section is checked against the remaining length as it is mapped, so that a corrupt
+        // count can't cause a huge or negative allocation.
+        int nodeCount = header.getInt();
+        int edgeCount = header.getInt();
+        int classCount = header.getInt();
+        int flags = header.getInt();
+        if (nodeCount < 1 || edgeCount < 0 || classCount < 0 || classCount > nodeCount) {
+            return null;
+        }
+        if (buffer != null && (flags & HAS_SNAPSHOT) == 0) {
+            return null;
+        }
+        LongBuffer ids = in.map(8L * nodeCount).asLongBuffer();
+        LongBuffer offsets = in.map(8L * nodeCount).asLongBuffer();
+        IntBuffer sizes = in.map(4L * nodeCount).asIntBuffer();
+        IntBuffer classOrdinals = in.map(4L * nodeCount).asIntBuffer();
+        ByteBuffer heapIndices = in.map(nodeCount);
+        ByteBuffer kinds = in.map(nodeCount);
+        IntBuffer outOffsets = in.map(4L * (nodeCount + 1)).asIntBuffer();
+        IntBuffer outEdges = in.map(4L * edgeCount).asIntBuffer();
+        IntBuffer inOffsets = in.map(4L * (nodeCount + 1)).asIntBuffer();
+        IntBuffer inEdges = in.map(4L * edgeCount).asIntBuffer();
+
+        IntBuffer dominators = null;
+        LongBuffer retainedSizes = null;
+        IntBuffer distances = null;
+        IntBuffer nextToGcRoot = null;
+        IntBuffer topologicalOrder = null;
+        if ((flags & HAS_DOMINATORS) != 0) {
+            dominators = in.map(4L * nodeCount).asIntBuffer();
+            retainedSizes = in.map(8L * nodeCount).asLongBuffer();
+        }
+        if ((flags & HAS_DISTANCES) != 0) {
+            distances = in.map(4L * nodeCount).asIntBuffer();
+            nextToGcRoot = in.map(4L * nodeCount).asIntBuffer();
+        }
+        if ((flags & HAS_TOPOLOGICAL_ORDER) != 0) {
+            topologicalOrder = in.map(4L * nodeCount).asIntBuffer();
+        }
+        int[] classes = new int[classCount];
+        in.map(4L * classCount).asIntBuffer().get(classes);
+
+        ByteBuffer tail = in.map(in.remaining());
+        String[] classNames = new String[classCount];
+        for (int i = 0; i < classCount; i++) {
+            classNames[i] = getString(tail);
+            if (classNames[i] == null) {
+                return null;
+            }
+        }
+        if (buffer != null) {
+            snapshot = readSnapshot(tail, buffer);
+            if (tail.hasRemaining()) {
+                return null;
+            }
+        } else if ((flags & HAS_SNAPSHOT) == 0 && tail.hasRemaining()) {
+            return null;
+        }
+
+        // Heap indices are looked up in the snapshot when views of the instances are created.
+        int heapCount = snapshot != null ? snapshot.mHeaps.size() : Byte.MAX_VALUE + 1;
+        if (!isSorted(ids) || !areKinds(kinds, classes)
+                || !areBelow(heapIndices, heapCount)
+                || !isValidEdges(nodeCount, outOffsets, outEdges)
+                || !isValidEdges(nodeCount, inOffsets, inEdges)
+                || !areOrdinals(classOrdinals, nodeCount)
+                || (dominators != null && !areOrdinals(dominators, nodeCount))
+                || (nextToGcRoot != null && !areOrdinals(nextToGcRoot, nodeCount))
+                || (topologicalOrder != null && !areOrdinals(topologicalOrder, nodeCount))
+                || (snapshot != null && !hasClasses(snapshot, ids, classes))) {
+            return null;
+        }
+
+        HeapGraph graph = new HeapGraph(snapshot, ids, offsets, sizes, classOrdinals,
+                heapIndices, kinds, outOffsets, outEdges, inOffsets, inEdges, classes,
+                classNames);
+        graph.mDominators = dominators;
+        graph.mRetainedSizes = retainedSizes;
+        graph.mDistances = distances;
+        graph.mNextToGcRoot = nextToGcRoot;
+        graph.mTopologicalOrder = topologicalOrder;
+        if (buffer != null) {
+            assert snapshot != null;
+            snapshot.resolveClasses();
+            snapshot.setInstanceGraph(graph);
+        }
+        return graph;
+    }
+
+    /**
+     * Reads back the heaps written by {@link #writeSnapshot} into a new snapshot.
+     */
+    @NonNull
+    private static Snapshot readSnapshot(@NonNull ByteBuffer in, @NonNull HprofBuffer buffer)
+            throws InvalidIndexException {
+        Snapshot snapshot = new Snapshot(buffer);
+        int heapCount = getCount(in, 4 + 4);
+        for (int i = 0; i < heapCount; i++) {
+            int id = in.getInt();
+            String name = getString(in);
+            if (name == null) {
+                throw new InvalidIndexException();
+            }
+            Heap heap = snapshot.setHeapTo(id, name);
+            if (snapshot.getHeapIndex(heap) != i) {
+                throw new InvalidIndexException();
+            }
+
+            int frameCount = getCount(in, 8 + 3 * 4 + 4 + 4);
+            for (int j = 0; j < frameCount; j++) {
+                long frameId = in.getLong();
+                String methodName = getString(in);
+                String signature = getString(in);
+                String filename = getString(in);
+                heap.addStackFrame(new StackFrame(frameId, methodName, signature, filename,
+                        in.getInt(), in.getInt()));
+            }
+
+            int traceCount = getCount(in, 4 + 4 + 4);
+            for (int j = 0; j < traceCount; j++) {
+                int serialNumber = in.getInt();
+                int threadSerialNumber = in.getInt();
+                StackFrame[] frames = new StackFrame[getCount(in, 1 + 8)];
+                for (int k = 0; k < frames.length; k++) {
+                    boolean hasFrame = in.get() != 0;
+                    long frameId = in.getLong();
+                    frames[k] = hasFrame ? heap.getStackFrame(frameId) : null;
+                }
+                heap.addStackTrace(new StackTrace(serialNumber, threadSerialNumber, frames));
+            }
+
+            int threadCount = getCount(in, 4 + 8 + 4);
+            for (int j = 0; j < threadCount; j++) {
+                int serialNumber = in.getInt();
+                long threadId = in.getLong();
+                heap.addThread(new ThreadObj(threadId, in.getInt()), serialNumber);
+            }
+
+            int classCount = getCount(in, 8 + 1 + 4 + 8 + 8 + 8 + 4 + 4 + 4);
+            for (int j = 0; j < classCount; j++) {
+                long classId = in.getLong();
+                StackTrace stack = getStackTrace(in, heap);
+                String className = getString(in);
+                if (className == null) {
+                    throw new InvalidIndexException();
+                }
+                ClassObj theClass = new ClassObj(classId, stack, className, in.getLong());
+                theClass.setSuperClassId(in.getLong());
+                theClass.setClassLoaderId(in.getLong());
+                theClass.setInstanceSize(in.getInt());
+                theClass.setStaticFields(getFields(in));
+                theClass.setFields(getFields(in));
+                snapshot.addClass(classId, theClass);
+            }
+
+            RootType[] rootTypes = RootType.values();
+            int rootCount = getCount(in, 1 + 8 + 4 + 1);
+            for (int j = 0; j < rootCount; j++) {
+                int type = in.get();
+                if (type < 0 || type >= rootTypes.length) {
+                    throw new InvalidIndexException();
+                }
+                long rootId = in.getLong();
+                int threadSerialNumber = in.getInt();
+                snapshot.addRoot(new RootObj(rootTypes[type], rootId, threadSerialNumber,
+                        getStackTrace(in, heap)));
+            }
+        }
+        snapshot.setToDefaultHeap();
+        return snapshot;
+    }
+
+    /**
+     * Reads a count, checking that the records it counts, of at least the given size each, fit in
+     * the rest of the buffer.
+     */
+    private static int getCount(@NonNull ByteBuffer in, int recordSize)
+            throws InvalidIndexException {
+        int count = in.getInt();
+        if (count < 0 || (long) count * recordSize > in.remaining()) {
+            throw new InvalidIndexException();
+        }
+        return count;
+    }
+
+    @Nullable
+    private static String getString(@NonNull ByteBuffer in) throws InvalidIndexException {
+        int length = in.getInt();
+        if (length == NULL_STRING) {
+            return null;
+        }
+        if (length < 0 || length > in.remaining()) {
+            throw new InvalidIndexException();
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    @Nullable
+    private static StackTrace getStackTrace(@NonNull ByteBuffer in, @NonNull Heap heap) {
+        if (in.get() == 0) {
+            return null;
+        }
+        int serialNumber = in.getInt();
+        int depth = in.getInt();
+        return depth == WHOLE_TRACE ? heap.getStackTrace(serialNumber)
+                : heap.getStackTraceAtDepth(serialNumber, depth);
+    }
+
+    @NonNull
+    private static Field[] getFields(@NonNull ByteBuffer in) throws InvalidIndexException {
+        Field[] fields = new Field[getCount(in, 4 + 1)];
+        for (int i = 0; i < fields.length; i++) {
+            String name = getString(in);
+            Type type = Type.getType(in.get());
+            if (name == null || type == null) {
+                throw new InvalidIndexException();
+            }
+            fields[i] = new Field(type, name);
+        }
+        return fields;
+    }
+
+    /**
+     * Checks that the index ends with a trailer holding its total length, i.e. that it was
+     * completely written.
+     */
+    private static boolean hasTrailer(@NonNull FileChannel channel, long length)
+            throws IOException {
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        long position = length - TRAILER_SIZE;
+        while (trailer.hasRemaining()) {
+            int read = channel.read(trailer, position + trailer.position());
+            if (read == -1) {
+                return false;
+            }
+        }
+        trailer.flip();
+        return trailer.getLong() == length && trailer.getInt() == MAGIC;
+    }
+
+    /**
+     * Returns whether the ids, which are looked up by binary search, increase strictly from the
+     * first node after the sentinel root.
+     */
+    private static boolean isSorted(@NonNull LongBuffer ids) {
+        for (int ordinal = 2; ordinal < ids.limit(); ordinal++) {
+            if (ids.get(ordinal - 1) >= ids.get(ordinal)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether all the nodes are instances, classes or arrays of a known type, and the
+     * classes are exactly the nodes listed, in increasing order, in {@code classes}.
+     */
+    private static boolean areKinds(@NonNull ByteBuffer kinds, @NonNull int[] classes) {
+        int classCount = 0;
+        for (int ordinal = 0; ordinal < kinds.limit(); ordinal++) {
+            byte kind = kinds.get(ordinal);
+            if (kind == HeapGraph.KIND_CLASS) {
+                if (classCount == classes.length || classes[classCount] != ordinal) {
+                    return false;
+                }
+                classCount++;
+            } else if (kind != HeapGraph.KIND_INSTANCE && Type.getType(kind) == null) {
+                return false;
+            }
+        }
+        return classCount == classes.length;
+    }
+
+    private static boolean areBelow(@NonNull ByteBuffer values, int bound) {
+        for (int i = 0; i < values.limit(); i++) {
+            byte value = values.get(i);
+            if (value < 0 || value >= bound) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isValidEdges(int nodeCount, @NonNull IntBuffer offsets,
+            @NonNull IntBuffer edges) {
+        if (offsets.get(0) != 0 || offsets.get(nodeCount) != edges.limit()) {
+            return false;
+        }
+        for (int ordinal = 0; ordinal < nodeCount; ordinal++) {
+            if (offsets.get(ordinal) > offsets.get(ordinal + 1)) {
+                return false;
+            }
+        }
+        for (int i = 0; i < edges.limit(); i++) {
+            int edge = edges.get(i);
+            if (edge < 0 || edge >= nodeCount) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether all the values are ordinals of the graph or {@link HeapGraph#NONE}.
+     */
+    private static boolean areOrdinals(@NonNull IntBuffer values, int nodeCount) {
+        for (int i = 0; i < values.limit(); i++) {
+            int value = values.get(i);
+            if (value != HeapGraph.NONE && (value < 0 || value >= nodeCount)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether all the class nodes are classes of the snapshot, as views of the other
+     * nodes are created from them.
+     */
+    private static boolean hasClasses(@NonNull Snapshot snapshot, @NonNull LongBuffer ids,
+            @NonNull int[] classes) {
+        for (int ordinal : classes) {
+            if (snapshot.findClass(ids.get(ordinal)) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checksums the head of the heap dump, which includes its header and timestamp, to tell apart
+     * dumps with the same length and modification time.
+     */
+    private static long computeChecksum(@NonNull File hprof) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] bytes = new byte[CHECKSUM_LENGTH];
+        FileInputStream stream = new FileInputStream(hprof);
+        try {
+            int total = 0;
+            int read;
+            while (total < bytes.length
+                    && (read = stream.read(bytes, total, bytes.length - total)) != -1) {
+                total += read;
+            }
+            crc.update(bytes, 0, total);
+        } finally {
+            stream.close();
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Writes primitives and buffers of primitives to a channel through a fixed-size buffer.
+     */
+    private static final class Output {
+
+        @NonNull
+        private final FileChannel mChannel;
+
+        @NonNull
+        private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        private long mFlushed;
+
+        Output(@NonNull FileChannel channel) {
+            mChannel = channel;
+        }
+
+        /**
+         * Returns the number of bytes written so far.
+         */
+        long getLength() {
+            return mFlushed + mBuffer.position();
+        }
+
+        void putByte(int value) throws IOException {
+            ensureRemaining(1);
+            mBuffer.put((byte) value);
+        }
+
+        void putInt(int value) throws IOException {
+            ensureRemaining(4);
+            mBuffer.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            ensureRemaining(8);
+            mBuffer.putLong(value);
+        }
+
+        void putString(@Nullable String value) throws IOException {
+            if (value == null) {
+                putInt(NULL_STRING);
+                return;
+            }
+            byte[] bytes = value.getBytes(UTF_8);
+            putInt(bytes.length);
+            putBytes(ByteBuffer.wrap(bytes));
+        }
+
+        void putBytes(@NonNull ByteBuffer values) throws IOException {
+            ByteBuffer source = values.duplicate();
+            source.rewind();
+            while (source.hasRemaining()) {
+                ensureRemaining(1);
+                int length = Math.min(mBuffer.remaining(), source.remaining());
+                ByteBuffer chunk = source.duplicate();
+                chunk.limit(chunk.position() + length);
+                mBuffer.put(chunk);
+                source.position(source.position() + length);
+            }
+        }
+
+        void putInts(@NonNull IntBuffer values) throws IOException {
+            IntBuffer source = values.duplicate();
+            source.rewind();
+            while (source.hasRemaining()) {
+                ensureRemaining(4);
+                int length = Math.min(mBuffer.remaining() / 4, source.remaining());
+                IntBuffer chunk = source.duplicate();
+                chunk.limit(chunk.position() + length);
+                mBuffer.asIntBuffer().put(chunk);
+                mBuffer.position(mBuffer.position() + length * 4);
+                source.position(source.position() + length);
+            }
+        }
+
+        void putLongs(@NonNull LongBuffer values) throws IOException {
+            LongBuffer source = values.duplicate();
+            source.rewind();
+            while (source.hasRemaining()) {
+                ensureRemaining(8);
+                int length = Math.min(mBuffer.remaining() / 8, source.remaining());
+                LongBuffer chunk = source.duplicate();
+                chunk.limit(chunk.position() + length);
+                mBuffer.asLongBuffer().put(chunk);
+                mBuffer.position(mBuffer.position() + length * 8);
+                source.position(source.position() + length);
+            }
+        }
+
+        void flush() throws IOException {
+            mBuffer.flip();
+            mFlushed += mBuffer.remaining();
+            while (mBuffer.hasRemaining()) {
+                mChannel.write(mBuffer);
+            }
+            mBuffer.clear();
+        }
+
+        private void ensureRemaining(int count) throws IOException {
+            if (mBuffer.remaining() < count) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Thrown when the index is shorter than its counts claim or holds values out of their bounds,
+     * which {@link #read} turns into a null result.
+     */
+    private static final class InvalidIndexException extends IOException {
+        InvalidIndexException() {
+            super("Invalid heap graph index");
+        }
+    }
+
+    /**
+     * Maps consecutive sections of an index from a channel, up to a given limit.
+     */
+    private static final class Input {
+
+        @NonNull
+        private final FileChannel mChannel;
+
+        private final long mLimit;
+
+        private long mPosition;
+
+        Input(@NonNull FileChannel channel, long limit) {
+            mChannel = channel;
+            mLimit = limit;
+        }
+
+        long remaining() {
+            return mLimit - mPosition;
+        }
+
+        /**
+         * Maps the next section, of the given number of bytes. Sections are indexed by int, so a
+         * larger section makes the index unusable, as well as one going past the limit.
+         */
+        @NonNull
+        ByteBuffer map(long size) throws IOException {
+            if (size < 0 || size > remaining() || size > Integer.MAX_VALUE) {
+                throw new InvalidIndexException();
+            }
+            ByteBuffer section = mChannel.map(FileChannel.MapMode.READ_ONLY, mPosition, size);
+            mPosition += size;
+            return section;
+        }
+    }
+}
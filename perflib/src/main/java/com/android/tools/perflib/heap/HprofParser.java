@@ -17,12 +17,23 @@
 package com.android.tools.perflib.heap;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.tools.perflib.heap.io.HprofBuffer;
+import com.android.tools.perflib.heap.io.MemoryMappedFileBuffer;
+import com.google.common.base.Throwables;
 import com.google.common.primitives.UnsignedBytes;
 import com.google.common.primitives.UnsignedInts;
 
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import gnu.trove.TLongObjectHashMap;
 
@@ -119,6 +130,12 @@ public class HprofParser {
 
     private static final int ROOT_PRIMITIVE_ARRAY_NODATA = 0xc3;
 
+    /**
+     * Heap dump segments are decoded in batches of at least this many bytes, as some VMs write
+     * a large number of very small segments.
+     */
+    private static final long MIN_BATCH_SIZE = 1 << 20;
+
     @NonNull
     private final HprofBuffer mInput;
 
@@ -126,6 +143,9 @@ public class HprofParser {
 
     Snapshot mSnapshot;
 
+    //  Receives the objects decoded from heap dump records.
+    private HeapDumpSink mSink;
+
     /*
      * These are only needed while parsing so are not kept as part of the
      * heap data.
@@ -140,71 +160,243 @@ public class HprofParser {
         mInput = buffer;
     }
 
+    /**
+     * Creates a parser for the heap dump segments of another parser, reading from its own view of
+     * the buffer and sharing the string and class name tables, which are read-only by then.
+     */
+    private HprofParser(@NonNull HprofParser parent, @NonNull HprofBuffer view,
+            @NonNull HeapDumpSink sink) {
+        mInput = view;
+        mIdSize = parent.mIdSize;
+        mSnapshot = parent.mSnapshot;
+        mStrings = parent.mStrings;
+        mClassNames = parent.mClassNames;
+        mSink = sink;
+    }
+
     @NonNull
     public final Snapshot parse() {
         Snapshot snapshot = new Snapshot(mInput);
         mSnapshot = snapshot;
+        mSink = new SnapshotSink(snapshot);
 
         try {
             try {
-                readNullTerminatedString();  // Version, ignored for now.
+                readHeader();
+                readRecords(null);
+            } catch (EOFException eof) {
+                //  this is fine
+            }
+            mSnapshot.resolveClasses();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
 
-                mIdSize = mInput.readInt();
-                Type.setIdSize(mIdSize);
+        mClassNames.clear();
+        mStrings.clear();
+        return snapshot;
+    }
 
-                mInput.readLong();  // Timestamp, ignored for now.
+    /**
+     * Parses the heap dump in two passes. The first pass loads the string, class, stack frame and
+     * stack trace records, and only indexes the offsets of the heap dump segments. In the second
+     * pass, batches of segments are decoded concurrently on {@code executor}, each by its own
+     * parser reading from a separate view of the file. The objects decoded by each batch are then
+     * added to the snapshot in file order, so the result is the same as with {@link #parse()},
+     * including the order of the instances in their heaps.
+     *
+     * Only {@link MemoryMappedFileBuffer} supports independent views, for any other buffer this
+     * falls back to the sequential {@link #parse()}.
+     *
+     * @throws IOException if a batch fails to decode, or the parsing is interrupted.
+     */
+    @NonNull
+    public final Snapshot parse(@NonNull ExecutorService executor) throws IOException {
+        if (!(mInput instanceof MemoryMappedFileBuffer)) {
+            return parse();
+        }
+        MemoryMappedFileBuffer buffer = (MemoryMappedFileBuffer) mInput;
 
-                while (mInput.hasRemaining()) {
-                    int tag = readUnsignedByte();
-                    mInput.readInt(); // Ignored: timestamp
-                    long length = readUnsignedInt();
+        Snapshot snapshot = new Snapshot(mInput);
+        mSnapshot = snapshot;
+        SnapshotSink sink = new SnapshotSink(snapshot);
+        mSink = sink;
 
-                    switch (tag) {
-                        case STRING_IN_UTF8:
-                            // String length is limited by Int.MAX_VALUE anyway.
-                            loadString((int) length - mIdSize);
-                            break;
+        List<Future<RecordingSink>> batches = new ArrayList<Future<RecordingSink>>();
+        try {
+            List<long[]> segments = new ArrayList<long[]>();
+            try {
+                readHeader();
+                readRecords(segments);
+            } catch (EOFException eof) {
+                //  this is fine
+            }
 
-                        case LOAD_CLASS:
-                            loadClass();
-                            break;
+            HeapTable heaps = new HeapTable(snapshot);
+            int start = 0;
+            while (start < segments.size()) {
+                int end = start;
+                long batchSize = 0;
+                while (end < segments.size() && batchSize < MIN_BATCH_SIZE) {
+                    batchSize += segments.get(end++)[1];
+                }
+                batches.add(executor.submit(new SegmentDecoder(buffer.duplicate(),
+                        segments.subList(start, end), heaps)));
+                start = end;
+            }
 
-                        case STACK_FRAME:
-                            loadStackFrame();
-                            break;
+            for (Future<RecordingSink> batch : batches) {
+                batch.get().replay(snapshot, sink);
+            }
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while parsing the heap dump");
+        } finally {
+            // Stops the remaining workers if a batch failed.
+            for (Future<RecordingSink> batch : batches) {
+                batch.cancel(true);
+            }
+            mClassNames.clear();
+            mStrings.clear();
+        }
+
+        snapshot.resolveClasses();
+        return snapshot;
+    }
+
+    /**
+     * Reads the heap dump sequentially and passes its classes, instances, arrays and roots to the
+     * given visitor, without building a {@link Snapshot}. Besides what the visitor keeps, only the
+     * string and class name tables are held in memory. Stack traces are skipped.
+     */
+    public final void parse(@NonNull HeapDumpVisitor visitor) throws IOException {
+        mSnapshot = null;
+        mSink = new VisitorSink(mInput, visitor);
+
+        try {
+            readHeader();
+            readRecords(null);
+        } catch (EOFException eof) {
+            //  this is fine
+        } finally {
+            mClassNames.clear();
+            mStrings.clear();
+        }
+    }
+
+    /**
+     * Parses the heap dump straight into a {@link HeapGraph}, without creating an
+     * {@link Instance} for each object: the ids, positions, sizes, classes and references of the
+     * instances and arrays are only kept in the primitive arrays of the graph. The classes, roots,
+     * threads and stack traces are loaded into a snapshot as with {@link #parse()}, which is
+     * attached to the graph and creates views of its instances on demand.
+     *
+     * @see Snapshot#hasInstancesInGraph()
+     */
+    @NonNull
+    public final HeapGraph parseGraph() throws IOException {
+        Snapshot snapshot = new Snapshot(mInput);
+        mSnapshot = snapshot;
+        GraphSink sink = new GraphSink(snapshot);
+        mSink = sink;
 
-                        case STACK_TRACE:
-                            loadStackTrace();
-                            break;
+        try {
+            readHeader();
+            readRecords(null);
+        } catch (EOFException eof) {
+            //  this is fine
+        } finally {
+            mClassNames.clear();
+            mStrings.clear();
+        }
 
-                        case HEAP_DUMP:
-                            loadHeapDump(length);
-                            mSnapshot.setToDefaultHeap();
-                            break;
+        snapshot.resolveClasses();
+        HeapGraph graph = sink.mBuilder.build();
+        snapshot.setInstanceGraph(graph);
+        return graph;
+    }
 
-                        case HEAP_DUMP_SEGMENT:
-                            loadHeapDump(length);
-                            mSnapshot.setToDefaultHeap();
-                            break;
+    /**
+     * Like {@link #parseGraph()}, but reuses the graph stored in an index of the heap dump, with
+     * the analysis results computed before it was written, if the index matches the heap dump. The
+     * classes, roots, threads and stack traces are then loaded from the index as well, and only
+     * the header of the heap dump is read. Otherwise the heap dump is parsed into a new graph,
+     * which may be stored with {@link HeapGraphIndex#write(HeapGraph, File, File)}.
+     *
+     * @param hprof the heap dump read by this parser.
+     */
+    @NonNull
+    public final HeapGraph parseGraph(@NonNull File hprof, @NonNull File index)
+            throws IOException {
+        readHeader();
+        HeapGraph graph = HeapGraphIndex.readWithSnapshot(hprof, index, mInput);
+        if (graph == null) {
+            mInput.setPosition(0);
+            return parseGraph();
+        }
+        mSnapshot = graph.getSnapshot();
+        return graph;
+    }
+
+    private void readHeader() throws IOException {
+        readNullTerminatedString();  // Version, ignored for now.
+
+        mIdSize = mInput.readInt();
+        Type.setIdSize(mIdSize);
 
-                        default:
-                            skipFully(length);
+        mInput.readLong();  // Timestamp, ignored for now.
+    }
+
+    /**
+     * Reads all the top-level records. Heap dump segments are either loaded right away, or only
+     * skipped and appended as {offset, length} pairs to {@code segments} if not null.
+     */
+    private void readRecords(@Nullable List<long[]> segments) throws IOException {
+        while (mInput.hasRemaining()) {
+            int tag = readUnsignedByte();
+            mInput.readInt(); // Ignored: timestamp
+            long length = readUnsignedInt();
+
+            switch (tag) {
+                case STRING_IN_UTF8:
+                    // String length is limited by Int.MAX_VALUE anyway.
+                    loadString((int) length - mIdSize);
+                    break;
+
+                case LOAD_CLASS:
+                    loadClass();
+                    break;
+
+                case STACK_FRAME:
+                case STACK_TRACE:
+                    // There is no snapshot to keep stack traces in when streaming to a visitor.
+                    if (mSnapshot == null) {
+                        skipFully(length);
+                    } else if (tag == STACK_FRAME) {
+                        loadStackFrame();
+                    } else {
+                        loadStackTrace();
                     }
+                    break;
 
-                }
-            } catch (EOFException eof) {
-                //  this is fine
+                case HEAP_DUMP:
+                case HEAP_DUMP_SEGMENT:
+                    if (segments != null) {
+                        segments.add(new long[]{mInput.position(), length});
+                        skipFully(length);
+                    } else {
+                        loadHeapDump(length);
+                        mSink.setToDefaultHeap();
+                    }
+                    break;
+
+                default:
+                    skipFully(length);
             }
-            mSnapshot.resolveClasses();
-            // TODO: enable this after the dominators computation is also optimized.
-            // mSnapshot.computeRetainedSizes();
-        } catch (Exception e) {
-            e.printStackTrace();
         }
-
-        mClassNames.clear();
-        mStrings.clear();
-        return snapshot;
     }
 
     @NonNull
@@ -217,19 +409,7 @@ public class HprofParser {
     }
 
     private long readId() throws IOException {
-        // As long as we don't interpret IDs, reading signed values here is fine.
-        switch (mIdSize) {
-            case 1:
-                return mInput.readByte();
-            case 2:
-                return mInput.readShort();
-            case 4:
-                return mInput.readInt();
-            case 8:
-                return mInput.readLong();
-        }
-
-        throw new IllegalArgumentException("ID Length must be 1, 2, 4, or 8");
+        return Type.readId(mInput, mIdSize);
     }
 
     @NonNull
@@ -370,7 +550,7 @@ public class HprofParser {
                     long heapNameId = readId();
                     String heapName = mStrings.get(heapNameId);
 
-                    mSnapshot.setHeapTo(heapId, heapName);
+                    mSink.setHeapTo(heapId, heapName);
                     length -= 4 + mIdSize;
                     break;
 
@@ -415,11 +595,9 @@ public class HprofParser {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
         int stackFrameNumber = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace trace = mSnapshot.getStackTraceAtDepth(thread.mStackTrace, stackFrameNumber);
-        RootObj root = new RootObj(RootType.NATIVE_LOCAL, id, threadSerialNumber, trace);
 
-        mSnapshot.addRoot(root);
+        mSink.addThreadRootAtDepth(RootType.NATIVE_LOCAL, id, threadSerialNumber,
+                stackFrameNumber);
 
         return mIdSize + 4 + 4;
     }
@@ -428,11 +606,8 @@ public class HprofParser {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
         int stackFrameNumber = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace trace = mSnapshot.getStackTraceAtDepth(thread.mStackTrace, stackFrameNumber);
-        RootObj root = new RootObj(RootType.JAVA_LOCAL, id, threadSerialNumber, trace);
 
-        mSnapshot.addRoot(root);
+        mSink.addThreadRootAtDepth(RootType.JAVA_LOCAL, id, threadSerialNumber, stackFrameNumber);
 
         return mIdSize + 4 + 4;
     }
@@ -440,11 +615,8 @@ public class HprofParser {
     private int loadNativeStack() throws IOException {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace trace = mSnapshot.getStackTrace(thread.mStackTrace);
-        RootObj root = new RootObj(RootType.NATIVE_STACK, id, threadSerialNumber, trace);
 
-        mSnapshot.addRoot(root);
+        mSink.addThreadRoot(RootType.NATIVE_STACK, id, threadSerialNumber);
 
         return mIdSize + 4;
     }
@@ -453,7 +625,7 @@ public class HprofParser {
         long id = readId();
         RootObj root = new RootObj(type, id);
 
-        mSnapshot.addRoot(root);
+        mSink.addRoot(root);
 
         return mIdSize;
     }
@@ -461,11 +633,8 @@ public class HprofParser {
     private int loadThreadBlock() throws IOException {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace stack = mSnapshot.getStackTrace(thread.mStackTrace);
-        RootObj root = new RootObj(RootType.THREAD_BLOCK, id, threadSerialNumber, stack);
 
-        mSnapshot.addRoot(root);
+        mSink.addThreadRoot(RootType.THREAD_BLOCK, id, threadSerialNumber);
 
         return mIdSize + 4;
     }
@@ -476,7 +645,7 @@ public class HprofParser {
         int stackSerialNumber = mInput.readInt();
         ThreadObj thread = new ThreadObj(id, stackSerialNumber);
 
-        mSnapshot.addThread(thread, threadSerialNumber);
+        mSink.addThread(thread, threadSerialNumber);
 
         return mIdSize + 4 + 4;
     }
@@ -484,7 +653,7 @@ public class HprofParser {
     private int loadClassDump() throws IOException {
         final long id = readId();
         int stackSerialNumber = mInput.readInt();
-        StackTrace stack = mSnapshot.getStackTrace(stackSerialNumber);
+        StackTrace stack = mSink.getStackTrace(stackSerialNumber);
         final long superClassId = readId();
         final long classLoaderId = readId();
         readId(); // Ignored: Signeres ID.
@@ -544,7 +713,7 @@ public class HprofParser {
         theClass.setFields(fields);
         theClass.setInstanceSize(instanceSize);
 
-        mSnapshot.addClass(id, theClass);
+        mSink.addClass(id, theClass);
 
         return bytesRead;
     }
@@ -552,14 +721,11 @@ public class HprofParser {
     private int loadInstanceDump() throws IOException {
         long id = readId();
         int stackId = mInput.readInt();
-        StackTrace stack = mSnapshot.getStackTrace(stackId);
+        StackTrace stack = mSink.getStackTrace(stackId);
         long classId = readId();
         int remaining = mInput.readInt();
 
-        long position = mInput.position();
-        ClassInstance instance = new ClassInstance(id, stack, position);
-        instance.setClassId(classId);
-        mSnapshot.addInstance(id, instance);
+        mSink.addInstance(id, stack, classId, mInput.position());
 
         skipFully(remaining);
         return mIdSize + 4 + mIdSize + 4 + remaining;
@@ -568,13 +734,10 @@ public class HprofParser {
     private int loadObjectArrayDump() throws IOException {
         final long id = readId();
         int stackId = mInput.readInt();
-        StackTrace stack = mSnapshot.getStackTrace(stackId);
+        StackTrace stack = mSink.getStackTrace(stackId);
         int numElements = mInput.readInt();
         long classId = readId();
-        ArrayInstance array =
-                new ArrayInstance(id, stack, Type.OBJECT, numElements, mInput.position());
-        array.setClassId(classId);
-        mSnapshot.addInstance(id, array);
+        mSink.addObjectArray(id, stack, classId, numElements, mInput.position());
 
         int remaining = numElements * mIdSize;
         skipFully(remaining);
@@ -584,12 +747,11 @@ public class HprofParser {
     private int loadPrimitiveArrayDump() throws IOException {
         long id = readId();
         int stackId = mInput.readInt();
-        StackTrace stack = mSnapshot.getStackTrace(stackId);
+        StackTrace stack = mSink.getStackTrace(stackId);
         int numElements = mInput.readInt();
         Type type = Type.getType(readUnsignedByte());
         int size = type.getSize();
-        ArrayInstance array = new ArrayInstance(id, stack, type, numElements, mInput.position());
-        mSnapshot.addInstance(id, array);
+        mSink.addPrimitiveArray(id, stack, type, numElements, mInput.position());
 
         int remaining = numElements * size;
         skipFully(remaining);
@@ -600,11 +762,8 @@ public class HprofParser {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
         int stackDepth = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace trace = mSnapshot.getStackTraceAtDepth(thread.mStackTrace, stackDepth);
-        RootObj root = new RootObj(RootType.NATIVE_MONITOR, id, threadSerialNumber, trace);
 
-        mSnapshot.addRoot(root);
+        mSink.addThreadRootAtDepth(RootType.NATIVE_MONITOR, id, threadSerialNumber, stackDepth);
 
         return mIdSize + 4 + 4;
     }
@@ -621,4 +780,491 @@ public class HprofParser {
     private void skipFully(long numBytes) throws IOException {
         mInput.setPosition(mInput.position() + numBytes);
     }
+
+    /**
+     * Receives the objects decoded from heap dump records.
+     */
+    private interface HeapDumpSink {
+
+        void setHeapTo(int id, @NonNull String name);
+
+        void setToDefaultHeap();
+
+        void addRoot(@NonNull RootObj root);
+
+        /**
+         * Adds a root whose stack trace is the one of the given thread.
+         */
+        void addThreadRoot(@NonNull RootType type, long id, int threadSerialNumber);
+
+        /**
+         * Adds a root whose stack trace is the one of the given thread, from the given depth.
+         */
+        void addThreadRootAtDepth(@NonNull RootType type, long id, int threadSerialNumber,
+                int depth);
+
+        void addThread(@NonNull ThreadObj thread, int serialNumber);
+
+        void addInstance(long id, @Nullable StackTrace stack, long classId, long valuesOffset);
+
+        void addObjectArray(long id, @Nullable StackTrace stack, long classId, int length,
+                long valuesOffset);
+
+        void addPrimitiveArray(long id, @Nullable StackTrace stack, @NonNull Type type,
+                int length, long valuesOffset);
+
+        void addClass(long id, @NonNull ClassObj theClass);
+
+        @Nullable
+        StackTrace getStackTrace(int serialNumber);
+    }
+
+    /**
+     * Creates an {@link Instance} for each decoded instance and array.
+     */
+    private abstract static class InstanceSink implements HeapDumpSink {
+
+        abstract void addInstance(@NonNull Instance instance);
+
+        @Override
+        public void addInstance(long id, @Nullable StackTrace stack, long classId,
+                long valuesOffset) {
+            ClassInstance instance = new ClassInstance(id, stack, valuesOffset);
+            instance.setClassId(classId);
+            addInstance(instance);
+        }
+
+        @Override
+        public void addObjectArray(long id, @Nullable StackTrace stack, long classId, int length,
+                long valuesOffset) {
+            ArrayInstance array = new ArrayInstance(id, stack, Type.OBJECT, length, valuesOffset);
+            array.setClassId(classId);
+            addInstance(array);
+        }
+
+        @Override
+        public void addPrimitiveArray(long id, @Nullable StackTrace stack, @NonNull Type type,
+                int length, long valuesOffset) {
+            addInstance(new ArrayInstance(id, stack, type, length, valuesOffset));
+        }
+    }
+
+    /**
+     * Adds the decoded objects to the snapshot right away.
+     */
+    private static class SnapshotSink extends InstanceSink {
+
+        @NonNull
+        private final Snapshot mSnapshot;
+
+        SnapshotSink(@NonNull Snapshot snapshot) {
+            mSnapshot = snapshot;
+        }
+
+        @Override
+        public void setHeapTo(int id, @NonNull String name) {
+            mSnapshot.setHeapTo(id, name);
+        }
+
+        @Override
+        public void setToDefaultHeap() {
+            mSnapshot.setToDefaultHeap();
+        }
+
+        @Override
+        public void addRoot(@NonNull RootObj root) {
+            mSnapshot.addRoot(root);
+        }
+
+        @Override
+        public void addThreadRoot(@NonNull RootType type, long id, int threadSerialNumber) {
+            ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
+            StackTrace trace = mSnapshot.getStackTrace(thread.mStackTrace);
+            mSnapshot.addRoot(new RootObj(type, id, threadSerialNumber, trace));
+        }
+
+        @Override
+        public void addThreadRootAtDepth(@NonNull RootType type, long id, int threadSerialNumber,
+                int depth) {
+            ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
+            StackTrace trace = mSnapshot.getStackTraceAtDepth(thread.mStackTrace, depth);
+            mSnapshot.addRoot(new RootObj(type, id, threadSerialNumber, trace));
+        }
+
+        @Override
+        public void addThread(@NonNull ThreadObj thread, int serialNumber) {
+            mSnapshot.addThread(thread, serialNumber);
+        }
+
+        @Override
+        void addInstance(@NonNull Instance instance) {
+            mSnapshot.addInstance(instance.getId(), instance);
+        }
+
+        @Override
+        public void addClass(long id, @NonNull ClassObj theClass) {
+            mSnapshot.addClass(id, theClass);
+        }
+
+        @Override
+        public StackTrace getStackTrace(int serialNumber) {
+            return mSnapshot.getStackTrace(serialNumber);
+        }
+    }
+
+    /**
+     * Adds the classes, roots and threads to the snapshot, and only records the instances and
+     * arrays as primitives in a {@link HeapGraphBuilder}.
+     */
+    private static class GraphSink extends SnapshotSink {
+
+        @NonNull
+        private final Snapshot mSnapshot;
+
+        @NonNull
+        final HeapGraphBuilder mBuilder;
+
+        private int mHeapIndex;
+
+        GraphSink(@NonNull Snapshot snapshot) {
+            super(snapshot);
+            mSnapshot = snapshot;
+            mBuilder = new HeapGraphBuilder(snapshot);
+            mHeapIndex = snapshot.getHeapIndex(snapshot.mCurrentHeap);
+        }
+
+        @Override
+        public void setHeapTo(int id, @NonNull String name) {
+            super.setHeapTo(id, name);
+            mHeapIndex = mSnapshot.getHeapIndex(mSnapshot.mCurrentHeap);
+        }
+
+        @Override
+        public void setToDefaultHeap() {
+            super.setToDefaultHeap();
+            mHeapIndex = mSnapshot.getHeapIndex(mSnapshot.mCurrentHeap);
+        }
+
+        @Override
+        public void addClass(long id, @NonNull ClassObj theClass) {
+            super.addClass(id, theClass);
+            mBuilder.addClass(id, mHeapIndex, HeapGraphBuilder.CLASS_SIZE,
+                    theClass.getValuesOffset());
+        }
+
+        @Override
+        public void addInstance(long id, @Nullable StackTrace stack, long classId,
+                long valuesOffset) {
+            mBuilder.addInstance(id, mHeapIndex, classId, HeapGraphBuilder.CLASS_SIZE,
+                    valuesOffset);
+        }
+
+        @Override
+        public void addObjectArray(long id, @Nullable StackTrace stack, long classId, int length,
+                long valuesOffset) {
+            mBuilder.addArray(id, mHeapIndex, Type.OBJECT, classId,
+                    length * Type.OBJECT.getSize(), valuesOffset);
+        }
+
+        @Override
+        public void addPrimitiveArray(long id, @Nullable StackTrace stack, @NonNull Type type,
+                int length, long valuesOffset) {
+            mBuilder.addArray(id, mHeapIndex, type, 0, length * type.getSize(), valuesOffset);
+        }
+    }
+
+    /**
+     * Passes the decoded objects on to a {@link HeapDumpVisitor} and drops them.
+     */
+    private static class VisitorSink implements HeapDumpSink {
+
+        private static final int DEFAULT_HEAP_ID = 0;
+
+        @NonNull
+        private final HprofBuffer mInput;
+
+        @NonNull
+        private final HeapDumpVisitor mVisitor;
+
+        VisitorSink(@NonNull HprofBuffer input, @NonNull HeapDumpVisitor visitor) {
+            mInput = input;
+            mVisitor = visitor;
+        }
+
+        @Override
+        public void setHeapTo(int id, @NonNull String name) {
+            mVisitor.visitHeap(id, name);
+        }
+
+        @Override
+        public void setToDefaultHeap() {
+            mVisitor.visitHeap(DEFAULT_HEAP_ID, "default");
+        }
+
+        @Override
+        public void addRoot(@NonNull RootObj root) {
+            mVisitor.visitRoot(root.getRootType(), root.getId());
+        }
+
+        @Override
+        public void addThreadRoot(@NonNull RootType type, long id, int threadSerialNumber) {
+            mVisitor.visitRoot(type, id);
+        }
+
+        @Override
+        public void addThreadRootAtDepth(@NonNull RootType type, long id, int threadSerialNumber,
+                int depth) {
+            mVisitor.visitRoot(type, id);
+        }
+
+        @Override
+        public void addThread(@NonNull ThreadObj thread, int serialNumber) {
+        }
+
+        // The parser skips the values of instances and arrays once these return.
+
+        @Override
+        public void addInstance(long id, @Nullable StackTrace stack, long classId,
+                long valuesOffset) {
+            mVisitor.visitInstance(id, classId, mInput);
+            mInput.setPosition(valuesOffset);
+        }
+
+        @Override
+        public void addObjectArray(long id, @Nullable StackTrace stack, long classId, int length,
+                long valuesOffset) {
+            mVisitor.visitObjectArray(id, classId, length, mInput);
+            mInput.setPosition(valuesOffset);
+        }
+
+        @Override
+        public void addPrimitiveArray(long id, @Nullable StackTrace stack, @NonNull Type type,
+                int length, long valuesOffset) {
+            mVisitor.visitPrimitiveArray(id, type, length, mInput);
+            mInput.setPosition(valuesOffset);
+        }
+
+        @Override
+        public void addClass(long id, @NonNull ClassObj theClass) {
+            mVisitor.visitClass(id, theClass.getClassName(), theClass.mSuperClassId,
+                    theClass.getInstanceSize(), theClass.getFields());
+        }
+
+        @Override
+        public StackTrace getStackTrace(int serialNumber) {
+            return null;
+        }
+    }
+
+    /**
+     * The heaps of a snapshot parsed in parallel, shared by the workers so that they can add
+     * instances to them directly. The heaps created here are only added to the snapshot when the
+     * switch to them is replayed, so that they are in the same order as with {@link #parse()}.
+     */
+    private static class HeapTable {
+
+        @NonNull
+        private final Snapshot mSnapshot;
+
+        @NonNull
+        private final List<Heap> mHeaps;
+
+        HeapTable(@NonNull Snapshot snapshot) {
+            mSnapshot = snapshot;
+            mHeaps = new ArrayList<Heap>(snapshot.getHeaps());
+        }
+
+        @NonNull
+        synchronized Heap get(int id, @NonNull String name) {
+            for (Heap heap : mHeaps) {
+                if (heap.getId() == id) {
+                    return heap;
+                }
+            }
+            Heap heap = new Heap(id, name);
+            heap.mSnapshot = mSnapshot;
+            mHeaps.add(heap);
+            return heap;
+        }
+    }
+
+    /**
+     * Records the objects decoded by a worker thread, to be replayed in file order. Roots that
+     * depend on thread objects are resolved at replay time, as their thread may be defined in
+     * another segment.
+     */
+    private static class RecordingSink extends InstanceSink {
+
+        private static final int DEFAULT_HEAP_ID = 0;
+
+        @NonNull
+        private final HeapTable mHeaps;
+
+        //  Decoded instances, classes and roots, as well as heap switches and threads.
+        private final List<Object> mRecords = new ArrayList<Object>();
+
+        @NonNull
+        private Heap mCurrentHeap;
+
+        RecordingSink(@NonNull HeapTable heaps) {
+            mHeaps = heaps;
+            mCurrentHeap = heaps.get(DEFAULT_HEAP_ID, "default");
+        }
+
+        @Override
+        public void setHeapTo(int id, @NonNull String name) {
+            switchTo(mHeaps.get(id, name));
+        }
+
+        @Override
+        public void setToDefaultHeap() {
+            switchTo(mHeaps.get(DEFAULT_HEAP_ID, "default"));
+        }
+
+        private void switchTo(@NonNull Heap heap) {
+            mCurrentHeap = heap;
+            mRecords.add(heap);
+        }
+
+        @Override
+        public void addRoot(@NonNull RootObj root) {
+            mRecords.add(root);
+        }
+
+        @Override
+        public void addThreadRoot(@NonNull RootType type, long id, int threadSerialNumber) {
+            mRecords.add(new ThreadRootRecord(type, id, threadSerialNumber, false, 0));
+        }
+
+        @Override
+        public void addThreadRootAtDepth(@NonNull RootType type, long id, int threadSerialNumber,
+                int depth) {
+            mRecords.add(new ThreadRootRecord(type, id, threadSerialNumber, true, depth));
+        }
+
+        @Override
+        public void addThread(@NonNull ThreadObj thread, int serialNumber) {
+            mRecords.add(new ThreadRecord(thread, serialNumber));
+        }
+
+        @Override
+        void addInstance(@NonNull Instance instance) {
+            mRecords.add(instance);
+        }
+
+        @Override
+        public void addClass(long id, @NonNull ClassObj theClass) {
+            mRecords.add(theClass);
+        }
+
+        @Override
+        public StackTrace getStackTrace(int serialNumber) {
+            // Stack traces are all loaded in the first pass, and the replay doesn't modify them,
+            // so this lookup is safe from any thread.
+            return mCurrentHeap.getStackTrace(serialNumber);
+        }
+
+        void replay(@NonNull Snapshot snapshot, @NonNull SnapshotSink sink) {
+            //noinspection ForLoopReplaceableByForEach
+            for (int i = 0; i < mRecords.size(); i++) {
+                Object record = mRecords.get(i);
+                if (record instanceof RootObj) {
+                    sink.addRoot((RootObj) record);
+                } else if (record instanceof ClassObj) {
+                    ClassObj theClass = (ClassObj) record;
+                    sink.addClass(theClass.getId(), theClass);
+                } else if (record instanceof Instance) {
+                    sink.addInstance((Instance) record);
+                } else if (record instanceof ThreadRootRecord) {
+                    ThreadRootRecord root = (ThreadRootRecord) record;
+                    if (root.mHasDepth) {
+                        sink.addThreadRootAtDepth(root.mType, root.mId, root.mThreadSerialNumber,
+                                root.mDepth);
+                    } else {
+                        sink.addThreadRoot(root.mType, root.mId, root.mThreadSerialNumber);
+                    }
+                } else if (record instanceof ThreadRecord) {
+                    ThreadRecord thread = (ThreadRecord) record;
+                    sink.addThread(thread.mThread, thread.mSerialNumber);
+                } else {
+                    snapshot.setHeapTo((Heap) record);
+                }
+            }
+            mRecords.clear();
+        }
+    }
+
+    private static class ThreadRecord {
+
+        @NonNull
+        final ThreadObj mThread;
+
+        final int mSerialNumber;
+
+        ThreadRecord(@NonNull ThreadObj thread, int serialNumber) {
+            mThread = thread;
+            mSerialNumber = serialNumber;
+        }
+    }
+
+    private static class ThreadRootRecord {
+
+        @NonNull
+        final RootType mType;
+
+        final long mId;
+
+        final int mThreadSerialNumber;
+
+        final boolean mHasDepth;
+
+        final int mDepth;
+
+        ThreadRootRecord(@NonNull RootType type, long id, int threadSerialNumber,
+                boolean hasDepth, int depth) {
+            mType = type;
+            mId = id;
+            mThreadSerialNumber = threadSerialNumber;
+            mHasDepth = hasDepth;
+            mDepth = depth;
+        }
+    }
+
+    /**
+     * Decodes a batch of consecutive heap dump segments on a worker thread.
+     */
+    private class SegmentDecoder implements Callable<RecordingSink> {
+
+        @NonNull
+        private final HprofBuffer mView;
+
+        @NonNull
+        private final List<long[]> mSegments;
+
+        @NonNull
+        private final HeapTable mHeaps;
+
+        SegmentDecoder(@NonNull HprofBuffer view, @NonNull List<long[]> segments,
+                @NonNull HeapTable heaps) {
+            mView = view;
+            mSegments = segments;
+            mHeaps = heaps;
+        }
+
+        @Override
+        public RecordingSink call() throws IOException {
+            RecordingSink sink = new RecordingSink(mHeaps);
+            HprofParser parser = new HprofParser(HprofParser.this, mView, sink);
+            try {
+                for (long[] segment : mSegments) {
+                    mView.setPosition(segment[0]);
+                    parser.loadHeapDump(segment[1]);
+                    sink.setToDefaultHeap();
+                }
+            } catch (EOFException eof) {
+                //  a truncated last segment, which parse() accepts as well
+            }
+            return sink;
+        }
+    }
 }
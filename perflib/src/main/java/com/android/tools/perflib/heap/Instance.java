@@ -20,6 +20,8 @@ import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.tools.perflib.heap.io.HprofBuffer;
 import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.primitives.UnsignedBytes;
 
 import java.util.ArrayList;
@@ -52,6 +54,10 @@ public abstract class Instance {
 
     Instance mNextInstanceToGcRoot = null;
 
+    //  The ordinal of this instance in the HeapGraph of its snapshot if it is only a view of a
+    //  node of the graph, see Snapshot#hasInstancesInGraph(), or 0.
+    int mGraphOrdinal;
+
     //  The immediate dominator of this instance, or null if not reachable from any GC roots.
     @Nullable
     private Instance mImmediateDominator;
@@ -62,8 +68,10 @@ public abstract class Instance {
     //  To save space, we only keep a primitive array here following the order in mSnapshot.mHeaps.
     private long[] mRetainedSizes;
 
-    //  List of all objects that hold a live reference to this object
-    private final ArrayList<Instance> mReferences = new ArrayList<Instance>();
+    //  List of all objects that hold a live reference to this object, allocated on first use as
+    //  most instances are referred to by a single object, or none at all before the graph is walked.
+    @Nullable
+    private ArrayList<Instance> mReferences;
 
     Instance(long id, @NonNull StackTrace stackTrace) {
         mId = id;
@@ -74,6 +82,15 @@ public abstract class Instance {
         return mId;
     }
 
+    /**
+     * Returns the stack trace of the allocation of this instance, which is empty unless allocation
+     * tracking was enabled when the heap was dumped, or null if the heap dump doesn't have it.
+     */
+    @Nullable
+    public StackTrace getStack() {
+        return mStack;
+    }
+
     public long getUniqueId() {
         return getId() & Type.getIdSizeMask();
     }
@@ -129,10 +146,24 @@ public abstract class Instance {
     }
 
     public int getDistanceToGcRoot() {
+        if (mGraphOrdinal != 0) {
+            // The distances of views are only kept in the graph.
+            HeapGraph graph = mHeap.mSnapshot.getHeapGraph();
+            return graph.hasDistancesToGcRoots()
+                    ? graph.getDistanceToGcRoot(mGraphOrdinal) : Integer.MAX_VALUE;
+        }
         return mDistanceToGcRoot;
     }
 
     public Instance getNextInstanceToGcRoot() {
+        if (mGraphOrdinal != 0) {
+            HeapGraph graph = mHeap.mSnapshot.getHeapGraph();
+            if (!graph.hasDistancesToGcRoots()) {
+                return null;
+            }
+            int next = graph.getNextToGcRoot(mGraphOrdinal);
+            return next > HeapGraph.ROOT ? graph.getInstance(next) : null;
+        }
         return mNextInstanceToGcRoot;
     }
 
@@ -177,12 +208,75 @@ public abstract class Instance {
 
     //  Add to the list of objects that have a hard reference to this Instance
     public void addReference(Instance reference) {
+        if (mReferences == null) {
+            mReferences = new ArrayList<Instance>(1);
+        }
         mReferences.add(reference);
     }
 
     @NonNull
     public ArrayList<Instance> getReferences() {
-        return mReferences;
+        return mReferences == null ? new ArrayList<Instance>(0) : mReferences;
+    }
+
+    /**
+     * In lazy decoding mode, visits the instances this one refers to through the references of the
+     * {@link HeapGraph}, without decoding any field value, and returns true. Returns false if the
+     * snapshot isn't in lazy decoding mode, in which case the caller must decode the values itself.
+     */
+    final boolean acceptReferencesLazily(@NonNull Visitor visitor) {
+        Snapshot snapshot = mHeap.mSnapshot;
+        if (!snapshot.isLazyDecoding()) {
+            return false;
+        }
+
+        HeapGraph graph = snapshot.getHeapGraph();
+        int ordinal = graph.getOrdinal(mId);
+        if (ordinal != HeapGraph.NONE) {
+            int degree = graph.getOutDegree(ordinal);
+            for (int i = 0; i < degree; i++) {
+                Instance instance = graph.getInstance(graph.getOutEdge(ordinal, i));
+                if (!mReferencesAdded) {
+                    instance.addReference(this);
+                }
+                visitor.visitLater(instance);
+            }
+        }
+        mReferencesAdded = true;
+        return true;
+    }
+
+    /**
+     * Returns a hash of the contents of this instance that doesn't depend on object ids, so that
+     * it can be compared across heap dumps. Primitive values are hashed as they are, references to
+     * primitive arrays by the contents of the array, and other references by whether they are null
+     * and by the class of the object they refer to. Object arrays are hashed by class, length and
+     * which elements are null.
+     */
+    public long getContentHash() {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        long position = getBuffer().position();
+        hashContent(hasher, true);
+        getBuffer().setPosition(position);
+        return hasher.hash().asLong();
+    }
+
+    /**
+     * Adds the contents of this instance to the hasher, following references to primitive arrays
+     * if {@code followArrays} is set. The buffer position is not restored.
+     */
+    void hashContent(@NonNull Hasher hasher, boolean followArrays) {
+        ClassObj clazz = getClassObj();
+        if (clazz != null) {
+            hasher.putUnencodedChars(clazz.getClassName());
+        }
+    }
+
+    /**
+     * Returns the position in the buffer of the values of this instance, or -1 if it has none.
+     */
+    long getValuesOffset() {
+        return -1;
     }
 
     @Nullable
@@ -18,15 +18,18 @@ package com.android.tools.perflib.heap;
 
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
-import com.android.tools.perflib.heap.analysis.Dominators;
+import com.android.tools.perflib.heap.analysis.LinkEvalDominators;
 import com.android.tools.perflib.heap.analysis.ShortestDistanceVisitor;
 import com.android.tools.perflib.heap.analysis.TopologicalSort;
 import com.android.tools.perflib.heap.io.HprofBuffer;
 import com.google.common.collect.ImmutableList;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 /*
  * A snapshot of all of the heaps, and related meta-data, for the runtime at a given instant.
@@ -55,13 +58,31 @@ public class Snapshot {
 
     private ImmutableList<Instance> mTopSort;
 
-    private Dominators mDominators;
+    private LinkEvalDominators mDominators;
+
+    private HeapGraph mHeapGraph;
+
+    //  Set for snapshots parsed by HprofParser.parseGraph(), which only hold classes, roots and
+    //  stack traces, and create views of the instances of the HeapGraph when they are looked up.
+    private boolean mInstancesInGraph;
+
+    //  When set, visitors walk the reference ids pre-scanned into the HeapGraph instead of decoding
+    //  every field of every instance, and field values are only decoded when queried.
+    private boolean mLazyDecoding;
 
     public Snapshot(@NonNull HprofBuffer buffer) {
         mBuffer = buffer;
         setToDefaultHeap();
     }
 
+    /**
+     * Returns the buffer the snapshot was parsed from, which holds the field and array values.
+     */
+    @NonNull
+    public HprofBuffer getBuffer() {
+        return mBuffer;
+    }
+
     @NonNull
     public Heap setToDefaultHeap() {
         return setHeapTo(DEFAULT_HEAP_ID, "default");
@@ -82,6 +103,17 @@ public class Snapshot {
         return mCurrentHeap;
     }
 
+    /**
+     * Makes a heap created for this snapshot by a parser worker the current heap, adding it to
+     * the heaps first if needed.
+     */
+    void setHeapTo(@NonNull Heap heap) {
+        if (!mHeaps.contains(heap)) {
+            mHeaps.add(heap);
+        }
+        mCurrentHeap = heap;
+    }
+
     public int getHeapIndex(@NonNull Heap heap) {
         return mHeaps.indexOf(heap);
     }
@@ -175,7 +207,13 @@ public class Snapshot {
         }
 
         //  Couldn't find an instance of a class, look for a class object
-        return findClass(id);
+        ClassObj theClass = findClass(id);
+        if (theClass != null || !mInstancesInGraph) {
+            return theClass;
+        }
+
+        int ordinal = mHeapGraph.getOrdinal(id);
+        return ordinal != HeapGraph.NONE ? mHeapGraph.getInstance(ordinal) : null;
     }
 
     @Nullable
@@ -238,11 +276,10 @@ public class Snapshot {
         }
     }
 
-    // TODO: Break dominator computation into fixed chunks, because it can be unbounded/expensive.
     public void computeDominators() {
         if (mDominators == null) {
             mTopSort = TopologicalSort.compute(getGCRoots());
-            mDominators = new Dominators(this, mTopSort);
+            mDominators = new LinkEvalDominators(this, mTopSort);
             mDominators.computeRetainedSizes();
 
             ShortestDistanceVisitor shortestDistanceVisitor = new ShortestDistanceVisitor();
@@ -250,6 +287,133 @@ public class Snapshot {
         }
     }
 
+    /**
+     * Computes the shortest distance of every instance to the GC roots with a parallel
+     * breadth-first search over the {@link HeapGraph}, and fills in
+     * {@link Instance#getDistanceToGcRoot()} and {@link Instance#getNextInstanceToGcRoot()}. This
+     * is an alternative to the sequential search done by {@link #computeDominators()}. If the
+     * instances are only kept in the graph, their views read the distances from the graph.
+     */
+    public void computeDistancesToGcRoots(@NonNull ExecutorService executor) {
+        HeapGraph graph = getHeapGraph();
+        graph.computeDistancesToGcRoots(executor);
+        if (mInstancesInGraph) {
+            // Only the classes are objects of their own.
+            for (Heap heap : mHeaps) {
+                for (ClassObj classObj : heap.getClasses()) {
+                    setDistanceToGcRoot(graph, classObj, graph.getOrdinal(classObj.getId()));
+                }
+            }
+            return;
+        }
+        for (int ordinal = 1; ordinal < graph.getNodeCount(); ordinal++) {
+            setDistanceToGcRoot(graph, graph.getInstance(ordinal), ordinal);
+        }
+    }
+
+    private static void setDistanceToGcRoot(@NonNull HeapGraph graph, @NonNull Instance instance,
+            int ordinal) {
+        if (ordinal == HeapGraph.NONE) {
+            return;
+        }
+        int next = graph.getNextToGcRoot(ordinal);
+        instance.mDistanceToGcRoot = graph.getDistanceToGcRoot(ordinal);
+        instance.mNextInstanceToGcRoot = next > HeapGraph.ROOT ? graph.getInstance(next) : null;
+    }
+
+    /**
+     * Returns the shortest path from a GC root to each of the given instances, all found with a
+     * single search of the {@link HeapGraph}. Each path starts with an instance referred by a GC
+     * root and ends with the target itself, and is empty if the target isn't reachable.
+     */
+    @NonNull
+    public List<List<Instance>> getPathsToGcRoots(@NonNull List<Instance> targets) {
+        HeapGraph graph = getHeapGraph();
+        int[] ordinals = new int[targets.size()];
+        for (int i = 0; i < ordinals.length; i++) {
+            ordinals[i] = graph.getOrdinal(targets.get(i).getId());
+        }
+
+        int[][] paths = graph.getPathsToGcRoots(ordinals);
+        List<List<Instance>> result = new ArrayList<List<Instance>>(paths.length);
+        for (int[] path : paths) {
+            List<Instance> instances = new ArrayList<Instance>(path.length);
+            for (int ordinal : path) {
+                instances.add(graph.getInstance(ordinal));
+            }
+            result.add(instances);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the compact, index-based representation of the object graph, building it on first
+     * use. Classes must have been resolved.
+     */
+    @NonNull
+    public HeapGraph getHeapGraph() {
+        if (mHeapGraph == null) {
+            mHeapGraph = HeapGraph.build(this);
+        }
+        return mHeapGraph;
+    }
+
+    /**
+     * Uses the graph stored in an index of the heap dump of this snapshot, with the analysis
+     * results computed before it was written, instead of building the graph again. Classes must
+     * have been resolved.
+     *
+     * @return false if the index doesn't exist or doesn't match the heap dump, in which case the
+     * graph is still built on first use.
+     * @see HeapGraphIndex#write(HeapGraph, File, File)
+     */
+    public boolean loadHeapGraph(@NonNull File hprof, @NonNull File index) throws IOException {
+        HeapGraph graph = HeapGraphIndex.read(hprof, index, this);
+        if (graph == null) {
+            return false;
+        }
+        mHeapGraph = graph;
+        return true;
+    }
+
+    /**
+     * Makes this snapshot, which holds no instance of its own, look its instances up in the given
+     * graph parsed from the same heap dump.
+     */
+    void setInstanceGraph(@NonNull HeapGraph graph) {
+        mHeapGraph = graph;
+        mInstancesInGraph = true;
+    }
+
+    /**
+     * Returns whether the instances of this snapshot are only kept in its {@link HeapGraph}, as
+     * parsed by {@link HprofParser#parseGraph()}. {@link Heap#getInstances()} and
+     * {@link ClassObj#getInstancesList()} are then empty, and {@link #findReference(long)}
+     * returns a new view of the instance for each call.
+     */
+    public boolean hasInstancesInGraph() {
+        return mInstancesInGraph;
+    }
+
+    /**
+     * Enables or disables lazy decoding. In lazy mode, walking the object graph (e.g. in
+     * {@link #computeDominators()}) follows the references of the {@link HeapGraph}, which are
+     * read in a single compact pass over the buffer, instead of decoding all the field values of
+     * each instance into boxed objects every time it is visited. Field values can still be read
+     * on demand with {@link ClassInstance#getFieldValue(String)} and
+     * {@link ArrayInstance#getValue(int)}.
+     *
+     * Unlike {@link ClassInstance#getValues()}, the pre-scan also follows fields shadowed by a
+     * subclass field of the same name, so the object graph may have a few more edges.
+     */
+    public void setLazyDecoding(boolean lazyDecoding) {
+        mLazyDecoding = lazyDecoding;
+    }
+
+    public boolean isLazyDecoding() {
+        return mLazyDecoding;
+    }
+
     @NonNull
     public List<Instance> getReachableInstances() {
         List<Instance> result = new ArrayList<Instance>(mTopSort.size());
@@ -63,6 +63,21 @@ public class StackTrace {
         return result;
     }
 
+    /**
+     * Returns the frames of this trace, starting from its depth within its parent trace if any.
+     */
+    @NonNull
+    public final StackFrame[] getFrames() {
+        if (mParent == null) {
+            return mFrames;
+        }
+        StackFrame[] frames = mParent.mFrames;
+        int offset = Math.min(mOffset, frames.length);
+        StackFrame[] result = new StackFrame[frames.length - offset];
+        System.arraycopy(frames, offset, result, 0, result.length);
+        return result;
+    }
+
     public final void dump() {
         final int N = mFrames.length;
 
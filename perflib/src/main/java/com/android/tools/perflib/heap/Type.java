@@ -16,6 +16,8 @@
 
 package com.android.tools.perflib.heap;
 
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.heap.io.HprofBuffer;
 import com.google.common.collect.Maps;
 
 import java.util.Map;
@@ -61,10 +63,40 @@ public enum Type {
         return sIdSizeMask;
     };
 
+    /**
+     * Reads an id of the size set by {@link #setIdSize(int)}.
+     */
+    public static long readId(@NonNull HprofBuffer buffer) {
+        return readId(buffer, sIdSize);
+    }
+
+    /**
+     * Reads an id of the given size, in bytes.
+     */
+    public static long readId(@NonNull HprofBuffer buffer, int idSize) {
+        // As long as we don't interpret IDs, reading signed values here is fine.
+        switch (idSize) {
+            case 1:
+                return buffer.readByte();
+            case 2:
+                return buffer.readShort();
+            case 4:
+                return buffer.readInt();
+            case 8:
+                return buffer.readLong();
+        }
+
+        throw new IllegalArgumentException("ID Length must be 1, 2, 4, or 8");
+    }
+
     public static Type getType(int id) {
         return sTypeMap.get(id);
     }
 
+    public int getTypeId() {
+        return mId;
+    }
+
     public int getSize() {
         return this == OBJECT ? sIdSize : mSize;
     }
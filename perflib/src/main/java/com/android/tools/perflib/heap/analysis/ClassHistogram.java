@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.heap.Field;
+import com.android.tools.perflib.heap.HeapDumpVisitor;
+import com.android.tools.perflib.heap.RootType;
+import com.android.tools.perflib.heap.Type;
+import com.android.tools.perflib.heap.io.HprofBuffer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import gnu.trove.TLongObjectHashMap;
+
+/**
+ * Streaming per-class histogram of instance counts and shallow sizes, to be fed by
+ * {@link com.android.tools.perflib.heap.HprofParser#parse(HeapDumpVisitor)}. Memory use is
+ * proportional to the number of classes, not the number of instances.
+ *
+ * Shallow sizes follow the {@link com.android.tools.perflib.heap.Snapshot} definitions: the
+ * instance size declared by the class for instances, and the size of the elements for arrays.
+ */
+public class ClassHistogram implements HeapDumpVisitor {
+
+    //  Only instances in this heap are counted, or in any heap if null.
+    @Nullable
+    private final String mHeapName;
+
+    private boolean mInCountedHeap = true;
+
+    @NonNull
+    private final TLongObjectHashMap<Entry> mEntries = new TLongObjectHashMap<Entry>();
+
+    //  Entries of primitive arrays, which have no class id, indexed by type ordinal.
+    @NonNull
+    private final Entry[] mPrimitiveArrayEntries = new Entry[Type.values().length];
+
+    public ClassHistogram() {
+        this(null);
+    }
+
+    /**
+     * Creates a histogram of the instances in the heap with the given name, e.g. "app".
+     */
+    public ClassHistogram(@Nullable String heapName) {
+        mHeapName = heapName;
+        mInCountedHeap = heapName == null;
+    }
+
+    @Override
+    public void visitHeap(int id, @NonNull String name) {
+        mInCountedHeap = mHeapName == null || mHeapName.equals(name);
+    }
+
+    @Override
+    public void visitRoot(@NonNull RootType type, long id) {
+    }
+
+    @Override
+    public void visitClass(long id, @NonNull String name, long superClassId, int instanceSize,
+            @NonNull Field[] fields) {
+        // Class definitions are kept whatever their heap, as their instances may be elsewhere.
+        Entry entry = getEntry(id);
+        entry.mClassName = name;
+        entry.mSuperClassId = superClassId;
+        entry.mInstanceSize = instanceSize;
+    }
+
+    @Override
+    public void visitInstance(long id, long classId, @NonNull HprofBuffer values) {
+        if (mInCountedHeap) {
+            getEntry(classId).mInstanceCount++;
+        }
+    }
+
+    @Override
+    public void visitObjectArray(long id, long classId, int length, @NonNull HprofBuffer values) {
+        if (mInCountedHeap) {
+            Entry entry = getEntry(classId);
+            entry.mInstanceCount++;
+            entry.mArraySize += (long) length * Type.OBJECT.getSize();
+        }
+    }
+
+    @Override
+    public void visitPrimitiveArray(long id, @NonNull Type type, int length,
+            @NonNull HprofBuffer values) {
+        if (mInCountedHeap) {
+            Entry entry = mPrimitiveArrayEntries[type.ordinal()];
+            if (entry == null) {
+                entry = new Entry(0);
+                entry.mClassName = Type.getClassNameOfPrimitiveArray(type);
+                mPrimitiveArrayEntries[type.ordinal()] = entry;
+            }
+            entry.mInstanceCount++;
+            entry.mArraySize += (long) length * type.getSize();
+        }
+    }
+
+    /**
+     * Returns the entries of all the classes with at least one instance, by decreasing shallow
+     * size.
+     */
+    @NonNull
+    public List<Entry> getEntries() {
+        List<Entry> entries = new ArrayList<Entry>();
+        for (Object value : mEntries.getValues()) {
+            Entry entry = (Entry) value;
+            if (entry.mInstanceCount > 0) {
+                entries.add(entry);
+            }
+        }
+        for (Entry entry : mPrimitiveArrayEntries) {
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        sortBySize(entries);
+        return entries;
+    }
+
+    /**
+     * Returns the entries of the given class and all its subclasses with at least one instance,
+     * by decreasing shallow size. This is how suspicious classes are usually looked for, e.g. all
+     * the subclasses of {@code android.app.Activity}.
+     */
+    @NonNull
+    public List<Entry> getSubclassEntries(@NonNull String className) {
+        List<Entry> entries = new ArrayList<Entry>();
+        for (Object value : mEntries.getValues()) {
+            Entry entry = (Entry) value;
+            if (entry.mInstanceCount > 0 && isSubclass(entry, className)) {
+                entries.add(entry);
+            }
+        }
+        sortBySize(entries);
+        return entries;
+    }
+
+    private boolean isSubclass(@NonNull Entry entry, @NonNull String className) {
+        // Bound the walk in case of a corrupted dump with a cycle in the hierarchy.
+        for (int depth = 0; entry != null && depth <= mEntries.size(); depth++) {
+            if (className.equals(entry.mClassName)) {
+                return true;
+            }
+            entry = entry.mSuperClassId != 0 ? mEntries.get(entry.mSuperClassId) : null;
+        }
+        return false;
+    }
+
+    @NonNull
+    private Entry getEntry(long classId) {
+        Entry entry = mEntries.get(classId);
+        if (entry == null) {
+            entry = new Entry(classId);
+            mEntries.put(classId, entry);
+        }
+        return entry;
+    }
+
+    private static void sortBySize(@NonNull List<Entry> entries) {
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry e1, Entry e2) {
+                long size1 = e1.getShallowSize();
+                long size2 = e2.getShallowSize();
+                return size1 > size2 ? -1 : (size1 < size2 ? 1 : 0);
+            }
+        });
+    }
+
+    public static class Entry {
+
+        private final long mClassId;
+
+        //  Null until the class definition is read.
+        @Nullable
+        private String mClassName;
+
+        private long mSuperClassId;
+
+        private int mInstanceSize;
+
+        private int mInstanceCount;
+
+        private long mArraySize;
+
+        Entry(long classId) {
+            mClassId = classId;
+        }
+
+        /**
+         * Returns the id of the class, or 0 for primitive arrays.
+         */
+        public long getClassId() {
+            return mClassId;
+        }
+
+        /**
+         * Returns the class name, or null if the heap dump has no definition for the class.
+         */
+        @Nullable
+        public String getClassName() {
+            return mClassName;
+        }
+
+        public int getInstanceCount() {
+            return mInstanceCount;
+        }
+
+        public long getShallowSize() {
+            return (long) mInstanceCount * mInstanceSize + mArraySize;
+        }
+    }
+}
@@ -37,6 +37,9 @@ import java.util.PriorityQueue;
  *
  * The full algorithm is described in {@see http://www.cs.rice.edu/~keith/EMBED/dom.pdf}. It's a
  * simple iterative algorithm with worst-case complexity of O(N^2).
+ *
+ * Snapshots use the faster {@link LinkEvalDominators} instead, this implementation is kept as a
+ * reference to cross-check its results.
  */
 public class Dominators {
 
@@ -117,7 +120,10 @@ public class Dominators {
         }
         computeDominators();
         // We only update the retained sizes of objects in the dominator tree (i.e. reachable).
-        for (Instance node : mSnapshot.getReachableInstances()) {
+        for (Instance node : mTopSort) {
+            if (node.getImmediateDominator() == null) {
+                continue;
+            }
             int heapIndex = mSnapshot.getHeapIndex(node.getHeap());
             // Add the size of the current node to the retained size of every dominator up to the
             // root, in the same heap.
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.heap.Field;
+import com.android.tools.perflib.heap.HeapDumpVisitor;
+import com.android.tools.perflib.heap.HprofParser;
+import com.android.tools.perflib.heap.RootType;
+import com.android.tools.perflib.heap.Type;
+import com.android.tools.perflib.heap.io.HprofBuffer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import gnu.trove.TIntArrayList;
+import gnu.trove.TLongArrayList;
+import gnu.trove.TLongHashSet;
+import gnu.trove.TLongIntHashMap;
+import gnu.trove.TLongObjectHashMap;
+
+/**
+ * Streaming detector of {@code android.graphics.Bitmap} instances with the same dimensions and
+ * pixel data, to be fed by {@link com.android.tools.perflib.heap.HprofParser#parse(HeapDumpVisitor)}.
+ *
+ * While streaming, only the class layouts, the dimensions and pixel buffer ids of the bitmaps and
+ * the positions of these pixel buffers are kept, so the memory used depends on the number of
+ * bitmaps rather than on the size of the dump. Bitmaps read before the definition of their class,
+ * and pixel buffers read before their bitmap, are found by {@link #getDuplicates()}, which reads
+ * the dump again from the buffer it was streamed from, at most twice. The pixel buffers are then
+ * hashed, compared and grouped by the same code as the bitmaps found by {@link DuplicateContent}
+ * in a parsed snapshot. This only finds bitmaps whose pixels are in the Java heap, i.e. in dumps
+ * of devices older than Android O.
+ */
+public class DuplicateBitmaps implements HeapDumpVisitor {
+
+    private static final String BITMAP_CLASS = "android.graphics.Bitmap";
+
+    //  Position of a pixel buffer that hasn't been read yet.
+    private static final long NOT_FOUND = -1;
+
+    @NonNull
+    private final TLongObjectHashMap<ClassLayout> mClasses = new TLongObjectHashMap<ClassLayout>();
+
+    //  Id of the Bitmap class, or 0 until its definition is read.
+    private long mBitmapClassId;
+
+    //  Set when instances of classes not defined yet, which may be bitmaps, were skipped.
+    private boolean mMissedBitmaps;
+
+    @NonNull
+    private final TLongHashSet mBitmapIds = new TLongHashSet();
+
+    //  {id, pixel buffer id} of the bitmaps.
+    @NonNull
+    private final TLongArrayList mBitmaps = new TLongArrayList();
+
+    //  {width, height} of the bitmaps.
+    @NonNull
+    private final TIntArrayList mDimensions = new TIntArrayList();
+
+    //  Index of the pixel buffers of the bitmaps in the following lists.
+    @NonNull
+    private final TLongIntHashMap mBufferIndices = new TLongIntHashMap();
+
+    @NonNull
+    private final TLongArrayList mBufferPositions = new TLongArrayList();
+
+    @NonNull
+    private final TIntArrayList mBufferLengths = new TIntArrayList();
+
+    @Nullable
+    private HprofBuffer mBuffer;
+
+    @Override
+    public void visitHeap(int id, @NonNull String name) {
+    }
+
+    @Override
+    public void visitRoot(@NonNull RootType type, long id) {
+    }
+
+    @Override
+    public void visitClass(long id, @NonNull String name, long superClassId, int instanceSize,
+            @NonNull Field[] fields) {
+        mClasses.put(id, new ClassLayout(superClassId, fields));
+        if (BITMAP_CLASS.equals(name)) {
+            mBitmapClassId = id;
+        }
+    }
+
+    @Override
+    public void visitInstance(long id, long classId, @NonNull HprofBuffer values) {
+        mBuffer = values;
+        if (mBitmapClassId != 0 && classId == mBitmapClassId) {
+            // Bitmaps are read again when the dump is read again.
+            if (mBitmapIds.add(id)) {
+                readBitmap(id, values);
+            }
+        } else if (mBitmapClassId == 0 && !mClasses.containsKey(classId)) {
+            mMissedBitmaps = true;
+        }
+    }
+
+    @Override
+    public void visitObjectArray(long id, long classId, int length, @NonNull HprofBuffer values) {
+    }
+
+    @Override
+    public void visitPrimitiveArray(long id, @NonNull Type type, int length,
+            @NonNull HprofBuffer values) {
+        if (type == Type.BYTE && mBufferIndices.containsKey(id)) {
+            int index = mBufferIndices.get(id);
+            mBufferPositions.set(index, values.position());
+            mBufferLengths.set(index, length);
+        }
+    }
+
+    /**
+     * Returns the groups of bitmaps with identical dimensions and pixels that have at least two
+     * distinct pixel buffers, by decreasing amount of wasted memory.
+     *
+     * @throws IOException if the dump has to be read again and can't be.
+     */
+    @NonNull
+    public List<Duplicate> getDuplicates() throws IOException {
+        if (mBitmapClassId == 0 || mBuffer == null) {
+            return Collections.emptyList();
+        }
+        // Once the Bitmap class is known, another pass finds all the bitmaps. A pixel buffer is
+        // only missing then if it comes before its bitmap, and the last pass finds it.
+        if (mMissedBitmaps) {
+            mMissedBitmaps = false;
+            readDumpAgain(mBuffer);
+        }
+        if (hasMissingBuffers()) {
+            readDumpAgain(mBuffer);
+        }
+
+        // The candidates are the bitmaps whose pixel buffer was found, in the order read.
+        DuplicateContent.Candidates candidates = new DuplicateContent.Candidates();
+        TIntArrayList bitmaps = new TIntArrayList();
+        for (int i = 0; i < mBitmaps.size(); i += 2) {
+            int index = mBufferIndices.get(mBitmaps.get(i + 1));
+            if (mBufferPositions.get(index) != NOT_FOUND) {
+                candidates.add(mBitmaps.get(i), DuplicateContent.Kind.BITMAP,
+                        mBufferPositions.get(index), mBufferLengths.get(index),
+                        DuplicateContent.getBitmapKey(mDimensions.get(i), mDimensions.get(i + 1)));
+                bitmaps.add(i);
+            }
+        }
+
+        List<Duplicate> duplicates = new ArrayList<Duplicate>();
+        for (TIntArrayList members : candidates.group(mBuffer, null)) {
+            int first = bitmaps.get(members.get(0));
+            Duplicate duplicate = new Duplicate(mDimensions.get(first),
+                    mDimensions.get(first + 1), candidates.getLength(members.get(0)));
+            for (int i = 0; i < members.size(); i++) {
+                int bitmap = bitmaps.get(members.get(i));
+                duplicate.add(mBitmaps.get(bitmap), mBitmaps.get(bitmap + 1));
+            }
+            duplicates.add(duplicate);
+        }
+        return duplicates;
+    }
+
+    private void readDumpAgain(@NonNull HprofBuffer buffer) throws IOException {
+        buffer.setPosition(0);
+        (new HprofParser(buffer)).parse(this);
+    }
+
+    private boolean hasMissingBuffers() {
+        for (int i = 0; i < mBufferPositions.size(); i++) {
+            if (mBufferPositions.get(i) == NOT_FOUND) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decodes the dimensions and pixel buffer id of a bitmap from its field values.
+     */
+    private void readBitmap(long id, @NonNull HprofBuffer values) {
+        long position = values.position();
+        long bufferId = 0;
+        int width = 0;
+        int height = 0;
+
+        // Fields are stored from the most derived class up to java.lang.Object.
+        ClassLayout layout = mClasses.get(mBitmapClassId);
+        for (int depth = 0; layout != null && depth <= mClasses.size(); depth++) {
+            for (Field field : layout.mFields) {
+                Type type = field.getType();
+                if (type == Type.OBJECT && "mBuffer".equals(field.getName())) {
+                    values.setPosition(position);
+                    bufferId = Type.readId(values);
+                } else if (type == Type.INT && "mWidth".equals(field.getName())) {
+                    values.setPosition(position);
+                    width = values.readInt();
+                } else if (type == Type.INT && "mHeight".equals(field.getName())) {
+                    values.setPosition(position);
+                    height = values.readInt();
+                }
+                position += type.getSize();
+            }
+            layout = layout.mSuperClassId != 0 ? mClasses.get(layout.mSuperClassId) : null;
+        }
+
+        // Bitmaps without a pixel buffer in the heap can't be compared.
+        if (bufferId == 0) {
+            return;
+        }
+        mBitmaps.add(id);
+        mBitmaps.add(bufferId);
+        mDimensions.add(width);
+        mDimensions.add(height);
+        if (!mBufferIndices.containsKey(bufferId)) {
+            mBufferIndices.put(bufferId, mBufferPositions.size());
+            mBufferPositions.add(NOT_FOUND);
+            mBufferLengths.add(0);
+        }
+    }
+
+    private static class ClassLayout {
+
+        final long mSuperClassId;
+
+        @NonNull
+        final Field[] mFields;
+
+        ClassLayout(long superClassId, @NonNull Field[] fields) {
+            mSuperClassId = superClassId;
+            mFields = fields;
+        }
+    }
+
+    /**
+     * A group of bitmaps with the same dimensions and pixels.
+     */
+    public static class Duplicate {
+
+        private final int mWidth;
+
+        private final int mHeight;
+
+        private final int mByteSize;
+
+        @NonNull
+        private final TLongArrayList mBitmapIds = new TLongArrayList();
+
+        @NonNull
+        private final TLongHashSet mBufferIds = new TLongHashSet();
+
+        Duplicate(int width, int height, int byteSize) {
+            mWidth = width;
+            mHeight = height;
+            mByteSize = byteSize;
+        }
+
+        void add(long bitmapId, long bufferId) {
+            mBitmapIds.add(bitmapId);
+            mBufferIds.add(bufferId);
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        /**
+         * Returns the size of the pixel buffer of each bitmap.
+         */
+        public int getByteSize() {
+            return mByteSize;
+        }
+
+        @NonNull
+        public long[] getBitmapIds() {
+            return mBitmapIds.toNativeArray();
+        }
+
+        /**
+         * Returns the number of distinct pixel buffers of the bitmaps, as several bitmaps may
+         * already share the same buffer.
+         */
+        public int getBufferCount() {
+            return mBufferIds.size();
+        }
+
+        /**
+         * Returns the memory that would be saved by sharing a single copy of the pixel buffer.
+         */
+        public long getWastedSize() {
+            return (long) (mBufferIds.size() - 1) * mByteSize;
+        }
+    }
+}
@@ -0,0 +1,513 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.heap.ArrayInstance;
+import com.android.tools.perflib.heap.ClassInstance;
+import com.android.tools.perflib.heap.HeapGraph;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.Type;
+import com.android.tools.perflib.heap.io.HprofBuffer;
+import com.android.tools.perflib.heap.io.MemoryMappedFileBuffer;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TLongArrayList;
+import gnu.trove.TLongHashSet;
+import gnu.trove.TLongIntHashMap;
+import gnu.trove.TLongObjectHashMap;
+
+/**
+ * Finds {@code java.lang.String} instances with the same value, {@code byte[]} arrays with the
+ * same contents and {@code android.graphics.Bitmap} instances with the same dimensions and pixels.
+ *
+ * The location of every candidate's contents in the heap dump is first looked up through a
+ * {@link HeapQueryIndex}. The contents are then hashed straight from the buffer, a word at a time,
+ * without being copied into Java arrays. When the snapshot was read from a
+ * {@link MemoryMappedFileBuffer}, candidates are hashed in parallel, each worker reading through
+ * its own duplicate of the mapped buffer. Candidates with the same hash are compared byte by byte
+ * before being reported as duplicates, so hash collisions never merge different contents.
+ * Contents found at the same position, e.g. a pixel buffer shared by several bitmaps, are only
+ * hashed once, and only count once in the wasted memory. {@link DuplicateBitmaps} groups the
+ * bitmaps it finds while streaming a heap dump with the same code.
+ */
+public class DuplicateContent {
+
+    public enum Kind {
+        STRING,
+        BYTE_ARRAY,
+        BITMAP
+    }
+
+    /**
+     * Number of candidates hashed by each parallel task.
+     */
+    private static final int CHUNK_SIZE = 4096;
+
+    @NonNull
+    private final HeapQueryIndex mIndex;
+
+    @NonNull
+    private final Candidates mCandidates = new Candidates();
+
+    @Nullable
+    private List<Duplicate> mDuplicates;
+
+    public DuplicateContent(@NonNull HeapQueryIndex index) {
+        mIndex = index;
+    }
+
+    /**
+     * Returns the groups of candidates with the same contents in at least two places in memory, by
+     * decreasing amount of wasted memory, computing them first if needed.
+     *
+     * @param executor the executor to hash the contents on, or null to hash them on this thread.
+     */
+    @NonNull
+    public List<Duplicate> getDuplicates(@Nullable ExecutorService executor) {
+        if (mDuplicates == null) {
+            HeapGraph graph = mIndex.getGraph();
+            Snapshot snapshot = graph.getSnapshot();
+            if (snapshot == null) {
+                throw new IllegalStateException("The graph is not attached to a snapshot");
+            }
+            TIntHashSet pixels = new TIntHashSet();
+            collectStrings(graph);
+            collectBitmaps(graph, pixels);
+            collectByteArrays(graph, pixels);
+
+            mDuplicates = new ArrayList<Duplicate>();
+            for (TIntArrayList members : mCandidates.group(snapshot.getBuffer(), executor)) {
+                int first = members.get(0);
+                Duplicate duplicate = new Duplicate(mCandidates.getKind(first),
+                        mCandidates.getLength(first));
+                for (int i = 0; i < members.size(); i++) {
+                    int member = members.get(i);
+                    duplicate.add(graph, (int) mCandidates.getOwner(member),
+                            mCandidates.getPosition(member));
+                }
+                mDuplicates.add(duplicate);
+            }
+        }
+        return mDuplicates;
+    }
+
+    /**
+     * Returns the key of a bitmap candidate, which must match for bitmaps to be duplicates.
+     */
+    static long getBitmapKey(int width, int height) {
+        return ((long) width << 32) | (height & 0xffffffffL);
+    }
+
+    private void collectStrings(@NonNull HeapGraph graph) {
+        for (int ordinal : mIndex.getInstancesOf(HeapQueryIndex.STRING_CLASS, false)) {
+            Instance instance = graph.getInstance(ordinal);
+            if (!(instance instanceof ClassInstance)) {
+                continue;
+            }
+            ClassInstance string = (ClassInstance) instance;
+            Object value = string.getFieldValue("value");
+            if (!(value instanceof ArrayInstance)
+                    || ((ArrayInstance) value).getArrayType() != Type.CHAR) {
+                continue;
+            }
+            int chars = graph.getOrdinal(((ArrayInstance) value).getId());
+            int length = ((ArrayInstance) value).getLength();
+            Object offset = string.getFieldValue("offset");
+            Object count = string.getFieldValue("count");
+            int start = offset instanceof Integer ? (Integer) offset : 0;
+            int end = count instanceof Integer ? start + (Integer) count : length;
+            if (chars != HeapGraph.NONE && start >= 0 && start <= end && end <= length) {
+                mCandidates.add(ordinal, Kind.STRING,
+                        graph.getOffset(chars) + (long) start * Type.CHAR.getSize(),
+                        (end - start) * Type.CHAR.getSize(), 0);
+            }
+        }
+    }
+
+    /**
+     * Adds the byte arrays, except those already accounted for as the pixels of bitmaps.
+     */
+    private void collectByteArrays(@NonNull HeapGraph graph, @NonNull TIntHashSet pixels) {
+        for (int ordinal : mIndex.getInstancesOf(Type.getClassNameOfPrimitiveArray(Type.BYTE),
+                false)) {
+            if (pixels.contains(ordinal)) {
+                continue;
+            }
+            // The size of a primitive array is the size of its elements.
+            mCandidates.add(ordinal, Kind.BYTE_ARRAY, graph.getOffset(ordinal),
+                    graph.getSize(ordinal), 0);
+        }
+    }
+
+    /**
+     * Adds the bitmaps with pixels in the Java heap, and collects the ordinals of their pixels.
+     */
+    private void collectBitmaps(@NonNull HeapGraph graph, @NonNull TIntHashSet pixels) {
+        for (int ordinal : mIndex.getBitmaps(0, 0)) {
+            Object buffer = ((ClassInstance) graph.getInstance(ordinal)).getFieldValue("mBuffer");
+            if (buffer instanceof ArrayInstance) {
+                int bufferOrdinal = graph.getOrdinal(((ArrayInstance) buffer).getId());
+                if (bufferOrdinal != HeapGraph.NONE) {
+                    pixels.add(bufferOrdinal);
+                    mCandidates.add(ordinal, Kind.BITMAP, graph.getOffset(bufferOrdinal),
+                            graph.getSize(bufferOrdinal), getBitmapKey(
+                                    mIndex.getBitmapWidth(ordinal),
+                                    mIndex.getBitmapHeight(ordinal)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Contents to compare, in parallel lists: the owner of the contents, i.e. the ordinal of a
+     * node or the id of an instance, the kind, the position and length in bytes of the contents,
+     * and a kind specific key which must also match, e.g. the dimensions of bitmaps.
+     */
+    static class Candidates {
+
+        @NonNull
+        private final TLongArrayList mOwners = new TLongArrayList();
+
+        @NonNull
+        private final TIntArrayList mKinds = new TIntArrayList();
+
+        @NonNull
+        private final TLongArrayList mPositions = new TLongArrayList();
+
+        @NonNull
+        private final TIntArrayList mLengths = new TIntArrayList();
+
+        @NonNull
+        private final TLongArrayList mKeys = new TLongArrayList();
+
+        void add(long owner, @NonNull Kind kind, long position, int length, long key) {
+            mOwners.add(owner);
+            mKinds.add(kind.ordinal());
+            mPositions.add(position);
+            mLengths.add(length);
+            mKeys.add(key);
+        }
+
+        long getOwner(int candidate) {
+            return mOwners.get(candidate);
+        }
+
+        @NonNull
+        Kind getKind(int candidate) {
+            return Kind.values()[mKinds.get(candidate)];
+        }
+
+        long getPosition(int candidate) {
+            return mPositions.get(candidate);
+        }
+
+        int getLength(int candidate) {
+            return mLengths.get(candidate);
+        }
+
+        /**
+         * Returns the groups of candidates with identical kinds, keys and contents in at least
+         * two places in memory, as candidate indices, by decreasing amount of wasted memory.
+         *
+         * @param executor the executor to hash the contents on, or null to hash them on this
+         *                 thread.
+         */
+        @NonNull
+        List<TIntArrayList> group(@NonNull HprofBuffer buffer,
+                @Nullable ExecutorService executor) {
+            long[] hashes = hash(buffer, executor);
+            TLongObjectHashMap<List<TIntArrayList>> byHash =
+                    new TLongObjectHashMap<List<TIntArrayList>>();
+            List<TIntArrayList> groups = new ArrayList<TIntArrayList>();
+            for (int i = 0; i < hashes.length; i++) {
+                List<TIntArrayList> sameHash = byHash.get(hashes[i]);
+                if (sameHash == null) {
+                    sameHash = new ArrayList<TIntArrayList>(1);
+                    byHash.put(hashes[i], sameHash);
+                }
+                TIntArrayList group = null;
+                for (TIntArrayList candidate : sameHash) {
+                    if (isSameContent(buffer, candidate.get(0), i)) {
+                        group = candidate;
+                        break;
+                    }
+                }
+                if (group == null) {
+                    group = new TIntArrayList(1);
+                    sameHash.add(group);
+                    groups.add(group);
+                }
+                group.add(i);
+            }
+
+            final long[] wastedSizes = new long[groups.size()];
+            List<Integer> duplicates = new ArrayList<Integer>();
+            for (int g = 0; g < groups.size(); g++) {
+                TIntArrayList group = groups.get(g);
+                TLongHashSet copies = new TLongHashSet();
+                for (int i = 0; i < group.size(); i++) {
+                    copies.add(mPositions.get(group.get(i)));
+                }
+                if (copies.size() > 1) {
+                    wastedSizes[g] = (long) (copies.size() - 1) * mLengths.get(group.get(0));
+                    duplicates.add(g);
+                }
+            }
+            Collections.sort(duplicates, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer group1, Integer group2) {
+                    long size1 = wastedSizes[group1];
+                    long size2 = wastedSizes[group2];
+                    return size1 > size2 ? -1 : (size1 < size2 ? 1 : 0);
+                }
+            });
+
+            List<TIntArrayList> result = new ArrayList<TIntArrayList>(duplicates.size());
+            for (int group : duplicates) {
+                result.add(groups.get(group));
+            }
+            return result;
+        }
+
+        /**
+         * Returns the hash of the contents of every candidate.
+         */
+        @NonNull
+        private long[] hash(@NonNull HprofBuffer buffer, @Nullable ExecutorService executor) {
+            int count = mOwners.size();
+            long[] hashes = new long[count];
+
+            // Contents at the same position are hashed once, by their first candidate.
+            TLongIntHashMap firstAtPosition = new TLongIntHashMap();
+            int[] firsts = new int[count];
+            for (int i = 0; i < count; i++) {
+                long position = mPositions.get(i);
+                if (firstAtPosition.containsKey(position)
+                        && isSameKey(firstAtPosition.get(position), i)) {
+                    firsts[i] = firstAtPosition.get(position);
+                } else {
+                    firstAtPosition.put(position, i);
+                    firsts[i] = i;
+                }
+            }
+
+            if (executor == null || count <= CHUNK_SIZE
+                    || !(buffer instanceof MemoryMappedFileBuffer)) {
+                new ContentHasher(buffer, 0, count, firsts, hashes).call();
+            } else {
+                MemoryMappedFileBuffer mappedBuffer = (MemoryMappedFileBuffer) buffer;
+                List<Future<Void>> futures = new ArrayList<Future<Void>>();
+                for (int start = 0; start < count; start += CHUNK_SIZE) {
+                    futures.add(executor.submit(new ContentHasher(mappedBuffer.duplicate(),
+                            start, Math.min(count, start + CHUNK_SIZE), firsts, hashes)));
+                }
+                try {
+                    for (Future<Void> future : futures) {
+                        future.get();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+
+            for (int i = 0; i < count; i++) {
+                hashes[i] = hashes[firsts[i]];
+            }
+            return hashes;
+        }
+
+        private boolean isSameKey(int candidate1, int candidate2) {
+            return mKinds.get(candidate1) == mKinds.get(candidate2)
+                    && mKeys.get(candidate1) == mKeys.get(candidate2)
+                    && mLengths.get(candidate1) == mLengths.get(candidate2);
+        }
+
+        private boolean isSameContent(@NonNull HprofBuffer buffer, int candidate1,
+                int candidate2) {
+            if (!isSameKey(candidate1, candidate2)) {
+                return false;
+            }
+            long position1 = mPositions.get(candidate1);
+            long position2 = mPositions.get(candidate2);
+            if (position1 == position2) {
+                return true;
+            }
+            int length = mLengths.get(candidate1);
+            int i = 0;
+            for (; i + 8 <= length; i += 8) {
+                buffer.setPosition(position1 + i);
+                long word = buffer.readLong();
+                buffer.setPosition(position2 + i);
+                if (word != buffer.readLong()) {
+                    return false;
+                }
+            }
+            for (; i < length; i++) {
+                buffer.setPosition(position1 + i);
+                byte b = buffer.readByte();
+                buffer.setPosition(position2 + i);
+                if (b != buffer.readByte()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Hashes the contents of a range of candidates through its own buffer, and stores the
+         * hashes in the shared array, which each task writes to distinct indices of.
+         */
+        private class ContentHasher implements Callable<Void> {
+
+            @NonNull
+            private final HprofBuffer mBuffer;
+
+            private final int mStart;
+
+            private final int mEnd;
+
+            @NonNull
+            private final int[] mFirsts;
+
+            @NonNull
+            private final long[] mHashes;
+
+            ContentHasher(@NonNull HprofBuffer buffer, int start, int end, @NonNull int[] firsts,
+                    @NonNull long[] hashes) {
+                mBuffer = buffer;
+                mStart = start;
+                mEnd = end;
+                mFirsts = firsts;
+                mHashes = hashes;
+            }
+
+            @Override
+            public Void call() {
+                for (int i = mStart; i < mEnd; i++) {
+                    if (mFirsts[i] != i) {
+                        continue;
+                    }
+                    int length = mLengths.get(i);
+                    Hasher hasher = Hashing.murmur3_128().newHasher();
+                    hasher.putInt(mKinds.get(i)).putLong(mKeys.get(i)).putInt(length);
+                    mBuffer.setPosition(mPositions.get(i));
+                    int remaining = length;
+                    for (; remaining >= 8; remaining -= 8) {
+                        hasher.putLong(mBuffer.readLong());
+                    }
+                    for (; remaining > 0; remaining--) {
+                        hasher.putByte(mBuffer.readByte());
+                    }
+                    mHashes[i] = hasher.hash().asLong();
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * A group of strings, byte arrays or bitmaps with the same contents.
+     */
+    public static class Duplicate {
+
+        @NonNull
+        private final Kind mKind;
+
+        private final int mByteSize;
+
+        @NonNull
+        private final TIntArrayList mOwners = new TIntArrayList();
+
+        //  Distinct positions of the contents. Strings sharing the same char[] aren't wasting
+        //  memory, so they only count once.
+        @NonNull
+        private final TLongHashSet mCopies = new TLongHashSet();
+
+        @NonNull
+        private final TIntHashSet mDominators = new TIntHashSet();
+
+        Duplicate(@NonNull Kind kind, int byteSize) {
+            mKind = kind;
+            mByteSize = byteSize;
+        }
+
+        void add(@NonNull HeapGraph graph, int owner, long position) {
+            mOwners.add(owner);
+            mCopies.add(position);
+            mDominators.add(graph.getImmediateDominator(owner));
+        }
+
+        @NonNull
+        public Kind getKind() {
+            return mKind;
+        }
+
+        /**
+         * Returns the size of the contents of each duplicate, e.g. twice the length of a string.
+         */
+        public int getByteSize() {
+            return mByteSize;
+        }
+
+        /**
+         * Returns the ordinals of the strings, byte arrays or bitmaps with these contents.
+         */
+        @NonNull
+        public int[] getOwners() {
+            return mOwners.toNativeArray();
+        }
+
+        public int getCount() {
+            return mOwners.size();
+        }
+
+        /**
+         * Returns the ordinals of the immediate dominators of the owners, i.e. the nodes keeping
+         * the duplicates alive. This includes {@link HeapGraph#ROOT} for owners only dominated by
+         * the sentinel root, and {@link HeapGraph#NONE} for unreachable ones.
+         */
+        @NonNull
+        public int[] getDominators() {
+            return mDominators.toArray();
+        }
+
+        /**
+         * Returns the memory that would be saved by sharing a single copy of the contents.
+         */
+        public long getWastedSize() {
+            return (long) (mCopies.size() - 1) * mByteSize;
+        }
+    }
+}
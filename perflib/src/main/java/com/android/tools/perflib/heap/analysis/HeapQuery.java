@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.heap.HeapGraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import gnu.trove.TIntArrayList;
+
+/**
+ * A set of nodes of a {@link HeapGraph} selected through a {@link HeapQueryIndex}, which can be
+ * narrowed down with filters, grouped, and sorted by retained size. Only the selected nodes are
+ * ever looked at, e.g.
+ *
+ * <pre>
+ * HeapQuery.instancesOf(index, "android.app.Activity", true)
+ *         .filter(HeapQuery.inHeap(appHeapIndex))
+ *         .getTopByRetainedSize(10);
+ * </pre>
+ *
+ * Queries are immutable: {@link #filter(Filter)} returns a new query.
+ */
+public class HeapQuery {
+
+    /**
+     * Selects the nodes kept by {@link #filter(Filter)}.
+     */
+    public interface Filter {
+
+        boolean accept(@NonNull HeapGraph graph, int ordinal);
+    }
+
+    /**
+     * Computes the key of the group a node belongs to in {@link #groupBy(GroupKey)}.
+     */
+    public interface GroupKey {
+
+        @Nullable
+        Object getKey(@NonNull HeapGraph graph, int ordinal);
+    }
+
+    /**
+     * Groups nodes by the name of their class.
+     */
+    public static final GroupKey BY_CLASS = new GroupKey() {
+        @Nullable
+        @Override
+        public Object getKey(@NonNull HeapGraph graph, int ordinal) {
+            int classOrdinal = graph.getClassOrdinal(ordinal);
+            return classOrdinal != HeapGraph.NONE ? graph.getClassName(classOrdinal) : null;
+        }
+    };
+
+    /**
+     * Groups nodes by the index of their heap, following
+     * {@link com.android.tools.perflib.heap.Snapshot#getHeapIndex}.
+     */
+    public static final GroupKey BY_HEAP = new GroupKey() {
+        @NonNull
+        @Override
+        public Object getKey(@NonNull HeapGraph graph, int ordinal) {
+            return graph.getHeapIndex(ordinal);
+        }
+    };
+
+    /**
+     * Groups nodes by their immediate dominator, as an ordinal.
+     */
+    public static final GroupKey BY_DOMINATOR = new GroupKey() {
+        @NonNull
+        @Override
+        public Object getKey(@NonNull HeapGraph graph, int ordinal) {
+            return graph.getImmediateDominator(ordinal);
+        }
+    };
+
+    @NonNull
+    private final HeapQueryIndex mIndex;
+
+    //  Selected ordinals, in increasing order.
+    @NonNull
+    private final int[] mOrdinals;
+
+    private HeapQuery(@NonNull HeapQueryIndex index, @NonNull int[] ordinals) {
+        mIndex = index;
+        mOrdinals = ordinals;
+    }
+
+    /**
+     * Selects the instances of the classes with the given name, and optionally of their
+     * subclasses.
+     */
+    @NonNull
+    public static HeapQuery instancesOf(@NonNull HeapQueryIndex index, @NonNull String className,
+            boolean includeSubclasses) {
+        return new HeapQuery(index, index.getInstancesOf(className, includeSubclasses));
+    }
+
+    /**
+     * Selects the {@code java.lang.String} instances with the given value.
+     */
+    @NonNull
+    public static HeapQuery stringsEqualTo(@NonNull HeapQueryIndex index, @NonNull String value) {
+        return new HeapQuery(index, index.getStrings(value));
+    }
+
+    /**
+     * Selects the nodes referring to the given node.
+     */
+    @NonNull
+    public static HeapQuery referrersOf(@NonNull HeapQueryIndex index, int ordinal) {
+        int[] referrers = index.getReferrers(ordinal);
+        Arrays.sort(referrers);
+        return new HeapQuery(index, referrers);
+    }
+
+    /**
+     * Selects the bitmaps at least as wide and as high as given.
+     */
+    @NonNull
+    public static HeapQuery bitmapsAtLeast(@NonNull HeapQueryIndex index, int minWidth,
+            int minHeight) {
+        return new HeapQuery(index, index.getBitmaps(minWidth, minHeight));
+    }
+
+    /**
+     * Keeps the nodes in the heap with the given index.
+     */
+    @NonNull
+    public static Filter inHeap(final int heapIndex) {
+        return new Filter() {
+            @Override
+            public boolean accept(@NonNull HeapGraph graph, int ordinal) {
+                return graph.getHeapIndex(ordinal) == heapIndex;
+            }
+        };
+    }
+
+    /**
+     * Keeps the nodes retaining at least the given number of bytes.
+     */
+    @NonNull
+    public static Filter retainedSizeAtLeast(final long size) {
+        return new Filter() {
+            @Override
+            public boolean accept(@NonNull HeapGraph graph, int ordinal) {
+                return graph.getRetainedSize(ordinal) >= size;
+            }
+        };
+    }
+
+    /**
+     * Keeps the nodes reachable from a GC root.
+     */
+    @NonNull
+    public static Filter reachable() {
+        return new Filter() {
+            @Override
+            public boolean accept(@NonNull HeapGraph graph, int ordinal) {
+                return graph.getImmediateDominator(ordinal) != HeapGraph.NONE;
+            }
+        };
+    }
+
+    @NonNull
+    public HeapQuery filter(@NonNull Filter filter) {
+        HeapGraph graph = mIndex.getGraph();
+        TIntArrayList ordinals = new TIntArrayList();
+        for (int ordinal : mOrdinals) {
+            if (filter.accept(graph, ordinal)) {
+                ordinals.add(ordinal);
+            }
+        }
+        return new HeapQuery(mIndex, ordinals.toNativeArray());
+    }
+
+    /**
+     * Returns the ordinals of the selected nodes, in increasing order.
+     */
+    @NonNull
+    public int[] getOrdinals() {
+        return mOrdinals.clone();
+    }
+
+    public int getCount() {
+        return mOrdinals.length;
+    }
+
+    public long getShallowSize() {
+        HeapGraph graph = mIndex.getGraph();
+        long size = 0;
+        for (int ordinal : mOrdinals) {
+            size += graph.getSize(ordinal);
+        }
+        return size;
+    }
+
+    /**
+     * Returns the ordinals of the k selected nodes with the largest retained sizes, by decreasing
+     * retained size.
+     */
+    @NonNull
+    public int[] getTopByRetainedSize(int k) {
+        final HeapGraph graph = mIndex.getGraph();
+        Comparator<Integer> byRetainedSize = new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                long size1 = graph.getRetainedSize(o1);
+                long size2 = graph.getRetainedSize(o2);
+                return size1 < size2 ? -1 : (size1 > size2 ? 1 : o2 - o1);
+            }
+        };
+
+        // Keep the k largest nodes seen so far in a min-heap, so its head is the one to evict.
+        PriorityQueue<Integer> top =
+                new PriorityQueue<Integer>(Math.max(1, Math.min(k, mOrdinals.length)),
+                        byRetainedSize);
+        for (int ordinal : mOrdinals) {
+            if (top.size() < k) {
+                top.add(ordinal);
+            } else if (k > 0 && byRetainedSize.compare(ordinal, top.peek()) > 0) {
+                top.poll();
+                top.add(ordinal);
+            }
+        }
+
+        int[] ordinals = new int[top.size()];
+        for (int i = ordinals.length - 1; i >= 0; i--) {
+            ordinals[i] = top.poll();
+        }
+        return ordinals;
+    }
+
+    /**
+     * Groups the selected nodes by the given key, by decreasing retained size. Nodes whose key is
+     * null are left out.
+     */
+    @NonNull
+    public List<Group> groupBy(@NonNull GroupKey key) {
+        HeapGraph graph = mIndex.getGraph();
+        Map<Object, Group> groups = new HashMap<Object, Group>();
+        for (int ordinal : mOrdinals) {
+            Object value = key.getKey(graph, ordinal);
+            if (value == null) {
+                continue;
+            }
+            Group group = groups.get(value);
+            if (group == null) {
+                group = new Group(value);
+                groups.put(value, group);
+            }
+            group.mOrdinals.add(ordinal);
+            group.mShallowSize += graph.getSize(ordinal);
+            group.mRetainedSize += graph.getRetainedSize(ordinal);
+        }
+
+        List<Group> result = new ArrayList<Group>(groups.values());
+        Collections.sort(result, new Comparator<Group>() {
+            @Override
+            public int compare(Group g1, Group g2) {
+                long size1 = g1.mRetainedSize;
+                long size2 = g2.mRetainedSize;
+                return size1 > size2 ? -1 : (size1 < size2 ? 1 : 0);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Nodes with the same {@link GroupKey}.
+     */
+    public static class Group {
+
+        @NonNull
+        private final Object mKey;
+
+        @NonNull
+        private final TIntArrayList mOrdinals = new TIntArrayList();
+
+        private long mShallowSize;
+
+        private long mRetainedSize;
+
+        Group(@NonNull Object key) {
+            mKey = key;
+        }
+
+        @NonNull
+        public Object getKey() {
+            return mKey;
+        }
+
+        @NonNull
+        public int[] getOrdinals() {
+            return mOrdinals.toNativeArray();
+        }
+
+        public int getCount() {
+            return mOrdinals.size();
+        }
+
+        public long getShallowSize() {
+            return mShallowSize;
+        }
+
+        /**
+         * Returns the sum of the retained sizes of the nodes, which counts nodes retained by
+         * several of them more than once.
+         */
+        public long getRetainedSize() {
+            return mRetainedSize;
+        }
+    }
+}
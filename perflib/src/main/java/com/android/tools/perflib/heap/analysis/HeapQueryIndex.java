@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.heap.ArrayInstance;
+import com.android.tools.perflib.heap.ClassInstance;
+import com.android.tools.perflib.heap.ClassObj;
+import com.android.tools.perflib.heap.HeapGraph;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.Type;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import gnu.trove.TIntArrayList;
+
+/**
+ * Indexes of a {@link HeapGraph} to answer {@link HeapQuery} lookups without scanning all the
+ * nodes: the instances of each class, the class hierarchy, the {@code java.lang.String} instances
+ * by value and the dimensions of the {@code android.graphics.Bitmap} instances. The referrers of
+ * each node are the incoming edges of the graph itself.
+ *
+ * Building the index scans the graph once, and computes the dominators if needed so that queries
+ * can sort and group by retained size.
+ */
+public class HeapQueryIndex {
+
+    static final String STRING_CLASS = "java.lang.String";
+
+    static final String BITMAP_CLASS = "android.graphics.Bitmap";
+
+    @NonNull
+    private final HeapGraph mGraph;
+
+    //  Instances of the class with ordinal c are mInstances[mInstanceOffsets[c]] to
+    //  mInstances[mInstanceOffsets[c + 1] - 1], in increasing order.
+    @NonNull
+    private final int[] mInstanceOffsets;
+
+    @NonNull
+    private final int[] mInstances;
+
+    //  Ordinals of the classes in increasing order, and the ordinal of their superclass or NONE.
+    @NonNull
+    private final int[] mClasses;
+
+    @NonNull
+    private final int[] mSuperClasses;
+
+    //  Subclasses of mClasses[i] are mClasses[mSubclasses[mSubclassOffsets[i]]] and so on.
+    @NonNull
+    private final int[] mSubclassOffsets;
+
+    @NonNull
+    private final int[] mSubclasses;
+
+    //  Several classes may have the same name if they have different class loaders.
+    @NonNull
+    private final Map<String, TIntArrayList> mClassesByName = new HashMap<String, TIntArrayList>();
+
+    @NonNull
+    private final Map<String, TIntArrayList> mStringsByValue = new HashMap<String, TIntArrayList>();
+
+    //  Ordinals of the bitmaps in increasing order, and their dimensions.
+    @NonNull
+    private final int[] mBitmaps;
+
+    @NonNull
+    private final int[] mBitmapWidths;
+
+    @NonNull
+    private final int[] mBitmapHeights;
+
+    private HeapQueryIndex(@NonNull HeapGraph graph) {
+        mGraph = graph;
+        int nodeCount = graph.getNodeCount();
+
+        TIntArrayList classes = new TIntArrayList();
+        int[] counts = new int[nodeCount + 1];
+        for (int ordinal = 1; ordinal < nodeCount; ordinal++) {
+            String className = graph.getClassName(ordinal);
+            if (className != null) {
+                classes.add(ordinal);
+                TIntArrayList sameName = mClassesByName.get(className);
+                if (sameName == null) {
+                    sameName = new TIntArrayList(1);
+                    mClassesByName.put(className, sameName);
+                }
+                sameName.add(ordinal);
+            }
+            int classOrdinal = graph.getClassOrdinal(ordinal);
+            if (classOrdinal != HeapGraph.NONE) {
+                counts[classOrdinal + 1]++;
+            }
+        }
+        mClasses = classes.toNativeArray();
+
+        mInstanceOffsets = counts;
+        for (int ordinal = 0; ordinal < nodeCount; ordinal++) {
+            mInstanceOffsets[ordinal + 1] += mInstanceOffsets[ordinal];
+        }
+        mInstances = new int[mInstanceOffsets[nodeCount]];
+        int[] next = Arrays.copyOf(mInstanceOffsets, nodeCount);
+        for (int ordinal = 1; ordinal < nodeCount; ordinal++) {
+            int classOrdinal = graph.getClassOrdinal(ordinal);
+            if (classOrdinal != HeapGraph.NONE) {
+                mInstances[next[classOrdinal]++] = ordinal;
+            }
+        }
+
+        mSuperClasses = new int[mClasses.length];
+        Arrays.fill(mSuperClasses, HeapGraph.NONE);
+        Snapshot snapshot = graph.getSnapshot();
+        if (snapshot != null) {
+            for (int i = 0; i < mClasses.length; i++) {
+                ClassObj classObj = (ClassObj) graph.getInstance(mClasses[i]);
+                ClassObj superClass = classObj.getSuperClassObj();
+                if (superClass != null) {
+                    mSuperClasses[i] = graph.getOrdinal(superClass.getId());
+                }
+            }
+        }
+        mSubclassOffsets = new int[mClasses.length + 1];
+        for (int superClass : mSuperClasses) {
+            int index = getClassIndex(superClass);
+            if (index >= 0) {
+                mSubclassOffsets[index + 1]++;
+            }
+        }
+        for (int i = 0; i < mClasses.length; i++) {
+            mSubclassOffsets[i + 1] += mSubclassOffsets[i];
+        }
+        mSubclasses = new int[mSubclassOffsets[mClasses.length]];
+        next = Arrays.copyOf(mSubclassOffsets, mClasses.length);
+        for (int i = 0; i < mClasses.length; i++) {
+            int index = getClassIndex(mSuperClasses[i]);
+            if (index >= 0) {
+                mSubclasses[next[index]++] = i;
+            }
+        }
+
+        TIntArrayList bitmaps = new TIntArrayList();
+        TIntArrayList widths = new TIntArrayList();
+        TIntArrayList heights = new TIntArrayList();
+        if (snapshot != null) {
+            for (int ordinal : getInstancesOf(STRING_CLASS, false)) {
+                String value = decodeString(graph.getInstance(ordinal));
+                if (value != null) {
+                    TIntArrayList sameValue = mStringsByValue.get(value);
+                    if (sameValue == null) {
+                        sameValue = new TIntArrayList(1);
+                        mStringsByValue.put(value, sameValue);
+                    }
+                    sameValue.add(ordinal);
+                }
+            }
+            for (int ordinal : getInstancesOf(BITMAP_CLASS, true)) {
+                Instance instance = graph.getInstance(ordinal);
+                if (instance instanceof ClassInstance) {
+                    Object width = ((ClassInstance) instance).getFieldValue("mWidth");
+                    Object height = ((ClassInstance) instance).getFieldValue("mHeight");
+                    if (width instanceof Integer && height instanceof Integer) {
+                        bitmaps.add(ordinal);
+                        widths.add((Integer) width);
+                        heights.add((Integer) height);
+                    }
+                }
+            }
+        }
+        mBitmaps = bitmaps.toNativeArray();
+        mBitmapWidths = widths.toNativeArray();
+        mBitmapHeights = heights.toNativeArray();
+
+        graph.computeDominators();
+    }
+
+    /**
+     * Builds the indexes of a graph. String values and bitmap dimensions are only indexed if the
+     * graph is attached to a snapshot, as they are decoded from the instances.
+     */
+    @NonNull
+    public static HeapQueryIndex build(@NonNull HeapGraph graph) {
+        return new HeapQueryIndex(graph);
+    }
+
+    @NonNull
+    public HeapGraph getGraph() {
+        return mGraph;
+    }
+
+    /**
+     * Returns the ordinals of all the classes with the given name.
+     */
+    @NonNull
+    public int[] getClasses(@NonNull String className) {
+        TIntArrayList classes = mClassesByName.get(className);
+        return classes != null ? classes.toNativeArray() : new int[0];
+    }
+
+    /**
+     * Returns the ordinals of the instances of a class, not including those of its subclasses.
+     */
+    @NonNull
+    public int[] getInstances(int classOrdinal) {
+        return Arrays.copyOfRange(mInstances, mInstanceOffsets[classOrdinal],
+                mInstanceOffsets[classOrdinal + 1]);
+    }
+
+    /**
+     * Returns the ordinals of the instances of all the classes with the given name, and
+     * optionally of all their subclasses, in increasing order.
+     */
+    @NonNull
+    public int[] getInstancesOf(@NonNull String className, boolean includeSubclasses) {
+        TIntArrayList classes = new TIntArrayList();
+        for (int classOrdinal : getClasses(className)) {
+            classes.add(classOrdinal);
+        }
+        if (includeSubclasses) {
+            // Bound the walk in case of a corrupted dump with a cycle in the hierarchy.
+            for (int i = 0; i < classes.size() && classes.size() <= mClasses.length; i++) {
+                int index = getClassIndex(classes.get(i));
+                for (int j = mSubclassOffsets[index]; j < mSubclassOffsets[index + 1]; j++) {
+                    classes.add(mClasses[mSubclasses[j]]);
+                }
+            }
+        }
+
+        int count = 0;
+        for (int i = 0; i < classes.size(); i++) {
+            int classOrdinal = classes.get(i);
+            count += mInstanceOffsets[classOrdinal + 1] - mInstanceOffsets[classOrdinal];
+        }
+        int[] instances = new int[count];
+        count = 0;
+        for (int i = 0; i < classes.size(); i++) {
+            int classOrdinal = classes.get(i);
+            int start = mInstanceOffsets[classOrdinal];
+            int length = mInstanceOffsets[classOrdinal + 1] - start;
+            System.arraycopy(mInstances, start, instances, count, length);
+            count += length;
+        }
+        if (classes.size() > 1) {
+            Arrays.sort(instances);
+        }
+        return instances;
+    }
+
+    /**
+     * Returns the ordinal of the superclass of a class, or {@link HeapGraph#NONE}.
+     */
+    public int getSuperClass(int classOrdinal) {
+        int index = getClassIndex(classOrdinal);
+        return index >= 0 ? mSuperClasses[index] : HeapGraph.NONE;
+    }
+
+    /**
+     * Returns the ordinals of the nodes that refer to the given node.
+     */
+    @NonNull
+    public int[] getReferrers(int ordinal) {
+        int[] referrers = new int[mGraph.getInDegree(ordinal)];
+        for (int i = 0; i < referrers.length; i++) {
+            referrers[i] = mGraph.getInEdge(ordinal, i);
+        }
+        return referrers;
+    }
+
+    /**
+     * Returns the ordinals of the {@code java.lang.String} instances with the given value.
+     */
+    @NonNull
+    public int[] getStrings(@NonNull String value) {
+        TIntArrayList strings = mStringsByValue.get(value);
+        return strings != null ? strings.toNativeArray() : new int[0];
+    }
+
+    /**
+     * Returns the number of distinct values of the {@code java.lang.String} instances.
+     */
+    public int getDistinctStringCount() {
+        return mStringsByValue.size();
+    }
+
+    /**
+     * Returns the ordinals of the bitmaps at least as wide and as high as given.
+     */
+    @NonNull
+    public int[] getBitmaps(int minWidth, int minHeight) {
+        TIntArrayList bitmaps = new TIntArrayList();
+        for (int i = 0; i < mBitmaps.length; i++) {
+            if (mBitmapWidths[i] >= minWidth && mBitmapHeights[i] >= minHeight) {
+                bitmaps.add(mBitmaps[i]);
+            }
+        }
+        return bitmaps.toNativeArray();
+    }
+
+    /**
+     * Returns the width of a bitmap, or -1 if the node isn't an indexed bitmap.
+     */
+    public int getBitmapWidth(int ordinal) {
+        int index = Arrays.binarySearch(mBitmaps, ordinal);
+        return index >= 0 ? mBitmapWidths[index] : -1;
+    }
+
+    /**
+     * Returns the height of a bitmap, or -1 if the node isn't an indexed bitmap.
+     */
+    public int getBitmapHeight(int ordinal) {
+        int index = Arrays.binarySearch(mBitmaps, ordinal);
+        return index >= 0 ? mBitmapHeights[index] : -1;
+    }
+
+    private int getClassIndex(int classOrdinal) {
+        return classOrdinal != HeapGraph.NONE ? Arrays.binarySearch(mClasses, classOrdinal) : -1;
+    }
+
+    /**
+     * Decodes the value of a {@code java.lang.String} backed by a {@code char[]}, with or without
+     * the offset and count fields of older runtimes.
+     */
+    @Nullable
+    static String decodeString(@NonNull Instance instance) {
+        if (!(instance instanceof ClassInstance)) {
+            return null;
+        }
+        ClassInstance string = (ClassInstance) instance;
+        Object value = string.getFieldValue("value");
+        if (!(value instanceof ArrayInstance)
+                || ((ArrayInstance) value).getArrayType() != Type.CHAR) {
+            return null;
+        }
+        ArrayInstance chars = (ArrayInstance) value;
+        Object offset = string.getFieldValue("offset");
+        Object count = string.getFieldValue("count");
+        int start = offset instanceof Integer ? (Integer) offset : 0;
+        int length = count instanceof Integer ? (Integer) count : chars.getLength() - start;
+        if (start < 0 || length < 0 || start + length > chars.getLength()) {
+            return null;
+        }
+        return new String(chars.asCharArray(start, length));
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.RootObj;
+import com.android.tools.perflib.heap.Snapshot;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+
+import java.util.List;
+
+/**
+ * Dominator computation based on the Lengauer-Tarjan algorithm, using path compression for the
+ * link-eval forest. The runtime is O(E log N), compared to the worst-case O(N^2) of the iterative
+ * {@link Dominators}.
+ *
+ * The object graph is first converted into int-indexed, CSR-style adjacency arrays: node 0 is the
+ * {@link Snapshot#SENTINEL_ROOT}, with an edge to every instance referred by a GC root, and node
+ * <i>i</i> is the instance with topological order <i>i</i>. All the bookkeeping of the algorithm
+ * is then done on primitive arrays, without recursion, so that deep reference chains (e.g. long
+ * linked lists) cannot overflow the stack.
+ *
+ * See Lengauer & Tarjan, "A Fast Algorithm for Finding Dominators in a Flowgraph", TOPLAS 1979.
+ */
+public class LinkEvalDominators {
+
+    /**
+     * Marks unassigned entries in the int-indexed arrays, e.g. the dominator of unreachable nodes.
+     */
+    public static final int NONE = -1;
+
+    @NonNull
+    private final Snapshot mSnapshot;
+
+    @NonNull
+    private final ImmutableList<Instance> mTopSort;
+
+    public LinkEvalDominators(@NonNull Snapshot snapshot, @NonNull ImmutableList<Instance> topSort) {
+        mSnapshot = snapshot;
+        mTopSort = topSort;
+    }
+
+    /**
+     * Kicks off the computation of dominators and retained sizes.
+     */
+    public void computeRetainedSizes() {
+        // Initialize retained sizes for all classes and objects, including unreachable ones.
+        for (Heap heap : mSnapshot.getHeaps()) {
+            for (Instance instance : Iterables.concat(heap.getClasses(), heap.getInstances())) {
+                instance.resetRetainedSize();
+            }
+        }
+
+        int numNodes = mTopSort.size() + 1;
+        int[] predOffsets = new int[numNodes + 1];
+        int[] preds = buildPredecessors(predOffsets);
+        int[] succOffsets = new int[numNodes + 1];
+        int[] succs = invert(numNodes, predOffsets, preds, succOffsets);
+
+        int[] vertex = new int[numNodes];
+        int[] idoms = computeImmediateDominators(numNodes, succOffsets, succs, predOffsets, preds,
+                vertex);
+
+        for (int i = 1; i < numNodes; i++) {
+            int dom = idoms[i];
+            if (dom != NONE) {
+                getNode(i).setImmediateDominator(getNode(dom));
+            }
+        }
+
+        // A dominator always comes before the nodes it dominates in DFS preorder, so a single pass
+        // in reverse preorder accumulates the retained size of each subtree into its root.
+        int numHeaps = mSnapshot.getHeaps().size();
+        for (int i = numNodes - 1; i > 0; i--) {
+            int node = vertex[i];
+            if (node == NONE || idoms[node] <= 0) {
+                continue;
+            }
+            Instance instance = getNode(node);
+            Instance dominator = getNode(idoms[node]);
+            for (int heapIndex = 0; heapIndex < numHeaps; heapIndex++) {
+                dominator.addRetainedSize(heapIndex, instance.getRetainedSize(heapIndex));
+            }
+        }
+    }
+
+    @NonNull
+    private Instance getNode(int index) {
+        return index == 0 ? Snapshot.SENTINEL_ROOT : mTopSort.get(index - 1);
+    }
+
+    /**
+     * Returns the index of the given instance in the int-indexed graph, or {@link #NONE} if the
+     * instance is not part of the reachable graph (e.g. a reference added by visiting an
+     * unreachable object).
+     */
+    private int getIndex(@NonNull Instance instance) {
+        int index = instance.getTopologicalOrder();
+        if (index > 0 && index <= mTopSort.size() && mTopSort.get(index - 1) == instance) {
+            return index;
+        }
+        return NONE;
+    }
+
+    /**
+     * Fills in the predecessor lists, in CSR format, from the back references of every reachable
+     * instance. GC roots also get the sentinel node as a predecessor.
+     */
+    @NonNull
+    private int[] buildPredecessors(@NonNull int[] offsets) {
+        boolean[] isRoot = new boolean[offsets.length - 1];
+        for (RootObj root : mSnapshot.getGCRoots()) {
+            Instance ref = root.getReferredInstance();
+            if (ref != null) {
+                int index = getIndex(ref);
+                if (index != NONE) {
+                    isRoot[index] = true;
+                }
+            }
+        }
+
+        int count = 0;
+        for (int i = 1; i < isRoot.length; i++) {
+            if (isRoot[i]) {
+                count++;
+            }
+            count += getNode(i).getReferences().size();
+        }
+
+        int[] preds = new int[count];
+        int next = 0;
+        for (int i = 1; i < isRoot.length; i++) {
+            offsets[i] = next;
+            if (isRoot[i]) {
+                preds[next++] = 0;
+            }
+            List<Instance> references = getNode(i).getReferences();
+            //noinspection ForLoopReplaceableByForEach
+            for (int j = 0; j < references.size(); j++) {
+                int pred = getIndex(references.get(j));
+                if (pred != NONE) {
+                    preds[next++] = pred;
+                }
+            }
+        }
+        offsets[isRoot.length] = next;
+        return preds;
+    }
+
+    /**
+     * Transposes a graph in CSR format, returning the new edge array and filling in its offsets.
+     */
+    @NonNull
+    public static int[] invert(int numNodes, @NonNull int[] offsets, @NonNull int[] edges,
+            @NonNull int[] invertedOffsets) {
+        int numEdges = offsets[numNodes];
+        for (int i = 0; i < numEdges; i++) {
+            invertedOffsets[edges[i] + 1]++;
+        }
+        for (int i = 0; i < numNodes; i++) {
+            invertedOffsets[i + 1] += invertedOffsets[i];
+        }
+        int[] inverted = new int[numEdges];
+        int[] fill = new int[numNodes];
+        System.arraycopy(invertedOffsets, 0, fill, 0, numNodes);
+        for (int node = 0; node < numNodes; node++) {
+            for (int i = offsets[node]; i < offsets[node + 1]; i++) {
+                inverted[fill[edges[i]]++] = node;
+            }
+        }
+        return inverted;
+    }
+
+    /**
+     * Computes the immediate dominators of a graph rooted at node 0, given in CSR format.
+     *
+     * @param vertex output array mapping each DFS preorder number to its node, with
+     *               {@link #NONE} for numbers not assigned because a node is unreachable.
+     * @return the immediate dominator of every node, with 0 for the root itself and {@link #NONE}
+     *         for nodes unreachable from the root.
+     */
+    @NonNull
+    public static int[] computeImmediateDominators(int numNodes, @NonNull int[] succOffsets,
+            @NonNull int[] succs, @NonNull int[] predOffsets, @NonNull int[] preds,
+            @NonNull int[] vertex) {
+        int[] semi = new int[numNodes];
+        int[] parent = new int[numNodes];
+        int[] ancestor = new int[numNodes];
+        int[] label = new int[numNodes];
+        int[] dom = new int[numNodes];
+        int[] bucketHead = new int[numNodes];
+        int[] bucketNext = new int[numNodes];
+        int[] stack = new int[numNodes];
+
+        for (int i = 0; i < numNodes; i++) {
+            semi[i] = NONE;
+            parent[i] = NONE;
+            ancestor[i] = NONE;
+            label[i] = i;
+            dom[i] = NONE;
+            bucketHead[i] = NONE;
+            vertex[i] = NONE;
+        }
+
+        // Iterative DFS assigning preorder numbers. The per-node cursor into its successor list is
+        // kept in bucketNext, which isn't needed until the DFS is complete.
+        int count = 0;
+        int top = 0;
+        stack[top++] = 0;
+        semi[0] = count;
+        vertex[count++] = 0;
+        bucketNext[0] = succOffsets[0];
+        while (top > 0) {
+            int node = stack[top - 1];
+            if (bucketNext[node] < succOffsets[node + 1]) {
+                int succ = succs[bucketNext[node]++];
+                if (semi[succ] == NONE) {
+                    parent[succ] = node;
+                    semi[succ] = count;
+                    vertex[count++] = succ;
+                    bucketNext[succ] = succOffsets[succ];
+                    stack[top++] = succ;
+                }
+            } else {
+                top--;
+            }
+        }
+
+        for (int i = count - 1; i > 0; i--) {
+            int w = vertex[i];
+            for (int j = predOffsets[w]; j < predOffsets[w + 1]; j++) {
+                int v = preds[j];
+                if (semi[v] == NONE) {
+                    // Unreachable predecessor, it can't affect the dominators.
+                    continue;
+                }
+                int u = eval(v, ancestor, label, semi, stack);
+                if (semi[u] < semi[w]) {
+                    semi[w] = semi[u];
+                }
+            }
+            int semiDominator = vertex[semi[w]];
+            bucketNext[w] = bucketHead[semiDominator];
+            bucketHead[semiDominator] = w;
+
+            int p = parent[w];
+            ancestor[w] = p;
+
+            for (int v = bucketHead[p]; v != NONE; v = bucketNext[v]) {
+                int u = eval(v, ancestor, label, semi, stack);
+                dom[v] = semi[u] < semi[v] ? u : p;
+            }
+            bucketHead[p] = NONE;
+        }
+
+        for (int i = 1; i < count; i++) {
+            int w = vertex[i];
+            if (dom[w] != vertex[semi[w]]) {
+                dom[w] = dom[dom[w]];
+            }
+        }
+        dom[0] = 0;
+        return dom;
+    }
+
+    private static int eval(int v, @NonNull int[] ancestor, @NonNull int[] label,
+            @NonNull int[] semi, @NonNull int[] stack) {
+        if (ancestor[v] == NONE) {
+            return v;
+        }
+        compress(v, ancestor, label, semi, stack);
+        return label[v];
+    }
+
+    /**
+     * Iterative path compression: walks up to the last node below the forest root, then compresses
+     * top-down so that each node sees the already compressed labels of its ancestors.
+     */
+    private static void compress(int v, @NonNull int[] ancestor, @NonNull int[] label,
+            @NonNull int[] semi, @NonNull int[] stack) {
+        int top = 0;
+        for (int node = v; ancestor[ancestor[node]] != NONE; node = ancestor[node]) {
+            stack[top++] = node;
+        }
+        while (top > 0) {
+            int node = stack[--top];
+            int a = ancestor[node];
+            if (semi[label[a]] < semi[label[node]]) {
+                label[node] = label[a];
+            }
+            ancestor[node] = ancestor[a];
+        }
+    }
+}
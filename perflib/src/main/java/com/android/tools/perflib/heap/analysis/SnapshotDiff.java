@@ -0,0 +1,835 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.heap.HeapGraph;
+import com.android.tools.perflib.heap.StackFrame;
+import com.android.tools.perflib.heap.StackTrace;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import gnu.trove.TLongArrayList;
+
+/**
+ * Compares two heap dumps, typically of the same process taken some time apart, and reports the
+ * growth per class, per allocation stack trace and per top-level dominator subtree.
+ *
+ * Classes are matched by name. Instances are matched by id when both dumps come from the same
+ * process, as long as the id still refers to an instance of the same class; the remaining ones are
+ * then matched by class and {@link HeapGraph#getContentHash(int) content hash}, so that objects
+ * that only moved, or were recreated with the same contents, aren't reported as growth.
+ *
+ * Both dumps are compared through their {@link HeapGraph}, as parsed by
+ * {@link com.android.tools.perflib.heap.HprofParser#parseGraph(File, File)}, so no
+ * {@link com.android.tools.perflib.heap.Instance} is created: contents are hashed and stack traces
+ * read by ordinal straight from the heap dumps. Nodes are sorted by id in both graphs, so matching
+ * by id is a single merge pass over them. The content hashes of the nodes that couldn't be matched
+ * by id are sorted in runs of a fixed size, which are spilled to a temporary file and merged back,
+ * so that on top of the graphs, memory is only used for the per-class, per-trace and per-subtree
+ * totals, the current runs and a small read buffer per spilled run.
+ */
+public class SnapshotDiff {
+
+    private static final String UNKNOWN_CLASS = "<unknown>";
+
+    private static final String CLASS_CLASS = "java.lang.Class";
+
+    // Number of unmatched nodes of each dump sorted in memory at once, i.e. 16 MB each.
+    private static final int RUN_SIZE = 1 << 20;
+
+    @NonNull
+    private final HeapGraph mBefore;
+
+    @NonNull
+    private final HeapGraph mAfter;
+
+    private final boolean mSameProcess;
+
+    private final int mRunSize;
+
+    @NonNull
+    private final Map<String, ClassDelta> mClassDeltas = new HashMap<String, ClassDelta>();
+
+    // The class deltas by index, as stored with the unmatched nodes.
+    @NonNull
+    private final List<ClassDelta> mClassDeltasByIndex = new ArrayList<ClassDelta>();
+
+    @NonNull
+    private final Map<String, StackTraceDelta> mStackTraceDeltas =
+            new HashMap<String, StackTraceDelta>();
+
+    @NonNull
+    private final List<DominatorDelta> mDominatorDeltas = new ArrayList<DominatorDelta>();
+
+    private int mMatchedById;
+
+    private int mMatchedByContent;
+
+    private int mAdded;
+
+    private int mRemoved;
+
+    private boolean mComputed;
+
+    /**
+     * @param before      the graph of the first dump, attached to its snapshot.
+     * @param after       the graph of the second dump, attached to its snapshot.
+     * @param sameProcess whether both dumps come from the same process, in which case instances
+     *                    with the same id are assumed to be the same object.
+     */
+    public SnapshotDiff(@NonNull HeapGraph before, @NonNull HeapGraph after,
+            boolean sameProcess) {
+        this(before, after, sameProcess, RUN_SIZE);
+    }
+
+    SnapshotDiff(@NonNull HeapGraph before, @NonNull HeapGraph after, boolean sameProcess,
+            int runSize) {
+        mBefore = before;
+        mAfter = after;
+        mSameProcess = sameProcess;
+        mRunSize = runSize;
+    }
+
+    /**
+     * Matches the nodes of both dumps and computes all the deltas, unless already done.
+     */
+    public void compute() throws IOException {
+        if (mComputed) {
+            return;
+        }
+
+        UnmatchedNodes removed = new UnmatchedNodes(mRunSize);
+        UnmatchedNodes added = new UnmatchedNodes(mRunSize);
+        try {
+            matchById(removed, added);
+            matchByContent(removed.sort(), added.sort());
+        } finally {
+            removed.close();
+            added.close();
+        }
+
+        if (mSameProcess) {
+            computeDominatorDeltas(mBefore, mAfter);
+        }
+        mComputed = true;
+    }
+
+    private void matchById(@NonNull UnmatchedNodes removed, @NonNull UnmatchedNodes added)
+            throws IOException {
+        HeapGraph before = mBefore;
+        HeapGraph after = mAfter;
+        int i = 1;
+        int j = 1;
+        while (i < before.getNodeCount() || j < after.getNodeCount()) {
+            long idBefore = i < before.getNodeCount() ? before.getId(i) : Long.MAX_VALUE;
+            long idAfter = j < after.getNodeCount() ? after.getId(j) : Long.MAX_VALUE;
+            if (i < before.getNodeCount() && (j >= after.getNodeCount() || idBefore < idAfter)) {
+                ClassDelta classBefore = getClassDelta(before, i);
+                classBefore.addBefore(before.getSize(i));
+                removed.add(before.getContentHash(i), classBefore.mIndex, i);
+                i++;
+            } else if (i >= before.getNodeCount() || idAfter < idBefore) {
+                ClassDelta classAfter = getClassDelta(after, j);
+                classAfter.addAfter(after.getSize(j));
+                added.add(after.getContentHash(j), classAfter.mIndex, j);
+                j++;
+            } else {
+                ClassDelta classBefore = getClassDelta(before, i);
+                ClassDelta classAfter = getClassDelta(after, j);
+                classBefore.addBefore(before.getSize(i));
+                classAfter.addAfter(after.getSize(j));
+                if (mSameProcess && classBefore == classAfter) {
+                    mMatchedById++;
+                } else {
+                    removed.add(before.getContentHash(i), classBefore.mIndex, i);
+                    added.add(after.getContentHash(j), classAfter.mIndex, j);
+                }
+                i++;
+                j++;
+            }
+        }
+    }
+
+    /**
+     * Walks the unmatched nodes of both dumps in order of content hash and class, matching them
+     * pairwise, and reports the rest as removed or added.
+     */
+    private void matchByContent(@NonNull SortedNodes removed, @NonNull SortedNodes added)
+            throws IOException {
+        while (removed.hasCurrent() || added.hasCurrent()) {
+            int order;
+            if (!removed.hasCurrent()) {
+                order = 1;
+            } else if (!added.hasCurrent()) {
+                order = -1;
+            } else {
+                order = removed.current().compareTo(added.current());
+            }
+
+            if (order == 0) {
+                mMatchedByContent++;
+                removed.advance();
+                added.advance();
+            } else if (order < 0) {
+                Run run = removed.current();
+                mRemoved++;
+                mClassDeltasByIndex.get(run.mClassIndex).mRemoved++;
+                getStackTraceDelta(mBefore, run.mOrdinal).add(-1, -mBefore.getSize(run.mOrdinal));
+                removed.advance();
+            } else {
+                Run run = added.current();
+                mAdded++;
+                mClassDeltasByIndex.get(run.mClassIndex).mAdded++;
+                getStackTraceDelta(mAfter, run.mOrdinal).add(1, mAfter.getSize(run.mOrdinal));
+                added.advance();
+            }
+        }
+    }
+
+    /**
+     * Computes the retained size growth of the instances directly dominated by the GC roots that
+     * are in both dumps.
+     */
+    private void computeDominatorDeltas(@NonNull HeapGraph before, @NonNull HeapGraph after) {
+        before.computeDominators();
+        after.computeDominators();
+        for (int ordinal = 1; ordinal < after.getNodeCount(); ordinal++) {
+            if (after.getImmediateDominator(ordinal) != HeapGraph.ROOT) {
+                continue;
+            }
+            int ordinalBefore = before.getOrdinal(after.getId(ordinal));
+            if (ordinalBefore == HeapGraph.NONE
+                    || before.getImmediateDominator(ordinalBefore) == HeapGraph.NONE
+                    || getClassDelta(before, ordinalBefore) != getClassDelta(after, ordinal)) {
+                continue;
+            }
+            mDominatorDeltas.add(new DominatorDelta(ordinal, after.getId(ordinal),
+                    getClassName(after, ordinal), before.getRetainedSize(ordinalBefore),
+                    after.getRetainedSize(ordinal)));
+        }
+    }
+
+    @NonNull
+    private ClassDelta getClassDelta(@NonNull HeapGraph graph, int ordinal) {
+        String name = getClassName(graph, ordinal);
+        ClassDelta delta = mClassDeltas.get(name);
+        if (delta == null) {
+            delta = new ClassDelta(name, mClassDeltasByIndex.size());
+            mClassDeltas.put(name, delta);
+            mClassDeltasByIndex.add(delta);
+        }
+        return delta;
+    }
+
+    @NonNull
+    private static String getClassName(@NonNull HeapGraph graph, int ordinal) {
+        int classOrdinal = graph.getClassOrdinal(ordinal);
+        if (classOrdinal != HeapGraph.NONE) {
+            String name = graph.getClassName(classOrdinal);
+            if (name != null) {
+                return name;
+            }
+        }
+        return graph.getClassName(ordinal) != null ? CLASS_CLASS : UNKNOWN_CLASS;
+    }
+
+    @NonNull
+    private StackTraceDelta getStackTraceDelta(@NonNull HeapGraph graph, int ordinal) {
+        StackTrace stack = graph.getStackTrace(ordinal);
+        StringBuilder key = new StringBuilder();
+        if (stack != null) {
+            for (StackFrame frame : stack.getFrames()) {
+                key.append(frame).append('\n');
+            }
+        }
+        String trace = key.toString();
+        StackTraceDelta delta = mStackTraceDeltas.get(trace);
+        if (delta == null) {
+            delta = new StackTraceDelta(trace);
+            mStackTraceDeltas.put(trace, delta);
+        }
+        return delta;
+    }
+
+    public int getMatchedByIdCount() {
+        assert mComputed : "compute() must be called first";
+        return mMatchedById;
+    }
+
+    public int getMatchedByContentCount() {
+        assert mComputed : "compute() must be called first";
+        return mMatchedByContent;
+    }
+
+    /**
+     * Returns the number of instances only in the second dump.
+     */
+    public int getAddedCount() {
+        assert mComputed : "compute() must be called first";
+        return mAdded;
+    }
+
+    /**
+     * Returns the number of instances only in the first dump.
+     */
+    public int getRemovedCount() {
+        assert mComputed : "compute() must be called first";
+        return mRemoved;
+    }
+
+    /**
+     * Returns the classes whose instances changed, by decreasing shallow size growth.
+     */
+    @NonNull
+    public List<ClassDelta> getClassDeltas() {
+        assert mComputed : "compute() must be called first";
+        List<ClassDelta> deltas = new ArrayList<ClassDelta>();
+        for (ClassDelta delta : mClassDeltas.values()) {
+            if (delta.getCountBefore() != delta.getCountAfter()
+                    || delta.getSizeBefore() != delta.getSizeAfter()
+                    || delta.getAddedCount() > 0 || delta.getRemovedCount() > 0) {
+                deltas.add(delta);
+            }
+        }
+        Collections.sort(deltas, new Comparator<ClassDelta>() {
+            @Override
+            public int compare(ClassDelta d1, ClassDelta d2) {
+                return compareGrowth(d1.getSizeGrowth(), d2.getSizeGrowth());
+            }
+        });
+        return deltas;
+    }
+
+    /**
+     * Returns the allocation stack traces of the added and removed instances, by decreasing size
+     * growth. Instances matched by content aren't included.
+     */
+    @NonNull
+    public List<StackTraceDelta> getStackTraceDeltas() {
+        assert mComputed : "compute() must be called first";
+        List<StackTraceDelta> deltas = new ArrayList<StackTraceDelta>(mStackTraceDeltas.values());
+        Collections.sort(deltas, new Comparator<StackTraceDelta>() {
+            @Override
+            public int compare(StackTraceDelta d1, StackTraceDelta d2) {
+                return compareGrowth(d1.getSizeGrowth(), d2.getSizeGrowth());
+            }
+        });
+        return deltas;
+    }
+
+    /**
+     * Returns the retained size growth of the instances directly dominated by the GC roots in both
+     * dumps, by decreasing growth. This is only available for dumps of the same process.
+     */
+    @NonNull
+    public List<DominatorDelta> getDominatorDeltas() {
+        assert mComputed : "compute() must be called first";
+        List<DominatorDelta> deltas = new ArrayList<DominatorDelta>(mDominatorDeltas);
+        Collections.sort(deltas, new Comparator<DominatorDelta>() {
+            @Override
+            public int compare(DominatorDelta d1, DominatorDelta d2) {
+                return compareGrowth(d1.getRetainedSizeGrowth(), d2.getRetainedSizeGrowth());
+            }
+        });
+        return deltas;
+    }
+
+    private static int compareGrowth(long growth1, long growth2) {
+        return growth1 > growth2 ? -1 : (growth1 < growth2 ? 1 : 0);
+    }
+
+    /**
+     * The content hash, class delta index and ordinal of the nodes of a dump that couldn't be
+     * matched by id. Up to a fixed number of them are kept in primitive arrays; each time these
+     * are full, they are sorted by hash and class and spilled to a temporary file as a run.
+     */
+    private static class UnmatchedNodes {
+
+        // Bytes per node in a spilled run: hash, class index and ordinal.
+        private static final int NODE_SIZE = 8 + 4 + 4;
+
+        @NonNull
+        private final long[] mHashes;
+
+        @NonNull
+        private final int[] mClassIndices;
+
+        @NonNull
+        private final int[] mOrdinals;
+
+        private int mSize;
+
+        @Nullable
+        private File mFile;
+
+        @Nullable
+        private RandomAccessFile mSpill;
+
+        // The end of each spilled run in the file.
+        @NonNull
+        private final TLongArrayList mRunEnds = new TLongArrayList();
+
+        UnmatchedNodes(int runSize) {
+            mHashes = new long[runSize];
+            mClassIndices = new int[runSize];
+            mOrdinals = new int[runSize];
+        }
+
+        void add(long hash, int classIndex, int ordinal) throws IOException {
+            if (mSize == mHashes.length) {
+                spill();
+            }
+            mHashes[mSize] = hash;
+            mClassIndices[mSize] = classIndex;
+            mOrdinals[mSize] = ordinal;
+            mSize++;
+        }
+
+        /**
+         * Returns the nodes added so far in order of hash and class, merging the spilled runs if
+         * there are any.
+         */
+        @NonNull
+        SortedNodes sort() throws IOException {
+            PriorityQueue<Run> runs = new PriorityQueue<Run>();
+            if (mSpill == null) {
+                sortRun();
+                addRun(runs, new MemoryRun(mHashes, mClassIndices, mOrdinals, mSize));
+            } else {
+                if (mSize > 0) {
+                    spill();
+                }
+                long start = 0;
+                for (int i = 0; i < mRunEnds.size(); i++) {
+                    addRun(runs, new FileRun(mSpill.getChannel(), start, mRunEnds.get(i)));
+                    start = mRunEnds.get(i);
+                }
+            }
+            return new SortedNodes(runs);
+        }
+
+        private static void addRun(@NonNull PriorityQueue<Run> runs, @NonNull Run run)
+                throws IOException {
+            if (run.advance()) {
+                runs.add(run);
+            }
+        }
+
+        void close() throws IOException {
+            if (mSpill != null) {
+                mSpill.close();
+                mSpill = null;
+            }
+            if (mFile != null) {
+                mFile.delete();
+                mFile = null;
+            }
+        }
+
+        private void spill() throws IOException {
+            if (mSpill == null) {
+                mFile = File.createTempFile("snapshot-diff", ".unmatched");
+                mFile.deleteOnExit();
+                mSpill = new RandomAccessFile(mFile, "rw");
+            }
+            sortRun();
+            FileChannel channel = mSpill.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(FileRun.BUFFER_NODES * NODE_SIZE);
+            for (int i = 0; i < mSize; i++) {
+                buffer.putLong(mHashes[i]);
+                buffer.putInt(mClassIndices[i]);
+                buffer.putInt(mOrdinals[i]);
+                if (!buffer.hasRemaining() || i == mSize - 1) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    buffer.clear();
+                }
+            }
+            mRunEnds.add(channel.position());
+            mSize = 0;
+        }
+
+        /**
+         * Heap sorts the nodes in memory, which needs no extra space.
+         */
+        private void sortRun() {
+            for (int i = mSize / 2 - 1; i >= 0; i--) {
+                siftDown(i, mSize);
+            }
+            for (int end = mSize - 1; end > 0; end--) {
+                swap(0, end);
+                siftDown(0, end);
+            }
+        }
+
+        private void siftDown(int node, int size) {
+            while (true) {
+                int child = 2 * node + 1;
+                if (child >= size) {
+                    return;
+                }
+                if (child + 1 < size && compare(child, child + 1) < 0) {
+                    child++;
+                }
+                if (compare(node, child) >= 0) {
+                    return;
+                }
+                swap(node, child);
+                node = child;
+            }
+        }
+
+        private int compare(int i, int j) {
+            return Run.compare(mHashes[i], mClassIndices[i], mHashes[j], mClassIndices[j]);
+        }
+
+        private void swap(int i, int j) {
+            long hash = mHashes[i];
+            mHashes[i] = mHashes[j];
+            mHashes[j] = hash;
+            int classIndex = mClassIndices[i];
+            mClassIndices[i] = mClassIndices[j];
+            mClassIndices[j] = classIndex;
+            int ordinal = mOrdinals[i];
+            mOrdinals[i] = mOrdinals[j];
+            mOrdinals[j] = ordinal;
+        }
+    }
+
+    /**
+     * Merges sorted runs of unmatched nodes, in order of hash and class.
+     */
+    private static class SortedNodes {
+
+        @NonNull
+        private final PriorityQueue<Run> mRuns;
+
+        SortedNodes(@NonNull PriorityQueue<Run> runs) {
+            mRuns = runs;
+        }
+
+        boolean hasCurrent() {
+            return !mRuns.isEmpty();
+        }
+
+        @NonNull
+        Run current() {
+            return mRuns.peek();
+        }
+
+        void advance() throws IOException {
+            Run run = mRuns.poll();
+            if (run.advance()) {
+                mRuns.add(run);
+            }
+        }
+    }
+
+    /**
+     * A sorted run of unmatched nodes, positioned on its current node.
+     */
+    private abstract static class Run implements Comparable<Run> {
+
+        long mHash;
+
+        int mClassIndex;
+
+        int mOrdinal;
+
+        /**
+         * Moves to the next node of the run, returning false at the end of the run.
+         */
+        abstract boolean advance() throws IOException;
+
+        @Override
+        public int compareTo(@NonNull Run other) {
+            return compare(mHash, mClassIndex, other.mHash, other.mClassIndex);
+        }
+
+        static int compare(long hash1, int classIndex1, long hash2, int classIndex2) {
+            if (hash1 != hash2) {
+                return hash1 < hash2 ? -1 : 1;
+            }
+            return classIndex1 < classIndex2 ? -1 : (classIndex1 == classIndex2 ? 0 : 1);
+        }
+    }
+
+    private static class MemoryRun extends Run {
+
+        @NonNull
+        private final long[] mHashes;
+
+        @NonNull
+        private final int[] mClassIndices;
+
+        @NonNull
+        private final int[] mOrdinals;
+
+        private final int mSize;
+
+        private int mNext;
+
+        MemoryRun(@NonNull long[] hashes, @NonNull int[] classIndices, @NonNull int[] ordinals,
+                int size) {
+            mHashes = hashes;
+            mClassIndices = classIndices;
+            mOrdinals = ordinals;
+            mSize = size;
+        }
+
+        @Override
+        boolean advance() {
+            if (mNext == mSize) {
+                return false;
+            }
+            mHash = mHashes[mNext];
+            mClassIndex = mClassIndices[mNext];
+            mOrdinal = mOrdinals[mNext];
+            mNext++;
+            return true;
+        }
+    }
+
+    /**
+     * A run spilled to a file, read back through a small buffer.
+     */
+    private static class FileRun extends Run {
+
+        static final int BUFFER_NODES = 4096;
+
+        @NonNull
+        private final FileChannel mChannel;
+
+        @NonNull
+        private final ByteBuffer mBuffer =
+                ByteBuffer.allocate(BUFFER_NODES * UnmatchedNodes.NODE_SIZE);
+
+        private long mPosition;
+
+        private final long mEnd;
+
+        FileRun(@NonNull FileChannel channel, long start, long end) {
+            mChannel = channel;
+            mPosition = start;
+            mEnd = end;
+            mBuffer.flip();
+        }
+
+        @Override
+        boolean advance() throws IOException {
+            if (!mBuffer.hasRemaining()) {
+                if (mPosition == mEnd) {
+                    return false;
+                }
+                mBuffer.clear();
+                mBuffer.limit((int) Math.min(mBuffer.capacity(), mEnd - mPosition));
+                while (mBuffer.hasRemaining()) {
+                    if (mChannel.read(mBuffer, mPosition + mBuffer.position()) == -1) {
+                        throw new IOException("Truncated spill file");
+                    }
+                }
+                mPosition += mBuffer.limit();
+                mBuffer.flip();
+            }
+            mHash = mBuffer.getLong();
+            mClassIndex = mBuffer.getInt();
+            mOrdinal = mBuffer.getInt();
+            return true;
+        }
+    }
+
+    public static class ClassDelta {
+
+        @NonNull
+        private final String mClassName;
+
+        // The index of this delta in the order the classes were first seen.
+        private final int mIndex;
+
+        private int mCountBefore;
+
+        private int mCountAfter;
+
+        private long mSizeBefore;
+
+        private long mSizeAfter;
+
+        private int mAdded;
+
+        private int mRemoved;
+
+        ClassDelta(@NonNull String className, int index) {
+            mClassName = className;
+            mIndex = index;
+        }
+
+        void addBefore(int size) {
+            mCountBefore++;
+            mSizeBefore += size;
+        }
+
+        void addAfter(int size) {
+            mCountAfter++;
+            mSizeAfter += size;
+        }
+
+        @NonNull
+        public String getClassName() {
+            return mClassName;
+        }
+
+        public int getCountBefore() {
+            return mCountBefore;
+        }
+
+        public int getCountAfter() {
+            return mCountAfter;
+        }
+
+        public long getSizeBefore() {
+            return mSizeBefore;
+        }
+
+        public long getSizeAfter() {
+            return mSizeAfter;
+        }
+
+        public long getSizeGrowth() {
+            return mSizeAfter - mSizeBefore;
+        }
+
+        /**
+         * Returns the number of instances of the second dump matched neither by id nor by content.
+         */
+        public int getAddedCount() {
+            return mAdded;
+        }
+
+        /**
+         * Returns the number of instances of the first dump matched neither by id nor by content.
+         */
+        public int getRemovedCount() {
+            return mRemoved;
+        }
+    }
+
+    public static class StackTraceDelta {
+
+        @NonNull
+        private final String mTrace;
+
+        private int mCountGrowth;
+
+        private long mSizeGrowth;
+
+        StackTraceDelta(@NonNull String trace) {
+            mTrace = trace;
+        }
+
+        void add(int count, long size) {
+            mCountGrowth += count;
+            mSizeGrowth += size;
+        }
+
+        /**
+         * Returns the frames of the allocation stack trace, one per line, or an empty string for
+         * instances without a known allocation stack trace.
+         */
+        @NonNull
+        public String getTrace() {
+            return mTrace;
+        }
+
+        public int getCountGrowth() {
+            return mCountGrowth;
+        }
+
+        public long getSizeGrowth() {
+            return mSizeGrowth;
+        }
+    }
+
+    public static class DominatorDelta {
+
+        private final int mOrdinal;
+
+        private final long mId;
+
+        @NonNull
+        private final String mClassName;
+
+        private final long mRetainedSizeBefore;
+
+        private final long mRetainedSizeAfter;
+
+        DominatorDelta(int ordinal, long id, @NonNull String className, long retainedSizeBefore,
+                long retainedSizeAfter) {
+            mOrdinal = ordinal;
+            mId = id;
+            mClassName = className;
+            mRetainedSizeBefore = retainedSizeBefore;
+            mRetainedSizeAfter = retainedSizeAfter;
+        }
+
+        /**
+         * Returns the ordinal of the root of the dominator subtree in the graph of the second
+         * dump.
+         */
+        public int getOrdinal() {
+            return mOrdinal;
+        }
+
+        /**
+         * Returns the id of the root of the dominator subtree, which is the same in both dumps.
+         */
+        public long getId() {
+            return mId;
+        }
+
+        @NonNull
+        public String getClassName() {
+            return mClassName;
+        }
+
+        public long getRetainedSizeBefore() {
+            return mRetainedSizeBefore;
+        }
+
+        public long getRetainedSizeAfter() {
+            return mRetainedSizeAfter;
+        }
+
+        public long getRetainedSizeGrowth() {
+            return mRetainedSizeAfter - mRetainedSizeBefore;
+        }
+    }
+}
@@ -83,6 +83,27 @@ public class MemoryMappedFileBuffer implements HprofBuffer {
         this(f, DEFAULT_SIZE, DEFAULT_PADDING);
     }
 
+    private MemoryMappedFileBuffer(@NonNull MemoryMappedFileBuffer source) {
+        mBufferSize = source.mBufferSize;
+        mPadding = source.mPadding;
+        mLength = source.mLength;
+        mByteBuffers = new ByteBuffer[source.mByteBuffers.length];
+        for (int i = 0; i < mByteBuffers.length; i++) {
+            mByteBuffers[i] = source.mByteBuffers[i].duplicate();
+            mByteBuffers[i].order(ByteOrder.BIG_ENDIAN);
+        }
+        mCurrentPosition = 0;
+    }
+
+    /**
+     * Returns a new buffer sharing the mapped content of this one, but with its own position. This
+     * allows several threads to read the same file concurrently, each through its own buffer.
+     */
+    @NonNull
+    public MemoryMappedFileBuffer duplicate() {
+        return new MemoryMappedFileBuffer(this);
+    }
+
     /**
      * Attempts to unmap the buffer. It is the caller's responsibility to ensure there are no other
      * accesses to this buffer, otherwise this can result in a crash and kill the JVM.
@@ -17,91 +17,63 @@
 package com.android.tools.perflib.vmtrace;
 
 import com.android.annotations.NonNull;
-import com.android.annotations.Nullable;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
-import com.google.common.primitives.UnsignedInts;
 
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Stack;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * A view of a single call in a {@link CallTable}. Calls are created on demand and hold no data of
+ * their own, so two views of the same call are equal but not necessarily the same object.
+ */
 public class Call {
-    private final long mMethodId;
-
-    /**
-     * Note: The thread entry and exit times are stored as unsigned integers in the trace data.
-     * In this model, they are stored as integers, but the getters for all of these time values
-     * convert them into longs.
-     */
-    private final int mEntryThreadTime;
-    private final int mEntryGlobalTime;
-    private final int mExitGlobalTime;
-    private final int mExitThreadTime;
+    @NonNull
+    private final CallTable mTable;
 
-    private final long mInclusiveThreadTimeInCallees;
-    private final long mInclusiveGlobalTimeInCallees;
+    private final int mIndex;
 
-    private final int mDepth;
+    Call(@NonNull CallTable table, int index) {
+        mTable = table;
+        mIndex = index;
+    }
 
     /**
-     * Indicates whether the current call is recursive. A call is recursive if the same method
-     * is present in its backstack.
+     * Returns the table holding this call and all the other calls of its thread.
      */
-    private final boolean mIsRecursive;
-
-    private final List<Call> mCallees;
-
-    private Call(@NonNull Builder builder, @NonNull Stack<Long> backStack) {
-        mMethodId = builder.mMethodId;
-
-        mEntryThreadTime = builder.mEntryThreadTime;
-        mEntryGlobalTime = builder.mEntryGlobalTime;
-        mExitThreadTime = builder.mExitThreadTime;
-        mExitGlobalTime = builder.mExitGlobalTime;
-
-        mDepth = backStack.size();
-
-        mIsRecursive = backStack.contains(mMethodId);
-
-        if (builder.mCallees == null) {
-            mCallees = Collections.emptyList();
-        } else {
-            backStack.push(mMethodId);
-            List<Call> callees = new ArrayList<Call>(builder.mCallees.size());
-            for (Builder b : builder.mCallees) {
-                callees.add(b.build(backStack));
-            }
-            backStack.pop();
-            mCallees = new ImmutableList.Builder<Call>().addAll(callees).build();
-        }
-
-        mInclusiveThreadTimeInCallees = sumInclusiveTimes(mCallees, ClockType.THREAD);
-        mInclusiveGlobalTimeInCallees = sumInclusiveTimes(mCallees, ClockType.GLOBAL);
+    @NonNull
+    public CallTable getTable() {
+        return mTable;
     }
 
-    private long sumInclusiveTimes(@NonNull List<Call> callees, ClockType clockType) {
-        long sum = 0;
-        for (Call c : callees) {
-            sum += c.getInclusiveTime(clockType, TimeUnit.MICROSECONDS);
-        }
-        return sum;
+    /**
+     * Returns the index of this call in its {@link CallTable}.
+     */
+    public int getIndex() {
+        return mIndex;
     }
 
     public long getMethodId() {
-        return mMethodId;
+        return mTable.getMethodId(mIndex);
     }
 
     @NonNull
     public List<Call> getCallees() {
-        return mCallees;
+        int end = mTable.getSubtreeEnd(mIndex);
+        if (end == mIndex + 1) {
+            return Collections.emptyList();
+        }
+        ImmutableList.Builder<Call> callees = ImmutableList.builder();
+        for (int callee = mIndex + 1; callee < end; callee = mTable.getSubtreeEnd(callee)) {
+            callees.add(new Call(mTable, callee));
+        }
+        return callees.build();
     }
 
     public int getDepth() {
-        return mDepth;
+        return mTable.getDepth(mIndex);
     }
 
     /**
@@ -109,96 +81,44 @@ public class Call {
      * in its backstack)
      */
     public boolean isRecursive() {
-        return mIsRecursive;
+        return mTable.isRecursive(mIndex);
     }
 
     public long getEntryTime(ClockType clockType, TimeUnit units) {
-        long entryTime = clockType == ClockType.THREAD ?
-                UnsignedInts.toLong(mEntryThreadTime) : UnsignedInts.toLong(mEntryGlobalTime);
-        return units.convert(entryTime, VmTraceData.getDefaultTimeUnits());
+        return units.convert(mTable.getEntryTime(mIndex, clockType),
+                VmTraceData.getDefaultTimeUnits());
     }
 
     public long getExitTime(ClockType clockType, TimeUnit units) {
-        long exitTime = clockType == ClockType.THREAD ?
-                UnsignedInts.toLong(mExitThreadTime) : UnsignedInts.toLong(mExitGlobalTime);
-        return units.convert(exitTime, VmTraceData.getDefaultTimeUnits());
+        return units.convert(mTable.getExitTime(mIndex, clockType),
+                VmTraceData.getDefaultTimeUnits());
     }
 
     public long getInclusiveTime(ClockType clockType, TimeUnit units) {
-        long inclusiveTime = clockType == ClockType.THREAD ?
-                UnsignedInts.toLong(mExitThreadTime - mEntryThreadTime) :
-                UnsignedInts.toLong(mExitGlobalTime - mEntryGlobalTime);
-        return units.convert(inclusiveTime, VmTraceData.getDefaultTimeUnits());
+        return units.convert(mTable.getInclusiveTime(mIndex, clockType),
+                VmTraceData.getDefaultTimeUnits());
     }
 
     public long getExclusiveTime(ClockType clockType, TimeUnit units) {
-        long inclusiveTimeInCallees = clockType == ClockType.THREAD ?
-                mInclusiveThreadTimeInCallees : mInclusiveGlobalTimeInCallees;
-        long exclusiveTime = getInclusiveTime(clockType, VmTraceData.getDefaultTimeUnits()) -
-                inclusiveTimeInCallees;
-        return units.convert(exclusiveTime, VmTraceData.getDefaultTimeUnits());
+        return units.convert(mTable.getExclusiveTime(mIndex, clockType),
+                VmTraceData.getDefaultTimeUnits());
     }
 
-    public static class Builder {
-        private final long mMethodId;
-
-        private int mEntryThreadTime;
-        private int mEntryGlobalTime;
-        private int mExitGlobalTime;
-        private int mExitThreadTime;
-
-        private List<Builder> mCallees = null;
-
-        public Builder(long methodId) {
-            mMethodId = methodId;
-        }
-
-        public long getMethodId() {
-            return mMethodId;
-        }
-
-        public void setMethodEntryTime(int threadTime, int globalTime) {
-            mEntryThreadTime = threadTime;
-            mEntryGlobalTime = globalTime;
-        }
-
-        public void setMethodExitTime(int threadTime, int globalTime) {
-            mExitThreadTime = threadTime;
-            mExitGlobalTime = globalTime;
-        }
-
-        public void addCallee(Builder c) {
-            if (mCallees == null) {
-                mCallees = new ArrayList<Builder>();
-            }
-            mCallees.add(c);
-        }
-
-        @Nullable
-        public List<Builder> getCallees() {
-            return mCallees;
-        }
-
-        public int getMethodEntryThreadTime() {
-            return mEntryThreadTime;
-        }
-
-        public int getMethodEntryGlobalTime() {
-            return mEntryGlobalTime;
-        }
-
-        public int getMethodExitThreadTime() {
-            return mExitThreadTime;
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
         }
-
-        public int getMethodExitGlobalTime() {
-            return mExitGlobalTime;
+        if (!(o instanceof Call)) {
+            return false;
         }
+        Call other = (Call) o;
+        return mTable == other.mTable && mIndex == other.mIndex;
+    }
 
-        @NonNull
-        public Call build(@NonNull Stack<Long> backStack) {
-            return new Call(this, backStack);
-        }
+    @Override
+    public int hashCode() {
+        return 31 * System.identityHashCode(mTable) + mIndex;
     }
 
     /**
@@ -254,33 +174,33 @@ public class Call {
 
     /**
      * An iterator for a call hierarchy. The iteration order matches the order in which the calls
-     * were invoked.
+     * were invoked, which is also the order of the calls in the {@link CallTable}.
      */
     private static class CallHierarchyIterator implements Iterator<Call> {
-        private final Stack<Call> mCallStack = new Stack<Call>();
+        @NonNull
+        private final CallTable mTable;
+
+        private final int mEnd;
+
+        private int mNext;
 
         public CallHierarchyIterator(@NonNull Call top) {
-            mCallStack.push(top);
+            mTable = top.mTable;
+            mNext = top.mIndex;
+            mEnd = mTable.getSubtreeEnd(top.mIndex);
         }
 
         @Override
         public boolean hasNext() {
-            return !mCallStack.isEmpty();
+            return mNext < mEnd;
         }
 
         @Override
         public Call next() {
-            if (mCallStack.isEmpty()) {
+            if (mNext >= mEnd) {
                 return null;
             }
-
-            Call top = mCallStack.pop();
-
-            for (int i = top.getCallees().size() - 1; i >= 0; i--) {
-                mCallStack.push(top.getCallees().get(i));
-            }
-
-            return top;
+            return new Call(mTable, mNext++);
         }
 
         @Override
@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import com.android.annotations.NonNull;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import gnu.trove.TLongArrayList;
+
+/**
+ * Aggregates over the {@link CallTable} of one thread, computed once so that per method
+ * statistics, searches and time range queries don't need to walk the call hierarchy.
+ *
+ * The calls of each method are grouped together, in call order, along with prefix sums of their
+ * inclusive and exclusive times. The statistics of the calls of a method entered within a time
+ * range are thus found with two binary searches. As in {@link MethodProfileData}, the inclusive
+ * time of recursive calls isn't counted, since it is already included in an outer call.
+ *
+ * Time ranges are mapped to calls assuming that entry times increase in call order, which is the
+ * case for the traces written by the VM.
+ */
+public class CallIndex {
+
+    @NonNull
+    private final CallTable mTable;
+
+    //  Distinct methods called on the thread, sorted by id.
+    @NonNull
+    private final long[] mMethodIds;
+
+    //  Calls of method i are at mCalls[mCallOffsets[i]] to mCalls[mCallOffsets[i + 1] - 1].
+    @NonNull
+    private final int[] mCallOffsets;
+
+    @NonNull
+    private final int[] mCalls;
+
+    //  Times of the calls in mCalls before a given position, for each clock.
+    @NonNull
+    private final long[] mInclusiveThreadTimes;
+
+    @NonNull
+    private final long[] mInclusiveGlobalTimes;
+
+    @NonNull
+    private final long[] mExclusiveThreadTimes;
+
+    @NonNull
+    private final long[] mExclusiveGlobalTimes;
+
+    //  Highest entry time of the calls up to a given index, per clock. Used to map time ranges
+    //  to ranges of call indices, even if the clock goes back.
+    @NonNull
+    private final long[] mMaxEntryThreadTimes;
+
+    @NonNull
+    private final long[] mMaxEntryGlobalTimes;
+
+    //  Caller to callee method edges, as (caller ordinal, callee ordinal) keys, sorted.
+    @NonNull
+    private final long[] mEdgeKeys;
+
+    @NonNull
+    private final int[] mEdgeCounts;
+
+    @NonNull
+    private final long[] mEdgeThreadTimes;
+
+    @NonNull
+    private final long[] mEdgeGlobalTimes;
+
+    //  Edges sorted by (callee ordinal, caller ordinal), as indices into the edge arrays.
+    @NonNull
+    private final int[] mEdgesByCallee;
+
+    private CallIndex(@NonNull CallTable table) {
+        mTable = table;
+        int size = table.size();
+
+        // Group the calls by method, keeping them in call order.
+        long[] sortedIds = new long[size];
+        for (int i = 0; i < size; i++) {
+            sortedIds[i] = table.getMethodId(i);
+        }
+        Arrays.sort(sortedIds);
+        int methodCount = 0;
+        for (int i = 0; i < size; i++) {
+            if (i == 0 || sortedIds[i] != sortedIds[i - 1]) {
+                sortedIds[methodCount++] = sortedIds[i];
+            }
+        }
+        mMethodIds = Arrays.copyOf(sortedIds, methodCount);
+
+        int[] ordinals = new int[size];
+        mCallOffsets = new int[methodCount + 1];
+        for (int i = 0; i < size; i++) {
+            ordinals[i] = Arrays.binarySearch(mMethodIds, table.getMethodId(i));
+            mCallOffsets[ordinals[i] + 1]++;
+        }
+        for (int i = 0; i < methodCount; i++) {
+            mCallOffsets[i + 1] += mCallOffsets[i];
+        }
+        mCalls = new int[size];
+        int[] cursors = Arrays.copyOf(mCallOffsets, methodCount);
+        for (int i = 0; i < size; i++) {
+            mCalls[cursors[ordinals[i]]++] = i;
+        }
+
+        mInclusiveThreadTimes = new long[size + 1];
+        mInclusiveGlobalTimes = new long[size + 1];
+        mExclusiveThreadTimes = new long[size + 1];
+        mExclusiveGlobalTimes = new long[size + 1];
+        for (int pos = 0; pos < size; pos++) {
+            int call = mCalls[pos];
+            boolean recursive = table.isRecursive(call);
+            mInclusiveThreadTimes[pos + 1] = mInclusiveThreadTimes[pos]
+                    + (recursive ? 0 : table.getInclusiveTime(call, ClockType.THREAD));
+            mInclusiveGlobalTimes[pos + 1] = mInclusiveGlobalTimes[pos]
+                    + (recursive ? 0 : table.getInclusiveTime(call, ClockType.GLOBAL));
+            mExclusiveThreadTimes[pos + 1] = mExclusiveThreadTimes[pos]
+                    + table.getExclusiveTime(call, ClockType.THREAD);
+            mExclusiveGlobalTimes[pos + 1] = mExclusiveGlobalTimes[pos]
+                    + table.getExclusiveTime(call, ClockType.GLOBAL);
+        }
+
+        mMaxEntryThreadTimes = new long[size];
+        mMaxEntryGlobalTimes = new long[size];
+        for (int i = 0; i < size; i++) {
+            long threadTime = table.getEntryTime(i, ClockType.THREAD);
+            long globalTime = table.getEntryTime(i, ClockType.GLOBAL);
+            mMaxEntryThreadTimes[i] = i > 0 ? Math.max(mMaxEntryThreadTimes[i - 1], threadTime)
+                    : threadTime;
+            mMaxEntryGlobalTimes[i] = i > 0 ? Math.max(mMaxEntryGlobalTimes[i - 1], globalTime)
+                    : globalTime;
+        }
+
+        // Aggregate the calls made from each method to each other method.
+        long[] keys = new long[Math.max(size - 1, 0)];
+        for (int i = 1; i < size; i++) {
+            keys[i - 1] = edgeKey(ordinals[table.getParent(i)], ordinals[i]);
+        }
+        Arrays.sort(keys);
+        int edgeCount = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (i == 0 || keys[i] != keys[i - 1]) {
+                keys[edgeCount++] = keys[i];
+            }
+        }
+        mEdgeKeys = Arrays.copyOf(keys, edgeCount);
+        mEdgeCounts = new int[mEdgeKeys.length];
+        mEdgeThreadTimes = new long[mEdgeKeys.length];
+        mEdgeGlobalTimes = new long[mEdgeKeys.length];
+        for (int i = 1; i < size; i++) {
+            int edge = Arrays.binarySearch(mEdgeKeys, edgeKey(ordinals[table.getParent(i)],
+                    ordinals[i]));
+            mEdgeCounts[edge]++;
+            if (!table.isRecursive(i)) {
+                mEdgeThreadTimes[edge] += table.getInclusiveTime(i, ClockType.THREAD);
+                mEdgeGlobalTimes[edge] += table.getInclusiveTime(i, ClockType.GLOBAL);
+            }
+        }
+
+        long[] reversed = new long[mEdgeKeys.length];
+        for (int edge = 0; edge < mEdgeKeys.length; edge++) {
+            reversed[edge] = edgeKey(getCallee(edge), getCaller(edge));
+        }
+        Arrays.sort(reversed);
+        mEdgesByCallee = new int[mEdgeKeys.length];
+        for (int i = 0; i < reversed.length; i++) {
+            mEdgesByCallee[i] = Arrays.binarySearch(mEdgeKeys,
+                    edgeKey((int) reversed[i], (int) (reversed[i] >>> 32)));
+        }
+    }
+
+    /**
+     * Builds the index of the calls made on one thread.
+     */
+    @NonNull
+    public static CallIndex build(@NonNull CallTable table) {
+        return new CallIndex(table);
+    }
+
+    @NonNull
+    public CallTable getTable() {
+        return mTable;
+    }
+
+    /**
+     * Returns the ids of the methods called on the thread, sorted.
+     */
+    @NonNull
+    public long[] getMethodIds() {
+        return mMethodIds.clone();
+    }
+
+    public boolean containsMethod(long methodId) {
+        return Arrays.binarySearch(mMethodIds, methodId) >= 0;
+    }
+
+    /**
+     * Returns the indices in the {@link CallTable} of all the calls of a method, in call order.
+     */
+    @NonNull
+    public int[] getCalls(long methodId) {
+        int method = Arrays.binarySearch(mMethodIds, methodId);
+        if (method < 0) {
+            return new int[0];
+        }
+        return Arrays.copyOfRange(mCalls, mCallOffsets[method], mCallOffsets[method + 1]);
+    }
+
+    public int getInvocationCount(long methodId) {
+        int method = Arrays.binarySearch(mMethodIds, methodId);
+        return method < 0 ? 0 : mCallOffsets[method + 1] - mCallOffsets[method];
+    }
+
+    /**
+     * Returns the total inclusive time of a method, excluding recursive calls.
+     */
+    public long getInclusiveTime(long methodId, @NonNull ClockType clockType,
+            @NonNull TimeUnit unit) {
+        return getInclusiveTime(methodId, clockType, 0, Long.MAX_VALUE, unit);
+    }
+
+    public long getExclusiveTime(long methodId, @NonNull ClockType clockType,
+            @NonNull TimeUnit unit) {
+        return getExclusiveTime(methodId, clockType, 0, Long.MAX_VALUE, unit);
+    }
+
+    /**
+     * Returns the inclusive time of the calls of a method entered at or after {@code startTime}
+     * and before {@code endTime} on the given clock.
+     */
+    public long getInclusiveTime(long methodId, @NonNull ClockType clockType, long startTime,
+            long endTime, @NonNull TimeUnit unit) {
+        long[] sums = clockType == ClockType.THREAD ? mInclusiveThreadTimes : mInclusiveGlobalTimes;
+        return sumInRange(sums, methodId, clockType, startTime, endTime, unit);
+    }
+
+    /**
+     * Returns the exclusive time of the calls of a method entered at or after {@code startTime}
+     * and before {@code endTime} on the given clock.
+     */
+    public long getExclusiveTime(long methodId, @NonNull ClockType clockType, long startTime,
+            long endTime, @NonNull TimeUnit unit) {
+        long[] sums = clockType == ClockType.THREAD ? mExclusiveThreadTimes : mExclusiveGlobalTimes;
+        return sumInRange(sums, methodId, clockType, startTime, endTime, unit);
+    }
+
+    /**
+     * Returns the ids of the methods called by a method, sorted.
+     */
+    @NonNull
+    public long[] getCallees(long methodId) {
+        int method = Arrays.binarySearch(mMethodIds, methodId);
+        if (method < 0) {
+            return new long[0];
+        }
+        int from = lowerBound(mEdgeKeys, edgeKey(method, 0));
+        int to = lowerBound(mEdgeKeys, edgeKey(method + 1, 0));
+        long[] callees = new long[to - from];
+        for (int edge = from; edge < to; edge++) {
+            callees[edge - from] = mMethodIds[getCallee(edge)];
+        }
+        return callees;
+    }
+
+    /**
+     * Returns the ids of the methods calling a method, sorted.
+     */
+    @NonNull
+    public long[] getCallers(long methodId) {
+        int method = Arrays.binarySearch(mMethodIds, methodId);
+        if (method < 0) {
+            return new long[0];
+        }
+        // Edges by callee are ordered like their (callee, caller) keys.
+        int from = 0;
+        int to = mEdgesByCallee.length;
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (getCallee(mEdgesByCallee[mid]) < method) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        TLongArrayList callers = new TLongArrayList();
+        for (int i = from; i < mEdgesByCallee.length && getCallee(mEdgesByCallee[i]) == method;
+                i++) {
+            callers.add(mMethodIds[getCaller(mEdgesByCallee[i])]);
+        }
+        return callers.toNativeArray();
+    }
+
+    /**
+     * Returns the number of calls made from a method to another.
+     */
+    public int getInvocationCount(long callerId, long calleeId) {
+        int edge = findEdge(callerId, calleeId);
+        return edge < 0 ? 0 : mEdgeCounts[edge];
+    }
+
+    /**
+     * Returns the inclusive time of the calls made from a method to another, excluding recursive
+     * calls.
+     */
+    public long getInclusiveTime(long callerId, long calleeId, @NonNull ClockType clockType,
+            @NonNull TimeUnit unit) {
+        int edge = findEdge(callerId, calleeId);
+        if (edge < 0) {
+            return 0;
+        }
+        long time = clockType == ClockType.THREAD ? mEdgeThreadTimes[edge] : mEdgeGlobalTimes[edge];
+        return unit.convert(time, VmTraceData.getDefaultTimeUnits());
+    }
+
+    private long sumInRange(@NonNull long[] sums, long methodId, @NonNull ClockType clockType,
+            long startTime, long endTime, @NonNull TimeUnit unit) {
+        int method = Arrays.binarySearch(mMethodIds, methodId);
+        if (method < 0) {
+            return 0;
+        }
+        int from = mCallOffsets[method];
+        int to = mCallOffsets[method + 1];
+        if (startTime > 0 || endTime < Long.MAX_VALUE) {
+            long[] maxEntryTimes = clockType == ClockType.THREAD
+                    ? mMaxEntryThreadTimes : mMaxEntryGlobalTimes;
+            TimeUnit defaultUnit = VmTraceData.getDefaultTimeUnits();
+            int firstCall = lowerBound(maxEntryTimes, defaultUnit.convert(startTime, unit));
+            int lastCall = lowerBound(maxEntryTimes, defaultUnit.convert(endTime, unit));
+            to = lowerBound(mCalls, from, to, lastCall);
+            from = lowerBound(mCalls, from, to, firstCall);
+        }
+        return unit.convert(sums[to] - sums[from], VmTraceData.getDefaultTimeUnits());
+    }
+
+    private int findEdge(long callerId, long calleeId) {
+        int caller = Arrays.binarySearch(mMethodIds, callerId);
+        int callee = Arrays.binarySearch(mMethodIds, calleeId);
+        if (caller < 0 || callee < 0) {
+            return -1;
+        }
+        return Arrays.binarySearch(mEdgeKeys, edgeKey(caller, callee));
+    }
+
+    private int getCaller(int edge) {
+        return (int) (mEdgeKeys[edge] >>> 32);
+    }
+
+    private int getCallee(int edge) {
+        return (int) mEdgeKeys[edge];
+    }
+
+    private static long edgeKey(int from, int to) {
+        return ((long) from << 32) | to;
+    }
+
+    /** Returns the index of the first value not less than the given value. */
+    private static int lowerBound(@NonNull long[] values, long value) {
+        int from = 0;
+        int to = values.length;
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (values[mid] < value) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return from;
+    }
+
+    private static int lowerBound(@NonNull int[] values, int from, int to, int value) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (values[mid] < value) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return from;
+    }
+}
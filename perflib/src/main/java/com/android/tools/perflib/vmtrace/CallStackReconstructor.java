@@ -16,99 +16,103 @@
 
 package com.android.tools.perflib.vmtrace;
 
+import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Stack;
+import java.util.Map;
+
+import gnu.trove.TIntArrayList;
 
 /**
  * {@link CallStackReconstructor} helps in reconstructing per thread call stacks from a sequence of
  * trace events (method entry/exit events).
  */
 public class CallStackReconstructor {
+    private static final int NONE = -1;
+
     /** Method id corresponding to the top level call under which all calls are nested. */
     private final long mTopLevelCallId;
 
-    /** List of calls currently assumed to be at stack depth 0 (called from the top level) */
-    private final List<Call.Builder> mTopLevelCalls = new ArrayList<Call.Builder>();
+    /** Calls received so far, identified by the order they were added in. */
+    private final CallTable.Builder mCalls;
 
     /** Current call stack based on the sequence of received trace events. */
-    private final Stack<Call.Builder> mCallStack = new Stack<Call.Builder>();
+    private final TIntArrayList mCallStack;
 
     /** The single top level call under which the entire reconstructed call stack nests. */
     private Call mTopLevelCall;
 
+    /** Statistics of the calls, maintained as they are received if not null. */
+    @Nullable
+    private final ProfileDataAggregator mAggregator;
+
     /**
      * Constructs a call stack reconstructor with the method id under which
      * the entire call stack should nest.
      * */
     public CallStackReconstructor(long topLevelCallId) {
         mTopLevelCallId = topLevelCallId;
+        mCalls = new CallTable.Builder();
+        mCallStack = new TIntArrayList();
+        mAggregator = null;
+    }
+
+    /**
+     * Constructs a call stack reconstructor which also adds the statistics of the calls of the
+     * given thread to the builders of their methods as they are received, for
+     * {@link #addSnapshotStats(Map)}.
+     */
+    CallStackReconstructor(long topLevelCallId, int threadId,
+            @NonNull Map<Long, MethodProfileData.Builder> profiles) {
+        mTopLevelCallId = topLevelCallId;
+        mCalls = new CallTable.Builder();
+        mCallStack = new TIntArrayList();
+        mAggregator = new ProfileDataAggregator(threadId, topLevelCallId, mCalls, profiles);
     }
 
     public void addTraceAction(long methodId, TraceAction action, int threadTime, int globalTime) {
         if (action == TraceAction.METHOD_ENTER) {
-            enterMethod(methodId, threadTime, globalTime);
+            int call = enterMethod(methodId, threadTime, globalTime);
+            if (mAggregator != null) {
+                mAggregator.callEntered(call);
+            }
         } else {
-            exitMethod(methodId, threadTime, globalTime);
+            boolean entered = !mCallStack.isEmpty();
+            int call = exitMethod(methodId, threadTime, globalTime);
+            if (mAggregator != null) {
+                if (entered) {
+                    mAggregator.callExited(call);
+                } else {
+                    mAggregator.callExitedBeforeEntry(call);
+                }
+            }
         }
     }
 
-    private void enterMethod(long methodId, int threadTime, int globalTime) {
-        Call.Builder cb = new Call.Builder(methodId);
-        cb.setMethodEntryTime(threadTime, globalTime);
-
-        if (mCallStack.isEmpty()) {
-            mTopLevelCalls.add(cb);
-        } else {
-            Call.Builder caller = mCallStack.peek();
-            caller.addCallee(cb);
-        }
-
-        mCallStack.push(cb);
+    private int enterMethod(long methodId, int threadTime, int globalTime) {
+        int caller = mCallStack.isEmpty() ? NONE : mCallStack.get(mCallStack.size() - 1);
+        int call = mCalls.enterCall(methodId, caller, threadTime, globalTime);
+        mCallStack.add(call);
+        return call;
     }
 
-    private void exitMethod(long methodId, int threadTime, int globalTime) {
+    private int exitMethod(long methodId, int threadTime, int globalTime) {
         if (!mCallStack.isEmpty()) {
-            Call.Builder c = mCallStack.pop();
-            if (c.getMethodId() != methodId) {
+            int c = mCallStack.remove(mCallStack.size() - 1);
+            if (mCalls.getMethodId(c) != methodId) {
                 String msg = String
                         .format("Error during call stack reconstruction. Attempt to exit from method 0x%1$x while in method 0x%2$x",
-                                c.getMethodId(), methodId);
+                                mCalls.getMethodId(c), methodId);
                 throw new RuntimeException(msg);
             }
 
-            c.setMethodExitTime(threadTime, globalTime);
+            mCalls.exitCall(c, threadTime, globalTime);
+            return c;
         } else {
             // We are exiting out of a method that was entered into before tracing was started.
-            // In such a case, create this method
-            Call.Builder c = new Call.Builder(methodId);
-
-            // All the previous calls at the top level are now assumed to have been called from
-            // this method. So mark this method as having called all of those methods, and reset
-            // the top level to only include this method
-            for (Call.Builder cb : mTopLevelCalls) {
-                c.addCallee(cb);
-            }
-            mTopLevelCalls.clear();
-            mTopLevelCalls.add(c);
-
-            c.setMethodExitTime(threadTime, globalTime);
-
-            // We don't know this method's entry times, so we try to guess:
-            // If it has atleast 1 callee, then we know it must've been atleast before that callee's
-            // start time. If there are no callees, then we just assume that it was just before its
-            // exit times.
-            int entryThreadTime = threadTime - 1;
-            int entryGlobalTime = globalTime - 1;
-
-            if (c.getCallees() != null && !c.getCallees().isEmpty()) {
-                Call.Builder callee = c.getCallees().get(0);
-                entryThreadTime = Math.max(callee.getMethodEntryThreadTime() - 1, 0);
-                entryGlobalTime = Math.max(callee.getMethodEntryGlobalTime() - 1, 0);
-            }
-            c.setMethodEntryTime(entryThreadTime, entryGlobalTime);
+            // In such a case, create this method, which is assumed to have called all the
+            // previous calls at the top level.
+            return mCalls.exitCallBeforeEntry(methodId, threadTime, globalTime);
         }
     }
 
@@ -117,23 +121,22 @@ public class CallStackReconstructor {
      * @param methoId id of the method from which we are exiting
      * @param entryThreadTime method's thread entry time
      * @param entryGlobalTime method's global entry time
-     * @param callees from the method that we are exiting
+     * @param lastCallee last callee of the method that we are exiting, or -1
      */
     private void exitMethod(long methoId, int entryThreadTime, int entryGlobalTime,
-            @Nullable List<Call.Builder> callees) {
+            int lastCallee) {
         int lastExitThreadTime;
         int lastExitGlobalTime;
 
-        if (callees == null || callees.isEmpty()) {
+        if (lastCallee == NONE) {
             // if the call doesn't have any callees, we assume that it just ran for 1 unit of time
             lastExitThreadTime = entryThreadTime + 1;
             lastExitGlobalTime = entryGlobalTime + 1;
         } else {
             // if it did call other methods, we assume that this call exited 1 unit of time after
             // its last callee exited
-            Call.Builder last = callees.get(callees.size() - 1);
-            lastExitThreadTime = last.getMethodExitThreadTime() + 1;
-            lastExitGlobalTime = last.getMethodExitGlobalTime() + 1;
+            lastExitThreadTime = mCalls.getMethodExitThreadTime(lastCallee) + 1;
+            lastExitGlobalTime = mCalls.getMethodExitGlobalTime(lastCallee) + 1;
         }
 
         exitMethod(methoId, lastExitThreadTime, lastExitGlobalTime);
@@ -147,25 +150,49 @@ public class CallStackReconstructor {
         // If there are any methods still on the call stack, then the trace doesn't have
         // exit trace action for them, so clean those up
         while (!mCallStack.isEmpty()) {
-            Call.Builder cb = mCallStack.peek();
-            exitMethod(cb.getMethodId(), cb.getMethodEntryThreadTime(),
-                    cb.getMethodEntryGlobalTime(), cb.getCallees());
+            int cb = mCallStack.get(mCallStack.size() - 1);
+            exitMethod(mCalls.getMethodId(cb), mCalls.getMethodEntryThreadTime(cb),
+                    mCalls.getMethodEntryGlobalTime(cb), mCalls.getLastCallee(cb));
         }
 
         // Now that we have parsed the entire call stack, let us move all of it under a single
         // top level call.
-        exitMethod(mTopLevelCallId, 0, 0, mTopLevelCalls);
+        exitMethod(mTopLevelCallId, 0, 0, mCalls.getLastTopLevelCall());
 
         // TODO: use global / thread times to infer context switches
 
-        // Build calls from their respective builders
+        // Lay out the calls in a table
         // Now that we've added the top level call, there should be only 1 top level call
-        assert mTopLevelCalls.size() == 1;
-        mTopLevelCall = mTopLevelCalls.get(0).build(new Stack<Long>());
+        mTopLevelCall = mCalls.build().getCall(0);
     }
 
     public Call getTopLevel() {
         fixupCallStacks();
         return mTopLevelCall;
     }
+
+    /**
+     * Returns the top level call of the actions received so far, without preventing more actions
+     * from being added. Calls that haven't exited yet are closed as if the trace ended now. The
+     * calls which exited are shared with the reconstructor, so this only takes a time
+     * proportional to the depth of the call stack.
+     */
+    @NonNull
+    public Call getSnapshot() {
+        if (mTopLevelCall != null) {
+            return mTopLevelCall;
+        }
+        return mCalls.snapshot(mCallStack, mTopLevelCallId).getCall(0);
+    }
+
+    /**
+     * Adds the statistics of the actions received so far to the given builders, as
+     * {@link #getSnapshot()} would have them. Only available when the statistics are maintained as
+     * the calls are received.
+     */
+    void addSnapshotStats(@NonNull Map<Long, MethodProfileData.Builder> snapshot) {
+        assert mAggregator != null;
+        mAggregator.addSnapshotStats(mCalls.getFirstTopLevelCall(), mCalls.getLastTopLevelCall(),
+                snapshot);
+    }
 }
@@ -0,0 +1,623 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import com.android.annotations.NonNull;
+import com.google.common.primitives.UnsignedInts;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import gnu.trove.TIntArrayList;
+import gnu.trove.TLongArrayList;
+import gnu.trove.TLongIntHashMap;
+
+/**
+ * Columnar storage of all the calls made on one thread. Each call is an index into parallel
+ * primitive arrays, and {@link Call} objects are only created as lightweight views on demand.
+ *
+ * Calls are stored in the order they were entered, i.e. a depth first preorder of the call
+ * hierarchy, with the top level call at index 0. The calls nested under call <i>i</i> are thus at
+ * indices <i>i + 1</i> to {@code getSubtreeEnd(i) - 1}, and its direct callees are found by
+ * skipping from one subtree to the next.
+ *
+ * The top level call and the calls entered before tracing started, each one the only caller of
+ * the next, come first. They are followed by the calls entered in the trace, which are read from
+ * the {@link Builder} they were received by. A table built while calls are still being received
+ * thus shares them with the builder and with the other tables built from it, and only has its
+ * own copy of the calls that hadn't exited yet, closed as if they exited when it was built.
+ *
+ * As in the trace data, entry and exit times are stored as unsigned ints.
+ */
+public class CallTable {
+
+    /**
+     * Parent index of the top level call.
+     */
+    public static final int NO_PARENT = -1;
+
+    @NonNull
+    private final Builder mCalls;
+
+    //  Number of calls entered in the trace, following the calls at the head of the table.
+    private final int mBodySize;
+
+    //  The top level call and the calls entered before tracing, outermost first.
+    @NonNull
+    private final long[] mHeadMethodIds;
+
+    @NonNull
+    private final int[] mHeadEntryThreadTimes;
+
+    @NonNull
+    private final int[] mHeadEntryGlobalTimes;
+
+    @NonNull
+    private final int[] mHeadExitThreadTimes;
+
+    @NonNull
+    private final int[] mHeadExitGlobalTimes;
+
+    //  Number of calls entered in the trace nested under each call of the head.
+    @NonNull
+    private final int[] mHeadBodyEnds;
+
+    @NonNull
+    private final long[] mHeadThreadTimesInCallees;
+
+    @NonNull
+    private final long[] mHeadGlobalTimesInCallees;
+
+    //  Index in the head of the outermost call of each method of the head.
+    @NonNull
+    private final TLongIntHashMap mHeadMethodIndices = new TLongIntHashMap();
+
+    //  Calls which hadn't exited when the table was built, by increasing position in the body.
+    @NonNull
+    private final int[] mOpenCalls;
+
+    @NonNull
+    private final int[] mOpenExitThreadTimes;
+
+    @NonNull
+    private final int[] mOpenExitGlobalTimes;
+
+    @NonNull
+    private final long[] mOpenThreadTimesInCallees;
+
+    @NonNull
+    private final long[] mOpenGlobalTimesInCallees;
+
+    private CallTable(@NonNull Builder calls, int bodySize, int headSize, int openCount) {
+        mCalls = calls;
+        mBodySize = bodySize;
+        mHeadMethodIds = new long[headSize];
+        mHeadEntryThreadTimes = new int[headSize];
+        mHeadEntryGlobalTimes = new int[headSize];
+        mHeadExitThreadTimes = new int[headSize];
+        mHeadExitGlobalTimes = new int[headSize];
+        mHeadBodyEnds = new int[headSize];
+        mHeadThreadTimesInCallees = new long[headSize];
+        mHeadGlobalTimesInCallees = new long[headSize];
+        mOpenCalls = new int[openCount];
+        mOpenExitThreadTimes = new int[openCount];
+        mOpenExitGlobalTimes = new int[openCount];
+        mOpenThreadTimesInCallees = new long[openCount];
+        mOpenGlobalTimesInCallees = new long[openCount];
+    }
+
+    /**
+     * Returns the number of calls, including the top level call.
+     */
+    public int size() {
+        return mHeadMethodIds.length + mBodySize;
+    }
+
+    /**
+     * Returns a view of the call at the given index.
+     */
+    @NonNull
+    public Call getCall(int index) {
+        return new Call(this, index);
+    }
+
+    public long getMethodId(int index) {
+        return index < mHeadMethodIds.length
+                ? mHeadMethodIds[index] : mCalls.getMethodId(getCallId(index));
+    }
+
+    public int getDepth(int index) {
+        if (index < mHeadMethodIds.length) {
+            return index;
+        }
+        return mCalls.mDepths.get(getCallId(index)) + getInnermostHeadCall(index) + 1;
+    }
+
+    /**
+     * Returns the index of the caller of a call, or {@link #NO_PARENT} for the top level call.
+     */
+    public int getParent(int index) {
+        if (index < mHeadMethodIds.length) {
+            return index - 1;
+        }
+        int parent = mCalls.mParents.get(getCallId(index));
+        return parent != Builder.NONE
+                ? mHeadMethodIds.length + mCalls.mPositions.get(parent)
+                : getInnermostHeadCall(index);
+    }
+
+    /**
+     * Returns the index following the last call nested under the given call.
+     */
+    public int getSubtreeEnd(int index) {
+        int headSize = mHeadMethodIds.length;
+        if (index < headSize) {
+            return headSize + mHeadBodyEnds[index];
+        }
+        return getOpenCall(index) >= 0
+                ? headSize + mBodySize : headSize + mCalls.mSubtreeEnds.get(getCallId(index));
+    }
+
+    public boolean isRecursive(int index) {
+        long methodId = getMethodId(index);
+        if (index < mHeadMethodIds.length) {
+            return mHeadMethodIndices.get(methodId) < index;
+        }
+        if (mCalls.mRecursive.get(getCallId(index))) {
+            return true;
+        }
+        return mHeadMethodIndices.containsKey(methodId)
+                && mHeadMethodIndices.get(methodId) <= getInnermostHeadCall(index);
+    }
+
+    /**
+     * Returns the entry time of a call, in {@link VmTraceData#getDefaultTimeUnits()}.
+     */
+    public long getEntryTime(int index, @NonNull ClockType clockType) {
+        return UnsignedInts.toLong(getEntryTimeBits(index, clockType));
+    }
+
+    /**
+     * Returns the exit time of a call, in {@link VmTraceData#getDefaultTimeUnits()}.
+     */
+    public long getExitTime(int index, @NonNull ClockType clockType) {
+        return UnsignedInts.toLong(getExitTimeBits(index, clockType));
+    }
+
+    /**
+     * Returns the inclusive time of a call, in {@link VmTraceData#getDefaultTimeUnits()}.
+     */
+    public long getInclusiveTime(int index, @NonNull ClockType clockType) {
+        return UnsignedInts.toLong(
+                getExitTimeBits(index, clockType) - getEntryTimeBits(index, clockType));
+    }
+
+    /**
+     * Returns the exclusive time of a call, in {@link VmTraceData#getDefaultTimeUnits()}.
+     */
+    public long getExclusiveTime(int index, @NonNull ClockType clockType) {
+        boolean thread = clockType == ClockType.THREAD;
+        long timeInCallees;
+        if (index < mHeadMethodIds.length) {
+            timeInCallees = thread
+                    ? mHeadThreadTimesInCallees[index] : mHeadGlobalTimesInCallees[index];
+        } else {
+            int open = getOpenCall(index);
+            if (open >= 0) {
+                timeInCallees = thread
+                        ? mOpenThreadTimesInCallees[open] : mOpenGlobalTimesInCallees[open];
+            } else {
+                int call = getCallId(index);
+                timeInCallees = thread
+                        ? mCalls.mThreadTimesInCallees.get(call)
+                        : mCalls.mGlobalTimesInCallees.get(call);
+            }
+        }
+        return getInclusiveTime(index, clockType) - timeInCallees;
+    }
+
+    private int getEntryTimeBits(int index, @NonNull ClockType clockType) {
+        boolean thread = clockType == ClockType.THREAD;
+        if (index < mHeadMethodIds.length) {
+            return thread ? mHeadEntryThreadTimes[index] : mHeadEntryGlobalTimes[index];
+        }
+        int call = getCallId(index);
+        return thread
+                ? mCalls.getMethodEntryThreadTime(call) : mCalls.getMethodEntryGlobalTime(call);
+    }
+
+    private int getExitTimeBits(int index, @NonNull ClockType clockType) {
+        boolean thread = clockType == ClockType.THREAD;
+        if (index < mHeadMethodIds.length) {
+            return thread ? mHeadExitThreadTimes[index] : mHeadExitGlobalTimes[index];
+        }
+        int open = getOpenCall(index);
+        if (open >= 0) {
+            return thread ? mOpenExitThreadTimes[open] : mOpenExitGlobalTimes[open];
+        }
+        int call = getCallId(index);
+        return thread
+                ? mCalls.getMethodExitThreadTime(call) : mCalls.getMethodExitGlobalTime(call);
+    }
+
+    /**
+     * Returns the id in the builder of a call entered in the trace.
+     */
+    private int getCallId(int index) {
+        return mCalls.mCallsInTrace.get(index - mHeadMethodIds.length);
+    }
+
+    /**
+     * Returns the position in the open calls of a call entered in the trace, or a negative value
+     * if it had exited when the table was built.
+     */
+    private int getOpenCall(int index) {
+        return mOpenCalls.length == 0
+                ? -1 : Arrays.binarySearch(mOpenCalls, index - mHeadMethodIds.length);
+    }
+
+    /**
+     * Returns the index of the innermost call of the head that a call entered in the trace is
+     * nested under.
+     */
+    private int getInnermostHeadCall(int index) {
+        int position = index - mHeadMethodIds.length;
+        // The calls of the head are nested in each other, so their body ends decrease.
+        int low = 0;
+        int high = mHeadMethodIds.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (mHeadBodyEnds[middle] > position) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Accumulates the calls of a thread while its trace actions are read. Calls are identified by
+     * the order they were added in. The calls entered in the trace are also laid out as they are
+     * received, in the order of their index in the tables built from this builder: only the
+     * calls entered before tracing started, which are added when they exit after their callees,
+     * and the calls which haven't exited yet are laid out by {@link #build()} and
+     * {@link #snapshot(TIntArrayList, long)}.
+     */
+    public static class Builder {
+
+        static final int NONE = -1;
+
+        private final TLongArrayList mMethodIds = new TLongArrayList();
+
+        private final TIntArrayList mEntryThreadTimes = new TIntArrayList();
+
+        private final TIntArrayList mEntryGlobalTimes = new TIntArrayList();
+
+        private final TIntArrayList mExitThreadTimes = new TIntArrayList();
+
+        private final TIntArrayList mExitGlobalTimes = new TIntArrayList();
+
+        private final TIntArrayList mLastCallees = new TIntArrayList();
+
+        //  Position of the calls entered in the trace in the order they were entered, their
+        //  caller, or -1 at the top level, and their depth below the top level.
+        private final TIntArrayList mPositions = new TIntArrayList();
+
+        private final TIntArrayList mParents = new TIntArrayList();
+
+        private final TIntArrayList mDepths = new TIntArrayList();
+
+        //  Position following the last call entered in the trace nested under each call, known
+        //  once it exited.
+        private final TIntArrayList mSubtreeEnds = new TIntArrayList();
+
+        //  Sum of the inclusive times of the exited direct callees of each call, per clock.
+        private final TLongArrayList mThreadTimesInCallees = new TLongArrayList();
+
+        private final TLongArrayList mGlobalTimesInCallees = new TLongArrayList();
+
+        //  Calls entered in the trace whose method is also in their callers entered in the trace.
+        private final BitSet mRecursive = new BitSet();
+
+        //  Ids of the calls entered in the trace, by position.
+        private final TIntArrayList mCallsInTrace = new TIntArrayList();
+
+        //  Ids of the calls entered before tracing started, innermost first.
+        private final TIntArrayList mCallsBeforeTrace = new TIntArrayList();
+
+        //  Number of calls of each method which entered and haven't exited yet.
+        private final TLongIntHashMap mMethodsOnStack = new TLongIntHashMap();
+
+        private int mFirstTopLevelCall = NONE;
+
+        private int mLastTopLevelCall = NONE;
+
+        //  Sum of the inclusive times of the exited calls at the top level, per clock.
+        private long mTopLevelThreadTime;
+
+        private long mTopLevelGlobalTime;
+
+        public Builder() {
+        }
+
+        private int addCall(long methodId) {
+            int call = mMethodIds.size();
+            mMethodIds.add(methodId);
+            mEntryThreadTimes.add(0);
+            mEntryGlobalTimes.add(0);
+            mExitThreadTimes.add(0);
+            mExitGlobalTimes.add(0);
+            mLastCallees.add(NONE);
+            mPositions.add(NONE);
+            mParents.add(NONE);
+            mDepths.add(0);
+            mSubtreeEnds.add(0);
+            mThreadTimesInCallees.add(0);
+            mGlobalTimesInCallees.add(0);
+            return call;
+        }
+
+        /**
+         * Adds a call entered in the trace and returns its id.
+         *
+         * @param caller the id of the call on top of the stack, or -1 if the stack is empty.
+         */
+        public int enterCall(long methodId, int caller, int threadTime, int globalTime) {
+            int call = addCall(methodId);
+            mEntryThreadTimes.set(call, threadTime);
+            mEntryGlobalTimes.set(call, globalTime);
+            mPositions.set(call, mCallsInTrace.size());
+            mCallsInTrace.add(call);
+
+            if (caller == NONE) {
+                if (mFirstTopLevelCall == NONE) {
+                    mFirstTopLevelCall = call;
+                }
+                mLastTopLevelCall = call;
+            } else {
+                mParents.set(call, caller);
+                mDepths.set(call, mDepths.get(caller) + 1);
+                mLastCallees.set(caller, call);
+            }
+
+            int onStack = mMethodsOnStack.get(methodId);
+            if (onStack > 0) {
+                mRecursive.set(call);
+            }
+            mMethodsOnStack.put(methodId, onStack + 1);
+            return call;
+        }
+
+        /**
+         * Records the exit of the call entered in the trace on top of the stack.
+         */
+        public void exitCall(int call, int threadTime, int globalTime) {
+            mExitThreadTimes.set(call, threadTime);
+            mExitGlobalTimes.set(call, globalTime);
+            mSubtreeEnds.set(call, mCallsInTrace.size());
+            long methodId = mMethodIds.get(call);
+            mMethodsOnStack.put(methodId, mMethodsOnStack.get(methodId) - 1);
+
+            long inclusiveThreadTime = getInclusiveTime(call, ClockType.THREAD);
+            long inclusiveGlobalTime = getInclusiveTime(call, ClockType.GLOBAL);
+            int caller = mParents.get(call);
+            if (caller == NONE) {
+                mTopLevelThreadTime += inclusiveThreadTime;
+                mTopLevelGlobalTime += inclusiveGlobalTime;
+            } else {
+                mThreadTimesInCallees.set(caller,
+                        mThreadTimesInCallees.get(caller) + inclusiveThreadTime);
+                mGlobalTimesInCallees.set(caller,
+                        mGlobalTimesInCallees.get(caller) + inclusiveGlobalTime);
+            }
+        }
+
+        /**
+         * Adds a call exited while the stack is empty, which was entered before tracing started
+         * and becomes the caller of all the calls at the top level, and returns its id.
+         */
+        public int exitCallBeforeEntry(long methodId, int threadTime, int globalTime) {
+            int call = addCall(methodId);
+            mExitThreadTimes.set(call, threadTime);
+            mExitGlobalTimes.set(call, globalTime);
+
+            // We don't know this method's entry times, so we try to guess:
+            // If it has atleast 1 callee, then we know it must've been atleast before that callee's
+            // start time. If there are no callees, then we just assume that it was just before its
+            // exit times.
+            int entryThreadTime = threadTime - 1;
+            int entryGlobalTime = globalTime - 1;
+            if (mFirstTopLevelCall != NONE) {
+                entryThreadTime = Math.max(mEntryThreadTimes.get(mFirstTopLevelCall) - 1, 0);
+                entryGlobalTime = Math.max(mEntryGlobalTimes.get(mFirstTopLevelCall) - 1, 0);
+            }
+            mEntryThreadTimes.set(call, entryThreadTime);
+            mEntryGlobalTimes.set(call, entryGlobalTime);
+
+            // All the calls at the top level are now nested under this call, which is the only
+            // call at the top level.
+            mLastCallees.set(call, mLastTopLevelCall);
+            mSubtreeEnds.set(call, mCallsInTrace.size());
+            mThreadTimesInCallees.set(call, mTopLevelThreadTime);
+            mGlobalTimesInCallees.set(call, mTopLevelGlobalTime);
+            mCallsBeforeTrace.add(call);
+            mFirstTopLevelCall = call;
+            mLastTopLevelCall = call;
+            mTopLevelThreadTime = getInclusiveTime(call, ClockType.THREAD);
+            mTopLevelGlobalTime = getInclusiveTime(call, ClockType.GLOBAL);
+            return call;
+        }
+
+        public long getMethodId(int call) {
+            return mMethodIds.get(call);
+        }
+
+        public int getMethodEntryThreadTime(int call) {
+            return mEntryThreadTimes.get(call);
+        }
+
+        public int getMethodEntryGlobalTime(int call) {
+            return mEntryGlobalTimes.get(call);
+        }
+
+        public int getMethodExitThreadTime(int call) {
+            return mExitThreadTimes.get(call);
+        }
+
+        public int getMethodExitGlobalTime(int call) {
+            return mExitGlobalTimes.get(call);
+        }
+
+        /**
+         * Returns the id of the last callee of a call, or -1 if it has none.
+         */
+        public int getLastCallee(int call) {
+            return mLastCallees.get(call);
+        }
+
+        /**
+         * Returns the id of the first call at the top level, or -1 if there is none.
+         */
+        public int getFirstTopLevelCall() {
+            return mFirstTopLevelCall;
+        }
+
+        /**
+         * Returns the id of the last call at the top level, or -1 if there is none.
+         */
+        public int getLastTopLevelCall() {
+            return mLastTopLevelCall;
+        }
+
+        private long getInclusiveTime(int call, @NonNull ClockType clockType) {
+            return clockType == ClockType.THREAD
+                    ? UnsignedInts.toLong(mExitThreadTimes.get(call) - mEntryThreadTimes.get(call))
+                    : UnsignedInts.toLong(mExitGlobalTimes.get(call) - mEntryGlobalTimes.get(call));
+        }
+
+        /**
+         * Lays out the calls, which must all have exited, under the last call exited while the
+         * stack was empty, which is the top level call.
+         */
+        @NonNull
+        public CallTable build() {
+            assert !mCallsBeforeTrace.isEmpty();
+            return layout(0, new TIntArrayList(), 0);
+        }
+
+        /**
+         * Lays out the calls received so far under a new top level call of the given method,
+         * closing the calls on the given stack as if they exited now, without modifying this
+         * builder. This takes a time proportional to the depth of the stack, as the table shares
+         * the calls which exited with this builder.
+         *
+         * @param stack the ids of the calls which haven't exited yet, outermost first.
+         */
+        @NonNull
+        public CallTable snapshot(@NonNull TIntArrayList stack, long topLevelMethodId) {
+            CallTable table = layout(1, stack, topLevelMethodId);
+
+            // The calls on the stack exit one unit of time after their last callee, or after
+            // they were entered if they have none.
+            int exitThreadTime;
+            int exitGlobalTime;
+            long threadTime = 0;
+            long globalTime = 0;
+            for (int depth = stack.size() - 1; depth >= 0; depth--) {
+                int call = stack.get(depth);
+                if (depth == stack.size() - 1) {
+                    int lastCallee = mLastCallees.get(call);
+                    exitThreadTime = lastCallee == NONE
+                            ? mEntryThreadTimes.get(call) : mExitThreadTimes.get(lastCallee);
+                    exitGlobalTime = lastCallee == NONE
+                            ? mEntryGlobalTimes.get(call) : mExitGlobalTimes.get(lastCallee);
+                } else {
+                    exitThreadTime = table.mOpenExitThreadTimes[depth + 1];
+                    exitGlobalTime = table.mOpenExitGlobalTimes[depth + 1];
+                }
+                table.mOpenExitThreadTimes[depth] = exitThreadTime + 1;
+                table.mOpenExitGlobalTimes[depth] = exitGlobalTime + 1;
+                table.mOpenThreadTimesInCallees[depth] =
+                        mThreadTimesInCallees.get(call) + threadTime;
+                table.mOpenGlobalTimesInCallees[depth] =
+                        mGlobalTimesInCallees.get(call) + globalTime;
+                threadTime = UnsignedInts.toLong(
+                        table.mOpenExitThreadTimes[depth] - mEntryThreadTimes.get(call));
+                globalTime = UnsignedInts.toLong(
+                        table.mOpenExitGlobalTimes[depth] - mEntryGlobalTimes.get(call));
+            }
+
+            // The top level call exits one unit of time after its last callee, and is entered
+            // one unit of time before its first callee.
+            if (!stack.isEmpty()) {
+                exitThreadTime = table.mOpenExitThreadTimes[0];
+                exitGlobalTime = table.mOpenExitGlobalTimes[0];
+            } else if (mLastTopLevelCall != NONE) {
+                exitThreadTime = mExitThreadTimes.get(mLastTopLevelCall);
+                exitGlobalTime = mExitGlobalTimes.get(mLastTopLevelCall);
+            } else {
+                exitThreadTime = 0;
+                exitGlobalTime = 0;
+            }
+            exitThreadTime++;
+            exitGlobalTime++;
+            table.mHeadExitThreadTimes[0] = exitThreadTime;
+            table.mHeadExitGlobalTimes[0] = exitGlobalTime;
+            table.mHeadEntryThreadTimes[0] = mFirstTopLevelCall == NONE ? exitThreadTime - 1
+                    : Math.max(mEntryThreadTimes.get(mFirstTopLevelCall) - 1, 0);
+            table.mHeadEntryGlobalTimes[0] = mFirstTopLevelCall == NONE ? exitGlobalTime - 1
+                    : Math.max(mEntryGlobalTimes.get(mFirstTopLevelCall) - 1, 0);
+            table.mHeadThreadTimesInCallees[0] = mTopLevelThreadTime + threadTime;
+            table.mHeadGlobalTimesInCallees[0] = mTopLevelGlobalTime + globalTime;
+            return table;
+        }
+
+        /**
+         * Creates a table of the calls received so far, with the given number of new calls at
+         * the top of its head, which the caller sets up along with the open calls.
+         */
+        @NonNull
+        private CallTable layout(int newHeadCalls, @NonNull TIntArrayList stack,
+                long topLevelMethodId) {
+            int headSize = newHeadCalls + mCallsBeforeTrace.size();
+            CallTable table = new CallTable(this, mCallsInTrace.size(), headSize, stack.size());
+            if (newHeadCalls > 0) {
+                table.mHeadMethodIds[0] = topLevelMethodId;
+                table.mHeadBodyEnds[0] = mCallsInTrace.size();
+            }
+            for (int index = newHeadCalls; index < headSize; index++) {
+                int call = mCallsBeforeTrace.get(headSize - 1 - index);
+                table.mHeadMethodIds[index] = mMethodIds.get(call);
+                table.mHeadEntryThreadTimes[index] = mEntryThreadTimes.get(call);
+                table.mHeadEntryGlobalTimes[index] = mEntryGlobalTimes.get(call);
+                table.mHeadExitThreadTimes[index] = mExitThreadTimes.get(call);
+                table.mHeadExitGlobalTimes[index] = mExitGlobalTimes.get(call);
+                table.mHeadBodyEnds[index] = mSubtreeEnds.get(call);
+                table.mHeadThreadTimesInCallees[index] = mThreadTimesInCallees.get(call);
+                table.mHeadGlobalTimesInCallees[index] = mGlobalTimesInCallees.get(call);
+            }
+            for (int index = headSize - 1; index >= 0; index--) {
+                table.mHeadMethodIndices.put(table.mHeadMethodIds[index], index);
+            }
+            for (int depth = 0; depth < stack.size(); depth++) {
+                table.mOpenCalls[depth] = mPositions.get(stack.get(depth));
+            }
+            return table;
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.android.tools.perflib.vmtrace;
 
+import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.ImmutableMap;
@@ -125,7 +126,8 @@ public class MethodProfileData {
         return stats != null ? stats.getInvocationCount() : 0;
     }
 
-    private static class MethodStats {
+    /** Cumulative stats of a set of calls. */
+    static class MethodStats {
         private long mInclusiveThreadTime;
         private long mExclusiveThreadTime;
 
@@ -147,6 +149,39 @@ public class MethodProfileData {
         private long getInvocationCount() {
             return mInvocationCount;
         }
+
+        /** Adds inclusive times given in {@link VmTraceData#getDefaultTimeUnits()}. */
+        void addInclusiveTime(long threadTime, long globalTime) {
+            mInclusiveThreadTime += DATA_TIME_UNITS.convert(threadTime,
+                    VmTraceData.getDefaultTimeUnits());
+            mInclusiveGlobalTime += DATA_TIME_UNITS.convert(globalTime,
+                    VmTraceData.getDefaultTimeUnits());
+        }
+
+        /** Adds exclusive times given in {@link VmTraceData#getDefaultTimeUnits()}. */
+        void addExclusiveTime(long threadTime, long globalTime) {
+            mExclusiveThreadTime += DATA_TIME_UNITS.convert(threadTime,
+                    VmTraceData.getDefaultTimeUnits());
+            mExclusiveGlobalTime += DATA_TIME_UNITS.convert(globalTime,
+                    VmTraceData.getDefaultTimeUnits());
+        }
+
+        void addInvocationCount(long count) {
+            mInvocationCount += count;
+        }
+
+        void add(@NonNull MethodStats other) {
+            mInclusiveThreadTime += other.mInclusiveThreadTime;
+            mInclusiveGlobalTime += other.mInclusiveGlobalTime;
+            mExclusiveThreadTime += other.mExclusiveThreadTime;
+            mExclusiveGlobalTime += other.mExclusiveGlobalTime;
+            mInvocationCount += other.mInvocationCount;
+        }
+
+        void clearInclusiveTime() {
+            mInclusiveThreadTime = 0;
+            mInclusiveGlobalTime = 0;
+        }
     }
 
     public static class Builder {
@@ -158,6 +193,28 @@ public class MethodProfileData {
 
         private boolean mRecursive;
 
+        public Builder() {
+        }
+
+        /**
+         * Creates a copy of another builder, which can then be modified independently.
+         */
+        public Builder(@NonNull Builder other) {
+            for (Map.Entry<Integer, MethodStats> entry
+                    : other.mPerThreadCumulativeStats.entrySet()) {
+                getThreadStats(entry.getKey()).add(entry.getValue());
+            }
+            for (Table.Cell<Integer, Long, MethodStats> cell
+                    : other.mPerThreadStatsByCaller.cellSet()) {
+                getCallerStats(cell.getRowKey(), cell.getColumnKey()).add(cell.getValue());
+            }
+            for (Table.Cell<Integer, Long, MethodStats> cell
+                    : other.mPerThreadStatsByCallee.cellSet()) {
+                getCalleeStats(cell.getRowKey(), cell.getColumnKey()).add(cell.getValue());
+            }
+            mRecursive = other.mRecursive;
+        }
+
         public void addCallTime(Call call, Call parent, ThreadInfo thread) {
             for (ClockType type: ClockType.values()) {
                 addExclusiveTime(call, parent, thread, type);
@@ -207,22 +264,57 @@ public class MethodProfileData {
         }
 
         private MethodStats getPerThreadStats(ThreadInfo thread) {
-            MethodStats stats = mPerThreadCumulativeStats.get(thread.getId());
+            return getThreadStats(thread.getId());
+        }
+
+        private MethodStats getPerCallerStats(ThreadInfo thread, Call parent) {
+            return getCallerStats(thread.getId(), parent.getMethodId());
+        }
+
+        private MethodStats getPerCalleeStats(ThreadInfo thread, Call callee) {
+            return getCalleeStats(thread.getId(), callee.getMethodId());
+        }
+
+        @NonNull
+        MethodStats getThreadStats(int threadId) {
+            MethodStats stats = mPerThreadCumulativeStats.get(threadId);
             if (stats == null) {
                 stats = new MethodStats();
-                mPerThreadCumulativeStats.put(thread.getId(), stats);
+                mPerThreadCumulativeStats.put(threadId, stats);
             }
             return stats;
         }
 
-        private MethodStats getPerCallerStats(ThreadInfo thread, Call parent) {
-            return getMethodStatsFromTable(thread.getId(), parent.getMethodId(),
-                    mPerThreadStatsByCaller);
+        @NonNull
+        MethodStats getCallerStats(int threadId, long callerId) {
+            return getMethodStatsFromTable(threadId, callerId, mPerThreadStatsByCaller);
         }
 
-        private MethodStats getPerCalleeStats(ThreadInfo thread, Call callee) {
-            return getMethodStatsFromTable(thread.getId(), callee.getMethodId(),
-                    mPerThreadStatsByCallee);
+        @NonNull
+        MethodStats getCalleeStats(int threadId, long calleeId) {
+            return getMethodStatsFromTable(threadId, calleeId, mPerThreadStatsByCallee);
+        }
+
+        /** Returns whether calls of this method were added for the given thread. */
+        boolean hasStats(int threadId) {
+            return mPerThreadCumulativeStats.containsKey(threadId);
+        }
+
+        /**
+         * Clears the inclusive times of the calls added for the given thread, once they turn out to
+         * be recursive.
+         */
+        void clearInclusiveTimes(int threadId) {
+            MethodStats stats = mPerThreadCumulativeStats.get(threadId);
+            if (stats != null) {
+                stats.clearInclusiveTime();
+            }
+            for (MethodStats callerStats : mPerThreadStatsByCaller.row(threadId).values()) {
+                callerStats.clearInclusiveTime();
+            }
+            for (MethodStats calleeStats : mPerThreadStatsByCallee.row(threadId).values()) {
+                calleeStats.clearInclusiveTime();
+            }
         }
 
         private MethodStats getMethodStatsFromTable(Integer threadId, Long methodId,
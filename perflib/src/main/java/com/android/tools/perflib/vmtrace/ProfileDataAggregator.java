@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.vmtrace.MethodProfileData.MethodStats;
+import com.google.common.primitives.UnsignedInts;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import gnu.trove.TIntArrayList;
+import gnu.trove.TLongArrayList;
+import gnu.trove.TLongIntHashMap;
+
+/**
+ * Maintains the {@link MethodProfileData} of the calls of a thread while a
+ * {@link CallStackReconstructor} receives them, so that a snapshot of a trace still being received
+ * gets its statistics without going through all its calls again.
+ * <p/>The statistics are the ones computed from the call tree of the snapshot: each call is
+ * accounted for when it exits, except for what depends on the caller of the calls at the top
+ * level, which is only known once the method entered before tracing that called them exits.
+ */
+class ProfileDataAggregator {
+    private static final int NONE = -1;
+
+    private final int mThreadId;
+
+    /** Method id of the top level call under which all calls are nested. */
+    private final long mTopLevelCallId;
+
+    @NonNull
+    private final CallTable.Builder mCalls;
+
+    /** Builders of the method statistics, shared with the other threads. */
+    @NonNull
+    private final Map<Long, MethodProfileData.Builder> mProfiles;
+
+    /** Calls on the stack, outermost first. */
+    private final TIntArrayList mStack = new TIntArrayList();
+
+    /** Whether the calls on the stack are recursive, by depth. */
+    private final BitSet mRecursive = new BitSet();
+
+    /** Inclusive times of the exited callees of the calls on the stack, by depth. */
+    private final TLongArrayList mThreadTimesInCallees = new TLongArrayList();
+    private final TLongArrayList mGlobalTimesInCallees = new TLongArrayList();
+
+    /** Number of calls of each method on the stack. */
+    private final TLongIntHashMap mMethodsOnStack = new TLongIntHashMap();
+
+    /** Stats of the exited top level calls by method, to be added for their caller. */
+    private final Map<Long, MethodStats> mTopLevelStats = new HashMap<Long, MethodStats>();
+
+    /** Stats of the exited top level calls by method, to be added as callees of their caller. */
+    private final Map<Long, MethodStats> mTopLevelCalleeStats = new HashMap<Long, MethodStats>();
+
+    /** Inclusive times of the exited top level calls. */
+    private long mTopLevelThreadTime;
+    private long mTopLevelGlobalTime;
+
+    ProfileDataAggregator(int threadId, long topLevelCallId, @NonNull CallTable.Builder calls,
+            @NonNull Map<Long, MethodProfileData.Builder> profiles) {
+        mThreadId = threadId;
+        mTopLevelCallId = topLevelCallId;
+        mCalls = calls;
+        mProfiles = profiles;
+    }
+
+    void callEntered(int call) {
+        long methodId = mCalls.getMethodId(call);
+        int depth = mStack.size();
+        mStack.add(call);
+        mRecursive.set(depth, mMethodsOnStack.get(methodId) > 0);
+        if (depth < mThreadTimesInCallees.size()) {
+            mThreadTimesInCallees.set(depth, 0);
+            mGlobalTimesInCallees.set(depth, 0);
+        } else {
+            mThreadTimesInCallees.add(0);
+            mGlobalTimesInCallees.add(0);
+        }
+        mMethodsOnStack.put(methodId, mMethodsOnStack.get(methodId) + 1);
+    }
+
+    /**
+     * Adds the statistics of the call at the top of the stack, which exited.
+     */
+    void callExited(int call) {
+        int depth = mStack.size() - 1;
+        long methodId = mCalls.getMethodId(call);
+        mMethodsOnStack.put(methodId, mMethodsOnStack.get(methodId) - 1);
+        mStack.remove(depth);
+
+        long threadTime = UnsignedInts.toLong(
+                mCalls.getMethodExitThreadTime(call) - mCalls.getMethodEntryThreadTime(call));
+        long globalTime = UnsignedInts.toLong(
+                mCalls.getMethodExitGlobalTime(call) - mCalls.getMethodEntryGlobalTime(call));
+        addCall(methodId, depth, threadTime, globalTime, mThreadTimesInCallees.get(depth),
+                mGlobalTimesInCallees.get(depth), mProfiles);
+    }
+
+    /**
+     * Adds the statistics of a method exited while the stack is empty, which was entered before
+     * tracing started and becomes the caller of all the calls at the top level.
+     */
+    void callExitedBeforeEntry(int call) {
+        long threadTime = UnsignedInts.toLong(
+                mCalls.getMethodExitThreadTime(call) - mCalls.getMethodEntryThreadTime(call));
+        long globalTime = UnsignedInts.toLong(
+                mCalls.getMethodExitGlobalTime(call) - mCalls.getMethodEntryGlobalTime(call));
+        long exclusiveThreadTime = threadTime - mTopLevelThreadTime;
+        long exclusiveGlobalTime = globalTime - mTopLevelGlobalTime;
+        long methodId = mCalls.getMethodId(call);
+        addTopLevelCaller(methodId, threadTime, globalTime, mTopLevelThreadTime,
+                mTopLevelGlobalTime, mProfiles);
+
+        // The call is now the only one at the top level.
+        mTopLevelStats.clear();
+        mTopLevelCalleeStats.clear();
+        mTopLevelThreadTime = 0;
+        mTopLevelGlobalTime = 0;
+        addTopLevelCall(methodId, false, threadTime, globalTime, exclusiveThreadTime,
+                exclusiveGlobalTime);
+    }
+
+    /**
+     * Adds the statistics of the calls received so far to copies of the builders, as if the calls
+     * on the stack exited now and the top level call then wrapped all the calls, like
+     * {@link CallStackReconstructor#getTopLevel()} does. The copies are made on demand and put in
+     * the given map, so the builders of this aggregator are left untouched.
+     *
+     * @param firstTopLevelCall the first call at the top level, or -1 if there is none
+     * @param lastTopLevelCall the last call at the top level, or -1 if there is none
+     */
+    void addSnapshotStats(int firstTopLevelCall, int lastTopLevelCall,
+            @NonNull Map<Long, MethodProfileData.Builder> snapshot) {
+        int exitThreadTime = 0;
+        int exitGlobalTime = 0;
+        if (lastTopLevelCall != NONE) {
+            exitThreadTime = mCalls.getMethodExitThreadTime(lastTopLevelCall);
+            exitGlobalTime = mCalls.getMethodExitGlobalTime(lastTopLevelCall);
+        }
+
+        // The calls on the stack exit one unit of time after their last callee.
+        long threadTime = 0;
+        long globalTime = 0;
+        for (int depth = mStack.size() - 1; depth >= 0; depth--) {
+            int call = mStack.get(depth);
+            if (depth == mStack.size() - 1) {
+                int lastCallee = mCalls.getLastCallee(call);
+                if (lastCallee == NONE) {
+                    exitThreadTime = mCalls.getMethodEntryThreadTime(call);
+                    exitGlobalTime = mCalls.getMethodEntryGlobalTime(call);
+                } else {
+                    exitThreadTime = mCalls.getMethodExitThreadTime(lastCallee);
+                    exitGlobalTime = mCalls.getMethodExitGlobalTime(lastCallee);
+                }
+            }
+            exitThreadTime++;
+            exitGlobalTime++;
+
+            long threadTimeInCallees = mThreadTimesInCallees.get(depth) + threadTime;
+            long globalTimeInCallees = mGlobalTimesInCallees.get(depth) + globalTime;
+            threadTime = UnsignedInts.toLong(
+                    exitThreadTime - mCalls.getMethodEntryThreadTime(call));
+            globalTime = UnsignedInts.toLong(
+                    exitGlobalTime - mCalls.getMethodEntryGlobalTime(call));
+            addCall(mCalls.getMethodId(call), depth, threadTime, globalTime, threadTimeInCallees,
+                    globalTimeInCallees, snapshot);
+        }
+
+        // The top level call exits one unit of time after its last callee, and is entered
+        // one unit of time before its first callee.
+        exitThreadTime++;
+        exitGlobalTime++;
+        int entryThreadTime = exitThreadTime - 1;
+        int entryGlobalTime = exitGlobalTime - 1;
+        if (firstTopLevelCall != NONE) {
+            entryThreadTime = Math.max(mCalls.getMethodEntryThreadTime(firstTopLevelCall) - 1, 0);
+            entryGlobalTime = Math.max(mCalls.getMethodEntryGlobalTime(firstTopLevelCall) - 1, 0);
+        }
+        addTopLevelCaller(mTopLevelCallId, UnsignedInts.toLong(exitThreadTime - entryThreadTime),
+                UnsignedInts.toLong(exitGlobalTime - entryGlobalTime),
+                mTopLevelThreadTime + threadTime, mTopLevelGlobalTime + globalTime, snapshot);
+    }
+
+    /**
+     * Adds an exited call at the given depth of the stack, whose caller is the call below it or
+     * the future caller of the top level calls.
+     */
+    private void addCall(long methodId, int depth, long threadTime, long globalTime,
+            long threadTimeInCallees, long globalTimeInCallees,
+            @NonNull Map<Long, MethodProfileData.Builder> profiles) {
+        boolean recursive = mRecursive.get(depth);
+        long exclusiveThreadTime = threadTime - threadTimeInCallees;
+        long exclusiveGlobalTime = globalTime - globalTimeInCallees;
+
+        MethodProfileData.Builder builder = getBuilder(methodId, profiles);
+        addStats(builder.getThreadStats(mThreadId), recursive, threadTime, globalTime,
+                exclusiveThreadTime, exclusiveGlobalTime);
+        if (recursive) {
+            builder.setRecursive();
+        }
+
+        if (depth == 0) {
+            if (profiles == mProfiles) {
+                addTopLevelCall(methodId, recursive, threadTime, globalTime, exclusiveThreadTime,
+                        exclusiveGlobalTime);
+            } else {
+                // In a snapshot, the caller is the top level call added right afterwards.
+                addStats(builder.getCallerStats(mThreadId, mTopLevelCallId), recursive,
+                        threadTime, globalTime, exclusiveThreadTime, exclusiveGlobalTime);
+                addCalleeStats(getBuilder(mTopLevelCallId, profiles), false, methodId,
+                        threadTime, globalTime);
+            }
+            return;
+        }
+
+        long callerId = mCalls.getMethodId(mStack.get(depth - 1));
+        addStats(builder.getCallerStats(mThreadId, callerId), recursive, threadTime, globalTime,
+                exclusiveThreadTime, exclusiveGlobalTime);
+        addCalleeStats(getBuilder(callerId, profiles), mRecursive.get(depth - 1), methodId,
+                threadTime, globalTime);
+        if (profiles == mProfiles) {
+            mThreadTimesInCallees.set(depth - 1, mThreadTimesInCallees.get(depth - 1) + threadTime);
+            mGlobalTimesInCallees.set(depth - 1, mGlobalTimesInCallees.get(depth - 1) + globalTime);
+        }
+    }
+
+    private void addTopLevelCall(long methodId, boolean recursive, long threadTime,
+            long globalTime, long exclusiveThreadTime, long exclusiveGlobalTime) {
+        addStats(getStats(mTopLevelStats, methodId), recursive, threadTime, globalTime,
+                exclusiveThreadTime, exclusiveGlobalTime);
+        MethodStats calleeStats = getStats(mTopLevelCalleeStats, methodId);
+        calleeStats.addInclusiveTime(threadTime, globalTime);
+        calleeStats.addInvocationCount(1);
+        mTopLevelThreadTime += threadTime;
+        mTopLevelGlobalTime += globalTime;
+    }
+
+    /**
+     * Adds a call that becomes the caller of all the exited top level calls. It isn't recursive,
+     * as it has no caller yet, but the previous calls of its method now are.
+     */
+    private void addTopLevelCaller(long methodId, long threadTime, long globalTime,
+            long threadTimeInCallees, long globalTimeInCallees,
+            @NonNull Map<Long, MethodProfileData.Builder> profiles) {
+        MethodProfileData.Builder builder = getBuilder(methodId, profiles);
+        if (builder.hasStats(mThreadId)) {
+            builder.clearInclusiveTimes(mThreadId);
+            builder.setRecursive();
+        }
+
+        for (Map.Entry<Long, MethodStats> entry : mTopLevelStats.entrySet()) {
+            MethodStats callerStats =
+                    getBuilder(entry.getKey(), profiles).getCallerStats(mThreadId, methodId);
+            callerStats.add(entry.getValue());
+            if (entry.getKey() == methodId) {
+                // These calls are now recursive.
+                callerStats.clearInclusiveTime();
+            }
+        }
+        for (Map.Entry<Long, MethodStats> entry : mTopLevelCalleeStats.entrySet()) {
+            builder.getCalleeStats(mThreadId, entry.getKey()).add(entry.getValue());
+        }
+
+        addStats(builder.getThreadStats(mThreadId), false, threadTime, globalTime,
+                threadTime - threadTimeInCallees, globalTime - globalTimeInCallees);
+    }
+
+    private void addCalleeStats(@NonNull MethodProfileData.Builder callerBuilder,
+            boolean callerRecursive, long calleeId, long threadTime, long globalTime) {
+        MethodStats stats = callerBuilder.getCalleeStats(mThreadId, calleeId);
+        if (!callerRecursive) {
+            stats.addInclusiveTime(threadTime, globalTime);
+        }
+        stats.addInvocationCount(1);
+    }
+
+    private static void addStats(@NonNull MethodStats stats, boolean recursive, long threadTime,
+            long globalTime, long exclusiveThreadTime, long exclusiveGlobalTime) {
+        stats.addExclusiveTime(exclusiveThreadTime, exclusiveGlobalTime);
+        if (!recursive) {
+            stats.addInclusiveTime(threadTime, globalTime);
+        }
+        stats.addInvocationCount(1);
+    }
+
+    @NonNull
+    private static MethodStats getStats(@NonNull Map<Long, MethodStats> statsMap, long methodId) {
+        MethodStats stats = statsMap.get(methodId);
+        if (stats == null) {
+            stats = new MethodStats();
+            statsMap.put(methodId, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the builder of a method in the given map, which is either the map of the aggregated
+     * builders, or the map of a snapshot, in which case the aggregated builder is copied into it
+     * the first time.
+     */
+    @NonNull
+    private MethodProfileData.Builder getBuilder(long methodId,
+            @NonNull Map<Long, MethodProfileData.Builder> profiles) {
+        MethodProfileData.Builder builder = profiles.get(methodId);
+        if (builder == null) {
+            MethodProfileData.Builder aggregated = profiles != mProfiles
+                    ? mProfiles.get(methodId) : null;
+            builder = aggregated != null
+                    ? new MethodProfileData.Builder(aggregated) : new MethodProfileData.Builder();
+            profiles.put(methodId, builder);
+        }
+        return builder;
+    }
+}
@@ -16,6 +16,8 @@
 
 package com.android.tools.perflib.vmtrace;
 
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.utils.SparseArray;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
@@ -23,15 +25,21 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -58,13 +66,21 @@ public class VmTraceData {
     /** Map from thread name to thread info. */
     private final Map<String, ThreadInfo> mThreadInfo;
 
-    private VmTraceData(Builder b) {
+    /** Map from thread id to the index of its calls, built on demand. */
+    private final Map<Integer, CallIndex> mCallIndices = Maps.newHashMap();
+
+    /** Methods and their lower case full names, for {@link #searchFor(String, ThreadInfo)}. */
+    private MethodInfo[] mSearchMethods;
+    private String[] mSearchNames;
+
+    private VmTraceData(Builder b, Map<Long, MethodInfo> methods,
+            SparseArray<Call> topLevelCalls) {
         mVersion = b.mVersion;
         mDataFileOverflow = b.mDataFileOverflow;
         mVmClockType = b.mVmClockType;
         mVm = b.mVm;
         mTraceProperties = b.mProperties;
-        mMethods = b.mMethods;
+        mMethods = methods;
 
         mThreadInfo = Maps.newHashMapWithExpectedSize(b.mThreads.size());
         for (int i = 0; i < b.mThreads.size(); i++) {
@@ -77,7 +93,7 @@ public class VmTraceData {
                 name = String.format("%1$s-%2$d", name, id);
             }
 
-            info = new ThreadInfo(id, name, b.mTopLevelCalls.get(id));
+            info = new ThreadInfo(id, name, topLevelCalls.get(id));
             mThreadInfo.put(name, info);
         }
     }
@@ -139,12 +155,72 @@ public class VmTraceData {
         return mMethods.get(methodId);
     }
 
+    /**
+     * Builds the {@link CallIndex} of every thread, in parallel if an executor is given. Indices
+     * are otherwise built when first needed.
+     */
+    public void buildCallIndices(@Nullable ExecutorService executor) {
+        List<ThreadInfo> threads = getThreads(true);
+        if (executor == null) {
+            for (ThreadInfo thread : threads) {
+                getCallIndex(thread);
+            }
+            return;
+        }
+
+        List<Future<CallIndex>> futures = new ArrayList<Future<CallIndex>>(threads.size());
+        for (final ThreadInfo thread : threads) {
+            futures.add(executor.submit(new Callable<CallIndex>() {
+                @Override
+                public CallIndex call() throws Exception {
+                    //noinspection ConstantConditions
+                    return CallIndex.build(thread.getTopLevelCall().getTable());
+                }
+            }));
+        }
+        try {
+            for (int i = 0; i < threads.size(); i++) {
+                CallIndex index = futures.get(i).get();
+                synchronized (mCallIndices) {
+                    mCallIndices.put(threads.get(i).getId(), index);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the index of the calls made on a thread, or null if the thread made no calls.
+     */
+    @Nullable
+    public CallIndex getCallIndex(@NonNull ThreadInfo thread) {
+        Call topLevelCall = getThread(thread.getName()).getTopLevelCall();
+        if (topLevelCall == null) {
+            return null;
+        }
+        synchronized (mCallIndices) {
+            CallIndex index = mCallIndices.get(thread.getId());
+            if (index == null) {
+                index = CallIndex.build(topLevelCall.getTable());
+                mCallIndices.put(thread.getId(), index);
+            }
+            return index;
+        }
+    }
+
     /** Returns the duration of this call as a percentage of the duration of the top level call. */
     public double getDurationPercentage(Call call, ThreadInfo thread, ClockType clockType,
             boolean inclusiveTime) {
-        MethodInfo methodInfo = getMethod(call.getMethodId());
-        TimeSelector selector = TimeSelector.create(clockType, inclusiveTime);
-        long methodTime = selector.get(methodInfo, thread, TimeUnit.NANOSECONDS);
+        CallIndex index = getCallIndex(thread);
+        if (index == null) {
+            return 100.;
+        }
+        long methodTime = getTime(index, call.getMethodId(), clockType, inclusiveTime, 0,
+                Long.MAX_VALUE, TimeUnit.NANOSECONDS);
         return getDurationPercentage(methodTime, thread, clockType);
     }
 
@@ -158,47 +234,108 @@ public class VmTraceData {
             return 100.;
         }
 
-        MethodInfo topInfo = getMethod(topCall.getMethodId());
-
         // always use inclusive time to obtain the top level's time when computing percentages
-        TimeSelector selector = TimeSelector.create(clockType, true);
-        long topLevelTime = selector.get(topInfo, thread, TimeUnit.NANOSECONDS);
+        long topLevelTime = topCall.getInclusiveTime(clockType, TimeUnit.NANOSECONDS);
 
         return (double) methodTime/topLevelTime * 100;
     }
 
+    /**
+     * Returns the methods which took the most time in the calls entered within a time range on
+     * a thread, sorted by decreasing time. The range is in the given time units, on the given
+     * clock.
+     */
+    @NonNull
+    public List<MethodInfo> getTopMethods(@NonNull ThreadInfo thread,
+            @NonNull ClockType clockType, boolean inclusiveTime, long startTime, long endTime,
+            @NonNull TimeUnit unit, int count) {
+        CallIndex index = getCallIndex(thread);
+        if (index == null || count <= 0) {
+            return Collections.emptyList();
+        }
+
+        long[] methodIds = index.getMethodIds();
+        final long[] times = new long[methodIds.length];
+        for (int i = 0; i < methodIds.length; i++) {
+            times[i] = getTime(index, methodIds[i], clockType, inclusiveTime, startTime, endTime,
+                    unit);
+        }
+
+        Comparator<Integer> byTime = new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                long time1 = times[o1];
+                long time2 = times[o2];
+                return time1 < time2 ? -1 : (time1 > time2 ? 1 : o2 - o1);
+            }
+        };
+        PriorityQueue<Integer> top = new PriorityQueue<Integer>(count, byTime);
+        for (int i = 0; i < methodIds.length; i++) {
+            if (times[i] <= 0) {
+                continue;
+            }
+            if (top.size() < count) {
+                top.add(i);
+            } else if (byTime.compare(i, top.peek()) > 0) {
+                top.poll();
+                top.add(i);
+            }
+        }
+
+        MethodInfo[] result = new MethodInfo[top.size()];
+        for (int i = result.length - 1; i >= 0; i--) {
+            result[i] = getMethod(methodIds[top.poll()]);
+        }
+        return ImmutableList.copyOf(result);
+    }
+
+    /**
+     * Returns the time of the calls of a method entered within a time range on the given clock.
+     * The range and the result are in the given time units.
+     */
+    private static long getTime(@NonNull CallIndex index, long methodId,
+            @NonNull ClockType clockType, boolean inclusiveTime, long startTime, long endTime,
+            @NonNull TimeUnit unit) {
+        return inclusiveTime
+                ? index.getInclusiveTime(methodId, clockType, startTime, endTime, unit)
+                : index.getExclusiveTime(methodId, clockType, startTime, endTime, unit);
+    }
+
     public SearchResult searchFor(String pattern, ThreadInfo thread) {
         pattern = pattern.toLowerCase(Locale.US);
 
         Set<MethodInfo> methods = new HashSet<MethodInfo>();
         Set<Call> calls = new HashSet<Call>();
 
-        Call topLevelCall = getThread(thread.getName()).getTopLevelCall();
-        if (topLevelCall == null) {
+        CallIndex index = getCallIndex(thread);
+        if (index == null) {
             // no matches
             return new SearchResult(methods, calls);
         }
 
         // Find all methods matching given pattern called on given thread
-        for (MethodInfo method: getMethods().values()) {
-            String fullName = method.getFullName().toLowerCase(Locale.US);
-            if (fullName.contains(pattern)) { // method name matches
-                long inclusiveTime = method.getProfileData()
-                        .getInclusiveTime(thread, ClockType.GLOBAL, TimeUnit.NANOSECONDS);
-                if (inclusiveTime > 0) {
-                    // method was called in this thread
-                    methods.add(method);
+        synchronized (this) {
+            if (mSearchNames == null) {
+                mSearchMethods = mMethods.values().toArray(new MethodInfo[mMethods.size()]);
+                mSearchNames = new String[mSearchMethods.length];
+                for (int i = 0; i < mSearchMethods.length; i++) {
+                    mSearchNames[i] = mSearchMethods[i].getFullName().toLowerCase(Locale.US);
                 }
             }
         }
-
-        // Find all invocations of the matched methods
-        Iterator<Call> iterator = topLevelCall.getCallHierarchyIterator();
-        while (iterator.hasNext()) {
-            Call c = iterator.next();
-            MethodInfo method = getMethod(c.getMethodId());
-            if (methods.contains(method)) {
-                calls.add(c);
+        for (int i = 0; i < mSearchNames.length; i++) {
+            MethodInfo method = mSearchMethods[i];
+            if (mSearchNames[i].contains(pattern) // method name matches
+                    && index.getInclusiveTime(method.id, ClockType.GLOBAL,
+                            TimeUnit.NANOSECONDS) > 0) {
+                // method was called in this thread
+                methods.add(method);
+
+                // Find all invocations of the matched method
+                CallTable table = index.getTable();
+                for (int call : index.getCalls(method.id)) {
+                    calls.add(table.getCall(call));
+                }
             }
         }
 
@@ -227,6 +364,10 @@ public class VmTraceData {
         /** Map from thread id to the top level call for that thread. */
         private final SparseArray<Call> mTopLevelCalls = new SparseArray<Call>(10);
 
+        /** Map from method id to the statistics of its calls, if they are aggregated. */
+        @Nullable
+        private Map<Long, MethodProfileData.Builder> mProfiles;
+
         public void setVersion(int version) {
             mVersion = version;
         }
@@ -263,6 +404,16 @@ public class VmTraceData {
             mMethods.put(id, info);
         }
 
+        /**
+         * Makes the builder maintain the profile data of the methods as the actions are added, so
+         * that {@link #buildSnapshot()} provides it without going through all the calls again.
+         * This must be called before any action is added.
+         */
+        public void aggregateProfileData() {
+            assert mStackReconstructors.size() == 0;
+            mProfiles = new HashMap<Long, MethodProfileData.Builder>();
+        }
+
         public void addMethodAction(int threadId, long methodId, TraceAction methodAction,
                 int threadTime, int globalTime) {
             // create thread info if it doesn't exist
@@ -286,7 +437,9 @@ public class VmTraceData {
             CallStackReconstructor reconstructor = mStackReconstructors.get(threadId);
             if (reconstructor == null) {
                 long topLevelCallId = createUniqueMethodIdForThread(threadId);
-                reconstructor = new CallStackReconstructor(topLevelCallId);
+                reconstructor = mProfiles != null
+                        ? new CallStackReconstructor(topLevelCallId, threadId, mProfiles)
+                        : new CallStackReconstructor(topLevelCallId);
                 mStackReconstructors.put(threadId, reconstructor);
             }
 
@@ -309,7 +462,47 @@ public class VmTraceData {
                 mTopLevelCalls.put(threadId, reconstructor.getTopLevel());
             }
 
-            return new VmTraceData(this);
+            return new VmTraceData(this, mMethods, mTopLevelCalls);
+        }
+
+        /**
+         * Returns the trace data of the actions added so far, leaving this builder untouched so
+         * that more actions can be added. Calls that haven't exited yet are closed as if the trace
+         * ended now. The snapshot has its own copies of the {@link MethodInfo}, so that profile
+         * data computed for it doesn't leak into the final trace data or other snapshots. They
+         * have their profile data if {@link #aggregateProfileData()} was called.
+         */
+        public VmTraceData buildSnapshot() {
+            Map<Long, MethodInfo> methods = new HashMap<Long, MethodInfo>(mMethods.size());
+            for (MethodInfo info : mMethods.values()) {
+                methods.put(info.id, new MethodInfo(info.id, info.className, info.methodName,
+                        info.signature, info.srcPath, info.srcLineNumber));
+            }
+
+            SparseArray<Call> topLevelCalls = new SparseArray<Call>(mStackReconstructors.size());
+            for (int i = 0; i < mStackReconstructors.size(); i++) {
+                topLevelCalls.put(mStackReconstructors.keyAt(i),
+                        mStackReconstructors.valueAt(i).getSnapshot());
+            }
+
+            if (mProfiles != null) {
+                // Only the builders changed by the calls still in progress are copied.
+                Map<Long, MethodProfileData.Builder> profiles =
+                        new HashMap<Long, MethodProfileData.Builder>();
+                for (int i = 0; i < mStackReconstructors.size(); i++) {
+                    mStackReconstructors.valueAt(i).addSnapshotStats(profiles);
+                }
+                for (Map.Entry<Long, MethodProfileData.Builder> entry : mProfiles.entrySet()) {
+                    if (!profiles.containsKey(entry.getKey())) {
+                        profiles.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                for (Map.Entry<Long, MethodProfileData.Builder> entry : profiles.entrySet()) {
+                    methods.get(entry.getKey()).setProfileData(entry.getValue().build());
+                }
+            }
+
+            return new VmTraceData(this, methods, topLevelCalls);
         }
     }
 }
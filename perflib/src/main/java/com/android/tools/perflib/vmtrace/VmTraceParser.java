@@ -17,6 +17,7 @@
 package com.android.tools.perflib.vmtrace;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
 import com.android.ddmlib.ByteBufferUtil;
 import com.google.common.base.Charsets;
@@ -28,11 +29,13 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 public class VmTraceParser {
     private static final int TRACE_MAGIC = 0x574f4c53; // 'SLOW'
@@ -46,11 +49,31 @@ public class VmTraceParser {
     private static final String KEY_DATA_OVERFLOW = "data-file-overflow";
     private static final String KEY_VM = "vm";
 
+    /** Initial size of the buffer holding the bytes not parsed yet in streaming mode. */
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    @Nullable
     private final File mTraceFile;
 
     private final VmTraceData.Builder mTraceDataBuilder;
     private VmTraceData mTraceData;
 
+    /** Section of the header being parsed, one of the PARSE_* values. */
+    private int mHeaderMode = PARSE_VERSION;
+
+    /** Part of the stream not parsed yet in streaming mode, in write mode. */
+    @Nullable
+    private ByteBuffer mPending;
+
+    /** Streaming mode state, one of the STREAM_* values. */
+    private int mStreamState = STREAM_HEADER;
+
+    private int mRecordSize;
+
+    /** Last snapshot returned in streaming mode, until more data is consumed. */
+    @Nullable
+    private VmTraceData mSnapshot;
+
     public VmTraceParser(File traceFile) {
         if (!traceFile.exists()) {
             throw new IllegalArgumentException(
@@ -60,11 +83,36 @@ public class VmTraceParser {
         mTraceDataBuilder = new VmTraceData.Builder();
     }
 
+    /**
+     * Creates a parser in streaming mode, for a trace which is received incrementally through
+     * {@link #consume(byte[], int, int)} or {@link #consume(InputStream)}, e.g. while it is still
+     * being written on the device. {@link #getSnapshot()} returns the trace data received so far,
+     * and {@link #finish()} must be called once the whole trace has been received.
+     */
+    public VmTraceParser() {
+        mTraceFile = null;
+        mTraceDataBuilder = new VmTraceData.Builder();
+        mTraceDataBuilder.aggregateProfileData();
+        mPending = ByteBuffer.allocate(STREAM_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
     public void parse() throws IOException {
+        parse(null);
+    }
+
+    /**
+     * Parses the trace file, and then builds the {@link CallIndex} of each thread, in parallel
+     * if an executor is given.
+     */
+    public void parse(@Nullable ExecutorService executor) throws IOException {
+        if (mTraceFile == null) {
+            throw new IllegalStateException("Streaming parsers read their data with consume()");
+        }
         long headerLength = parseHeader(mTraceFile);
         ByteBuffer buffer = ByteBufferUtil.mapFile(mTraceFile, headerLength, ByteOrder.LITTLE_ENDIAN);
         parseData(buffer);
-        computeTimingStatistics();
+        computeTimingStatistics(getTraceData());
+        getTraceData().buildCallIndices(executor);
     }
 
     public VmTraceData getTraceData() {
@@ -75,6 +123,136 @@ public class VmTraceParser {
         return mTraceData;
     }
 
+    static final int STREAM_HEADER = 0;
+    static final int STREAM_DATA_HEADER = 1;
+    static final int STREAM_RECORDS = 2;
+
+    /**
+     * Parses the next bytes of a trace in streaming mode. Records split across calls are kept
+     * until the rest of their bytes is received.
+     */
+    public void consume(@NonNull byte[] data, int offset, int length) {
+        if (mPending == null) {
+            throw new IllegalStateException("The parser is not in streaming mode");
+        }
+        if (mTraceData != null) {
+            throw new IllegalStateException("The trace has already been finished");
+        }
+        if (mPending.remaining() < length) {
+            int capacity = mPending.capacity();
+            while (capacity - mPending.position() < length) {
+                capacity *= 2;
+            }
+            ByteBuffer pending = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+            mPending.flip();
+            pending.put(mPending);
+            mPending = pending;
+        }
+        mPending.put(data, offset, length);
+        if (length > 0) {
+            mSnapshot = null;
+        }
+
+        mPending.flip();
+        try {
+            parsePending(mPending);
+        } finally {
+            mPending.compact();
+        }
+    }
+
+    /**
+     * Parses all the bytes currently available from a stream in streaming mode, and returns their
+     * number. For a trace file still being written, this can be called again on the same stream
+     * once the file has grown.
+     */
+    public long consume(@NonNull InputStream in) throws IOException {
+        byte[] chunk = new byte[STREAM_BUFFER_SIZE];
+        long total = 0;
+        int n;
+        while ((n = in.read(chunk)) > 0) {
+            consume(chunk, 0, n);
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the trace data received so far in streaming mode, with its timing statistics. The
+     * parser can keep consuming data afterwards. Calls still in progress are treated as if they
+     * exited at the time of the last record received. The same snapshot is returned until more
+     * data is consumed.
+     */
+    @NonNull
+    public VmTraceData getSnapshot() {
+        if (mTraceData != null) {
+            return mTraceData;
+        }
+        // The statistics are maintained as the calls are received, instead of being computed
+        // from all the calls of each snapshot.
+        if (mSnapshot == null) {
+            mSnapshot = mTraceDataBuilder.buildSnapshot();
+        }
+        return mSnapshot;
+    }
+
+    /**
+     * Completes a trace received in streaming mode, and computes its timing statistics. The
+     * result is then available from {@link #getTraceData()}.
+     */
+    public void finish() throws IOException {
+        if (mPending == null) {
+            throw new IllegalStateException("The parser is not in streaming mode");
+        }
+        if (mTraceData != null) {
+            return;
+        }
+        if (mStreamState == STREAM_HEADER) {
+            throw new IOException("Key section does not have an *end marker");
+        }
+        computeTimingStatistics(getTraceData());
+        getTraceData().buildCallIndices(null);
+    }
+
+    /**
+     * Parses as much of the pending bytes as possible, leaving the position of the buffer at the
+     * first byte which couldn't be parsed yet.
+     */
+    private void parsePending(@NonNull ByteBuffer buffer) {
+        while (mStreamState == STREAM_HEADER) {
+            int start = buffer.position();
+            int end = start;
+            while (end < buffer.limit() && buffer.get(end) != '\n') {
+                end++;
+            }
+            if (end == buffer.limit()) {
+                return;
+            }
+            int length = end - start;
+            if (length > 0 && buffer.get(end - 1) == '\r') {
+                length--;
+            }
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            buffer.position(end + 1);
+            if (parseHeaderLine(new String(bytes, Charsets.US_ASCII))) {
+                mStreamState = STREAM_DATA_HEADER;
+            }
+        }
+
+        if (mStreamState == STREAM_DATA_HEADER) {
+            // The size of the data header is at offset 6, after the magic and the version.
+            if (buffer.remaining() < 8
+                    || buffer.remaining() < buffer.getShort(buffer.position() + 6)) {
+                return;
+            }
+            mRecordSize = readDataFileHeader(buffer);
+            mStreamState = STREAM_RECORDS;
+        }
+
+        parseMethodTraceData(buffer, mRecordSize);
+    }
+
     static final int PARSE_VERSION = 0;
     static final int PARSE_THREADS = 1;
     static final int PARSE_METHODS = 2;
@@ -88,7 +266,6 @@ public class VmTraceParser {
         try {
             in = new BufferedReader(new InputStreamReader(new FileInputStream(f), Charsets.US_ASCII));
 
-            int mode = PARSE_VERSION;
             String line;
             while (true) {
                 line = in.readLine();
@@ -100,38 +277,8 @@ public class VmTraceParser {
                 // extra byte is for the line ending not included by readLine().
                 offset += line.length() + 1;
 
-                if (line.startsWith("*")) {
-                    if (line.equals(HEADER_SECTION_VERSION)) {
-                        mode = PARSE_VERSION;
-                        continue;
-                    }
-                    if (line.equals(HEADER_SECTION_THREADS)) {
-                        mode = PARSE_THREADS;
-                        continue;
-                    }
-                    if (line.equals(HEADER_SECTION_METHODS)) {
-                        mode = PARSE_METHODS;
-                        continue;
-                    }
-                    if (line.equals(HEADER_END)) {
-                        break;
-                    }
-                }
-
-                switch (mode) {
-                    case PARSE_VERSION:
-                        mTraceDataBuilder.setVersion(Integer.decode(line));
-                        mode = PARSE_OPTIONS;
-                        break;
-                    case PARSE_THREADS:
-                        parseThread(line);
-                        break;
-                    case PARSE_METHODS:
-                        parseMethod(line);
-                        break;
-                    case PARSE_OPTIONS:
-                        parseOption(line);
-                        break;
+                if (parseHeaderLine(line)) {
+                    break;
                 }
             }
         } finally {
@@ -147,6 +294,44 @@ public class VmTraceParser {
         return offset;
     }
 
+    /** Parses a line of the header and returns true if it is the end of the header. */
+    private boolean parseHeaderLine(String line) {
+        if (line.startsWith("*")) {
+            if (line.equals(HEADER_SECTION_VERSION)) {
+                mHeaderMode = PARSE_VERSION;
+                return false;
+            }
+            if (line.equals(HEADER_SECTION_THREADS)) {
+                mHeaderMode = PARSE_THREADS;
+                return false;
+            }
+            if (line.equals(HEADER_SECTION_METHODS)) {
+                mHeaderMode = PARSE_METHODS;
+                return false;
+            }
+            if (line.equals(HEADER_END)) {
+                return true;
+            }
+        }
+
+        switch (mHeaderMode) {
+            case PARSE_VERSION:
+                mTraceDataBuilder.setVersion(Integer.decode(line));
+                mHeaderMode = PARSE_OPTIONS;
+                break;
+            case PARSE_THREADS:
+                parseThread(line);
+                break;
+            case PARSE_METHODS:
+                parseMethod(line);
+                break;
+            case PARSE_OPTIONS:
+                parseOption(line);
+                break;
+        }
+        return false;
+    }
+
     /** Parses trace option formatted as a key value pair. */
     private void parseOption(String line) {
         String[] tokens = line.split("=");
@@ -265,7 +450,8 @@ public class VmTraceParser {
         int threadId;
         int version = mTraceDataBuilder.getVersion();
         VmTraceData.VmClockType vmClockType = mTraceDataBuilder.getVmClockType();
-        while (buffer.hasRemaining()) {
+        // A truncated record at the end is left for streaming mode to complete later.
+        while (buffer.remaining() >= recordSize) {
             int threadTime;
             int globalTime;
 
@@ -344,7 +530,7 @@ public class VmTraceParser {
         if (version != mTraceDataBuilder.getVersion()) {
             String msg = String.format(
                     "Error: version number mismatch; got %d in data header but %d in options\n",
-                    version, mTraceData.getVersion());
+                    version, mTraceDataBuilder.getVersion());
             throw new RuntimeException(msg);
         }
         if (version < 1 || version > 3) {
@@ -384,9 +570,8 @@ public class VmTraceParser {
         return recordSize;
     }
 
-    private void computeTimingStatistics() {
-        VmTraceData data = getTraceData();
-
+    @VisibleForTesting(visibility = VisibleForTesting.Visibility.PRIVATE)
+    static void computeTimingStatistics(VmTraceData data) {
         ProfileDataBuilder builder = new ProfileDataBuilder();
         for (ThreadInfo thread : data.getThreads()) {
             Call c = thread.getTopLevelCall();
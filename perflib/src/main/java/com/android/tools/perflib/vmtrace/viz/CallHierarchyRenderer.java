@@ -30,7 +30,6 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.text.DecimalFormat;
-import java.util.Iterator;
 import java.util.concurrent.TimeUnit;
 
 import static com.android.tools.perflib.vmtrace.ClockType.THREAD;
@@ -58,6 +57,8 @@ public class CallHierarchyRenderer {
 
     private Font mFont;
 
+    private CallLayoutIndex mLayoutIndex;
+
     public CallHierarchyRenderer(@NonNull VmTraceData vmTraceData, @NonNull ThreadInfo thread,
             int yOffset, TimeUnit defaultTimeUnits, RenderContext renderContext) {
         mTraceData = vmTraceData;
@@ -70,43 +71,81 @@ public class CallHierarchyRenderer {
 
     /**
      * Renders the call hierarchy on a given graphics context.
-     * This essentially iterates through every single call in the hierarchy and renders it if it is
-     * visible in the current viewport.
+     * For each depth visible in the current viewport, this looks up the calls in the visible time
+     * range with a {@link CallLayoutIndex}, and only renders those at least 1 px wide.
+     * The viewport transform is assumed to only scale and translate, as done by
+     * {@link ZoomPanInteractor}.
      */
     public void render(Graphics2D g, AffineTransform viewPortTransform) {
         Rectangle clip = g.getClipBounds();
+        CallLayoutIndex index = getLayoutIndex();
+        double scaleX = viewPortTransform.getScaleX();
+        if (scaleX <= 0) {
+            return;
+        }
 
-        Iterator<Call> it = mTopCall.getCallHierarchyIterator();
-        while (it.hasNext()) {
-            Call c = it.next();
+        // visible time range in item space
+        long minTime = (long) Math.floor(
+                (clip.getMinX() - viewPortTransform.getTranslateX()) / scaleX) - PADDING;
+        long maxTime = (long) Math.ceil(
+                (clip.getMaxX() - viewPortTransform.getTranslateX()) / scaleX);
 
-            // obtain layout in item space
-            fillLayoutBounds(c, mLayout);
+        // no need to render calls that are too small (arbitrarily assumed to be < 1 px wide)
+        long minDuration = (long) Math.floor(1 / scaleX + 2 * PADDING);
 
-            // transform based on the current viewport (scale + translate)
+        for (int depth = 0; depth < index.getDepthCount(); depth++) {
+            // no need to look at depths that are not in the current viewport.
+            mLayout.setRect(clip.getX(), depth * PER_LEVEL_HEIGHT_PX + mYOffset + PADDING, 1,
+                    PER_LEVEL_HEIGHT_PX - 2 * PADDING);
             transformRect(viewPortTransform, mLayout);
-
-            // no need to render if it is is not in the current viewport.
-            if (!clip.intersects(mLayout)) {
+            if (mLayout.getMaxY() < clip.getMinY() || mLayout.getMinY() > clip.getMaxY()) {
                 continue;
             }
 
-            // no need to render if it is too small (arbitrarily assumed to be < 1 px wide)
-            if (mLayout.getWidth() < 1) {
-                continue;
-            }
+            int end = index.getDepthEnd(depth);
+            int position = index.findNext(index.getFirstPosition(depth, minTime), minDuration);
+            for (; position < end && index.getStart(position) <= maxTime;
+                    position = index.findNext(position + 1, minDuration)) {
+                Call c = mTopCall.getTable().getCall(index.getCall(position));
+
+                // obtain layout in item space
+                fillLayoutBounds(c, mLayout);
+
+                // transform based on the current viewport (scale + translate)
+                transformRect(viewPortTransform, mLayout);
+
+                // no need to render if it is is not in the current viewport.
+                if (!clip.intersects(mLayout)) {
+                    continue;
+                }
+
+                if (mLayout.getWidth() < 1) {
+                    continue;
+                }
 
-            // obtain the fill color based on its importance
-            Color fillColor = mRenderContext.getFillColor(c, mThread);
-            g.setColor(fillColor);
-            g.fill(mLayout);
+                // obtain the fill color based on its importance
+                Color fillColor = mRenderContext.getFillColor(c, mThread);
+                g.setColor(fillColor);
+                g.fill(mLayout);
 
-            // paint its name within the rectangle if possible
-            String name = getName(c);
-            drawString(g, name, mLayout, mRenderContext.getFontColor(c, mThread));
+                // paint its name within the rectangle if possible
+                String name = getName(c);
+                drawString(g, name, mLayout, mRenderContext.getFontColor(c, mThread));
+            }
         }
     }
 
+    /** Returns the layout index for the current render clock, building it on first use. */
+    @NonNull
+    private CallLayoutIndex getLayoutIndex() {
+        ClockType renderClock = mRenderContext.getRenderClock();
+        if (mLayoutIndex == null || mLayoutIndex.getClockType() != renderClock) {
+            mLayoutIndex = new CallLayoutIndex(mTopCall.getTable(), renderClock,
+                    mLayoutTimeUnits);
+        }
+        return mLayoutIndex;
+    }
+
     private Rectangle2D transformRect(AffineTransform viewPortTransform, Rectangle2D rect) {
         mTmpPoint1.setLocation(rect.getX(), rect.getY());
         mTmpPoint2.setLocation(rect.getWidth(), rect.getHeight());
@@ -161,14 +200,22 @@ public class CallHierarchyRenderer {
 
     /** Get the tooltip corresponding to given location (in item coordinates). */
     public String getToolTipFor(double x, double y) {
-        Iterator<Call> it = mTopCall.getCallHierarchyIterator();
-        while (it.hasNext()) {
-            Call c = it.next();
+        int depth = (int) Math.floor((y - mYOffset) / PER_LEVEL_HEIGHT_PX);
+        CallLayoutIndex index = getLayoutIndex();
+        if (depth < 0 || depth >= index.getDepthCount()) {
+            return null;
+        }
 
-            fillLayoutBounds(c, mLayout);
-            if (mLayout.contains(x, y)) {
-                return formatToolTip(c);
-            }
+        // Calls at a given depth don't overlap, so only the last one starting before x can
+        // contain the location.
+        int position = index.getLastPositionBefore(depth, (long) Math.floor(x) - PADDING);
+        if (position < 0) {
+            return null;
+        }
+        Call c = mTopCall.getTable().getCall(index.getCall(position));
+        fillLayoutBounds(c, mLayout);
+        if (mLayout.contains(x, y)) {
+            return formatToolTip(c);
         }
 
         return null;
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace.viz;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.vmtrace.CallTable;
+import com.android.tools.perflib.vmtrace.ClockType;
+import com.android.tools.perflib.vmtrace.VmTraceData;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Index of the calls of a thread as laid out on the timeline for one clock, so that rendering a
+ * viewport only looks at the calls that are both visible and wide enough to be drawn, whatever
+ * the length of the trace.
+ *
+ * Calls are grouped by depth. Calls at the same depth don't overlap, so they are ordered by time
+ * and the first call in a time range is found with a binary search. To skip over runs of calls
+ * too short to be drawn at the current zoom level, the maximum duration of each block of
+ * {@link #BLOCK_SIZE} calls is kept, then of each block of {@link #BLOCK_SIZE} blocks and so on.
+ * Finding the next call of at least some duration thus reads a bounded number of summaries per
+ * level, and each frame draws at most one call per visible pixel for each depth.
+ */
+class CallLayoutIndex {
+    private static final int BLOCK_BITS = 5;
+    private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+
+    private final CallTable mTable;
+    private final ClockType mClockType;
+    private final TimeUnit mUnits;
+    private final long mStartTime;
+
+    /** Calls at depth d are at positions mDepthOffsets[d] to mDepthOffsets[d + 1] - 1. */
+    private final int[] mDepthOffsets;
+
+    /** Table indices of the calls, by position. */
+    private final int[] mCalls;
+
+    /** mLevels[k][j] is the longest duration of the positions in block j of BLOCK_SIZE^(k+1). */
+    private final long[][] mLevels;
+
+    CallLayoutIndex(@NonNull CallTable table, @NonNull ClockType clockType,
+            @NonNull TimeUnit units) {
+        mTable = table;
+        mClockType = clockType;
+        mUnits = units;
+        mStartTime = units.convert(table.getEntryTime(0, clockType),
+                VmTraceData.getDefaultTimeUnits());
+
+        // Calls are in preorder, so a stable sort by depth keeps each depth in time order.
+        int size = table.size();
+        int maxDepth = 0;
+        for (int i = 0; i < size; i++) {
+            maxDepth = Math.max(maxDepth, table.getDepth(i));
+        }
+        mDepthOffsets = new int[maxDepth + 2];
+        for (int i = 0; i < size; i++) {
+            mDepthOffsets[table.getDepth(i) + 1]++;
+        }
+        for (int d = 0; d <= maxDepth; d++) {
+            mDepthOffsets[d + 1] += mDepthOffsets[d];
+        }
+        int[] cursors = mDepthOffsets.clone();
+        mCalls = new int[size];
+        for (int i = 0; i < size; i++) {
+            mCalls[cursors[table.getDepth(i)]++] = i;
+        }
+
+        int levelCount = 0;
+        for (int n = size; n > 1; n = (n + BLOCK_SIZE - 1) >> BLOCK_BITS) {
+            levelCount++;
+        }
+        mLevels = new long[levelCount][];
+        int n = size;
+        for (int k = 0; k < levelCount; k++) {
+            int blocks = (n + BLOCK_SIZE - 1) >> BLOCK_BITS;
+            long[] level = new long[blocks];
+            for (int i = 0; i < n; i++) {
+                long duration = k == 0 ? getDuration(i) : mLevels[k - 1][i];
+                level[i >> BLOCK_BITS] = Math.max(level[i >> BLOCK_BITS], duration);
+            }
+            mLevels[k] = level;
+            n = blocks;
+        }
+    }
+
+    @NonNull
+    public ClockType getClockType() {
+        return mClockType;
+    }
+
+    public int getDepthCount() {
+        return mDepthOffsets.length - 1;
+    }
+
+    /**
+     * Returns the position following the last call at a given depth.
+     */
+    public int getDepthEnd(int depth) {
+        return mDepthOffsets[depth + 1];
+    }
+
+    /**
+     * Returns the position of the first call at a given depth which ends at or after the given
+     * time, relative to the start of the top level call.
+     */
+    public int getFirstPosition(int depth, long time) {
+        int from = mDepthOffsets[depth];
+        int to = mDepthOffsets[depth + 1];
+        int start = from;
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (getStart(mid) <= time) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        // Only the last call starting before the time can still be running.
+        return from > start && getStart(from - 1) + getDuration(from - 1) >= time
+                ? from - 1 : from;
+    }
+
+    /**
+     * Returns the last position at a given depth of a call starting at or before the given
+     * time, or -1 if there is none.
+     */
+    public int getLastPositionBefore(int depth, long time) {
+        int start = mDepthOffsets[depth];
+        int position = getFirstPosition(depth, time);
+        while (position < mDepthOffsets[depth + 1] && getStart(position) <= time) {
+            position++;
+        }
+        return position > start ? position - 1 : -1;
+    }
+
+    /**
+     * Returns the first position at or after the given one of a call lasting at least
+     * {@code minDuration}, or the number of calls if there is none. The position may be at a
+     * greater depth.
+     */
+    public int findNext(int position, long minDuration) {
+        int size = mCalls.length;
+        // Level -1 is the calls themselves, level k the blocks of BLOCK_SIZE^(k+1) calls.
+        int level = -1;
+        while (position < size) {
+            int shift = BLOCK_BITS * (level + 1);
+            int entry = position >> shift;
+            long duration = level < 0 ? getDuration(position) : mLevels[level][entry];
+            if (duration >= minDuration) {
+                if (level < 0) {
+                    return position;
+                }
+                // The call is within this block, look at its sub blocks.
+                level--;
+                continue;
+            }
+
+            // Skip the block, and then look at the largest block starting there.
+            position = (int) Math.min((long) (entry + 1) << shift, size);
+            while (level + 1 < mLevels.length
+                    && (position & ((1L << (BLOCK_BITS * (level + 2))) - 1)) == 0) {
+                level++;
+            }
+        }
+        return size;
+    }
+
+    public int getCall(int position) {
+        return mCalls[position];
+    }
+
+    /**
+     * Returns the entry time of the call at a given position, relative to the start of the top
+     * level call.
+     */
+    public long getStart(int position) {
+        return mUnits.convert(mTable.getEntryTime(mCalls[position], mClockType),
+                VmTraceData.getDefaultTimeUnits()) - mStartTime;
+    }
+
+    public long getDuration(int position) {
+        return mUnits.convert(mTable.getInclusiveTime(mCalls[position], mClockType),
+                VmTraceData.getDefaultTimeUnits());
+    }
+}
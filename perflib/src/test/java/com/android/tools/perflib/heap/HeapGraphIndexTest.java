@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.tools.perflib.heap.io.MemoryMappedFileBuffer;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class HeapGraphIndexTest extends TestCase {
+
+    private File mHprof;
+
+    private File mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHprof = new File(ClassLoader.getSystemResource("dialer.android-hprof").getFile());
+        mIndex = File.createTempFile("dialer", ".index");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mIndex.delete();
+        super.tearDown();
+    }
+
+    public void testRoundTrip() throws Exception {
+        Snapshot snapshot = (new HprofParser(new MemoryMappedFileBuffer(mHprof))).parse();
+        HeapGraph graph = snapshot.getHeapGraph();
+        graph.computeDominators();
+        graph.computeDistancesToGcRoots();
+        HeapGraphIndex.write(graph, mHprof, mIndex);
+
+        HeapGraph loaded = HeapGraphIndex.read(mHprof, mIndex, null);
+        assertNotNull(loaded);
+        assertNull(loaded.getSnapshot());
+        assertEquals(graph.getNodeCount(), loaded.getNodeCount());
+        for (int ordinal = 0; ordinal < graph.getNodeCount(); ordinal++) {
+            assertEquals(graph.getId(ordinal), loaded.getId(ordinal));
+            assertEquals(graph.getOffset(ordinal), loaded.getOffset(ordinal));
+            assertEquals(graph.getSize(ordinal), loaded.getSize(ordinal));
+            assertEquals(graph.getClassOrdinal(ordinal), loaded.getClassOrdinal(ordinal));
+            assertEquals(graph.getHeapIndex(ordinal), loaded.getHeapIndex(ordinal));
+            assertEquals(graph.getClassName(ordinal), loaded.getClassName(ordinal));
+            assertEquals(graph.getOutDegree(ordinal), loaded.getOutDegree(ordinal));
+            assertEquals(graph.getInDegree(ordinal), loaded.getInDegree(ordinal));
+            for (int i = 0; i < graph.getOutDegree(ordinal); i++) {
+                assertEquals(graph.getOutEdge(ordinal, i), loaded.getOutEdge(ordinal, i));
+            }
+            assertEquals(graph.getImmediateDominator(ordinal),
+                    loaded.getImmediateDominator(ordinal));
+            assertEquals(graph.getRetainedSize(ordinal), loaded.getRetainedSize(ordinal));
+            assertEquals(graph.getDistanceToGcRoot(ordinal), loaded.getDistanceToGcRoot(ordinal));
+            assertEquals(graph.getNextToGcRoot(ordinal), loaded.getNextToGcRoot(ordinal));
+        }
+
+        loaded.setSnapshot(snapshot);
+        int ordinal = graph.getNodeCount() - 1;
+        assertSame(snapshot.findReference(graph.getId(ordinal)), loaded.getInstance(ordinal));
+    }
+
+    public void testStaleIndex() throws Exception {
+        Snapshot snapshot = (new HprofParser(new MemoryMappedFileBuffer(mHprof))).parse();
+        HeapGraphIndex.write(snapshot.getHeapGraph(), mHprof, mIndex);
+
+        File other = File.createTempFile("other", ".hprof");
+        try {
+            assertNull(HeapGraphIndex.read(other, mIndex, null));
+        } finally {
+            other.delete();
+        }
+        assertNull(HeapGraphIndex.read(mHprof, new File(mIndex.getPath() + ".missing"), null));
+        assertNotNull(HeapGraphIndex.read(mHprof, mIndex, null));
+    }
+
+    public void testTruncatedIndex() throws Exception {
+        Snapshot snapshot = (new HprofParser(new MemoryMappedFileBuffer(mHprof))).parse();
+        HeapGraphIndex.write(snapshot.getHeapGraph(), mHprof, mIndex);
+
+        RandomAccessFile file = new RandomAccessFile(mIndex, "rw");
+        try {
+            file.setLength(file.length() - 100);
+        } finally {
+            file.close();
+        }
+        assertNull(HeapGraphIndex.read(mHprof, mIndex, null));
+    }
+
+    public void testCorruptCounts() throws Exception {
+        Snapshot snapshot = (new HprofParser(new MemoryMappedFileBuffer(mHprof))).parse();
+        HeapGraphIndex.write(snapshot.getHeapGraph(), mHprof, mIndex);
+
+        // The node, edge and class counts follow the 32 bytes of the header.
+        int[] counts = new int[] { -1, Integer.MAX_VALUE };
+        for (int position = 32; position < 32 + 3 * 4; position += 4) {
+            for (int count : counts) {
+                RandomAccessFile file = new RandomAccessFile(mIndex, "rw");
+                int original;
+                try {
+                    file.seek(position);
+                    original = file.readInt();
+                    file.seek(position);
+                    file.writeInt(count);
+                } finally {
+                    file.close();
+                }
+                assertNull(HeapGraphIndex.read(mHprof, mIndex, null));
+
+                file = new RandomAccessFile(mIndex, "rw");
+                try {
+                    file.seek(position);
+                    file.writeInt(original);
+                } finally {
+                    file.close();
+                }
+            }
+        }
+        assertNotNull(HeapGraphIndex.read(mHprof, mIndex, null));
+    }
+
+    public void testParseGraphFromIndex() throws Exception {
+        HeapGraph graph = (new HprofParser(new MemoryMappedFileBuffer(mHprof))).parseGraph();
+        graph.computeDominators();
+        HeapGraphIndex.write(graph, mHprof, mIndex);
+
+        HeapGraph loaded = (new HprofParser(new MemoryMappedFileBuffer(mHprof)))
+                .parseGraph(mHprof, mIndex);
+        Snapshot snapshot = loaded.getSnapshot();
+        assertNotNull(snapshot);
+        assertTrue(snapshot.hasInstancesInGraph());
+        assertEquals(graph.getNodeCount(), loaded.getNodeCount());
+        for (int ordinal = 1; ordinal < graph.getNodeCount(); ordinal++) {
+            assertEquals(graph.getImmediateDominator(ordinal),
+                    loaded.getImmediateDominator(ordinal));
+            assertEquals(graph.getRetainedSize(ordinal), loaded.getRetainedSize(ordinal));
+            assertEquals(graph.getClassName(ordinal), loaded.getClassName(ordinal));
+            assertEquals(graph.getId(ordinal), loaded.getInstance(ordinal).getId());
+        }
+
+        // The classes, roots and heaps are loaded from the index instead of the heap dump.
+        Snapshot expected = graph.getSnapshot();
+        assertEquals(expected.getHeaps().size(), snapshot.getHeaps().size());
+        for (Heap heap : expected.getHeaps()) {
+            Heap loadedHeap = snapshot.getHeap(heap.getId());
+            assertEquals(heap.getName(), loadedHeap.getName());
+            assertEquals(heap.getClasses().size(), loadedHeap.getClasses().size());
+            for (ClassObj theClass : heap.getClasses()) {
+                ClassObj loadedClass = loadedHeap.getClass(theClass.getId());
+                assertEquals(theClass.getClassName(), loadedClass.getClassName());
+                assertEquals(theClass.getSize(), loadedClass.getSize());
+                assertEquals(theClass.getInstanceSize(), loadedClass.getInstanceSize());
+                assertEquals(theClass.getSubclasses().size(),
+                        loadedClass.getSubclasses().size());
+                assertTrue(Arrays.equals(theClass.getFields(), loadedClass.getFields()));
+                assertEquals(theClass.getValuesOffset(), loadedClass.getValuesOffset());
+            }
+        }
+        List<RootObj> roots = new ArrayList<RootObj>(expected.getGCRoots());
+        List<RootObj> loadedRoots = new ArrayList<RootObj>(snapshot.getGCRoots());
+        assertEquals(roots.size(), loadedRoots.size());
+        for (int i = 0; i < roots.size(); i++) {
+            assertEquals(roots.get(i).toString(), loadedRoots.get(i).toString());
+            assertEquals(roots.get(i).getStack() == null, loadedRoots.get(i).getStack() == null);
+        }
+
+        Snapshot parsed = (new HprofParser(new MemoryMappedFileBuffer(mHprof))).parse();
+        assertTrue(parsed.loadHeapGraph(mHprof, mIndex));
+        assertSame(parsed, parsed.getHeapGraph().getSnapshot());
+        assertFalse(parsed.loadHeapGraph(mHprof, new File(mIndex.getPath() + ".missing")));
+    }
+
+    public void testCorruptNodes() throws Exception {
+        HeapGraph graph = (new HprofParser(new MemoryMappedFileBuffer(mHprof))).parseGraph();
+        HeapGraphIndex.write(graph, mHprof, mIndex);
+
+        // The heap indices and kinds follow the 48 bytes of the header, and the ids, offsets,
+        // sizes and class ordinals of the nodes.
+        int nodeCount = graph.getNodeCount();
+        long heapIndices = 48 + (8 + 8 + 4 + 4) * (long) nodeCount;
+        long[] positions = new long[] {
+                heapIndices + nodeCount - 1, heapIndices + 2 * nodeCount - 1 };
+        for (long position : positions) {
+            RandomAccessFile file = new RandomAccessFile(mIndex, "rw");
+            byte original;
+            try {
+                file.seek(position);
+                original = file.readByte();
+                file.seek(position);
+                file.writeByte(Byte.MAX_VALUE);
+            } finally {
+                file.close();
+            }
+            assertNull(HeapGraphIndex.read(mHprof, mIndex, graph.getSnapshot()));
+
+            // The parser falls back to parsing the whole heap dump.
+            HeapGraph parsed = (new HprofParser(new MemoryMappedFileBuffer(mHprof)))
+                    .parseGraph(mHprof, mIndex);
+            assertEquals(nodeCount, parsed.getNodeCount());
+            assertEquals(graph.getId(nodeCount - 1),
+                    parsed.getInstance(nodeCount - 1).getId());
+
+            file = new RandomAccessFile(mIndex, "rw");
+            try {
+                file.seek(position);
+                file.writeByte(original);
+            } finally {
+                file.close();
+            }
+        }
+        assertNotNull(HeapGraphIndex.read(mHprof, mIndex, graph.getSnapshot()));
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.tools.perflib.heap.io.MemoryMappedFileBuffer;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class HeapGraphTest extends TestCase {
+
+    public void testEdges() {
+        Snapshot snapshot = new SnapshotBuilder(4)
+                .addReferences(1, 2, 3)
+                .addReferences(2, 4)
+                .addReferences(3, 4)
+                .addRoot(1)
+                .getSnapshot();
+        HeapGraph graph = snapshot.getHeapGraph();
+
+        // Sentinel root, 4 instances and their 4 classes.
+        assertEquals(9, graph.getNodeCount());
+        assertSame(graph, snapshot.getHeapGraph());
+
+        int node1 = graph.getOrdinal(1);
+        int node4 = graph.getOrdinal(4);
+        assertEquals(1, graph.getOutDegree(HeapGraph.ROOT));
+        assertEquals(node1, graph.getOutEdge(HeapGraph.ROOT, 0));
+        assertEquals(2, graph.getOutDegree(node1));
+        assertEquals(graph.getOrdinal(2), graph.getOutEdge(node1, 0));
+        assertEquals(graph.getOrdinal(3), graph.getOutEdge(node1, 1));
+        assertEquals(0, graph.getOutDegree(node4));
+        assertEquals(2, graph.getInDegree(node4));
+
+        assertEquals(graph.getOrdinal(104), graph.getClassOrdinal(node4));
+        assertEquals(4, graph.getSize(node4));
+        assertSame(snapshot.findReference(4), graph.getInstance(node4));
+        assertEquals(snapshot.getHeapIndex(snapshot.getHeap("testHeap")),
+                graph.getHeapIndex(node4));
+        assertEquals(HeapGraph.NONE, graph.getOrdinal(42));
+    }
+
+    public void testDominators() {
+        Snapshot snapshot = new SnapshotBuilder(6)
+                .addReferences(1, 3)
+                .addReferences(2, 4)
+                .addReferences(3, 5)
+                .addReferences(4, 5)
+                .addReferences(5, 6)
+                .addRoot(1)
+                .addRoot(2)
+                .getSnapshot();
+        HeapGraph graph = snapshot.getHeapGraph();
+        graph.computeDominators();
+
+        assertEquals(HeapGraph.ROOT, graph.getImmediateDominator(graph.getOrdinal(1)));
+        assertEquals(HeapGraph.ROOT, graph.getImmediateDominator(graph.getOrdinal(5)));
+        assertEquals(graph.getOrdinal(1), graph.getImmediateDominator(graph.getOrdinal(3)));
+        assertEquals(graph.getOrdinal(5), graph.getImmediateDominator(graph.getOrdinal(6)));
+        // Classes aren't referred by any root in this graph.
+        assertEquals(HeapGraph.NONE, graph.getImmediateDominator(graph.getOrdinal(101)));
+
+        assertEquals(4, graph.getRetainedSize(graph.getOrdinal(1)));
+        assertEquals(11, graph.getRetainedSize(graph.getOrdinal(5)));
+    }
+
+    public void testDistancesAndTopologicalOrder() {
+        Snapshot snapshot = new SnapshotBuilder(5)
+                .addReferences(1, 2)
+                .addReferences(2, 3)
+                .addReferences(3, 1)
+                .addReferences(4, 3)
+                .addRoot(1)
+                .addRoot(4)
+                .getSnapshot();
+        HeapGraph graph = snapshot.getHeapGraph();
+        graph.computeDistancesToGcRoots();
+        graph.computeTopologicalOrder();
+
+        int node1 = graph.getOrdinal(1);
+        int node2 = graph.getOrdinal(2);
+        int node3 = graph.getOrdinal(3);
+        int node4 = graph.getOrdinal(4);
+        assertEquals(0, graph.getDistanceToGcRoot(node1));
+        assertEquals(1, graph.getDistanceToGcRoot(node2));
+        assertEquals(1, graph.getDistanceToGcRoot(node3));
+        assertEquals(HeapGraph.ROOT, graph.getNextToGcRoot(node1));
+        assertEquals(node4, graph.getNextToGcRoot(node3));
+        assertEquals(Integer.MAX_VALUE, graph.getDistanceToGcRoot(graph.getOrdinal(5)));
+        assertEquals(HeapGraph.NONE, graph.getNextToGcRoot(graph.getOrdinal(5)));
+
+        assertEquals(0, graph.getTopologicalOrder(HeapGraph.ROOT));
+        assertTrue(graph.getTopologicalOrder(node1) < graph.getTopologicalOrder(node2));
+        assertTrue(graph.getTopologicalOrder(node4) < graph.getTopologicalOrder(node3));
+        assertEquals(HeapGraph.NONE, graph.getTopologicalOrder(graph.getOrdinal(5)));
+    }
+
+    public void testPathsToGcRoots() {
+        Snapshot snapshot = new SnapshotBuilder(6)
+                .addReferences(1, 2, 3)
+                .addReferences(2, 4)
+                .addReferences(3, 4)
+                .addReferences(4, 5)
+                .addRoot(1)
+                .getSnapshot();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            snapshot.computeDistancesToGcRoots(executor);
+        } finally {
+            executor.shutdown();
+        }
+
+        Instance instance5 = snapshot.findReference(5);
+        assertEquals(3, instance5.getDistanceToGcRoot());
+        assertSame(snapshot.findReference(4), instance5.getNextInstanceToGcRoot());
+        // The first predecessor in id order is picked among those at the same distance.
+        assertSame(snapshot.findReference(2),
+                snapshot.findReference(4).getNextInstanceToGcRoot());
+        assertNull(snapshot.findReference(1).getNextInstanceToGcRoot());
+
+        List<List<Instance>> paths = snapshot.getPathsToGcRoots(Arrays.asList(
+                instance5, snapshot.findReference(1), snapshot.findReference(6)));
+        assertEquals(3, paths.size());
+        assertEquals(Arrays.asList(snapshot.findReference(1), snapshot.findReference(2),
+                snapshot.findReference(4), instance5), paths.get(0));
+        assertEquals(Arrays.asList(snapshot.findReference(1)), paths.get(1));
+        assertTrue(paths.get(2).isEmpty());
+    }
+
+    public void testParallelDistancesOnSampleHprof() throws Exception {
+        File file = new File(ClassLoader.getSystemResource("dialer.android-hprof").getFile());
+        Snapshot snapshot = (new HprofParser(new MemoryMappedFileBuffer(file))).parse();
+        HeapGraph sequential = HeapGraph.build(snapshot);
+        sequential.computeDistancesToGcRoots();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            snapshot.computeDistancesToGcRoots(executor);
+        } finally {
+            executor.shutdown();
+        }
+
+        HeapGraph graph = snapshot.getHeapGraph();
+        for (int ordinal = 1; ordinal < graph.getNodeCount(); ordinal++) {
+            assertEquals(sequential.getDistanceToGcRoot(ordinal),
+                    graph.getDistanceToGcRoot(ordinal));
+            assertEquals(sequential.getNextToGcRoot(ordinal), graph.getNextToGcRoot(ordinal));
+            int next = graph.getNextToGcRoot(ordinal);
+            if (next > HeapGraph.ROOT) {
+                assertEquals(graph.getDistanceToGcRoot(next) + 1,
+                        graph.getDistanceToGcRoot(ordinal));
+            }
+            assertEquals(graph.getDistanceToGcRoot(ordinal),
+                    graph.getInstance(ordinal).getDistanceToGcRoot());
+        }
+    }
+
+    public void testSampleHprof() throws Exception {
+        File file = new File(ClassLoader.getSystemResource("dialer.android-hprof").getFile());
+        Snapshot snapshot = (new HprofParser(new MemoryMappedFileBuffer(file))).parse();
+        snapshot.computeDominators();
+        HeapGraph graph = snapshot.getHeapGraph();
+        graph.computeDominators();
+
+        // The graph reads every reference field, including those shadowed by a subclass field of
+        // the same name which the Instance-based visitors don't see, so it may reach more nodes.
+        long reachableSize = 0;
+        long rootRetainedSize = 0;
+        for (int ordinal = 1; ordinal < graph.getNodeCount(); ordinal++) {
+            Instance instance = graph.getInstance(ordinal);
+            int dominator = graph.getImmediateDominator(ordinal);
+            if (instance.getImmediateDominator() != null) {
+                assertTrue(dominator != HeapGraph.NONE);
+            }
+            if (dominator != HeapGraph.NONE) {
+                reachableSize += graph.getSize(ordinal);
+            }
+            if (dominator == HeapGraph.ROOT) {
+                rootRetainedSize += graph.getRetainedSize(ordinal);
+            }
+        }
+        assertEquals(reachableSize, rootRetainedSize);
+
+        Instance instance = snapshot.findReference(0xB0EDFFA0);
+        assertEquals(HeapGraph.ROOT, graph.getImmediateDominator(graph.getOrdinal(0xB0EDFFA0)));
+        assertSame(instance, graph.getInstance(graph.getOrdinal(0xB0EDFFA0)));
+    }
+
+    public void testParseGraph() throws Exception {
+        File file = new File(ClassLoader.getSystemResource("dialer.android-hprof").getFile());
+        Snapshot snapshot = (new HprofParser(new MemoryMappedFileBuffer(file))).parse();
+        HeapGraph expected = snapshot.getHeapGraph();
+        HeapGraph graph = (new HprofParser(new MemoryMappedFileBuffer(file))).parseGraph();
+
+        Snapshot classes = graph.getSnapshot();
+        assertNotNull(classes);
+        assertTrue(classes.hasInstancesInGraph());
+        assertEquals(expected.getNodeCount(), graph.getNodeCount());
+        for (int ordinal = 0; ordinal < graph.getNodeCount(); ordinal++) {
+            assertEquals(expected.getId(ordinal), graph.getId(ordinal));
+            assertEquals(expected.getOffset(ordinal), graph.getOffset(ordinal));
+            assertEquals(expected.getSize(ordinal), graph.getSize(ordinal));
+            assertEquals(expected.getClassOrdinal(ordinal), graph.getClassOrdinal(ordinal));
+            assertEquals(expected.getHeapIndex(ordinal), graph.getHeapIndex(ordinal));
+            assertEquals(expected.getClassName(ordinal), graph.getClassName(ordinal));
+            assertEquals(expected.getOutDegree(ordinal), graph.getOutDegree(ordinal));
+            for (int i = 0; i < graph.getOutDegree(ordinal); i++) {
+                assertEquals(expected.getOutEdge(ordinal, i), graph.getOutEdge(ordinal, i));
+            }
+
+            // Views decode the same values as the instances of the full snapshot.
+            Instance instance = expected.getInstance(ordinal);
+            Instance view = graph.getInstance(ordinal);
+            assertEquals(instance.getClass(), view.getClass());
+            assertEquals(instance.getId(), view.getId());
+            assertEquals(instance.getSize(), view.getSize());
+            if (instance instanceof ArrayInstance) {
+                assertEquals(((ArrayInstance) instance).getLength(),
+                        ((ArrayInstance) view).getLength());
+            }
+            if (ordinal != HeapGraph.ROOT) {
+                assertEquals(instance.getClassObj(), view.getClassObj());
+                assertEquals(instance.getHeap().getName(), view.getHeap().getName());
+                assertEquals(instance.getContentHash(), view.getContentHash());
+            }
+        }
+        assertTrue(classes.getHeap("app").getInstances().isEmpty());
+
+        ClassObj clazz = classes.findClass("java.lang.Thread$State");
+        ArrayInstance values = (ArrayInstance) clazz.getStaticField(Type.OBJECT, "$VALUES");
+        assertEquals(6, values.getLength());
+        Instance value = (Instance) values.getValue(0);
+        assertEquals(clazz, value.getClassObj());
+        assertEquals(graph.getOrdinal(value.getId()), graph.getOutEdge(
+                graph.getOrdinal(values.getId()), 0));
+        // The views see the distances computed on the graph.
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            classes.computeDistancesToGcRoots(executor);
+        } finally {
+            executor.shutdown();
+        }
+        expected.computeDistancesToGcRoots();
+        for (int ordinal = 1; ordinal < graph.getNodeCount(); ordinal++) {
+            Instance view = graph.getInstance(ordinal);
+            assertEquals(expected.getDistanceToGcRoot(ordinal), view.getDistanceToGcRoot());
+            Instance next = view.getNextInstanceToGcRoot();
+            int nextOrdinal = expected.getNextToGcRoot(ordinal);
+            if (nextOrdinal > HeapGraph.ROOT) {
+                assertEquals(expected.getId(nextOrdinal), next.getId());
+            } else {
+                assertNull(next);
+            }
+        }
+    }
+}
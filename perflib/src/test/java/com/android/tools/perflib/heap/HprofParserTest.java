@@ -17,12 +17,19 @@
 package com.android.tools.perflib.heap;
 
 import com.android.tools.perflib.heap.io.MemoryMappedFileBuffer;
+import com.google.common.io.Files;
 
 import junit.framework.TestCase;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class HprofParserTest extends TestCase {
 
@@ -133,6 +140,121 @@ public class HprofParserTest extends TestCase {
         assertEquals(0, ordinal);
     }
 
+    public void testParallelParse() throws Exception {
+        File file = new File(getClass().getResource("/dialer.android-hprof").getFile());
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        Snapshot snapshot;
+        try {
+            snapshot = (new HprofParser(new MemoryMappedFileBuffer(file))).parse(executor);
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(mSnapshot.getHeaps().size(), snapshot.getHeaps().size());
+        for (Heap heap : mSnapshot.getHeaps()) {
+            Heap other = snapshot.getHeap(heap.getName());
+            assertNotNull(other);
+            assertEquals(mSnapshot.getHeapIndex(heap), snapshot.getHeapIndex(other));
+            assertEquals(heap.getInstancesCount(), other.getInstancesCount());
+            assertEquals(heap.getClasses().size(), other.getClasses().size());
+            // The instances are in the same order.
+            Iterator<Instance> copies = other.getInstances().iterator();
+            for (Instance instance : heap.getInstances()) {
+                Instance copy = copies.next();
+                assertEquals(instance.getId(), copy.getId());
+                assertEquals(instance.getClass(), copy.getClass());
+                assertEquals(instance.getSize(), copy.getSize());
+                assertEquals(instance.getClassObj().getClassName(),
+                        copy.getClassObj().getClassName());
+            }
+        }
+
+        List<RootObj> roots = new ArrayList<RootObj>(mSnapshot.getGCRoots());
+        List<RootObj> otherRoots = new ArrayList<RootObj>(snapshot.getGCRoots());
+        assertEquals(roots.size(), otherRoots.size());
+        for (int i = 0; i < roots.size(); i++) {
+            assertEquals(roots.get(i).getRootType(), otherRoots.get(i).getRootType());
+            assertEquals(roots.get(i).getId(), otherRoots.get(i).getId());
+        }
+
+        ClassObj clazz = snapshot.findClass("java.lang.Thread$State");
+        Object[] values = ((ArrayInstance) clazz.getStaticField(Type.OBJECT, "$VALUES")).getValues();
+        assertEquals(6, values.length);
+        assertEquals(1406, snapshot.findClass("byte[]").getInstancesList().size());
+        List<Instance> arrays = mSnapshot.findClass("byte[]").getInstancesList();
+        List<Instance> otherArrays = snapshot.findClass("byte[]").getInstancesList();
+        for (int i = 0; i < arrays.size(); i++) {
+            assertEquals(arrays.get(i).getId(), otherArrays.get(i).getId());
+        }
+    }
+
+    public void testParallelParseFailure() throws Exception {
+        File file = new File(getClass().getResource("/dialer.android-hprof").getFile());
+        ByteBuffer hprof = ByteBuffer.wrap(Files.toByteArray(file));
+        // Skips the version, id size and timestamp, then the records up to the first heap dump.
+        while (hprof.get() != 0) {
+            // the version string
+        }
+        hprof.position(hprof.position() + 4 + 8);
+        while (true) {
+            int tag = hprof.get();
+            hprof.getInt();
+            int length = hprof.getInt();
+            if (tag == 0x0c || tag == 0x1c) {
+                break;
+            }
+            hprof.position(hprof.position() + length);
+        }
+        // An unknown sub-record tag.
+        hprof.put(hprof.position(), (byte) 0);
+
+        File corrupt = File.createTempFile("corrupt", ".hprof");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Files.write(hprof.array(), corrupt);
+            (new HprofParser(new MemoryMappedFileBuffer(corrupt))).parse(executor);
+            fail("Expected the corrupt segment to fail the parse");
+        } catch (IllegalArgumentException e) {
+            // expected
+        } finally {
+            executor.shutdown();
+            corrupt.delete();
+        }
+    }
+
+    public void testLazyDecoding() throws Exception {
+        File file = new File(getClass().getResource("/dialer.android-hprof").getFile());
+        Snapshot snapshot = (new HprofParser(new MemoryMappedFileBuffer(file))).parse();
+        snapshot.setLazyDecoding(true);
+        snapshot.computeDominators();
+        mSnapshot.computeDominators();
+
+        // The pre-scan also follows shadowed fields, so it can only reach more instances.
+        assertTrue(snapshot.getReachableInstances().size()
+                >= mSnapshot.getReachableInstances().size());
+        for (Instance instance : mSnapshot.getReachableInstances()) {
+            Instance copy = snapshot.findReference(instance.getId());
+            assertNotNull(copy.getImmediateDominator());
+            assertTrue(copy.getDistanceToGcRoot() <= instance.getDistanceToGcRoot());
+        }
+
+        ClassObj clazz = snapshot.findClass("java.lang.Thread$State");
+        ArrayInstance array = (ArrayInstance) clazz.getStaticField(Type.OBJECT, "$VALUES");
+        assertEquals(6, array.getLength());
+        ClassInstance instance = (ClassInstance) array.getValue(0);
+        assertEquals(instance.getField(Type.INT, "ordinal"), instance.getFieldValue("ordinal"));
+        ClassInstance name = (ClassInstance) instance.getFieldValue("name");
+        ArrayInstance chars = (ArrayInstance) name.getFieldValue("value");
+        assertEquals('N', chars.getValue(0));
+        assertEquals('W', chars.getValue(2));
+        assertNull(instance.getFieldValue("noSuchField"));
+        try {
+            chars.getValue(chars.getLength());
+            fail();
+        } catch (IndexOutOfBoundsException expected) {
+        }
+    }
+
     /**
      * Tests getValues to make sure it's not adding duplicate entries to the back references.
      */
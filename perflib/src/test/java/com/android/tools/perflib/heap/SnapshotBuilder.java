@@ -51,6 +51,7 @@ public class SnapshotBuilder {
         for (int i = 1; i <= numNodes; i++) {
             ClassObj clazz = new ClassObj(100 + i, null, "Class" + i, 0);
             clazz.setFields(new Field[0]);
+            clazz.setStaticFields(new Field[0]);
             mSnapshot.addClass(100 + i, clazz);
 
             mOffsets[i] = 2 * (i - 1) * numNodes;
@@ -18,10 +18,12 @@ package com.android.tools.perflib.heap.analysis;
 
 import com.android.tools.perflib.heap.*;
 import com.android.tools.perflib.heap.io.MemoryMappedFileBuffer;
+import com.google.common.collect.ImmutableList;
 
 import junit.framework.TestCase;
 
 import java.io.File;
+import java.util.Random;
 
 public class DominatorsTest extends TestCase {
 
@@ -173,6 +175,79 @@ public class DominatorsTest extends TestCase {
         assertEquals(576, activityThread.getRetainedSize(appIndex));
     }
 
+    public void testRandomGraphsMatchIterativeDominators() {
+        Random random = new Random(4242);
+        for (int iteration = 0; iteration < 20; iteration++) {
+            int numNodes = 2 + random.nextInt(40);
+            int[][] references = new int[numNodes + 1][];
+            for (int i = 1; i <= numNodes; i++) {
+                references[i] = new int[random.nextInt(4)];
+                for (int j = 0; j < references[i].length; j++) {
+                    references[i][j] = 1 + random.nextInt(numNodes);
+                }
+            }
+            int[] roots = new int[1 + random.nextInt(3)];
+            for (int i = 0; i < roots.length; i++) {
+                roots[i] = 1 + random.nextInt(numNodes);
+            }
+
+            mSnapshot = buildGraph(numNodes, references, roots);
+            mSnapshot.computeDominators();
+
+            Snapshot expected = buildGraph(numNodes, references, roots);
+            ImmutableList<Instance> topSort = TopologicalSort.compute(expected.getGCRoots());
+            new Dominators(expected, topSort).computeRetainedSizes();
+
+            assertEquals(topSort.size(), mSnapshot.getReachableInstances().size());
+            assertSameDominators(expected, topSort);
+        }
+    }
+
+    public void testSampleHprofMatchesIterativeDominators() throws Exception {
+        File file = new File(ClassLoader.getSystemResource("dialer.android-hprof").getFile());
+        mSnapshot = (new HprofParser(new MemoryMappedFileBuffer(file))).parse();
+        mSnapshot.computeDominators();
+
+        Snapshot expected = (new HprofParser(new MemoryMappedFileBuffer(file))).parse();
+        ImmutableList<Instance> topSort = TopologicalSort.compute(expected.getGCRoots());
+        new Dominators(expected, topSort).computeRetainedSizes();
+
+        assertSameDominators(expected, topSort);
+    }
+
+    private static Snapshot buildGraph(int numNodes, int[][] references, int[] roots) {
+        SnapshotBuilder builder = new SnapshotBuilder(numNodes);
+        for (int i = 1; i <= numNodes; i++) {
+            builder.addReferences(i, references[i]);
+        }
+        for (int root : roots) {
+            builder.addRoot(root);
+        }
+        return builder.getSnapshot();
+    }
+
+    /**
+     * Asserts that the dominators and retained sizes in mSnapshot match those of expected.
+     */
+    private void assertSameDominators(Snapshot expected, ImmutableList<Instance> topSort) {
+        for (Instance node : topSort) {
+            Instance actual = mSnapshot.findReference(node.getId());
+            assertNotNull(actual);
+            Instance expectedDominator = node.getImmediateDominator();
+            Instance actualDominator = actual.getImmediateDominator();
+            assertNotNull(actualDominator);
+            if (expectedDominator == Snapshot.SENTINEL_ROOT) {
+                assertSame(Snapshot.SENTINEL_ROOT, actualDominator);
+            } else {
+                assertEquals(expectedDominator.getId(), actualDominator.getId());
+            }
+            for (Heap heap : expected.getHeaps()) {
+                int heapIndex = expected.getHeapIndex(heap);
+                assertEquals(node.getRetainedSize(heapIndex), actual.getRetainedSize(heapIndex));
+            }
+        }
+    }
+
     /**
      * Asserts that nodeA dominates nodeB in mHeap.
      */
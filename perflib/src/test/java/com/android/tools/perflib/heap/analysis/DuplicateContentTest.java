@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.tools.perflib.heap.ArrayInstance;
+import com.android.tools.perflib.heap.HeapGraph;
+import com.android.tools.perflib.heap.HprofParser;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.io.MemoryMappedFileBuffer;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class DuplicateContentTest extends TestCase {
+
+    private HeapGraph mGraph;
+
+    private HeapQueryIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        File file = new File(ClassLoader.getSystemResource("dialer.android-hprof").getFile());
+        Snapshot snapshot = (new HprofParser(new MemoryMappedFileBuffer(file))).parse();
+        mGraph = snapshot.getHeapGraph();
+        mIndex = HeapQueryIndex.build(mGraph);
+    }
+
+    public void testDuplicates() {
+        List<DuplicateContent.Duplicate> duplicates =
+                new DuplicateContent(mIndex).getDuplicates(null);
+        assertFalse(duplicates.isEmpty());
+
+        boolean foundStrings = false;
+        for (int i = 0; i < duplicates.size(); i++) {
+            DuplicateContent.Duplicate duplicate = duplicates.get(i);
+            assertTrue(duplicate.getCount() > 1);
+            assertTrue(duplicate.getDominators().length > 0);
+            if (i > 0) {
+                assertTrue(duplicates.get(i - 1).getWastedSize() >= duplicate.getWastedSize());
+            }
+
+            int[] owners = duplicate.getOwners();
+            if (duplicate.getKind() == DuplicateContent.Kind.STRING) {
+                foundStrings = true;
+                String value = HeapQueryIndex.decodeString(mGraph.getInstance(owners[0]));
+                assertEquals(duplicate.getByteSize(), value.length() * 2);
+                for (int owner : owners) {
+                    assertEquals(value, HeapQueryIndex.decodeString(mGraph.getInstance(owner)));
+                }
+            } else if (duplicate.getKind() == DuplicateContent.Kind.BYTE_ARRAY) {
+                Object[] bytes = ((ArrayInstance) mGraph.getInstance(owners[0])).getValues();
+                for (int owner : owners) {
+                    assertTrue(Arrays.equals(bytes,
+                            ((ArrayInstance) mGraph.getInstance(owner)).getValues()));
+                }
+            }
+        }
+        assertTrue(foundStrings);
+    }
+
+    public void testParallelHashing() {
+        List<DuplicateContent.Duplicate> expected =
+                new DuplicateContent(mIndex).getDuplicates(null);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<DuplicateContent.Duplicate> duplicates =
+                    new DuplicateContent(mIndex).getDuplicates(executor);
+            assertEquals(expected.size(), duplicates.size());
+            long wastedSize = 0;
+            long expectedWastedSize = 0;
+            for (int i = 0; i < expected.size(); i++) {
+                wastedSize += duplicates.get(i).getWastedSize();
+                expectedWastedSize += expected.get(i).getWastedSize();
+            }
+            assertEquals(expectedWastedSize, wastedSize);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.tools.perflib.heap.ArrayInstance;
+import com.android.tools.perflib.heap.ClassInstance;
+import com.android.tools.perflib.heap.ClassObj;
+import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.HprofParser;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.io.InMemoryBuffer;
+import com.android.tools.perflib.heap.io.MemoryMappedFileBuffer;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class HeapDumpAggregatorsTest extends TestCase {
+
+    private File mFile;
+
+    private Snapshot mSnapshot;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(ClassLoader.getSystemResource("dialer.android-hprof").getFile());
+        mSnapshot = (new HprofParser(new MemoryMappedFileBuffer(mFile))).parse();
+    }
+
+    public void testClassHistogram() throws Exception {
+        ClassHistogram histogram = new ClassHistogram();
+        (new HprofParser(new MemoryMappedFileBuffer(mFile))).parse(histogram);
+
+        List<ClassHistogram.Entry> entries = histogram.getEntries();
+        assertFalse(entries.isEmpty());
+        for (int i = 1; i < entries.size(); i++) {
+            assertTrue(entries.get(i - 1).getShallowSize() >= entries.get(i).getShallowSize());
+        }
+
+        int totalCount = 0;
+        for (ClassHistogram.Entry entry : entries) {
+            ClassObj clazz = mSnapshot.findClass(entry.getClassName());
+            assertNotNull(entry.getClassName(), clazz);
+            assertEquals(clazz.getInstancesList().size(), entry.getInstanceCount());
+            long shallowSize = 0;
+            for (Instance instance : clazz.getInstancesList()) {
+                shallowSize += instance.getSize();
+            }
+            assertEquals(shallowSize, entry.getShallowSize());
+            totalCount += entry.getInstanceCount();
+        }
+        int expectedCount = 0;
+        for (Heap heap : mSnapshot.getHeaps()) {
+            expectedCount += heap.getInstancesCount();
+        }
+        assertEquals(expectedCount, totalCount);
+
+        List<ClassHistogram.Entry> contexts = histogram.getSubclassEntries(
+                "android.content.Context");
+        boolean foundApplication = false;
+        for (ClassHistogram.Entry entry : contexts) {
+            ClassObj clazz = mSnapshot.findClass(entry.getClassName());
+            while (clazz != null && !clazz.getClassName().equals("android.content.Context")) {
+                clazz = clazz.getSuperClassObj();
+            }
+            assertNotNull(entry.getClassName(), clazz);
+            foundApplication |= "com.android.dialer.DialerApplication".equals(
+                    entry.getClassName());
+        }
+        assertTrue(foundApplication);
+    }
+
+    public void testHeapFilter() throws Exception {
+        ClassHistogram histogram = new ClassHistogram("app");
+        (new HprofParser(new MemoryMappedFileBuffer(mFile))).parse(histogram);
+
+        int totalCount = 0;
+        for (ClassHistogram.Entry entry : histogram.getEntries()) {
+            totalCount += entry.getInstanceCount();
+        }
+        assertEquals(mSnapshot.getHeap("app").getInstancesCount(), totalCount);
+    }
+
+    public void testDuplicateBitmaps() throws Exception {
+        DuplicateBitmaps duplicates = new DuplicateBitmaps();
+        (new HprofParser(new MemoryMappedFileBuffer(mFile))).parse(duplicates);
+
+        // Group the pixel buffers of the bitmaps of the snapshot by contents to compare.
+        Map<String, Set<Long>> groups = new HashMap<String, Set<Long>>();
+        ClassObj bitmapClass = mSnapshot.findClass("android.graphics.Bitmap");
+        if (bitmapClass != null) {
+            for (Instance instance : bitmapClass.getInstancesList()) {
+                ClassInstance bitmap = (ClassInstance) instance;
+                Object buffer = bitmap.getFieldValue("mBuffer");
+                if (buffer instanceof ArrayInstance) {
+                    String key = bitmap.getFieldValue("mWidth") + "x"
+                            + bitmap.getFieldValue("mHeight") + ":"
+                            + Arrays.hashCode(((ArrayInstance) buffer).getValues());
+                    Set<Long> buffers = groups.get(key);
+                    if (buffers == null) {
+                        buffers = new HashSet<Long>();
+                        groups.put(key, buffers);
+                    }
+                    buffers.add(((ArrayInstance) buffer).getId());
+                }
+            }
+        }
+        int expectedGroups = 0;
+        for (Set<Long> buffers : groups.values()) {
+            if (buffers.size() > 1) {
+                expectedGroups++;
+            }
+        }
+
+        List<DuplicateBitmaps.Duplicate> result = duplicates.getDuplicates();
+        assertEquals(expectedGroups, result.size());
+        for (DuplicateBitmaps.Duplicate duplicate : result) {
+            long[] ids = duplicate.getBitmapIds();
+            assertTrue(duplicate.getBufferCount() > 1);
+            assertTrue(ids.length >= duplicate.getBufferCount());
+            for (long id : ids) {
+                ClassInstance bitmap = (ClassInstance) mSnapshot.findReference(id);
+                assertEquals(duplicate.getWidth(), bitmap.getFieldValue("mWidth"));
+                assertEquals(duplicate.getHeight(), bitmap.getFieldValue("mHeight"));
+            }
+        }
+    }
+
+    public void testDuplicateBitmapsInSyntheticDump() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeBytes("JAVA PROFILE 1.0.3");
+        out.writeByte(0);
+        out.writeInt(4);
+        out.writeLong(0);
+        writeString(out, 1, "android.graphics.Bitmap");
+        writeString(out, 2, "mBuffer");
+        writeString(out, 3, "mWidth");
+        writeString(out, 4, "mHeight");
+        writeString(out, 5, "java.lang.Object");
+        writeLoadClass(out, 100, 1);
+        writeLoadClass(out, 101, 5);
+
+        ByteArrayOutputStream segmentBytes = new ByteArrayOutputStream();
+        DataOutputStream segment = new DataOutputStream(segmentBytes);
+        // One bitmap comes before the definition of its class.
+        writeBitmap(segment, 300, 200, 1, 1);
+        writeClassDump(segment, 101, 0, 0, new int[0]);
+        writeClassDump(segment, 100, 101, 12, new int[]{2, 3, 4});
+        writeByteArray(segment, 200, new byte[]{1, 2, 3, 4});
+        writeByteArray(segment, 201, new byte[]{1, 2, 3, 4});
+        writeByteArray(segment, 202, new byte[]{9, 9, 9, 9});
+        writeBitmap(segment, 301, 201, 1, 1);
+        writeBitmap(segment, 302, 202, 1, 1);
+        writeBitmap(segment, 303, 200, 2, 2);
+        // Bitmaps sharing a pixel buffer don't waste memory.
+        writeBitmap(segment, 304, 201, 1, 1);
+        writeBitmap(segment, 305, 202, 1, 1);
+        out.writeByte(0x1c);
+        out.writeInt(0);
+        out.writeInt(segment.size());
+        segmentBytes.writeTo(out);
+
+        InMemoryBuffer buffer = new InMemoryBuffer(bytes.size());
+        buffer.getDirectBuffer().put(bytes.toByteArray());
+        buffer.setPosition(0);
+        DuplicateBitmaps duplicates = new DuplicateBitmaps();
+        (new HprofParser(buffer)).parse(duplicates);
+
+        List<DuplicateBitmaps.Duplicate> result = duplicates.getDuplicates();
+        assertEquals(1, result.size());
+        DuplicateBitmaps.Duplicate duplicate = result.get(0);
+        assertEquals(1, duplicate.getWidth());
+        assertEquals(1, duplicate.getHeight());
+        assertEquals(4, duplicate.getByteSize());
+        assertEquals(2, duplicate.getBufferCount());
+        assertEquals(4, duplicate.getWastedSize());
+        long[] ids = duplicate.getBitmapIds();
+        Arrays.sort(ids);
+        assertTrue(Arrays.equals(new long[]{300, 301, 304}, ids));
+    }
+
+    private static void writeString(DataOutputStream out, int id, String value)
+            throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeByte(0x01);
+        out.writeInt(0);
+        out.writeInt(4 + bytes.length);
+        out.writeInt(id);
+        out.write(bytes);
+    }
+
+    private static void writeLoadClass(DataOutputStream out, int id, int nameId)
+            throws IOException {
+        out.writeByte(0x02);
+        out.writeInt(0);
+        out.writeInt(16);
+        out.writeInt(0);
+        out.writeInt(id);
+        out.writeInt(0);
+        out.writeInt(nameId);
+    }
+
+    /**
+     * Writes a class dump whose fields, named by string id, are an object and then ints.
+     */
+    private static void writeClassDump(DataOutputStream out, int id, int superClassId,
+            int instanceSize, int[] fieldNameIds) throws IOException {
+        out.writeByte(0x20);
+        out.writeInt(id);
+        out.writeInt(0);
+        out.writeInt(superClassId);
+        for (int i = 0; i < 5; i++) {
+            out.writeInt(0); // Class loader, signers, protection domain and reserved ids.
+        }
+        out.writeInt(instanceSize);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(fieldNameIds.length);
+        for (int i = 0; i < fieldNameIds.length; i++) {
+            out.writeInt(fieldNameIds[i]);
+            out.writeByte(i == 0 ? 2 : 10);
+        }
+    }
+
+    private static void writeByteArray(DataOutputStream out, int id, byte[] values)
+            throws IOException {
+        out.writeByte(0x23);
+        out.writeInt(id);
+        out.writeInt(0);
+        out.writeInt(values.length);
+        out.writeByte(8);
+        out.write(values);
+    }
+
+    private static void writeBitmap(DataOutputStream out, int id, int bufferId, int width,
+            int height) throws IOException {
+        out.writeByte(0x21);
+        out.writeInt(id);
+        out.writeInt(0);
+        out.writeInt(100);
+        out.writeInt(12);
+        out.writeInt(bufferId);
+        out.writeInt(width);
+        out.writeInt(height);
+    }
+}
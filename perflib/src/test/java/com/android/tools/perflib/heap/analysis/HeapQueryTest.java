@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.tools.perflib.heap.ClassInstance;
+import com.android.tools.perflib.heap.HeapGraph;
+import com.android.tools.perflib.heap.HprofParser;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Queries;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.io.MemoryMappedFileBuffer;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+public class HeapQueryTest extends TestCase {
+
+    private Snapshot mSnapshot;
+
+    private HeapGraph mGraph;
+
+    private HeapQueryIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        File file = new File(ClassLoader.getSystemResource("dialer.android-hprof").getFile());
+        mSnapshot = (new HprofParser(new MemoryMappedFileBuffer(file))).parse();
+        mGraph = mSnapshot.getHeapGraph();
+        mIndex = HeapQueryIndex.build(mGraph);
+    }
+
+    public void testInstancesOf() {
+        Instance[] expected = Queries.allInstancesOf(mSnapshot, "android.view.View");
+        int[] ordinals = HeapQuery.instancesOf(mIndex, "android.view.View", true).getOrdinals();
+        assertEquals(expected.length, ordinals.length);
+        for (Instance instance : expected) {
+            assertTrue(Arrays.binarySearch(ordinals, mGraph.getOrdinal(instance.getId())) >= 0);
+        }
+
+        assertEquals(Queries.instancesOf(mSnapshot, "android.view.View").length,
+                HeapQuery.instancesOf(mIndex, "android.view.View", false).getCount());
+        assertEquals(0, HeapQuery.instancesOf(mIndex, "no.such.Class", true).getCount());
+    }
+
+    public void testStringsByValue() {
+        Instance[] strings = Queries.instancesOf(mSnapshot, "java.lang.String");
+        int checked = 0;
+        for (Instance string : strings) {
+            String value = HeapQueryIndex.decodeString(string);
+            if (value == null) {
+                continue;
+            }
+            int[] ordinals = HeapQuery.stringsEqualTo(mIndex, value).getOrdinals();
+            assertTrue(Arrays.binarySearch(ordinals, mGraph.getOrdinal(string.getId())) >= 0);
+            if (++checked == 100) {
+                break;
+            }
+        }
+        assertEquals(100, checked);
+        assertTrue(mIndex.getDistinctStringCount() <= strings.length);
+        assertEquals(0, HeapQuery.stringsEqualTo(mIndex, "no such string \u2603").getCount());
+    }
+
+    public void testReferrersAndBitmaps() {
+        int[] bitmaps = HeapQuery.bitmapsAtLeast(mIndex, 0, 0).getOrdinals();
+        assertEquals(Queries.allInstancesOf(mSnapshot, "android.graphics.Bitmap").length,
+                bitmaps.length);
+        for (int bitmap : bitmaps) {
+            ClassInstance instance = (ClassInstance) mGraph.getInstance(bitmap);
+            assertEquals(instance.getFieldValue("mWidth"), mIndex.getBitmapWidth(bitmap));
+            assertEquals(instance.getFieldValue("mHeight"), mIndex.getBitmapHeight(bitmap));
+
+            int[] referrers = HeapQuery.referrersOf(mIndex, bitmap).getOrdinals();
+            assertEquals(mGraph.getInDegree(bitmap), referrers.length);
+            for (int referrer : referrers) {
+                boolean found = false;
+                for (int i = 0; i < mGraph.getOutDegree(referrer); i++) {
+                    found |= mGraph.getOutEdge(referrer, i) == bitmap;
+                }
+                assertTrue(found);
+            }
+        }
+        assertTrue(HeapQuery.bitmapsAtLeast(mIndex, 100, 100).getCount() < bitmaps.length);
+    }
+
+    public void testTopByRetainedSizeAndGroupBy() {
+        HeapQuery query = HeapQuery.instancesOf(mIndex, "java.lang.Object", true)
+                .filter(HeapQuery.reachable());
+        int[] top = query.getTopByRetainedSize(10);
+        assertEquals(10, top.length);
+
+        long[] sizes = new long[query.getCount()];
+        int[] ordinals = query.getOrdinals();
+        for (int i = 0; i < ordinals.length; i++) {
+            sizes[i] = mGraph.getRetainedSize(ordinals[i]);
+        }
+        Arrays.sort(sizes);
+        for (int i = 0; i < top.length; i++) {
+            assertEquals(sizes[sizes.length - 1 - i], mGraph.getRetainedSize(top[i]));
+        }
+        assertEquals(top.length,
+                query.filter(HeapQuery.retainedSizeAtLeast(sizes[sizes.length - 10])).getCount());
+
+        List<HeapQuery.Group> groups = query.groupBy(HeapQuery.BY_CLASS);
+        int count = 0;
+        long shallowSize = 0;
+        for (int i = 0; i < groups.size(); i++) {
+            HeapQuery.Group group = groups.get(i);
+            count += group.getCount();
+            shallowSize += group.getShallowSize();
+            if (i > 0) {
+                assertTrue(groups.get(i - 1).getRetainedSize() >= group.getRetainedSize());
+            }
+        }
+        assertEquals(query.getCount(), count);
+        assertEquals(query.getShallowSize(), shallowSize);
+    }
+}
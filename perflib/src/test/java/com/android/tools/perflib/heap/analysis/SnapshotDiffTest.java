@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.tools.perflib.heap.HeapGraph;
+import com.android.tools.perflib.heap.HprofParser;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.SnapshotBuilder;
+import com.android.tools.perflib.heap.io.MemoryMappedFileBuffer;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.List;
+
+public class SnapshotDiffTest extends TestCase {
+
+    public void testGrowth() throws Exception {
+        Snapshot before = new SnapshotBuilder(4)
+                .addReferences(1, 2)
+                .addReferences(2, 3)
+                .addRoot(1)
+                .addRoot(4)
+                .getSnapshot();
+        Snapshot after = new SnapshotBuilder(5)
+                .addReferences(1, 2)
+                .addReferences(2, 3, 5)
+                .addRoot(1)
+                .addRoot(4)
+                .getSnapshot();
+
+        SnapshotDiff diff = new SnapshotDiff(before.getHeapGraph(), after.getHeapGraph(), true);
+        diff.compute();
+        // 4 instances and 4 classes in both.
+        assertEquals(8, diff.getMatchedByIdCount());
+        assertEquals(2, diff.getAddedCount());
+        assertEquals(0, diff.getRemovedCount());
+
+        List<SnapshotDiff.ClassDelta> classes = diff.getClassDeltas();
+        SnapshotDiff.ClassDelta class5 = null;
+        for (SnapshotDiff.ClassDelta delta : classes) {
+            if (delta.getClassName().equals("Class5")) {
+                class5 = delta;
+            }
+        }
+        assertNotNull(class5);
+        assertEquals(0, class5.getCountBefore());
+        assertEquals(1, class5.getCountAfter());
+        assertEquals(5, class5.getSizeGrowth());
+        assertEquals(1, class5.getAddedCount());
+
+        List<SnapshotDiff.DominatorDelta> dominators = diff.getDominatorDeltas();
+        assertEquals(2, dominators.size());
+        assertEquals(1, dominators.get(0).getId());
+        assertEquals(6, dominators.get(0).getRetainedSizeBefore());
+        assertEquals(11, dominators.get(0).getRetainedSizeAfter());
+        assertEquals(4, dominators.get(1).getId());
+        assertEquals(0, dominators.get(1).getRetainedSizeGrowth());
+
+        List<SnapshotDiff.StackTraceDelta> traces = diff.getStackTraceDeltas();
+        assertEquals(1, traces.size());
+        assertEquals("", traces.get(0).getTrace());
+        assertEquals(2, traces.get(0).getCountGrowth());
+    }
+
+    public void testContentIncludesReferencedClasses() throws Exception {
+        Snapshot before = new SnapshotBuilder(3)
+                .addReferences(1, 2)
+                .addRoot(1)
+                .getSnapshot();
+        Snapshot after = new SnapshotBuilder(3)
+                .addReferences(1, 3)
+                .addRoot(1)
+                .getSnapshot();
+
+        // Instance 1 refers to a Class2 before and to a Class3 after, so only the classes and
+        // instances 2 and 3 are matched.
+        SnapshotDiff diff = new SnapshotDiff(before.getHeapGraph(), after.getHeapGraph(), false);
+        diff.compute();
+        assertEquals(5, diff.getMatchedByContentCount());
+        assertEquals(1, diff.getAddedCount());
+        assertEquals(1, diff.getRemovedCount());
+    }
+
+    public void testSameDumpOfDifferentProcesses() throws Exception {
+        File file = new File(ClassLoader.getSystemResource("dialer.android-hprof").getFile());
+        HeapGraph before = (new HprofParser(new MemoryMappedFileBuffer(file))).parseGraph();
+        HeapGraph after = (new HprofParser(new MemoryMappedFileBuffer(file))).parseGraph();
+
+        SnapshotDiff diff = new SnapshotDiff(before, after, false);
+        diff.compute();
+        assertEquals(0, diff.getMatchedByIdCount());
+        assertEquals(before.getNodeCount() - 1, diff.getMatchedByContentCount());
+        assertEquals(0, diff.getAddedCount());
+        assertEquals(0, diff.getRemovedCount());
+        assertTrue(diff.getClassDeltas().isEmpty());
+        assertTrue(diff.getDominatorDeltas().isEmpty());
+
+        SnapshotDiff sameProcess = new SnapshotDiff(before, after, true);
+        sameProcess.compute();
+        assertEquals(before.getNodeCount() - 1, sameProcess.getMatchedByIdCount());
+        for (SnapshotDiff.DominatorDelta delta : sameProcess.getDominatorDeltas()) {
+            assertEquals(0, delta.getRetainedSizeGrowth());
+        }
+    }
+
+    public void testSpilledRuns() throws Exception {
+        File file = new File(ClassLoader.getSystemResource("dialer.android-hprof").getFile());
+        HeapGraph before = (new HprofParser(new MemoryMappedFileBuffer(file))).parseGraph();
+        Snapshot snapshot = (new HprofParser(new MemoryMappedFileBuffer(file))).parse();
+        HeapGraph after = snapshot.getHeapGraph();
+
+        // Graphs of a full and of a graph-only parse hash the same, and runs this small are
+        // spilled many times over.
+        SnapshotDiff spilled = new SnapshotDiff(before, after, false, 1000);
+        spilled.compute();
+        assertEquals(before.getNodeCount() - 1, spilled.getMatchedByContentCount());
+        assertEquals(0, spilled.getAddedCount());
+        assertEquals(0, spilled.getRemovedCount());
+
+        SnapshotDiff inMemory = new SnapshotDiff(before, after, false);
+        inMemory.compute();
+        assertEquals(inMemory.getMatchedByContentCount(), spilled.getMatchedByContentCount());
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class CallIndexTest extends TestCase {
+    private CallIndex buildSampleIndex() {
+        CallStackReconstructor reconstructor = new CallStackReconstructor(0xff);
+
+        reconstructor.addTraceAction(0x1, TraceAction.METHOD_ENTER, 10, 10);
+        reconstructor.addTraceAction(0x2, TraceAction.METHOD_ENTER, 11, 11);
+        reconstructor.addTraceAction(0x3, TraceAction.METHOD_ENTER, 12, 12);
+        reconstructor.addTraceAction(0x3, TraceAction.METHOD_EXIT, 13, 13);
+        reconstructor.addTraceAction(0x2, TraceAction.METHOD_ENTER, 14, 14);
+        reconstructor.addTraceAction(0x2, TraceAction.METHOD_EXIT, 16, 16);
+        reconstructor.addTraceAction(0x2, TraceAction.METHOD_EXIT, 18, 18);
+        reconstructor.addTraceAction(0x3, TraceAction.METHOD_ENTER, 20, 20);
+        reconstructor.addTraceAction(0x3, TraceAction.METHOD_EXIT, 24, 24);
+        reconstructor.addTraceAction(0x1, TraceAction.METHOD_EXIT, 30, 30);
+
+        return CallIndex.build(reconstructor.getTopLevel().getTable());
+    }
+
+    public void testMethodStats() {
+        CallIndex index = buildSampleIndex();
+        TimeUnit unit = VmTraceData.getDefaultTimeUnits();
+
+        assertEquals(2, index.getInvocationCount(0x2));
+        assertEquals(0, index.getInvocationCount(0x4));
+        assertEquals(2, index.getCalls(0x3).length);
+        for (int call : index.getCalls(0x3)) {
+            assertEquals(0x3, index.getTable().getMethodId(call));
+        }
+
+        // The inner recursive call is already included in the outer one.
+        assertEquals(7, index.getInclusiveTime(0x2, ClockType.GLOBAL, unit));
+        assertEquals(6, index.getExclusiveTime(0x2, ClockType.GLOBAL, unit));
+        assertEquals(5, index.getInclusiveTime(0x3, ClockType.THREAD, unit));
+        assertEquals(5000, index.getInclusiveTime(0x3, ClockType.THREAD, TimeUnit.NANOSECONDS));
+    }
+
+    public void testTimeRange() {
+        CallIndex index = buildSampleIndex();
+        TimeUnit unit = VmTraceData.getDefaultTimeUnits();
+
+        assertEquals(1, index.getInclusiveTime(0x3, ClockType.GLOBAL, 0, 15, unit));
+        assertEquals(4, index.getInclusiveTime(0x3, ClockType.GLOBAL, 15, 30, unit));
+        assertEquals(0, index.getInclusiveTime(0x3, ClockType.GLOBAL, 21, 30, unit));
+        assertEquals(2, index.getExclusiveTime(0x2, ClockType.GLOBAL, 14, 15, unit));
+        assertEquals(0, index.getInclusiveTime(0x2, ClockType.GLOBAL, 14, 15, unit));
+    }
+
+    public void testEdges() {
+        CallIndex index = buildSampleIndex();
+        TimeUnit unit = VmTraceData.getDefaultTimeUnits();
+
+        assertEquals(2, index.getCallees(0x1).length);
+        assertEquals(0x2, index.getCallees(0x1)[0]);
+        assertEquals(0x3, index.getCallees(0x1)[1]);
+        assertEquals(2, index.getCallers(0x3).length);
+        assertEquals(0x1, index.getCallers(0x3)[0]);
+        assertEquals(0x2, index.getCallers(0x3)[1]);
+        assertEquals(1, index.getInvocationCount(0x2, 0x2));
+        assertEquals(0, index.getInvocationCount(0x3, 0x2));
+        assertEquals(4, index.getInclusiveTime(0x1, 0x3, ClockType.GLOBAL, unit));
+        assertEquals(0, index.getInclusiveTime(0x2, 0x2, ClockType.GLOBAL, unit));
+    }
+
+    public void testMatchesProfileData() throws IOException {
+        File file = new File(getClass().getResource("/basic.trace").getFile());
+        VmTraceParser parser = new VmTraceParser(file);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            parser.parse(executor);
+        } finally {
+            executor.shutdown();
+        }
+        VmTraceData traceData = parser.getTraceData();
+
+        for (ThreadInfo thread : traceData.getThreads(true)) {
+            CallIndex index = traceData.getCallIndex(thread);
+            assertNotNull(index);
+            for (long methodId : index.getMethodIds()) {
+                MethodProfileData data = traceData.getMethod(methodId).getProfileData();
+                assertEquals(data.getInvocationCount(thread), index.getInvocationCount(methodId));
+                for (ClockType type : ClockType.values()) {
+                    assertEquals(data.getInclusiveTime(thread, type, TimeUnit.NANOSECONDS),
+                            index.getInclusiveTime(methodId, type, TimeUnit.NANOSECONDS));
+                    assertEquals(data.getExclusiveTime(thread, type, TimeUnit.NANOSECONDS),
+                            index.getExclusiveTime(methodId, type, TimeUnit.NANOSECONDS));
+                    for (long callerId : index.getCallers(methodId)) {
+                        assertEquals(data.getInclusiveTimeByCaller(thread, callerId, type,
+                                TimeUnit.NANOSECONDS), index.getInclusiveTime(callerId,
+                                methodId, type, TimeUnit.NANOSECONDS));
+                    }
+                }
+            }
+        }
+
+        ThreadInfo thread = traceData.getThread("AsyncTask #1");
+        TimeSelector selector = TimeSelector.create(ClockType.GLOBAL, false);
+        List<MethodInfo> top = traceData.getTopMethods(thread, ClockType.GLOBAL, false, 0,
+                Long.MAX_VALUE, TimeUnit.MICROSECONDS, 3);
+        assertEquals(3, top.size());
+        for (int i = 1; i < top.size(); i++) {
+            assertTrue(selector.get(top.get(i - 1), thread, TimeUnit.NANOSECONDS)
+                    >= selector.get(top.get(i), thread, TimeUnit.NANOSECONDS));
+        }
+    }
+}
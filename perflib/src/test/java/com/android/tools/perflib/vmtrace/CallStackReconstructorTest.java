@@ -77,6 +77,76 @@ public class CallStackReconstructorTest extends TestCase {
         }
     }
 
+    public void testCallTableLayout() {
+        Call topLevel = reconstructSampleCallStack();
+        CallTable table = topLevel.getTable();
+
+        // 255 -> 1 -> 2 -> 3, 3 then 1 -> 5, and 255 -> 6, in preorder.
+        assertEquals(7, table.size());
+        assertEquals(0, topLevel.getIndex());
+        assertEquals(CallTable.NO_PARENT, table.getParent(0));
+        assertEquals(7, table.getSubtreeEnd(0));
+        assertEquals(0x2, table.getMethodId(2));
+        assertEquals(1, table.getParent(2));
+        assertEquals(5, table.getSubtreeEnd(2));
+        assertEquals(2, table.getParent(4));
+        assertEquals(1, table.getParent(5));
+        assertEquals(0, table.getParent(6));
+
+        assertEquals(topLevel.getCallees().get(0), table.getCall(1));
+        assertEquals(table.getCall(1).hashCode(), topLevel.getCallees().get(0).hashCode());
+    }
+
+    public void testSnapshot() {
+        long[][] actions = {
+                {0x9, 1}, {0x1, 0}, {0x2, 0}, {0x2, 1}, {0x1, 1}, {0x8, 0}, {0x8, 1}, {0x8, 1},
+                {0x3, 0}, {0x1, 0}, {0x4, 0}, {0x4, 1}, {0x1, 1}, {0x3, 1}, {0x7, 1}, {0x5, 0},
+                {0x7, 0}, {0x5, 0}, {0x5, 1}, {0x6, 0}};
+        CallStackReconstructor reconstructor = new CallStackReconstructor(0xff);
+        for (int count = 0; count <= actions.length; count++) {
+            CallStackReconstructor expected = new CallStackReconstructor(0xff);
+            for (int i = 0; i < count; i++) {
+                TraceAction action = actions[i][1] == 0
+                        ? TraceAction.METHOD_ENTER : TraceAction.METHOD_EXIT;
+                expected.addTraceAction(actions[i][0], action, i * 2 + 10, i * 3 + 10);
+                if (i == count - 1) {
+                    reconstructor.addTraceAction(actions[i][0], action, i * 2 + 10, i * 3 + 10);
+                }
+            }
+
+            Call snapshot = reconstructor.getSnapshot();
+            String layout = describe(snapshot.getTable());
+            assertEquals(describe(expected.getTopLevel().getTable()), layout);
+            assertEquals(expected.getTopLevel().toString(), snapshot.toString());
+
+            // The snapshot doesn't change with the actions received afterwards.
+            if (count > 0) {
+                assertEquals(mPreviousLayout, describe(mPreviousSnapshot.getTable()));
+            }
+            mPreviousSnapshot = snapshot;
+            mPreviousLayout = layout;
+        }
+    }
+
+    private Call mPreviousSnapshot;
+
+    private String mPreviousLayout;
+
+    private static String describe(CallTable table) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < table.size(); i++) {
+            sb.append(String.format("%d: %x depth %d parent %d end %d%s", i,
+                    table.getMethodId(i), table.getDepth(i), table.getParent(i),
+                    table.getSubtreeEnd(i), table.isRecursive(i) ? " recursive" : ""));
+            for (ClockType clock : ClockType.values()) {
+                sb.append(String.format(" %d-%d/%d", table.getEntryTime(i, clock),
+                        table.getExitTime(i, clock), table.getExclusiveTime(i, clock)));
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
     public void testInvalidTrace() {
         CallStackReconstructor reconstructor = new CallStackReconstructor(0xff);
 
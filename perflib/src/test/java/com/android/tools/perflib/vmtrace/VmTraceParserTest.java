@@ -16,10 +16,13 @@
 
 package com.android.tools.perflib.vmtrace;
 
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
 import com.google.common.primitives.Ints;
 
 import junit.framework.TestCase;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
@@ -335,6 +338,151 @@ public class VmTraceParserTest extends TestCase {
         }
     }
 
+    public void testStreamingParse() throws IOException {
+        for (String trace : new String[] {"/basic.trace", "/basic-api10.trace",
+                "/exception.trace", "/mismatched.trace"}) {
+            VmTraceData expected = getVmTraceData(trace);
+
+            // Feed the trace a few bytes at a time, with snapshots along the way.
+            byte[] bytes = Files.toByteArray(getFile(trace));
+            VmTraceParser parser = new VmTraceParser();
+            for (int offset = 0; offset < bytes.length; offset += 7) {
+                parser.consume(bytes, offset, Math.min(7, bytes.length - offset));
+                if (offset % 700 == 0) {
+                    assertNotNull(parser.getSnapshot());
+                }
+            }
+            parser.finish();
+            assertStreamedTraceEquals(expected, parser.getTraceData());
+        }
+    }
+
+    public void testStreamingSnapshot() throws IOException {
+        byte[] bytes = Files.toByteArray(getFile("/basic.trace"));
+        // Stop in the middle of the last few records.
+        int split = bytes.length - 20;
+        VmTraceParser parser = new VmTraceParser();
+        parser.consume(new ByteArrayInputStream(bytes, 0, split));
+        VmTraceData snapshot = parser.getSnapshot();
+        ThreadInfo thread = snapshot.getThread("AsyncTask #1");
+        assertNotNull(thread);
+        Call top = thread.getTopLevelCall();
+        assertNotNull(top);
+        assertEquals(top.getInclusiveTime(ClockType.GLOBAL, TimeUnit.NANOSECONDS),
+                snapshot.getMethod(top.getMethodId()).getProfileData()
+                        .getInclusiveTime(thread, ClockType.GLOBAL, TimeUnit.NANOSECONDS));
+
+        // Taking a snapshot doesn't prevent the rest of the trace from being parsed.
+        parser.consume(new ByteArrayInputStream(bytes, split, bytes.length - split));
+        parser.finish();
+        assertStreamedTraceEquals(getVmTraceData("/basic.trace"), parser.getTraceData());
+    }
+
+    public void testStreamingSnapshotStatistics() throws IOException {
+        for (String trace : new String[] {"/basic.trace", "/exception.trace",
+                "/mismatched.trace"}) {
+            byte[] bytes = Files.toByteArray(getFile(trace));
+            VmTraceParser parser = new VmTraceParser();
+            for (int offset = 0; offset < bytes.length; offset += 7) {
+                parser.consume(bytes, offset, Math.min(7, bytes.length - offset));
+                if (offset % 350 != 0) {
+                    continue;
+                }
+
+                assertSnapshotStatistics(parser.getSnapshot());
+            }
+        }
+    }
+
+    public void testSnapshotStatisticsOfCallsEnteredBeforeTracing() {
+        VmTraceData.Builder builder = new VmTraceData.Builder();
+        builder.aggregateProfileData();
+        builder.addThread(1, "main");
+        // 0x2 and 0x4 exit without having been entered, and then call methods already called.
+        int[][] actions = {
+                {0x2, 0}, {0x4, 0}, {0x4, 1}, {0x2, 1}, {0x4, 0}, {0x4, 1}, {0x2, 1},
+                {0x4, 1}, {0x6, 0}, {0x2, 0}, {0x6, 0}, {0x6, 1}, {0x4, 0}, {0x2, 0},
+        };
+        for (int i = 0; i < actions.length; i++) {
+            builder.addMethodAction(1, actions[i][0],
+                    actions[i][1] == 0 ? TraceAction.METHOD_ENTER : TraceAction.METHOD_EXIT,
+                    10 + i * 3, 10 + i * 5);
+            assertSnapshotStatistics(builder.buildSnapshot());
+        }
+    }
+
+    /**
+     * Checks that the statistics maintained while streaming are the ones of the call trees.
+     */
+    private static void assertSnapshotStatistics(VmTraceData snapshot) {
+        Map<Long, MethodProfileData> streamed = Maps.newHashMap();
+        for (MethodInfo method : snapshot.getMethods().values()) {
+            streamed.put(method.id, method.getProfileData());
+        }
+        VmTraceParser.computeTimingStatistics(snapshot);
+        for (MethodInfo method : snapshot.getMethods().values()) {
+            assertProfileDataEquals(method.getProfileData(), streamed.get(method.id),
+                    snapshot.getThreads());
+        }
+    }
+
+    private static void assertProfileDataEquals(MethodProfileData expected,
+            MethodProfileData actual, Collection<ThreadInfo> threads) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+        assertNotNull(actual);
+        assertEquals(expected.isRecursive(), actual.isRecursive());
+        for (ThreadInfo thread : threads) {
+            assertEquals(expected.getInvocationCount(thread), actual.getInvocationCount(thread));
+            assertEquals(expected.getCallers(thread), actual.getCallers(thread));
+            assertEquals(expected.getCallees(thread), actual.getCallees(thread));
+            for (ClockType type : ClockType.values()) {
+                assertEquals(expected.getInclusiveTime(thread, type, TimeUnit.NANOSECONDS),
+                        actual.getInclusiveTime(thread, type, TimeUnit.NANOSECONDS));
+                assertEquals(expected.getExclusiveTime(thread, type, TimeUnit.NANOSECONDS),
+                        actual.getExclusiveTime(thread, type, TimeUnit.NANOSECONDS));
+                for (Long caller : expected.getCallers(thread)) {
+                    assertEquals(expected.getInvocationCountFromCaller(thread, caller),
+                            actual.getInvocationCountFromCaller(thread, caller));
+                    assertEquals(expected.getInclusiveTimeByCaller(thread, caller, type,
+                            TimeUnit.NANOSECONDS), actual.getInclusiveTimeByCaller(thread, caller,
+                            type, TimeUnit.NANOSECONDS));
+                    assertEquals(expected.getExclusiveTimeByCaller(thread, caller, type,
+                            TimeUnit.NANOSECONDS), actual.getExclusiveTimeByCaller(thread, caller,
+                            type, TimeUnit.NANOSECONDS));
+                }
+                for (Long callee : expected.getCallees(thread)) {
+                    assertEquals(expected.getInclusiveTimeByCallee(thread, callee, type,
+                            TimeUnit.NANOSECONDS), actual.getInclusiveTimeByCallee(thread, callee,
+                            type, TimeUnit.NANOSECONDS));
+                }
+            }
+        }
+    }
+
+    private void assertStreamedTraceEquals(VmTraceData expected, VmTraceData actual) {
+        assertEquals(expected.getThreads().size(), actual.getThreads().size());
+        for (ThreadInfo thread : expected.getThreads()) {
+            ThreadInfo streamed = actual.getThread(thread.getName());
+            assertNotNull(streamed);
+            Call call = thread.getTopLevelCall();
+            if (call == null) {
+                assertNull(streamed.getTopLevelCall());
+                continue;
+            }
+            assertEquals(call.format(new CallFormatter(expected.getMethods())),
+                    streamed.getTopLevelCall().format(new CallFormatter(actual.getMethods())));
+            for (MethodInfo method : expected.getMethods().values()) {
+                assertEquals(method.getProfileData().getInclusiveTime(thread, ClockType.GLOBAL,
+                        TimeUnit.NANOSECONDS),
+                        actual.getMethod(method.id).getProfileData().getInclusiveTime(streamed,
+                                ClockType.GLOBAL, TimeUnit.NANOSECONDS));
+            }
+        }
+    }
+
     private VmTraceData getVmTraceData(String traceFilePath) throws IOException {
         VmTraceParser parser = new VmTraceParser(getFile(traceFilePath));
         parser.parse();
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace.viz;
+
+import com.android.tools.perflib.vmtrace.CallStackReconstructor;
+import com.android.tools.perflib.vmtrace.CallTable;
+import com.android.tools.perflib.vmtrace.ClockType;
+import com.android.tools.perflib.vmtrace.TraceAction;
+import com.android.tools.perflib.vmtrace.VmTraceData;
+
+import junit.framework.TestCase;
+
+public class CallLayoutIndexTest extends TestCase {
+    private CallLayoutIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        // A few thousand calls under 0x1, most short, some longer with a nested call.
+        CallStackReconstructor reconstructor = new CallStackReconstructor(0xff);
+        int time = 0;
+        reconstructor.addTraceAction(0x1, TraceAction.METHOD_ENTER, time, time);
+        for (int i = 0; i < 5000; i++) {
+            int duration = i % 997 == 0 ? 100 : 1 + i % 3;
+            reconstructor.addTraceAction(0x2, TraceAction.METHOD_ENTER, time, time);
+            if (duration > 50) {
+                reconstructor.addTraceAction(0x3, TraceAction.METHOD_ENTER, time + 1, time + 1);
+                reconstructor.addTraceAction(0x3, TraceAction.METHOD_EXIT, time + 60, time + 60);
+            }
+            time += duration;
+            reconstructor.addTraceAction(0x2, TraceAction.METHOD_EXIT, time, time);
+        }
+        reconstructor.addTraceAction(0x1, TraceAction.METHOD_EXIT, time, time);
+
+        CallTable table = reconstructor.getTopLevel().getTable();
+        mIndex = new CallLayoutIndex(table, ClockType.GLOBAL, VmTraceData.getDefaultTimeUnits());
+    }
+
+    public void testDepths() {
+        assertEquals(4, mIndex.getDepthCount());
+        assertEquals(1, mIndex.getDepthEnd(0));
+        assertEquals(2, mIndex.getDepthEnd(1));
+        assertEquals(5002, mIndex.getDepthEnd(2));
+        for (int position = 2; position < mIndex.getDepthEnd(2) - 1; position++) {
+            assertTrue(mIndex.getStart(position) < mIndex.getStart(position + 1));
+        }
+    }
+
+    public void testFindNext() {
+        int size = mIndex.getDepthEnd(mIndex.getDepthCount() - 1);
+        for (long minDuration : new long[] {0, 2, 3, 50, 100, 101, Long.MAX_VALUE}) {
+            int expected = 0;
+            for (int position = 0; position <= size; position += 7) {
+                while (expected < size && (expected < position
+                        || mIndex.getDuration(expected) < minDuration)) {
+                    expected++;
+                }
+                assertEquals(expected, mIndex.findNext(position, minDuration));
+            }
+        }
+    }
+
+    public void testPositionLookup() {
+        int start = mIndex.getDepthEnd(1);
+        int end = mIndex.getDepthEnd(2);
+        for (int position = start; position < end; position += 13) {
+            long entry = mIndex.getStart(position);
+            long exit = entry + mIndex.getDuration(position);
+            assertEquals(position, mIndex.getLastPositionBefore(2, entry));
+            if (mIndex.getDuration(position) > 1) {
+                assertEquals(position, mIndex.getFirstPosition(2, exit - 1));
+                assertEquals(position, mIndex.getLastPositionBefore(2, exit - 1));
+            }
+        }
+        assertEquals(start, mIndex.getFirstPosition(2, -10));
+        assertEquals(-1, mIndex.getLastPositionBefore(2, -10));
+        assertEquals(end, mIndex.getFirstPosition(2, Long.MAX_VALUE / 2));
+    }
+}